@@ -0,0 +1,220 @@
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.Soundbank;
+import javax.sound.midi.Synthesizer;
+import javax.sound.midi.Track;
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Renders MIDI sequences to WAV files offline, for listening to remapped output without a DAW.
+ * <p>
+ * Each sequence is played through its own instance of the JDK's software synthesizer, opened as an audio
+ * stream rather than on a sound card: every event is queued with its time stamp up front and the stream
+ * is read as fast as the synthesizer can produce it, which is much faster than real time. Several files
+ * are rendered in parallel, one synthesizer per file.
+ * <p>
+ * Opening the synthesizer as a stream uses {@code com.sun.media.sound.AudioSynthesizer}, which the JDK does
+ * not export: the JVM has to be started with {@code --add-exports java.desktop/com.sun.media.sound=ALL-UNNAMED}.
+ */
+final class AuditionRenderer {
+
+    private static final String AUDIO_SYNTHESIZER_CLASS = "com.sun.media.sound.AudioSynthesizer";
+    private static final AudioFormat WAV_FORMAT = new AudioFormat(44100f, 16, 2, true, false);
+    private static final long TAIL_MICROSECONDS = 3_000_000; // Lets the last notes ring out
+    private static final int META_TEMPO = 0x51;
+    private static final int DEFAULT_TEMPO = 500_000; // Microseconds per quarter note (120 BPM)
+
+    private final File soundFontFile;
+    private final RemapLog log;
+    private Soundbank soundFont;
+
+    /**
+     * Creates a renderer.
+     * @param soundFontFile The SoundFont (.sf2) or DLS file to render with, or null for the JDK's default sounds.
+     * @param log Receives progress and error messages.
+     */
+    AuditionRenderer(File soundFontFile, RemapLog log) {
+        this.soundFontFile = soundFontFile;
+        this.log = log;
+    }
+
+    /**
+     * Renders a sequence to a WAV file.
+     * @param sequence The sequence to render.
+     * @param wavFile The file to write.
+     * @throws MidiUnavailableException If the software synthesizer cannot be opened as a stream.
+     * @throws InvalidMidiDataException If the SoundFont is invalid.
+     * @throws IOException If the SoundFont cannot be read or the WAV file cannot be written.
+     */
+    void render(Sequence sequence, File wavFile) throws MidiUnavailableException, InvalidMidiDataException, IOException {
+        Synthesizer synthesizer = MidiSystem.getSynthesizer();
+        AudioInputStream stream = openStream(synthesizer);
+        try {
+            Soundbank soundbank = soundFont();
+            if (soundbank != null) {
+                Soundbank defaultSoundbank = synthesizer.getDefaultSoundbank();
+                if (defaultSoundbank != null) {
+                    synthesizer.unloadAllInstruments(defaultSoundbank);
+                }
+                if (!synthesizer.loadAllInstruments(soundbank)) {
+                    throw new InvalidMidiDataException("The synthesizer does not support " + soundFontFile.getName());
+                }
+            }
+            long lengthMicroseconds = queueEvents(sequence, synthesizer.getReceiver()) + TAIL_MICROSECONDS;
+            long frames = (long) (WAV_FORMAT.getFrameRate() * lengthMicroseconds / 1_000_000.0);
+            AudioSystem.write(new AudioInputStream(stream, WAV_FORMAT, frames), AudioFileFormat.Type.WAVE, wavFile);
+        } finally {
+            synthesizer.close();
+        }
+    }
+
+    /**
+     * Renders MIDI files to WAV files in parallel. A file that fails is logged and skipped.
+     * @param midiFiles The MIDI files to render.
+     * @param outputFolder The folder the WAV files are written to, named after the MIDI files.
+     * @param threads The number of files to render at once.
+     * @return The number of files rendered.
+     * @throws InterruptedException If the calling thread is interrupted while waiting for the renders.
+     */
+    int renderAll(List<File> midiFiles, File outputFolder, int threads) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (File midiFile : midiFiles) {
+                results.add(executor.submit(() -> renderFile(midiFile, outputFolder)));
+            }
+            int rendered = 0;
+            for (Future<Boolean> result : results) {
+                try {
+                    if (result.get()) {
+                        rendered++;
+                    }
+                } catch (ExecutionException e) {
+                    log.error("Render failed: " + e.getCause().getMessage(), e.getCause());
+                }
+            }
+            return rendered;
+        } finally {
+            executor.shutdownNow();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * Returns the name of the WAV file rendered from a MIDI file name.
+     */
+    static String wavFileName(String midiFileName) {
+        int dot = midiFileName.lastIndexOf('.');
+        return (dot > 0 ? midiFileName.substring(0, dot) : midiFileName) + ".wav";
+    }
+
+    private boolean renderFile(File midiFile, File outputFolder) {
+        long start = System.nanoTime();
+        File wavFile = new File(outputFolder, wavFileName(midiFile.getName()));
+        try {
+            render(MidiSystem.getSequence(midiFile), wavFile);
+            log.status("Rendered " + midiFile.getName() + " -> " + wavFile.getName() + " ("
+                    + (System.nanoTime() - start) / 1_000_000 + " ms)");
+            return true;
+        } catch (MidiUnavailableException | InvalidMidiDataException | IOException e) {
+            log.error("Could not render " + midiFile.getName() + ": " + e.getMessage(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Loads the SoundFont once; the same instruments are then loaded into every synthesizer.
+     */
+    private synchronized Soundbank soundFont() throws InvalidMidiDataException, IOException {
+        if (soundFont == null && soundFontFile != null) {
+            soundFont = MidiSystem.getSoundbank(soundFontFile);
+        }
+        return soundFont;
+    }
+
+    /**
+     * Opens the synthesizer as an audio stream instead of on the sound card.
+     */
+    private static AudioInputStream openStream(Synthesizer synthesizer) throws MidiUnavailableException {
+        try {
+            Class<?> audioSynthesizer = Class.forName(AUDIO_SYNTHESIZER_CLASS);
+            if (!audioSynthesizer.isInstance(synthesizer)) {
+                throw new MidiUnavailableException("The default synthesizer cannot render offline: " + synthesizer.getDeviceInfo().getName());
+            }
+            Method openStream = audioSynthesizer.getMethod("openStream", AudioFormat.class, Map.class);
+            return (AudioInputStream) openStream.invoke(synthesizer, WAV_FORMAT, null);
+        } catch (ClassNotFoundException | NoSuchMethodException e) {
+            throw new MidiUnavailableException("This JDK has no software synthesizer that can render offline.");
+        } catch (IllegalAccessException e) {
+            throw new MidiUnavailableException("Offline rendering needs the JVM option --add-exports java.desktop/com.sun.media.sound=ALL-UNNAMED");
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof MidiUnavailableException) {
+                throw (MidiUnavailableException) e.getCause();
+            }
+            MidiUnavailableException unavailable = new MidiUnavailableException("Could not open the synthesizer stream: " + e.getCause());
+            unavailable.initCause(e.getCause());
+            throw unavailable;
+        }
+    }
+
+    /**
+     * Sends every channel and system exclusive event of a sequence to the synthesizer, time stamped in
+     * microseconds from the start of the stream, following the sequence's tempo changes.
+     * @return The time stamp of the last event.
+     */
+    private static long queueEvents(Sequence sequence, Receiver receiver) {
+        List<MidiEvent> events = new ArrayList<>();
+        for (Track track : sequence.getTracks()) {
+            for (int i = 0; i < track.size(); i++) {
+                events.add(track.get(i));
+            }
+        }
+        events.sort(Comparator.comparingLong(MidiEvent::getTick)); // Stable: keeps track order at equal ticks
+
+        boolean ppq = sequence.getDivisionType() == Sequence.PPQ;
+        double framesPerSecond = ppq ? 0 : sequence.getDivisionType();
+        int resolution = sequence.getResolution();
+        int tempo = DEFAULT_TEMPO;
+        long lastTick = 0;
+        double microseconds = 0;
+        for (MidiEvent event : events) {
+            microseconds += ppq
+                    ? (double) (event.getTick() - lastTick) * tempo / resolution
+                    : (event.getTick() - lastTick) * 1_000_000.0 / (framesPerSecond * resolution);
+            lastTick = event.getTick();
+            MidiMessage message = event.getMessage();
+            if (message instanceof MetaMessage) {
+                MetaMessage meta = (MetaMessage) message;
+                byte[] data = meta.getData();
+                if (meta.getType() == META_TEMPO && data.length == 3) {
+                    tempo = ((data[0] & 0xFF) << 16) | ((data[1] & 0xFF) << 8) | (data[2] & 0xFF);
+                }
+            } else {
+                receiver.send(message, (long) microseconds);
+            }
+        }
+        return (long) microseconds;
+    }
+}
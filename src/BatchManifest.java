@@ -0,0 +1,389 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * The record of a batch run, or of one shard of it: every input with its output, sizes, the SHA-256 hash of the
+ * output and the time it took to remap, plus the shard, the size of the whole batch and the rules it ran with.
+ * <p>
+ * A large batch can be split over several machines that share nothing: each one runs the same batch with
+ * its own shard number, {@link BatchRemapper#shard} picks its files by a hash of their names, and each writes
+ * its manifest. {@link #problems} and {@link #report} then combine the manifests of all shards and check that
+ * together they cover the batch exactly once, with the same rules, and that no file failed.
+ * <p>
+ * Manifests are tab-separated text: a few header lines starting with '#', a column header line, and a line
+ * per file. Tabs, line breaks and backslashes in names and error messages are escaped with a backslash.
+ */
+final class BatchManifest {
+
+    private static final String COLUMNS = "input\toutput\tshard\tstatus\tinputBytes\toutputBytes\tsha256\tremapMicros\terror";
+    private static final String REMAPPED = "ok";
+    private static final String FAILED = "failed";
+    private static final String NONE = "-";
+
+    /**
+     * One input file of a batch and what became of it.
+     */
+    static final class Entry {
+        final String input;
+        final String output;
+        final int shard;
+        final long inputBytes;   // -1 if the file failed
+        final long outputBytes;  // -1 if the file failed
+        final String sha256;     // Of the output, as lowercase hex; null if the file failed
+        final long remapMicros;  // -1 if the file failed
+        final String error;      // null if the file was remapped
+
+        Entry(String input, String output, int shard, long inputBytes, long outputBytes, String sha256, long remapMicros, String error) {
+            this.input = input;
+            this.output = output;
+            this.shard = shard;
+            this.inputBytes = inputBytes;
+            this.outputBytes = outputBytes;
+            this.sha256 = sha256;
+            this.remapMicros = remapMicros;
+            this.error = error;
+        }
+
+        boolean isFailed() {
+            return error != null;
+        }
+    }
+
+    private final int shardIndex;
+    private final int shardCount;
+    private final int batchSize;
+    private final String rulesFingerprint;
+    private final List<Entry> entries = new ArrayList<>();
+    private long elapsedMillis;
+
+    /**
+     * Creates an empty manifest.
+     * @param shardIndex The shard the manifest covers, from 1 to shardCount.
+     * @param shardCount The number of shards the batch is split into; 1 if it is not split.
+     * @param batchSize The number of input files of the whole batch, over all shards.
+     * @param rulesFingerprint The {@link RemapRuleSet#fingerprint()} of the rules the batch runs with.
+     */
+    BatchManifest(int shardIndex, int shardCount, int batchSize, String rulesFingerprint) {
+        this.shardIndex = shardIndex;
+        this.shardCount = shardCount;
+        this.batchSize = batchSize;
+        this.rulesFingerprint = rulesFingerprint;
+    }
+
+    int getShardIndex() {
+        return shardIndex;
+    }
+
+    /**
+     * Sets the wall clock time of the shard's run, in milliseconds.
+     */
+    void setElapsedMillis(long elapsedMillis) {
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    /**
+     * Records a file that was remapped.
+     * @param input The input file's name in the batch.
+     * @param output The output file's name.
+     * @param inputBytes The size of the input.
+     * @param outputBytes The size of the output.
+     * @param sha256 The SHA-256 hash of the output, as lowercase hex.
+     * @param remapMicros The time spent remapping the file, in microseconds.
+     */
+    void addRemapped(String input, String output, long inputBytes, long outputBytes, String sha256, long remapMicros) {
+        entries.add(new Entry(input, output, shardIndex, inputBytes, outputBytes, sha256, remapMicros, null));
+    }
+
+    /**
+     * Records a file that could not be remapped.
+     * @param input The input file's name in the batch.
+     * @param output The name its output would have had.
+     * @param error Why the file failed.
+     */
+    void addFailed(String input, String output, String error) {
+        entries.add(new Entry(input, output, shardIndex, -1, -1, null, -1, error != null ? error : "unknown error"));
+    }
+
+    /**
+     * Writes the manifest to a file.
+     * @param file The manifest file; replaced if it exists.
+     * @throws IOException If the file cannot be written.
+     */
+    void write(File file) throws IOException {
+        List<String> lines = new ArrayList<>();
+        lines.add("# shard\t" + shardIndex + "\t" + shardCount);
+        lines.add("# batch\t" + batchSize);
+        lines.add("# rules\t" + rulesFingerprint);
+        lines.add("# elapsedMillis\t" + elapsedMillis);
+        lines.add(COLUMNS);
+        for (Entry entry : entries) {
+            lines.add(format(entry));
+        }
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            Files.createDirectories(parent.toPath());
+        }
+        Files.write(file.toPath(), lines, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads a manifest written by {@link #write}.
+     * @param file The manifest file.
+     * @return The manifest.
+     * @throws IOException If the file cannot be read or is not a manifest.
+     */
+    static BatchManifest read(File file) throws IOException {
+        int shardIndex = 0;
+        int shardCount = 0;
+        int batchSize = -1;
+        String rules = null;
+        long elapsed = 0;
+        BatchManifest manifest = null;
+        int lineNumber = 0;
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            lineNumber++;
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] fields = line.split("\t", -1);
+            try {
+                if (line.startsWith("#")) {
+                    switch (fields[0]) {
+                        case "# shard":
+                            shardIndex = Integer.parseInt(fields[1]);
+                            shardCount = Integer.parseInt(fields[2]);
+                            break;
+                        case "# batch":
+                            batchSize = Integer.parseInt(fields[1]);
+                            break;
+                        case "# rules":
+                            rules = fields[1];
+                            break;
+                        case "# elapsedMillis":
+                            elapsed = Long.parseLong(fields[1]);
+                            break;
+                        default:
+                            break;
+                    }
+                } else if (line.equals(COLUMNS)) {
+                    if (shardCount <= 0 || batchSize < 0 || rules == null) {
+                        throw new IOException("Manifest header incomplete in " + file.getAbsolutePath());
+                    }
+                    manifest = new BatchManifest(shardIndex, shardCount, batchSize, rules);
+                    manifest.setElapsedMillis(elapsed);
+                } else if (manifest == null || fields.length != 9) {
+                    throw invalidLine(file, lineNumber, line, null);
+                } else {
+                    boolean failed = fields[3].equals(FAILED);
+                    manifest.entries.add(new Entry(unescape(fields[0]), unescape(fields[1]), Integer.parseInt(fields[2]),
+                            Long.parseLong(fields[4]), Long.parseLong(fields[5]), failed ? null : fields[6], Long.parseLong(fields[7]),
+                            failed ? unescape(fields[8]) : null));
+                }
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                throw invalidLine(file, lineNumber, line, e);
+            }
+        }
+        if (manifest == null) {
+            throw new IOException("Not a batch manifest: " + file.getAbsolutePath());
+        }
+        return manifest;
+    }
+
+    private static IOException invalidLine(File file, int lineNumber, String line, Exception cause) {
+        return new IOException("Invalid manifest line " + lineNumber + " in " + file.getAbsolutePath() + ": " + line, cause);
+    }
+
+    /**
+     * Checks that the manifests of the shards of a batch cover the batch: every shard is there once, all ran
+     * the same batch with the same rules, no file was remapped by two shards, and no file failed.
+     * @param shards The manifests, in any order.
+     * @return A line per problem found; empty if the batch is complete.
+     */
+    static List<String> problems(List<BatchManifest> shards) {
+        List<String> problems = new ArrayList<>();
+        if (shards.isEmpty()) {
+            problems.add("No manifests");
+            return problems;
+        }
+        BatchManifest first = shards.get(0);
+        Map<Integer, Integer> shardRuns = new TreeMap<>();
+        for (BatchManifest shard : shards) {
+            if (shard.shardCount != first.shardCount) {
+                problems.add("Shard " + shard.shardIndex + "/" + shard.shardCount + " belongs to a batch of " + shard.shardCount
+                        + " shard(s), not " + first.shardCount);
+            }
+            if (shard.batchSize != first.batchSize) {
+                problems.add("Shard " + shard.shardIndex + "/" + shard.shardCount + " saw " + shard.batchSize
+                        + " input file(s) in the batch, not " + first.batchSize);
+            }
+            if (!shard.rulesFingerprint.equals(first.rulesFingerprint)) {
+                problems.add("Shard " + shard.shardIndex + "/" + shard.shardCount + " ran with other rules (" + shard.rulesFingerprint + ")");
+            }
+            shardRuns.merge(shard.shardIndex, 1, Integer::sum);
+        }
+        for (int index = 1; index <= first.shardCount; index++) {
+            int runs = shardRuns.getOrDefault(index, 0);
+            if (runs == 0) {
+                problems.add("Shard " + index + "/" + first.shardCount + " is missing");
+            } else if (runs > 1) {
+                problems.add("Shard " + index + "/" + first.shardCount + " is given " + runs + " times");
+            }
+        }
+
+        // A shard given twice is reported once above, not for each of its files
+        Map<String, Integer> shardOfInput = new HashMap<>();
+        Set<Integer> checked = new HashSet<>();
+        int files = 0;
+        for (BatchManifest shard : shards) {
+            if (!checked.add(shard.shardIndex)) {
+                continue;
+            }
+            for (Entry entry : shard.entries) {
+                files++;
+                Integer previous = shardOfInput.putIfAbsent(entry.input, entry.shard);
+                if (previous != null) {
+                    problems.add(entry.input + " was remapped by shard " + previous + " and shard " + entry.shard);
+                }
+                if (entry.isFailed()) {
+                    problems.add(entry.input + " failed in shard " + entry.shard + ": " + entry.error);
+                }
+            }
+        }
+        if (shardOfInput.size() != first.batchSize) {
+            problems.add("The shards cover " + shardOfInput.size() + " of " + first.batchSize + " input file(s)");
+        } else if (files != shardOfInput.size()) {
+            problems.add(files - shardOfInput.size() + " file(s) were remapped more than once");
+        }
+        return problems;
+    }
+
+    /**
+     * Combines the manifests of the shards of a batch into one report: totals for the batch and for each
+     * shard, the problems found, and every file of every shard, in name order. The file lines keep the
+     * manifest format, so the report can be read by spreadsheet tools or filtered with the usual text tools.
+     * @param shards The manifests, in any order.
+     * @param problems The problems found by {@link #problems}.
+     * @return The report.
+     */
+    static String report(List<BatchManifest> shards, List<String> problems) {
+        List<BatchManifest> ordered = new ArrayList<>(shards);
+        ordered.sort(Comparator.comparingInt(BatchManifest::getShardIndex));
+        List<Entry> all = new ArrayList<>();
+        for (BatchManifest shard : ordered) {
+            all.addAll(shard.entries);
+        }
+        all.sort(Comparator.comparing((Entry entry) -> entry.input).thenComparingInt(entry -> entry.shard));
+
+        StringBuilder report = new StringBuilder();
+        if (!ordered.isEmpty()) {
+            report.append("# shards\t").append(ordered.get(0).shardCount).append('\n');
+            report.append("# batch\t").append(ordered.get(0).batchSize).append('\n');
+            report.append("# rules\t").append(ordered.get(0).rulesFingerprint).append('\n');
+        }
+        report.append("# total\t").append(summary(all, maxElapsed(ordered))).append('\n');
+        for (BatchManifest shard : ordered) {
+            report.append("# shard ").append(shard.shardIndex).append('/').append(shard.shardCount).append('\t')
+                    .append(summary(shard.entries, shard.elapsedMillis)).append('\n');
+        }
+        for (String problem : problems) {
+            report.append("# problem\t").append(escape(problem)).append('\n');
+        }
+        report.append(COLUMNS).append('\n');
+        for (Entry entry : all) {
+            report.append(format(entry)).append('\n');
+        }
+        return report.toString();
+    }
+
+    private static long maxElapsed(List<BatchManifest> shards) {
+        long elapsed = 0;
+        for (BatchManifest shard : shards) {
+            elapsed = Math.max(elapsed, shard.elapsedMillis);
+        }
+        return elapsed;
+    }
+
+    /**
+     * Returns a one-line summary of a set of files: counts, sizes, remap time and the slowest file.
+     * @param elapsedMillis The wall clock time the files took; for several shards, the slowest shard's.
+     */
+    private static String summary(List<Entry> entries, long elapsedMillis) {
+        int remapped = 0;
+        long inputBytes = 0;
+        long outputBytes = 0;
+        long remapMicros = 0;
+        Entry slowest = null;
+        for (Entry entry : entries) {
+            if (entry.isFailed()) {
+                continue;
+            }
+            remapped++;
+            inputBytes += entry.inputBytes;
+            outputBytes += entry.outputBytes;
+            remapMicros += entry.remapMicros;
+            if (slowest == null || entry.remapMicros > slowest.remapMicros) {
+                slowest = entry;
+            }
+        }
+        return remapped + " file(s) remapped, " + (entries.size() - remapped) + " failed, " + inputBytes + " bytes in, "
+                + outputBytes + " bytes out, " + remapMicros / 1000 + " ms remapping, " + elapsedMillis + " ms elapsed"
+                + (slowest != null ? ", slowest " + escape(slowest.input) + " (" + slowest.remapMicros / 1000 + " ms)" : "");
+    }
+
+    private static String format(Entry entry) {
+        return escape(entry.input) + '\t' + escape(entry.output) + '\t' + entry.shard + '\t' + (entry.isFailed() ? FAILED : REMAPPED)
+                + '\t' + entry.inputBytes + '\t' + entry.outputBytes + '\t' + (entry.sha256 != null ? entry.sha256 : NONE)
+                + '\t' + entry.remapMicros + '\t' + (entry.isFailed() ? escape(entry.error) : NONE);
+    }
+
+    private static String escape(String text) {
+        StringBuilder escaped = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '\\':
+                    escaped.append("\\\\");
+                    break;
+                case '\t':
+                    escaped.append("\\t");
+                    break;
+                case '\n':
+                    escaped.append("\\n");
+                    break;
+                case '\r':
+                    escaped.append("\\r");
+                    break;
+                default:
+                    escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    private static String unescape(String text) {
+        if (text.indexOf('\\') < 0) {
+            return text;
+        }
+        StringBuilder unescaped = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\' && i + 1 < text.length()) {
+                char next = text.charAt(++i);
+                unescaped.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                unescaped.append(c);
+            }
+        }
+        return unescaped.toString();
+    }
+}
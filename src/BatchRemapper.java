@@ -0,0 +1,506 @@
+import javax.sound.midi.InvalidMidiDataException;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Remaps a batch of MIDI files read from a folder or a ZIP archive into a folder or a ZIP archive.
+ * <p>
+ * Sound banks are often dumped as archives of hundreds of small MIDI files. Extracting them and writing the
+ * outputs one small file at a time costs more in file system overhead than the remapping itself. With an
+ * archive, every entry is read straight into memory and parsed from there, and every remapped file is written
+ * straight into the output archive. Nothing is extracted or written to a temporary file.
+ * <p>
+ * Files are remapped on parallel workers. The calling thread is the only writer: it takes the results in
+ * input order, so the entry order of the output archive does not depend on timing, and workers can only run
+ * a few files ahead of it, so memory use does not grow with the size of the batch.
+ * <p>
+ * A batch too large for one machine can be split into shards with {@link #shard}: every machine opens the same
+ * batch and remaps only the files of its own shard, chosen by a hash of their names, so the machines need no
+ * coordination, and a {@link BatchManifest} per shard records what each one did.
+ */
+final class BatchRemapper {
+
+    private static final int RESULTS_PER_WORKER = 4; // Remapped files a worker may finish ahead of the writer
+
+    /**
+     * The MIDI files of a batch, named by their path relative to the batch root with '/' separators.
+     */
+    interface Source extends Closeable {
+        /**
+         * Returns the names of the MIDI files, in the order they are remapped.
+         */
+        List<String> names();
+
+        /**
+         * Reads a whole file. May be called from several threads at once.
+         * @param name The file's name.
+         * @return The file's bytes.
+         * @throws IOException If the file cannot be read.
+         */
+        byte[] read(String name) throws IOException;
+
+        /**
+         * Returns the modification time of a file, in milliseconds since the epoch.
+         */
+        long lastModified(String name);
+    }
+
+    /**
+     * Receives the remapped files of a batch. Only called from one thread.
+     */
+    interface Target extends Closeable {
+        /**
+         * Writes a remapped file.
+         * @param name The file's name, relative to the target root with '/' separators.
+         * @param data The file's bytes, from the buffer's position to its limit.
+         * @param lastModified The modification time of the input file, which archives store with the entry.
+         * @throws IOException If the file cannot be written.
+         */
+        void write(String name, ByteBuffer data, long lastModified) throws IOException;
+    }
+
+    private final RemapEngine engine;
+    private final RemapLog log;
+
+    /**
+     * Creates a batch remapper.
+     * @param engine The engine files are remapped with.
+     * @param log Receives a line per file written, and the errors of files that could not be remapped.
+     */
+    BatchRemapper(RemapEngine engine, RemapLog log) {
+        this.engine = engine;
+        this.log = log;
+    }
+
+    /**
+     * Opens the MIDI files of a folder tree, or of a ZIP archive if the file is not a folder.
+     * @param folderOrZip The folder or archive.
+     * @return The batch's files.
+     * @throws IOException If the folder cannot be listed or the archive cannot be opened.
+     */
+    static Source openSource(File folderOrZip) throws IOException {
+        if (folderOrZip.isDirectory()) {
+            return new FolderSource(folderOrZip.toPath());
+        }
+        if (!folderOrZip.isFile()) {
+            throw new IOException("Input not found: " + folderOrZip.getAbsolutePath());
+        }
+        return new ZipSource(new ZipFile(folderOrZip));
+    }
+
+    /**
+     * Creates a ZIP archive for the remapped files if the name ends with .zip, or a folder otherwise.
+     * An existing archive is replaced; files in an existing folder are overwritten.
+     * @param folderOrZip The folder or archive.
+     * @return The batch's target.
+     * @throws IOException If the folder or archive cannot be created.
+     */
+    static Target openTarget(File folderOrZip) throws IOException {
+        if (folderOrZip.getName().toLowerCase().endsWith(".zip")) {
+            File parent = folderOrZip.getAbsoluteFile().getParentFile();
+            if (parent != null) {
+                Files.createDirectories(parent.toPath());
+            }
+            return new ZipTarget(new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(folderOrZip), 64 * 1024)));
+        }
+        Files.createDirectories(folderOrZip.toPath());
+        return new FolderTarget(folderOrZip.toPath());
+    }
+
+    /**
+     * Returns the name of the remapped file for a file of a batch, in the same folder of the batch.
+     */
+    static String outputName(String name) {
+        int slash = name.lastIndexOf('/');
+        return name.substring(0, slash + 1) + RemapEngine.outputFileName(name.substring(slash + 1));
+    }
+
+    /**
+     * Returns the files of one shard of a batch. A batch split into N shards is remapped by running each shard
+     * once, on any machine: every file belongs to exactly one shard, chosen by a hash of its name, so the split
+     * does not depend on the order files are listed in, on the platform, or on files added to other shards.
+     * @param source The whole batch.
+     * @param shardIndex The shard, from 1 to shardCount.
+     * @param shardCount The number of shards.
+     * @return The files of the shard, in the order of the batch. It reads from the batch, which stays open until the caller closes it.
+     */
+    static Source shard(Source source, int shardIndex, int shardCount) {
+        if (shardCount < 1 || shardIndex < 1 || shardIndex > shardCount) {
+            throw new IllegalArgumentException("Invalid shard " + shardIndex + "/" + shardCount);
+        }
+        List<String> names = new ArrayList<>();
+        for (String name : source.names()) {
+            if (shardOf(name, shardCount) == shardIndex) {
+                names.add(name);
+            }
+        }
+        return new ShardSource(source, names);
+    }
+
+    /**
+     * Returns the shard a file belongs to: the first 8 bytes of the SHA-256 hash of its name, as an unsigned
+     * number, modulo the number of shards, plus 1.
+     * @param name The file's name in the batch, with '/' separators.
+     * @param shardCount The number of shards.
+     * @return The shard, from 1 to shardCount.
+     */
+    static int shardOf(String name, int shardCount) {
+        byte[] hash = sha256().digest(name.getBytes(StandardCharsets.UTF_8));
+        return (int) Long.remainderUnsigned(ByteBuffer.wrap(hash).getLong(), shardCount) + 1;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Remaps every file of a source into a target. A file that cannot be remapped is logged and skipped.
+     * Output is held in memory, so the memory budget of the options does not apply.
+     * @param source The files to remap.
+     * @param target Receives the remapped files.
+     * @param options The processing options, shared by all files.
+     * @param threads The number of files remapped at once.
+     * @return The number of files remapped.
+     * @throws IOException If the target cannot be written.
+     * @throws InterruptedException If the calling thread is interrupted while waiting for a file.
+     */
+    int remapAll(Source source, Target target, RemapOptions options, int threads) throws IOException, InterruptedException {
+        return remapAll(source, target, options, threads, null);
+    }
+
+    /**
+     * Remaps every file of a source into a target, and records every file in a manifest: its sizes, the hash of
+     * its output and the time it took, or why it failed. A file that cannot be remapped is logged and skipped.
+     * @param source The files to remap.
+     * @param target Receives the remapped files.
+     * @param options The processing options, shared by all files.
+     * @param threads The number of files remapped at once.
+     * @param manifest Receives a line per file, in input order; null for none.
+     * @return The number of files remapped.
+     * @throws IOException If the target cannot be written.
+     * @throws InterruptedException If the calling thread is interrupted while waiting for a file.
+     */
+    int remapAll(Source source, Target target, RemapOptions options, int threads, BatchManifest manifest)
+            throws IOException, InterruptedException {
+        int workers = Math.max(1, threads);
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        try {
+            Deque<PendingFile> pending = new ArrayDeque<>();
+            int remapped = 0;
+            for (String name : source.names()) {
+                Future<RemappedFile> result = pool.submit(() -> remap(source, name, options, manifest != null));
+                pending.add(new PendingFile(name, result));
+                if (pending.size() >= workers * RESULTS_PER_WORKER) {
+                    remapped += writeNext(pending, source, target, manifest);
+                }
+            }
+            while (!pending.isEmpty()) {
+                remapped += writeNext(pending, source, target, manifest);
+            }
+            return remapped;
+        } finally {
+            pool.shutdownNow();
+            pool.awaitTermination(1, TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * Reads and remaps one file, on a worker thread.
+     * @param hash Whether to hash the output for the manifest.
+     */
+    private RemappedFile remap(Source source, String name, RemapOptions options, boolean hash)
+            throws IOException, InvalidMidiDataException {
+        byte[] input = source.read(name);
+        long start = System.nanoTime();
+        ByteBuffer output = engine.remap(ByteBuffer.wrap(input), options, name);
+        long micros = (System.nanoTime() - start) / 1000;
+        String sha256 = null;
+        if (hash) {
+            MessageDigest digest = sha256();
+            digest.update(output.duplicate());
+            sha256 = RemapOutputCache.toHex(digest.digest());
+        }
+        return new RemappedFile(output, input.length, micros, sha256);
+    }
+
+    /**
+     * Waits for the oldest pending file and writes it.
+     * @return 1 if the file was written, 0 if it could not be remapped.
+     */
+    private int writeNext(Deque<PendingFile> pending, Source source, Target target, BatchManifest manifest)
+            throws IOException, InterruptedException {
+        PendingFile file = pending.removeFirst();
+        String outputName = outputName(file.name);
+        RemappedFile remapped;
+        try {
+            remapped = file.result.get();
+        } catch (ExecutionException e) {
+            log.error("Could not remap " + file.name + ": " + e.getCause().getMessage(), e.getCause());
+            if (manifest != null) {
+                manifest.addFailed(file.name, outputName, e.getCause().toString());
+            }
+            return 0;
+        }
+        int size = remapped.data.remaining();
+        target.write(outputName, remapped.data, source.lastModified(file.name));
+        if (manifest != null) {
+            manifest.addRemapped(file.name, outputName, remapped.inputBytes, size, remapped.sha256, remapped.remapMicros);
+        }
+        log.status(file.name + " -> " + outputName + " (" + size + " bytes)");
+        return 1;
+    }
+
+    private static final class PendingFile {
+        final String name;
+        final Future<RemappedFile> result;
+
+        PendingFile(String name, Future<RemappedFile> result) {
+            this.name = name;
+            this.result = result;
+        }
+    }
+
+    private static final class RemappedFile {
+        final ByteBuffer data;
+        final long inputBytes;
+        final long remapMicros; // Time spent in the engine, without reading the input
+        final String sha256;    // Of the output; null if no manifest is kept
+
+        RemappedFile(ByteBuffer data, long inputBytes, long remapMicros, String sha256) {
+            this.data = data;
+            this.inputBytes = inputBytes;
+            this.remapMicros = remapMicros;
+            this.sha256 = sha256;
+        }
+    }
+
+    private static boolean isMidiFileName(String name) {
+        String lowerCaseName = name.toLowerCase();
+        return lowerCaseName.endsWith(".mid") || lowerCaseName.endsWith(".midi");
+    }
+
+    /**
+     * Returns true if an archive entry name stays inside the folder it is extracted to: it is not absolute,
+     * has no drive letter and no ".." part. Other entries are skipped, since their outputs would be written
+     * outside the output folder.
+     */
+    private static boolean isRelativeName(String name) {
+        if (name.isEmpty() || name.startsWith("/") || name.startsWith("\\") || name.indexOf(':') >= 0) {
+            return false;
+        }
+        for (String part : name.split("[/\\\\]")) {
+            if (part.equals("..")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The MIDI files of a folder tree, in name order.
+     */
+    private static final class FolderSource implements Source {
+        private final Path root;
+        private final List<String> names = new ArrayList<>();
+
+        FolderSource(Path root) throws IOException {
+            this.root = root;
+            try (Stream<Path> files = Files.walk(root)) {
+                files.filter(Files::isRegularFile)
+                        .filter(file -> isMidiFileName(file.getFileName().toString()))
+                        .forEach(file -> names.add(root.relativize(file).toString().replace(File.separatorChar, '/')));
+            }
+            Collections.sort(names);
+        }
+
+        @Override
+        public List<String> names() {
+            return names;
+        }
+
+        @Override
+        public byte[] read(String name) throws IOException {
+            return Files.readAllBytes(root.resolve(name));
+        }
+
+        @Override
+        public long lastModified(String name) {
+            return root.resolve(name).toFile().lastModified();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * The MIDI entries of a ZIP archive, in archive order. Entries are inflated straight into memory. Entries
+     * with absolute names or ".." parts are skipped.
+     */
+    private static final class ZipSource implements Source {
+        private final ZipFile zipFile;
+        private final List<String> names = new ArrayList<>();
+
+        ZipSource(ZipFile zipFile) {
+            this.zipFile = zipFile;
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (!entry.isDirectory() && isMidiFileName(entry.getName()) && isRelativeName(entry.getName())) {
+                    names.add(entry.getName());
+                }
+            }
+        }
+
+        @Override
+        public List<String> names() {
+            return names;
+        }
+
+        @Override
+        public byte[] read(String name) throws IOException {
+            ZipEntry entry = zipFile.getEntry(name);
+            if (entry == null) {
+                throw new IOException("Entry not found: " + name);
+            }
+            try (InputStream in = zipFile.getInputStream(entry)) {
+                return in.readAllBytes();
+            }
+        }
+
+        @Override
+        public long lastModified(String name) {
+            ZipEntry entry = zipFile.getEntry(name);
+            return entry != null ? entry.getTime() : -1;
+        }
+
+        @Override
+        public void close() throws IOException {
+            zipFile.close();
+        }
+    }
+
+    /**
+     * The files of one shard of another source.
+     */
+    private static final class ShardSource implements Source {
+        private final Source batch;
+        private final List<String> names;
+
+        ShardSource(Source batch, List<String> names) {
+            this.batch = batch;
+            this.names = names;
+        }
+
+        @Override
+        public List<String> names() {
+            return names;
+        }
+
+        @Override
+        public byte[] read(String name) throws IOException {
+            return batch.read(name);
+        }
+
+        @Override
+        public long lastModified(String name) {
+            return batch.lastModified(name);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static final class FolderTarget implements Target {
+        private final Path root;
+
+        FolderTarget(Path root) {
+            this.root = root.toAbsolutePath().normalize();
+        }
+
+        @Override
+        public void write(String name, ByteBuffer data, long lastModified) throws IOException {
+            Path file = root.resolve(name).normalize();
+            if (!file.startsWith(root)) {
+                throw new IOException("Output outside the output folder: " + name);
+            }
+            Files.createDirectories(file.getParent());
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Writes every remapped file as an entry of one ZIP archive, stamped with its input file's time so
+     * remapping the same input twice gives the same archive.
+     */
+    private static final class ZipTarget implements Target {
+        private final ZipOutputStream out;
+
+        ZipTarget(ZipOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(String name, ByteBuffer data, long lastModified) throws IOException {
+            ZipEntry entry = new ZipEntry(name);
+            if (lastModified >= 0) {
+                entry.setTime(lastModified);
+            }
+            out.putNextEntry(entry);
+            if (data.hasArray()) {
+                out.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            } else {
+                byte[] bytes = new byte[data.remaining()];
+                data.duplicate().get(bytes);
+                out.write(bytes);
+            }
+            out.closeEntry();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
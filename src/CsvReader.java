@@ -0,0 +1,408 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Streaming, quote-aware CSV tokenizer.
+ * <p>
+ * The input is decoded as UTF-8 (a leading byte order mark is skipped) and read through a fixed char buffer.
+ * Each call to {@link #nextRecord()} tokenizes one record into a reusable char array, so reading a file
+ * creates no per-line strings or arrays; fields are read directly from that array with {@link #getInt(int)},
+ * {@link #getBoolean(int)} or, when a string is really needed, {@link #getString(int)}.
+ * <p>
+ * Quoting follows RFC 4180: a field that starts with a double quote may contain commas, line breaks and
+ * doubled quotes. Line breaks may be LF, CRLF or CR. Every record remembers its line number and the column
+ * each field starts at, for diagnostics.
+ */
+final class CsvReader implements Closeable {
+
+    private static final int BUFFER_CHARS = 64 * 1024;
+
+    private final Reader reader;
+    private final char[] buffer = new char[BUFFER_CHARS];
+    private int bufferPosition;
+    private int bufferLimit;
+    private boolean endOfInput;
+
+    private char[] recordChars = new char[256];
+    private int[] fieldStarts = new int[16];
+    private int[] fieldEnds = new int[16];
+    private int[] fieldColumns = new int[16];
+    private int fieldCount;
+
+    private int line = 1;      // Line the reader is currently on
+    private int column = 1;    // Column of the next char to be read
+    private int recordLine;    // Line the current record started on
+
+    /**
+     * Opens a CSV file for reading.
+     * @param path The file to read.
+     * @throws IOException If the file cannot be opened.
+     */
+    CsvReader(Path path) throws IOException {
+        this(new InputStreamReader(Files.newInputStream(path), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Creates a tokenizer over already decoded characters.
+     * @param reader The characters to tokenize. It is closed by {@link #close()}.
+     */
+    CsvReader(Reader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * Reads the next record. Empty lines are returned as records with a single empty field.
+     * @return False if the end of the input has been reached.
+     * @throws IOException If the input cannot be read.
+     */
+    boolean nextRecord() throws IOException {
+        int c = read();
+        if (c < 0) {
+            return false;
+        }
+        if (line == 1 && column == 2 && c == '\uFEFF') {
+            column = 1; // Skip the byte order mark
+            c = read();
+            if (c < 0) {
+                return false;
+            }
+        }
+        recordLine = line;
+        fieldCount = 0;
+        int length = 0;
+
+        while (true) {
+            // Start of a field: c is its first char (or the char that ends it)
+            if (fieldCount == fieldStarts.length) {
+                fieldStarts = Arrays.copyOf(fieldStarts, fieldCount * 2);
+                fieldEnds = Arrays.copyOf(fieldEnds, fieldCount * 2);
+                fieldColumns = Arrays.copyOf(fieldColumns, fieldCount * 2);
+            }
+            fieldStarts[fieldCount] = length;
+            fieldColumns[fieldCount] = column - (c < 0 ? 0 : 1);
+
+            if (c == '"') {
+                // Quoted field: runs to the closing quote; "" is a literal quote
+                while (true) {
+                    c = read();
+                    if (c < 0) {
+                        break;
+                    }
+                    if (c == '"') {
+                        c = read();
+                        if (c != '"') {
+                            break;
+                        }
+                    } else if (c == '\r' || c == '\n') {
+                        consumeLineBreak(c);
+                        length = append(length, '\n');
+                        continue;
+                    }
+                    length = append(length, (char) c);
+                }
+                // Anything between the closing quote and the next separator is kept as is
+            }
+            while (c >= 0 && c != ',' && c != '\r' && c != '\n') {
+                length = append(length, (char) c);
+                c = read();
+            }
+            fieldEnds[fieldCount++] = length;
+
+            if (c == ',') {
+                c = read();
+                continue;
+            }
+            if (c == '\r' || c == '\n') {
+                consumeLineBreak(c);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Returns the number of fields in the current record.
+     */
+    int getFieldCount() {
+        return fieldCount;
+    }
+
+    /**
+     * Returns the line number (1-based) the current record starts on.
+     */
+    int getLine() {
+        return recordLine;
+    }
+
+    /**
+     * Returns the column (1-based) a field of the current record starts at.
+     * @param field The field index.
+     */
+    int getColumn(int field) {
+        checkField(field);
+        return fieldColumns[field];
+    }
+
+    /**
+     * Returns a field as a string, without surrounding whitespace.
+     * @param field The field index.
+     * @return The field value.
+     */
+    String getString(int field) {
+        checkField(field);
+        int start = fieldStarts[field];
+        int end = fieldEnds[field];
+        while (start < end && Character.isWhitespace(recordChars[start])) {
+            start++;
+        }
+        while (end > start && Character.isWhitespace(recordChars[end - 1])) {
+            end--;
+        }
+        return new String(recordChars, start, end - start);
+    }
+
+    /**
+     * Parses a field as a decimal integer, ignoring surrounding whitespace, without creating a string.
+     * @param field The field index.
+     * @return The parsed value.
+     * @throws NumberFormatException If the field is not a valid integer; the message names the line and column.
+     */
+    int getInt(int field) {
+        checkField(field);
+        int start = fieldStarts[field];
+        int end = fieldEnds[field];
+        while (start < end && Character.isWhitespace(recordChars[start])) {
+            start++;
+        }
+        while (end > start && Character.isWhitespace(recordChars[end - 1])) {
+            end--;
+        }
+        return parseInt(field, start, end);
+    }
+
+    /**
+     * Returns true if a field holds a range: two numbers joined by a hyphen, such as 36-51.
+     * A leading minus sign is a sign, not a range, so -1 and -999 are single numbers.
+     * @param field The field index.
+     */
+    boolean isRange(int field) {
+        checkField(field);
+        return rangeSeparator(field) >= 0;
+    }
+
+    /**
+     * Parses the first number of a range field (see {@link #isRange(int)}), or the whole field if it holds a single number.
+     * @param field The field index.
+     * @return The parsed value.
+     * @throws NumberFormatException If the number is not a valid integer; the message names the line and column.
+     */
+    int getRangeStart(int field) {
+        int separator = isRange(field) ? rangeSeparator(field) : -1;
+        return separator < 0 ? getInt(field) : parseInt(field, trimmedStart(field), separator);
+    }
+
+    /**
+     * Parses the last number of a range field (see {@link #isRange(int)}), or the whole field if it holds a single number.
+     * @param field The field index.
+     * @return The parsed value.
+     * @throws NumberFormatException If the number is not a valid integer; the message names the line and column.
+     */
+    int getRangeEnd(int field) {
+        int separator = isRange(field) ? rangeSeparator(field) : -1;
+        return separator < 0 ? getInt(field) : parseInt(field, separator + 1, trimmedEnd(field));
+    }
+
+    private int rangeSeparator(int field) {
+        int start = trimmedStart(field);
+        int end = trimmedEnd(field);
+        for (int position = start + 1; position < end - 1; position++) {
+            if (recordChars[position] == '-') {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    private int trimmedStart(int field) {
+        int start = fieldStarts[field];
+        while (start < fieldEnds[field] && Character.isWhitespace(recordChars[start])) {
+            start++;
+        }
+        return start;
+    }
+
+    private int trimmedEnd(int field) {
+        int end = fieldEnds[field];
+        while (end > fieldStarts[field] && Character.isWhitespace(recordChars[end - 1])) {
+            end--;
+        }
+        return end;
+    }
+
+    private int parseInt(int field, int start, int end) {
+        int position = start;
+        boolean negative = false;
+        if (position < end && (recordChars[position] == '-' || recordChars[position] == '+')) {
+            negative = recordChars[position] == '-';
+            position++;
+        }
+        if (position == end) {
+            throw numberFormatError(field, start, end);
+        }
+        long value = 0;
+        for (; position < end; position++) {
+            int digit = recordChars[position] - '0';
+            if (digit < 0 || digit > 9) {
+                throw numberFormatError(field, start, end);
+            }
+            value = value * 10 + digit;
+            if (value > (long) Integer.MAX_VALUE + 1) {
+                throw numberFormatError(field, start, end);
+            }
+        }
+        value = negative ? -value : value;
+        if (value > Integer.MAX_VALUE) {
+            throw numberFormatError(field, start, end);
+        }
+        return (int) value;
+    }
+
+    /**
+     * Parses a field as a patch number, ignoring surrounding whitespace: -1, a plain number, or msb:lsb:program.
+     * @param field The field index.
+     * @return The packed patch number (see {@link Patch}), or -1.
+     * @throws NumberFormatException If the field is not a valid patch; the message names the line and column.
+     */
+    int getPatch(int field) {
+        checkField(field);
+        int start = fieldStarts[field];
+        int end = fieldEnds[field];
+        while (start < end && Character.isWhitespace(recordChars[start])) {
+            start++;
+        }
+        while (end > start && Character.isWhitespace(recordChars[end - 1])) {
+            end--;
+        }
+        try {
+            return Patch.parse(recordChars, start, end);
+        } catch (NumberFormatException e) {
+            throw new NumberFormatException("Line " + recordLine + ", column " + fieldColumns[field] + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Parses a field as a boolean the way {@link Boolean#parseBoolean(String)} does: true only for "true",
+     * ignoring case and surrounding whitespace.
+     * @param field The field index.
+     * @return The parsed value.
+     */
+    boolean getBoolean(int field) {
+        checkField(field);
+        int start = fieldStarts[field];
+        int end = fieldEnds[field];
+        while (start < end && Character.isWhitespace(recordChars[start])) {
+            start++;
+        }
+        while (end > start && Character.isWhitespace(recordChars[end - 1])) {
+            end--;
+        }
+        if (end - start != 4) {
+            return false;
+        }
+        String expected = "true";
+        for (int i = 0; i < 4; i++) {
+            if (Character.toLowerCase(recordChars[start + i]) != expected.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the current record joined back into one line, for diagnostics.
+     */
+    String getRecordText() {
+        StringBuilder text = new StringBuilder();
+        for (int field = 0; field < fieldCount; field++) {
+            if (field > 0) {
+                text.append(',');
+            }
+            text.append(recordChars, fieldStarts[field], fieldEnds[field] - fieldStarts[field]);
+        }
+        return text.toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    private NumberFormatException numberFormatError(int field, int start, int end) {
+        return new NumberFormatException("Line " + recordLine + ", column " + fieldColumns[field]
+                + ": not a valid integer: \"" + new String(recordChars, start, end - start) + "\"");
+    }
+
+    private void checkField(int field) {
+        if (field < 0 || field >= fieldCount) {
+            throw new ArrayIndexOutOfBoundsException("Line " + recordLine + " has no column " + (field + 1)
+                    + " (" + fieldCount + " column(s) found)");
+        }
+    }
+
+    private int append(int length, char c) {
+        if (length == recordChars.length) {
+            recordChars = Arrays.copyOf(recordChars, length * 2);
+        }
+        recordChars[length] = c;
+        return length + 1;
+    }
+
+    /**
+     * Consumes the rest of a line break (the LF of a CRLF) and moves to the next line.
+     * @param c The first char of the line break.
+     */
+    private void consumeLineBreak(int c) throws IOException {
+        if (c == '\r' && peek() == '\n') {
+            read();
+        }
+        line++;
+        column = 1;
+    }
+
+    private int peek() throws IOException {
+        if (bufferPosition == bufferLimit && !fill()) {
+            return -1;
+        }
+        return buffer[bufferPosition];
+    }
+
+    private int read() throws IOException {
+        if (bufferPosition == bufferLimit && !fill()) {
+            return -1;
+        }
+        column++;
+        return buffer[bufferPosition++];
+    }
+
+    private boolean fill() throws IOException {
+        if (endOfInput) {
+            return false;
+        }
+        int count;
+        do {
+            count = reader.read(buffer, 0, buffer.length);
+        } while (count == 0);
+        if (count < 0) {
+            endOfInput = true;
+            return false;
+        }
+        bufferPosition = 0;
+        bufferLimit = count;
+        return true;
+    }
+}
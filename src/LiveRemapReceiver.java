@@ -0,0 +1,307 @@
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Transmitter;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Remaps a live MIDI stream with a compiled {@link RemapRuleSet}: connect it as the {@link Receiver} of an
+ * input device or sequencer, and give it the {@link Receiver} the remapped stream should go to.
+ * <pre>
+ *   LiveRemapReceiver remapper = new LiveRemapReceiver(rules, RemapLog.SILENT);
+ *   keyboard.getTransmitter().setReceiver(remapper);
+ *   remapper.setReceiver(synthesizer.getReceiver());
+ * </pre>
+ * Program changes and notes are remapped the same way {@link RemapEngine} remaps a file: program change rules
+ * (with bank select when the remapped bank differs), specific note rules, all-notes shifts, layering, and
+ * moving notes to the drum channel or off it onto an allocated melodic channel, and the velocity curves and
+ * controller tables of the remapped program. There is no track splitting.
+ * Because the stream cannot be scanned ahead, a channel starts out with the rules for program 0 (a drum kit on
+ * the drum channel) until its first program change, and melodic channels are reserved as the stream plays notes on them.
+ * <p>
+ * A note off is remapped with the program context its note on had, so changing program while a key is held
+ * never leaves a note hanging. Other messages are passed through unchanged, apart from remapped control changes.
+ * <p>
+ * The per-message path allocates nothing: the remapped messages are taken from a ring of reusable
+ * {@link ShortMessage}s, so a downstream receiver that keeps messages beyond the next {@value #MESSAGE_RING_SIZE}
+ * messages must clone them. Out-of-range results are skipped without logging. Calls to {@link #send} are
+ * serialized, so several transmitters may share one remapper.
+ */
+public final class LiveRemapReceiver implements Receiver, Transmitter {
+
+    private static final int DRUM_CHANNEL = 9; // MIDI channel 10 (0-indexed)
+    private static final int CHANNEL_COUNT = 16;
+    private static final int MESSAGE_RING_SIZE = 256;
+    private static final int NO_NOTE = -1;
+
+    private final RemapRuleSet rules;
+    private final RemapLog log;
+    private volatile Receiver receiver;
+    private boolean closed;
+
+    // Bank select and program context per input channel
+    private final int[] bankMSB = new int[CHANNEL_COUNT];
+    private final int[] bankLSB = new int[CHANNEL_COUNT];
+    private final int[] outputBank = new int[CHANNEL_COUNT];           // The 14-bit bank last sent on each channel
+    private final int[] contextPatch = new int[CHANNEL_COUNT];         // Original patch that set the current context
+    private final int[] contextRemappedPatch = new int[CHANNEL_COUNT];
+    private final String[] contextType = new String[CHANNEL_COUNT];
+    private final int[] segmentIndex = new int[CHANNEL_COUNT];
+    private final MelodicChannelAllocator melodicChannelAllocator = new MelodicChannelAllocator();
+
+    // Context each sounding note was started with, indexed by (input channel << 7) | note
+    private final int[] activeRuleIndex = new int[CHANNEL_COUNT * 128];
+    private final String[] activeType = new String[CHANNEL_COUNT * 128];
+    private final int[] activeSegment = new int[CHANNEL_COUNT * 128];
+    private final int[] activeMelodicChannel = new int[CHANNEL_COUNT * 128];
+    private final int[] noteOnVelocity = new int[CHANNEL_COUNT * 128]; // Rule conditions see a note off with its note on's velocity
+
+    private final ShortMessage[] messageRing = new ShortMessage[MESSAGE_RING_SIZE];
+    private int nextMessage;
+
+    /**
+     * Creates a remapper with no downstream receiver; set one with {@link #setReceiver(Receiver)}.
+     * @param rules The compiled remapping rules.
+     * @param log Receives errors; nothing is logged for regular messages.
+     */
+    public LiveRemapReceiver(RemapRuleSet rules, RemapLog log) {
+        this.rules = Objects.requireNonNull(rules, "rules");
+        this.log = Objects.requireNonNull(log, "log");
+        for (int i = 0; i < MESSAGE_RING_SIZE; i++) {
+            messageRing[i] = new ShortMessage();
+        }
+        reset();
+    }
+
+    /**
+     * Forgets all bank, program and note state, as if the stream had just started.
+     */
+    public synchronized void reset() {
+        Arrays.fill(bankMSB, 0);
+        Arrays.fill(bankLSB, 0);
+        bankLSB[DRUM_CHANNEL] = 1; // Drum patches are looked up as bank LSB 1
+        Arrays.fill(outputBank, 0);
+        Arrays.fill(segmentIndex, 0);
+        for (int ch = 0; ch < CHANNEL_COUNT; ch++) {
+            int patch = Patch.pack(bankMSB[ch], bankLSB[ch], 0);
+            setProgramContext(ch, patch, rules.programChangeRule(rules.indexOf(patch), ch));
+        }
+        melodicChannelAllocator.reset();
+        Arrays.fill(activeSegment, NO_NOTE);
+        Arrays.fill(noteOnVelocity, 0);
+    }
+
+    @Override
+    public void setReceiver(Receiver receiver) {
+        this.receiver = receiver;
+    }
+
+    @Override
+    public Receiver getReceiver() {
+        return receiver;
+    }
+
+    /**
+     * Remaps a message and sends the result to the downstream receiver, if one is set.
+     * @param message The message.
+     * @param timeStamp The time stamp, passed on unchanged.
+     * @throws IllegalStateException If the remapper has been closed.
+     */
+    @Override
+    public synchronized void send(MidiMessage message, long timeStamp) {
+        if (closed) {
+            throw new IllegalStateException("Remapper is closed");
+        }
+        Receiver target = receiver;
+        if (target == null) {
+            return;
+        }
+        if (!(message instanceof ShortMessage)) {
+            target.send(message, timeStamp);
+            return;
+        }
+        ShortMessage sm = (ShortMessage) message;
+        int command = sm.getCommand();
+        try {
+            if (command == ShortMessage.PROGRAM_CHANGE) {
+                remapProgramChange(target, sm.getChannel(), sm.getData1(), timeStamp);
+            } else if (command == ShortMessage.NOTE_ON || command == ShortMessage.NOTE_OFF) {
+                remapNote(target, command, sm.getChannel(), sm.getData1(), sm.getData2(), timeStamp);
+            } else {
+                if (command == ShortMessage.CONTROL_CHANGE) {
+                    if (sm.getData1() == 0) {
+                        bankMSB[sm.getChannel()] = sm.getData2();
+                    } else if (sm.getData1() == 32) {
+                        bankLSB[sm.getChannel()] = sm.getData2();
+                    } else if (!rules.dynamics().isEmpty()) {
+                        remapController(target, sm.getChannel(), sm.getData1(), sm.getData2(), timeStamp);
+                        return;
+                    }
+                }
+                target.send(message, timeStamp);
+            }
+        } catch (InvalidMidiDataException e) {
+            log.error("Could not remap live message: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Stops the remapper. The downstream receiver is not closed.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+    }
+
+    private void remapProgramChange(Receiver target, int channel, int program, long timeStamp) throws InvalidMidiDataException {
+        int patch = Patch.pack(bankMSB[channel], bankLSB[channel], program);
+        UnifiedRemapRule rule = rules.programChangeRule(rules.indexOf(patch), channel);
+        int previousPatch = contextPatch[channel];
+        int previousRemappedPatch = contextRemappedPatch[channel];
+        String previousType = contextType[channel];
+        setProgramContext(channel, patch, rule);
+
+        // A different context starts a new segment; its melodic channel can be handed out again
+        if (contextPatch[channel] != previousPatch || contextRemappedPatch[channel] != previousRemappedPatch
+                || !contextType[channel].equals(previousType)) {
+            melodicChannelAllocator.release(MelodicChannelAllocator.segmentKey(channel, segmentIndex[channel]));
+            segmentIndex[channel]++;
+        }
+
+        int remappedPatch = contextRemappedPatch[channel];
+        if (rule != null && Patch.bank(remappedPatch) != outputBank[channel]) {
+            emit(target, ShortMessage.CONTROL_CHANGE, channel, 0, Patch.bankMSB(remappedPatch), timeStamp);
+            emit(target, ShortMessage.CONTROL_CHANGE, channel, 32, Patch.bankLSB(remappedPatch), timeStamp);
+            outputBank[channel] = Patch.bank(remappedPatch);
+        }
+        emit(target, ShortMessage.PROGRAM_CHANGE, channel, Patch.program(remappedPatch), 0, timeStamp);
+    }
+
+    private void remapController(Receiver target, int channel, int controller, int value, long timeStamp) throws InvalidMidiDataException {
+        ProgramDynamics dynamics = rules.dynamics();
+        int remappedController = dynamics.controller(contextRemappedPatch[channel], controller);
+        if (remappedController != ProgramDynamics.DROP_CONTROLLER) {
+            emit(target, ShortMessage.CONTROL_CHANGE, channel, remappedController, dynamics.controllerValue(contextRemappedPatch[channel], controller, value), timeStamp);
+        }
+    }
+
+    /**
+     * Sets the program context of a channel, the same way the engine starts a segment.
+     * @param patch The packed patch selected on the channel, with its bank.
+     * @param rule The program change rule for the patch, or null if there is none.
+     */
+    private void setProgramContext(int channel, int patch, UnifiedRemapRule rule) {
+        if (rule != null) {
+            contextPatch[channel] = rule.originalProgram;
+            contextRemappedPatch[channel] = rule.remappedProgram;
+            contextType[channel] = rule.channelType;
+        } else {
+            // No rule: the patch remaps to itself with its original type, keeping its bank if the rules name it
+            int context = rules.contextPatch(patch);
+            contextPatch[channel] = context;
+            contextRemappedPatch[channel] = context;
+            contextType[channel] = rules.originalDefaultChannelType(context, "MELODIC");
+        }
+    }
+
+    private void remapNote(Receiver target, int command, int channel, int note, int velocity, long timeStamp) throws InvalidMidiDataException {
+        int slot = (channel << 7) | note;
+        boolean noteOff = command == ShortMessage.NOTE_OFF || velocity == 0;
+        int ruleIndex;
+        String segmentType;
+        int segment;
+        if (noteOff && activeSegment[slot] != NO_NOTE) {
+            // End the note with the context it was started with
+            ruleIndex = activeRuleIndex[slot];
+            segmentType = activeType[slot];
+            segment = activeSegment[slot];
+        } else {
+            ruleIndex = rules.indexOf(contextPatch[channel]);
+            segmentType = contextType[channel];
+            segment = segmentIndex[channel];
+            if (channel != DRUM_CHANNEL) {
+                melodicChannelAllocator.reserve(channel);
+            }
+            if (!noteOff) {
+                activeRuleIndex[slot] = ruleIndex;
+                activeType[slot] = segmentType;
+                activeSegment[slot] = segment;
+                activeMelodicChannel[slot] = -1;
+            }
+        }
+        if (!noteOff) {
+            noteOnVelocity[slot] = velocity;
+        }
+        int conditionVelocity = noteOnVelocity[slot];
+        int outputVelocity = noteOff ? velocity : rules.dynamics().velocity(contextRemappedPatch[channel], velocity);
+
+        // Specific note rule (drum rules first), else the all-notes shifts for the segment type
+        UnifiedRemapRule specificNoteRule = rules.noteRule(ruleIndex, note, conditionVelocity, channel);
+        int finalNote = note;
+        String noteType = segmentType;
+        if (specificNoteRule != null) {
+            noteType = specificNoteRule.channelType;
+            int remappedNote = specificNoteRule.remapNote(note);
+            if (remappedNote >= 0 && remappedNote <= 127) {
+                finalNote = remappedNote;
+            }
+        } else {
+            for (UnifiedRemapRule rule : rules.shiftRules(ruleIndex, "DRUM".equals(segmentType))) {
+                if (rule.matches(conditionVelocity, channel)) {
+                    int shiftedNote = finalNote + rule.remappedNoteOrOffset;
+                    if (shiftedNote >= 0 && shiftedNote <= 127) {
+                        finalNote = shiftedNote;
+                    }
+                }
+            }
+        }
+
+        emit(target, command, outputChannel(channel, noteType, segment, slot), finalNote, outputVelocity, timeStamp);
+
+        for (UnifiedRemapRule rule : rules.layerRules(ruleIndex)) {
+            if (rule.matches(conditionVelocity, channel)) {
+                int layeredNote = note + rule.remappedNoteOrOffset;
+                if (layeredNote >= 0 && layeredNote <= 127) {
+                    emit(target, command, outputChannel(channel, rule.channelType, segment, slot), layeredNote, outputVelocity, timeStamp);
+                }
+            }
+        }
+
+        if (noteOff) {
+            activeSegment[slot] = NO_NOTE;
+        }
+    }
+
+    /**
+     * Returns the channel a note of the given type goes out on: the drum channel for DRUM, a melodic channel
+     * owned by the segment for MELODIC notes coming from the drum channel, and the input channel otherwise.
+     */
+    private int outputChannel(int channel, String type, int segment, int slot) {
+        if ("DRUM".equals(type)) {
+            return DRUM_CHANNEL;
+        }
+        if (!"MELODIC".equals(type) || channel != DRUM_CHANNEL) {
+            return channel;
+        }
+        if (activeMelodicChannel[slot] >= 0) {
+            return activeMelodicChannel[slot];
+        }
+        int assignedChannel = melodicChannelAllocator.allocate(MelodicChannelAllocator.segmentKey(channel, segment));
+        if (assignedChannel < 0) {
+            return channel;
+        }
+        if (activeSegment[slot] != NO_NOTE) {
+            activeMelodicChannel[slot] = assignedChannel;
+        }
+        return assignedChannel;
+    }
+
+    private void emit(Receiver target, int command, int channel, int data1, int data2, long timeStamp) throws InvalidMidiDataException {
+        ShortMessage message = messageRing[nextMessage];
+        nextMessage = (nextMessage + 1) % MESSAGE_RING_SIZE;
+        message.setMessage(command, channel, data1, data2);
+        target.send(message, timeStamp);
+    }
+}
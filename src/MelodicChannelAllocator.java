@@ -0,0 +1,125 @@
+/**
+ * Assigns output channels to melodic content that has to leave the drum channel.
+ * <p>
+ * Channels are tracked in bitmasks, so allocation is constant time and allocation-free. A channel is
+ * owned by one segment (original channel + segment index): every note of that segment lands on the same
+ * channel, and the channel is released when the segment ends. Channels the file already uses for its
+ * own melodic content are reserved up front and never handed out. When every free channel is owned,
+ * the least recently used one is taken over, so a busy drum track keeps getting melodic channels until
+ * the end of the song instead of running out partway through.
+ * <p>
+ * Allocation order is deterministic: the lowest free channel wins, scanning 0-8 and then 10-15.
+ */
+final class MelodicChannelAllocator {
+
+    private static final int DRUM_CHANNEL = 9;
+    private static final int ALLOCATABLE_CHANNELS = 0xFFFF & ~(1 << DRUM_CHANNEL);
+    private static final int NO_OWNER = -1;
+
+    private int reservedMask;  // Channels used natively by the file
+    private int ownedMask;     // Channels currently owned by a segment
+    private final int[] ownerKey = new int[16];
+    private final long[] lastUse = new long[16];
+    private long useCounter;
+
+    MelodicChannelAllocator() {
+        reset();
+    }
+
+    /**
+     * Builds the key identifying a segment.
+     * @param originalChannel The channel the segment's events come from (0-15).
+     * @param segmentIndex The segment index on that channel.
+     * @return The segment key.
+     */
+    static int segmentKey(int originalChannel, int segmentIndex) {
+        return (segmentIndex << 4) | (originalChannel & 0x0F);
+    }
+
+    /**
+     * Clears all reservations and allocations, ready for the next file.
+     */
+    void reset() {
+        reservedMask = 0;
+        ownedMask = 0;
+        useCounter = 0;
+        for (int ch = 0; ch < 16; ch++) {
+            ownerKey[ch] = NO_OWNER;
+            lastUse[ch] = 0;
+        }
+    }
+
+    /**
+     * Marks a channel as used by the file's own content so it is never allocated.
+     * @param channel The channel (0-15).
+     */
+    void reserve(int channel) {
+        if (channel != DRUM_CHANNEL) {
+            reservedMask |= 1 << channel;
+        }
+    }
+
+    /**
+     * Returns the channel owned by a segment, allocating one if the segment has none yet.
+     * @param segmentKey The segment key, from {@link #segmentKey(int, int)}.
+     * @return The channel, or -1 if every melodic channel is reserved.
+     */
+    int allocate(int segmentKey) {
+        int owned = ownedMask;
+        while (owned != 0) {
+            int ch = Integer.numberOfTrailingZeros(owned);
+            if (ownerKey[ch] == segmentKey) {
+                lastUse[ch] = ++useCounter;
+                return ch;
+            }
+            owned &= owned - 1;
+        }
+
+        int free = ALLOCATABLE_CHANNELS & ~reservedMask & ~ownedMask;
+        int channel;
+        if (free != 0) {
+            channel = Integer.numberOfTrailingZeros(free);
+        } else {
+            channel = leastRecentlyUsed();
+            if (channel < 0) {
+                return -1;
+            }
+        }
+        ownedMask |= 1 << channel;
+        ownerKey[channel] = segmentKey;
+        lastUse[channel] = ++useCounter;
+        return channel;
+    }
+
+    /**
+     * Releases the channel owned by a segment, if any.
+     * @param segmentKey The segment key, from {@link #segmentKey(int, int)}.
+     * @return The released channel, or -1 if the segment owned none.
+     */
+    int release(int segmentKey) {
+        int owned = ownedMask;
+        while (owned != 0) {
+            int ch = Integer.numberOfTrailingZeros(owned);
+            if (ownerKey[ch] == segmentKey) {
+                ownedMask &= ~(1 << ch);
+                ownerKey[ch] = NO_OWNER;
+                return ch;
+            }
+            owned &= owned - 1;
+        }
+        return -1;
+    }
+
+    private int leastRecentlyUsed() {
+        int candidates = ownedMask & ~reservedMask;
+        int lru = -1;
+        while (candidates != 0) {
+            int ch = Integer.numberOfTrailingZeros(candidates);
+            if (lru < 0 || lastUse[ch] < lastUse[lru]) {
+                lru = ch;
+            }
+            candidates &= candidates - 1;
+        }
+        return lru;
+    }
+}
@@ -0,0 +1,452 @@
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compares two versions of remapped output and reports which notes and programs changed.
+ * <p>
+ * Each file is canonicalized into one sorted array of packed events per track: the tick in the upper
+ * 32 bits and the message in the lower 32 (status, data 1 and data 2 for channel messages; type and a
+ * 16-bit content hash for meta and system exclusive messages). Tracks are hashed, and tracks with the
+ * same hash on both sides are taken as identical without looking at their events. The events of all
+ * remaining tracks are pooled per side and merged in one pass, so a detailed diff is only done where
+ * something changed, and output that only moved events between tracks is still compared event by event.
+ * <p>
+ * Changes are reported per tick: a note on that kept its tick and velocity but changed channel or note is
+ * reported as moved, program changes are reported per channel, and anything else as added or removed.
+ * Note offs, track names and End of Track are compared but not listed, since they follow their note ons or
+ * the way the output is split into tracks.
+ */
+final class MidiDiff {
+
+    private static final int NOTE_ON = 0x90;
+    private static final int PROGRAM_CHANGE = 0xC0;
+    private static final int META_TRACK_NAME = 0x03;
+    private static final int META_END_OF_TRACK = 0x2F;
+    private static final int MAX_DETAIL_LINES = 20;
+
+    private MidiDiff() {
+    }
+
+    /**
+     * The result of comparing one pair of files.
+     */
+    static final class FileDiff {
+        final String name;
+        String problem;        // Set if a file is missing or unreadable
+        int identicalTracks;
+        int changedTracksA;
+        int changedTracksB;
+        int notesAdded;
+        int notesRemoved;
+        int notesRechanneled;
+        int notesRenoted;
+        int programChanges;
+        int otherChanges;
+        final List<String> details = new ArrayList<>();
+        int omittedDetails;
+
+        FileDiff(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Returns true if both files have the same events.
+         */
+        boolean isIdentical() {
+            return problem == null && changedTracksA == 0 && changedTracksB == 0;
+        }
+
+        /**
+         * Returns true if the tracks differed but every event is still there, only split differently.
+         */
+        boolean isRearrangedOnly() {
+            return problem == null && !isIdentical() && notesAdded + notesRemoved + notesRechanneled + notesRenoted
+                    + programChanges + otherChanges == 0;
+        }
+
+        private void addDetail(long tick, String text) {
+            if (details.size() < MAX_DETAIL_LINES) {
+                details.add("    tick " + tick + ": " + text);
+            } else {
+                omittedDetails++;
+            }
+        }
+
+        /**
+         * Appends this file's part of the report.
+         */
+        void appendReport(StringBuilder report) {
+            report.append(name).append(": ");
+            if (problem != null) {
+                report.append(problem).append('\n');
+                return;
+            }
+            if (isIdentical()) {
+                report.append("identical (").append(identicalTracks).append(" tracks)\n");
+                return;
+            }
+            report.append(identicalTracks).append(" track(s) identical, ").append(changedTracksA).append(" -> ")
+                    .append(changedTracksB).append(" track(s) differ");
+            if (isRearrangedOnly()) {
+                report.append("; same events, split into tracks differently\n");
+                return;
+            }
+            report.append("; notes +").append(notesAdded).append(" -").append(notesRemoved)
+                    .append(", ").append(notesRechanneled).append(" rechanneled, ").append(notesRenoted).append(" renoted, ")
+                    .append(programChanges).append(" program change(s), ").append(otherChanges).append(" other event(s)\n");
+            for (String detail : details) {
+                report.append(detail).append('\n');
+            }
+            if (omittedDetails > 0) {
+                report.append("    ... ").append(omittedDetails).append(" more\n");
+            }
+        }
+    }
+
+    /**
+     * Compares every MIDI file in one folder with the file of the same name in another.
+     * @param folderA The old output.
+     * @param folderB The new output.
+     * @param threads The number of pairs to compare at once.
+     * @return One result per file name found in either folder, sorted by name.
+     * @throws IOException If a folder cannot be listed.
+     * @throws InterruptedException If the calling thread is interrupted while waiting.
+     */
+    static List<FileDiff> diffFolders(File folderA, File folderB, int threads) throws IOException, InterruptedException {
+        TreeSet<String> names = new TreeSet<>();
+        names.addAll(midiFileNames(folderA));
+        names.addAll(midiFileNames(folderB));
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            List<Future<FileDiff>> futures = new ArrayList<>();
+            for (String name : names) {
+                futures.add(executor.submit(() -> diffFiles(name, new File(folderA, name), new File(folderB, name))));
+            }
+            List<FileDiff> results = new ArrayList<>(futures.size());
+            for (Future<FileDiff> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    throw new IOException(e.getCause());
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Compares two MIDI files.
+     * @param name The name to report the pair under.
+     * @param fileA The old file.
+     * @param fileB The new file.
+     * @return The result; a missing or unreadable file is reported as a problem.
+     */
+    static FileDiff diffFiles(String name, File fileA, File fileB) {
+        FileDiff diff = new FileDiff(name);
+        if (!fileA.isFile() || !fileB.isFile()) {
+            diff.problem = "only in " + (fileA.isFile() ? "A" : "B");
+            return diff;
+        }
+        try {
+            diff(canonicalize(MidiSystem.getSequence(fileA)), canonicalize(MidiSystem.getSequence(fileB)), diff);
+        } catch (InvalidMidiDataException | IOException e) {
+            diff.problem = "could not read: " + e.getMessage();
+        }
+        return diff;
+    }
+
+    /**
+     * Builds the summary report for a set of results.
+     */
+    static String report(List<FileDiff> diffs) {
+        StringBuilder report = new StringBuilder();
+        int identical = 0;
+        int rearranged = 0;
+        int problems = 0;
+        for (FileDiff diff : diffs) {
+            if (diff.isIdentical()) {
+                identical++;
+            } else if (diff.problem != null) {
+                problems++;
+            } else if (diff.isRearrangedOnly()) {
+                rearranged++;
+            }
+            if (!diff.isIdentical()) {
+                diff.appendReport(report);
+            }
+        }
+        report.append(diffs.size()).append(" file(s) compared: ").append(identical).append(" identical, ")
+                .append(rearranged).append(" split differently, ").append(diffs.size() - identical - rearranged - problems)
+                .append(" changed, ").append(problems).append(" missing or unreadable.\n");
+        return report.toString();
+    }
+
+    /**
+     * Converts a sequence into one sorted array of packed events per track.
+     * @param sequence The sequence.
+     * @return The packed events of each track, in track order.
+     */
+    static long[][] canonicalize(Sequence sequence) {
+        Track[] tracks = sequence.getTracks();
+        long[][] packedTracks = new long[tracks.length][];
+        for (int t = 0; t < tracks.length; t++) {
+            long[] packed = new long[tracks[t].size()];
+            for (int i = 0; i < packed.length; i++) {
+                MidiEvent event = tracks[t].get(i);
+                packed[i] = (event.getTick() << 32) | packMessage(event.getMessage());
+            }
+            Arrays.sort(packed);
+            packedTracks[t] = packed;
+        }
+        return packedTracks;
+    }
+
+    private static long packMessage(MidiMessage message) {
+        if (message instanceof ShortMessage) {
+            ShortMessage sm = (ShortMessage) message;
+            return ((long) sm.getStatus() << 24) | (sm.getData1() << 16) | (sm.getData2() << 8);
+        }
+        int type = message instanceof MetaMessage ? ((MetaMessage) message).getType() : 0;
+        byte[] bytes = message.getMessage();
+        int hash = 0;
+        for (int i = 0; i < message.getLength(); i++) {
+            hash = hash * 31 + bytes[i];
+        }
+        return ((long) (message.getStatus() & 0xFF) << 24) | (type << 16) | ((hash ^ (hash >>> 16)) & 0xFFFF);
+    }
+
+    private static long hash(long[] packed) {
+        long hash = 0xcbf29ce484222325L;
+        for (long event : packed) {
+            hash = (hash ^ event) * 0x100000001b3L;
+            hash ^= hash >>> 29;
+        }
+        return hash ^ packed.length;
+    }
+
+    private static void diff(long[][] tracksA, long[][] tracksB, FileDiff diff) {
+        // Pair up identical tracks by hash; only what is left is compared event by event
+        Map<Long, Integer> unmatchedA = new HashMap<>();
+        long[] hashesA = new long[tracksA.length];
+        for (int t = 0; t < tracksA.length; t++) {
+            hashesA[t] = hash(tracksA[t]);
+            unmatchedA.merge(hashesA[t], 1, Integer::sum);
+        }
+        List<long[]> changedB = new ArrayList<>();
+        for (long[] track : tracksB) {
+            long hash = hash(track);
+            Integer count = unmatchedA.get(hash);
+            if (count != null && count > 0) {
+                unmatchedA.put(hash, count - 1);
+                diff.identicalTracks++;
+            } else {
+                changedB.add(track);
+            }
+        }
+        List<long[]> changedA = new ArrayList<>();
+        for (int t = 0; t < tracksA.length; t++) {
+            Integer count = unmatchedA.get(hashesA[t]);
+            if (count != null && count > 0) {
+                unmatchedA.put(hashesA[t], count - 1);
+                changedA.add(tracksA[t]);
+            }
+        }
+        diff.changedTracksA = changedA.size();
+        diff.changedTracksB = changedB.size();
+        if (changedA.isEmpty() && changedB.isEmpty()) {
+            return;
+        }
+
+        long[] eventsA = pool(changedA);
+        long[] eventsB = pool(changedB);
+        long[] onlyA = new long[eventsA.length];
+        long[] onlyB = new long[eventsB.length];
+        int countA = 0;
+        int countB = 0;
+        int a = 0;
+        int b = 0;
+        while (a < eventsA.length || b < eventsB.length) {
+            if (b == eventsB.length || (a < eventsA.length && eventsA[a] < eventsB[b])) {
+                onlyA[countA++] = eventsA[a++];
+            } else if (a == eventsA.length || eventsB[b] < eventsA[a]) {
+                onlyB[countB++] = eventsB[b++];
+            } else {
+                a++;
+                b++;
+            }
+        }
+        classify(Arrays.copyOf(onlyA, countA), Arrays.copyOf(onlyB, countB), diff);
+    }
+
+    private static long[] pool(List<long[]> tracks) {
+        int size = 0;
+        for (long[] track : tracks) {
+            size += track.length;
+        }
+        long[] pooled = new long[size];
+        int position = 0;
+        for (long[] track : tracks) {
+            System.arraycopy(track, 0, pooled, position, track.length);
+            position += track.length;
+        }
+        Arrays.sort(pooled);
+        return pooled;
+    }
+
+    /**
+     * Sorts the events found on only one side into moved notes, program changes, added and removed events,
+     * one tick at a time.
+     */
+    private static void classify(long[] onlyA, long[] onlyB, FileDiff diff) {
+        int a = 0;
+        int b = 0;
+        while (a < onlyA.length || b < onlyB.length) {
+            long tick = Math.min(a < onlyA.length ? onlyA[a] >>> 32 : Long.MAX_VALUE, b < onlyB.length ? onlyB[b] >>> 32 : Long.MAX_VALUE);
+            int endA = a;
+            while (endA < onlyA.length && onlyA[endA] >>> 32 == tick) {
+                endA++;
+            }
+            int endB = b;
+            while (endB < onlyB.length && onlyB[endB] >>> 32 == tick) {
+                endB++;
+            }
+            classifyTick(tick, Arrays.copyOfRange(onlyA, a, endA), Arrays.copyOfRange(onlyB, b, endB), diff);
+            a = endA;
+            b = endB;
+        }
+    }
+
+    private static void classifyTick(long tick, long[] removed, long[] added, FileDiff diff) {
+        boolean[] pairedB = new boolean[added.length];
+        for (int i = 0; i < removed.length; i++) {
+            int message = (int) removed[i];
+            if (isNoteOn(message)) {
+                // Prefer a note that kept its pitch (rechanneled), then one that kept its channel (renoted)
+                int match = findMatch(added, pairedB, message, true);
+                if (match < 0) {
+                    match = findMatch(added, pairedB, message, false);
+                }
+                if (match >= 0) {
+                    pairedB[match] = true;
+                    int newMessage = (int) added[match];
+                    if (data1(message) == data1(newMessage)) {
+                        diff.notesRechanneled++;
+                    } else {
+                        diff.notesRenoted++;
+                    }
+                    diff.addDetail(tick, "note " + data1(message) + " ch " + (channel(message) + 1)
+                            + " -> note " + data1(newMessage) + " ch " + (channel(newMessage) + 1));
+                } else {
+                    diff.notesRemoved++;
+                    diff.addDetail(tick, "note " + data1(message) + " ch " + (channel(message) + 1) + " removed");
+                }
+            } else if (command(message) == PROGRAM_CHANGE) {
+                int match = -1;
+                for (int j = 0; j < added.length && match < 0; j++) {
+                    if (!pairedB[j] && command((int) added[j]) == PROGRAM_CHANGE && channel((int) added[j]) == channel(message)) {
+                        match = j;
+                    }
+                }
+                diff.programChanges++;
+                if (match >= 0) {
+                    pairedB[match] = true;
+                    diff.addDetail(tick, "ch " + (channel(message) + 1) + " program " + data1(message) + " -> " + data1((int) added[match]));
+                } else {
+                    diff.addDetail(tick, "ch " + (channel(message) + 1) + " program " + data1(message) + " removed");
+                }
+            } else if (!isNoteOff(message) && !isTrackStructure(message)) {
+                diff.otherChanges++;
+            }
+        }
+        for (int j = 0; j < added.length; j++) {
+            if (pairedB[j]) {
+                continue;
+            }
+            int message = (int) added[j];
+            if (isNoteOn(message)) {
+                diff.notesAdded++;
+                diff.addDetail(tick, "note " + data1(message) + " ch " + (channel(message) + 1) + " added");
+            } else if (command(message) == PROGRAM_CHANGE) {
+                diff.programChanges++;
+                diff.addDetail(tick, "ch " + (channel(message) + 1) + " program " + data1(message) + " added");
+            } else if (!isNoteOff(message) && !isTrackStructure(message)) {
+                diff.otherChanges++;
+            }
+        }
+    }
+
+    private static int findMatch(long[] added, boolean[] paired, int message, boolean samePitch) {
+        for (int j = 0; j < added.length; j++) {
+            int candidate = (int) added[j];
+            if (!paired[j] && isNoteOn(candidate) && data2(candidate) == data2(message)
+                    && (samePitch ? data1(candidate) == data1(message) : channel(candidate) == channel(message))) {
+                return j;
+            }
+        }
+        return -1;
+    }
+
+    private static List<String> midiFileNames(File folder) throws IOException {
+        String[] names = folder.list((dir, name) -> name.toLowerCase().endsWith(".mid") || name.toLowerCase().endsWith(".midi"));
+        if (names == null) {
+            throw new IOException("Folder not found: " + folder.getAbsolutePath());
+        }
+        return Arrays.asList(names);
+    }
+
+    // Accessors for the message part of a packed event: status << 24 | data1 << 16 | data2 << 8
+
+    private static int command(int message) {
+        int status = (message >>> 24) & 0xFF;
+        return status < 0xF0 ? status & 0xF0 : status;
+    }
+
+    private static int channel(int message) {
+        return (message >>> 24) & 0x0F;
+    }
+
+    private static int data1(int message) {
+        return (message >>> 16) & 0xFF;
+    }
+
+    private static int data2(int message) {
+        return (message >>> 8) & 0xFF;
+    }
+
+    private static boolean isNoteOn(int message) {
+        return command(message) == NOTE_ON && data2(message) > 0;
+    }
+
+    /**
+     * Returns true for track names and End of Track, which change whenever tracks are split differently.
+     */
+    private static boolean isTrackStructure(int message) {
+        int status = (message >>> 24) & 0xFF;
+        int type = (message >>> 16) & 0xFF;
+        return status == 0xFF && (type == META_TRACK_NAME || type == META_END_OF_TRACK);
+    }
+
+    private static boolean isNoteOff(int message) {
+        return command(message) == 0x80 || (command(message) == NOTE_ON && data2(message) == 0);
+    }
+}
@@ -0,0 +1,277 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Watches an input folder tree and a remapping CSV, remapping MIDI files as soon as they are saved.
+ * <p>
+ * File system events are debounced per path: an editor that writes a file in several bursts only
+ * triggers one remap, once the file has been quiet for the debounce interval. Changed files are remapped
+ * on a background worker pool. When the CSV (or its dynamics CSV) changes, the rules are reloaded and every file that uses a
+ * program whose rules changed (according to a {@link RuleCoverageIndex} kept up to date while watching)
+ * is queued again.
+ */
+public class MidiFolderWatcher implements Closeable {
+
+    /**
+     * Callbacks used by the watcher to do the actual work.
+     */
+    interface Handler {
+        /**
+         * Remaps a single MIDI file. Called from a worker thread.
+         * @param midiFile The file that changed.
+         * @throws Exception If the file could not be remapped.
+         */
+        void remapFile(File midiFile) throws Exception;
+
+        /**
+         * Reloads the remapping rules after the CSV changed.
+         * @return The CSV patch numbers whose rules were added, removed or changed.
+         * @throws Exception If the rules could not be reloaded.
+         */
+        Set<Integer> reloadRules() throws Exception;
+    }
+
+    private static final String OUTPUT_SUFFIX = "_split_remapped.mid";
+
+    private final Path inputRoot;
+    private final Path csvPath;
+    private final Path dynamicsPath; // The dynamics CSV next to the remapping CSV, reloaded with it
+    private final Handler handler;
+    private final long debounceMillis;
+
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> watchedDirectories = new ConcurrentHashMap<>();
+    private final RuleCoverageIndex coverageIndex = new RuleCoverageIndex();
+
+    private final ScheduledExecutorService debounceScheduler = Executors.newSingleThreadScheduledExecutor(r -> newDaemonThread(r, "midi-watch-debounce"));
+    private final ExecutorService workerPool;
+    private final Map<Path, ScheduledFuture<?>> pendingChanges = new ConcurrentHashMap<>();
+    // Files currently being remapped; the value is true if another change arrived while it was running
+    private final Map<Path, Boolean> runningFiles = new ConcurrentHashMap<>();
+    private Thread watchThread;
+    private volatile boolean closed;
+
+    /**
+     * Creates a watcher. Call {@link #start()} to begin watching.
+     * @param inputRoot The folder tree containing the MIDI files to watch.
+     * @param csvFile The remapping CSV to watch for rule changes.
+     * @param handler The callbacks that remap files and reload rules.
+     * @param workerThreads The number of files remapped concurrently.
+     * @param debounceMillis How long a path must be quiet before it is processed.
+     * @throws IOException If the watch service cannot be created.
+     */
+    public MidiFolderWatcher(File inputRoot, File csvFile, Handler handler, int workerThreads, long debounceMillis) throws IOException {
+        this.inputRoot = inputRoot.getAbsoluteFile().toPath().normalize();
+        this.csvPath = csvFile.getAbsoluteFile().toPath().normalize();
+        this.dynamicsPath = ProgramDynamics.sidecarFile(csvFile).toPath().normalize();
+        this.handler = handler;
+        this.debounceMillis = debounceMillis;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.workerPool = Executors.newFixedThreadPool(Math.max(1, workerThreads), r -> newDaemonThread(r, "midi-watch-worker"));
+    }
+
+    /**
+     * Registers the input tree and the CSV folder, indexes the existing MIDI files and starts watching.
+     * @throws IOException If the folders cannot be registered or scanned.
+     */
+    public void start() throws IOException {
+        registerTree(inputRoot);
+        Path csvFolder = csvPath.getParent();
+        if (csvFolder != null && !watchedDirectories.containsValue(csvFolder)) {
+            watchedDirectories.put(csvFolder.register(watchService, ENTRY_CREATE, ENTRY_MODIFY), csvFolder);
+        }
+        int indexed = coverageIndex.update(inputRoot.toFile());
+        MidiProgramChangeSplitterGUI.logStatus("Watching " + inputRoot + " (" + indexed + " MIDI file(s) indexed) and " + csvPath.getFileName() + " for changes...");
+
+        watchThread = newDaemonThread(this::watchLoop, "midi-watch");
+        watchThread.start();
+    }
+
+    /**
+     * Stops watching. Files already being remapped are allowed to finish.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            MidiProgramChangeSplitterGUI.logError("Error closing watch service: " + e.getMessage(), e);
+        }
+        debounceScheduler.shutdownNow();
+        workerPool.shutdown();
+    }
+
+    private void watchLoop() {
+        while (!closed) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path directory = watchedDirectories.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == OVERFLOW) {
+                    MidiProgramChangeSplitterGUI.logWarning("Watch events were lost; re-checking " + inputRoot + " for changes.");
+                    debounce(inputRoot, this::rescanAll);
+                    continue;
+                }
+                if (directory == null) {
+                    continue;
+                }
+                Path changed = directory.resolve((Path) event.context()).normalize();
+                if (changed.equals(csvPath) || changed.equals(dynamicsPath)) {
+                    debounce(csvPath, this::reloadRules);
+                } else if (changed.startsWith(inputRoot)) {
+                    if (event.kind() == ENTRY_CREATE && Files.isDirectory(changed)) {
+                        debounce(changed, () -> registerNewDirectory(changed));
+                    } else if (isWatchedMidiFile(changed)) {
+                        debounce(changed, () -> submitRemap(changed));
+                    }
+                }
+            }
+            if (!key.reset()) {
+                watchedDirectories.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Schedules an action for a path once no further events for that path arrive within the debounce interval.
+     */
+    private void debounce(Path path, Runnable action) {
+        if (closed) {
+            return;
+        }
+        ScheduledFuture<?> previous = pendingChanges.put(path, debounceScheduler.schedule(() -> {
+            pendingChanges.remove(path);
+            action.run();
+        }, debounceMillis, TimeUnit.MILLISECONDS));
+        if (previous != null) {
+            previous.cancel(false);
+        }
+    }
+
+    private void submitRemap(Path midiPath) {
+        if (closed) {
+            return;
+        }
+        // If the file is already being remapped, flag it so it runs again once the current run finishes. The check
+        // and the flag are one atomic step: FALSE comes back only if no worker had the file, and this call starts one
+        if (runningFiles.merge(midiPath, Boolean.FALSE, (running, absent) -> Boolean.TRUE)) {
+            return;
+        }
+        workerPool.execute(() -> {
+            boolean again;
+            do {
+                runningFiles.put(midiPath, Boolean.FALSE);
+                File midiFile = midiPath.toFile();
+                coverageIndex.refresh(midiFile);
+                if (midiFile.isFile()) {
+                    long start = System.nanoTime();
+                    try {
+                        handler.remapFile(midiFile);
+                        MidiProgramChangeSplitterGUI.logStatus("Watch: remapped " + inputRoot.relativize(midiPath) + " in "
+                                + (System.nanoTime() - start) / 1_000_000 + " ms.");
+                    } catch (Exception e) {
+                        MidiProgramChangeSplitterGUI.logError("Watch: failed to remap " + midiPath + ": " + e.getMessage(), e);
+                    }
+                }
+                again = !runningFiles.remove(midiPath, Boolean.FALSE);
+            } while (again && !closed);
+            if (again) {
+                runningFiles.remove(midiPath);
+            }
+        });
+    }
+
+    private void reloadRules() {
+        Set<Integer> changedPatches;
+        try {
+            changedPatches = handler.reloadRules();
+        } catch (Exception e) {
+            MidiProgramChangeSplitterGUI.logError("Watch: failed to reload remapping rules from " + csvPath + ": " + e.getMessage(), e);
+            return;
+        }
+        Set<String> affectedFiles = new TreeSet<>();
+        for (int patch : changedPatches) {
+            affectedFiles.addAll(coverageIndex.filesUsing(patch, -1));
+        }
+        MidiProgramChangeSplitterGUI.logStatus("Watch: remapping rules reloaded; " + changedPatches.size() + " program(s) changed, requeueing "
+                + affectedFiles.size() + " affected file(s).");
+        for (String path : affectedFiles) {
+            Path midiPath = Paths.get(path);
+            if (midiPath.startsWith(inputRoot) && isWatchedMidiFile(midiPath)) {
+                submitRemap(midiPath);
+            }
+        }
+    }
+
+    private void rescanAll() {
+        try {
+            registerTree(inputRoot);
+            List<Path> midiFiles = listMidiFiles(inputRoot);
+            for (Path midiPath : midiFiles) {
+                if (coverageIndex.refresh(midiPath.toFile())) {
+                    submitRemap(midiPath);
+                }
+            }
+        } catch (IOException e) {
+            MidiProgramChangeSplitterGUI.logError("Watch: failed to re-scan " + inputRoot + ": " + e.getMessage(), e);
+        }
+    }
+
+    private void registerNewDirectory(Path directory) {
+        try {
+            registerTree(directory);
+            // Files may have been written before the new folder was registered
+            for (Path midiPath : listMidiFiles(directory)) {
+                submitRemap(midiPath);
+            }
+        } catch (IOException e) {
+            MidiProgramChangeSplitterGUI.logError("Watch: failed to register new folder " + directory + ": " + e.getMessage(), e);
+        }
+    }
+
+    private void registerTree(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path directory : (Iterable<Path>) paths.filter(Files::isDirectory)::iterator) {
+                Path normalized = directory.toAbsolutePath().normalize();
+                if (!watchedDirectories.containsValue(normalized)) {
+                    watchedDirectories.put(normalized.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), normalized);
+                }
+            }
+        }
+    }
+
+    private List<Path> listMidiFiles(Path root) throws IOException {
+        List<Path> midiFiles = new ArrayList<>();
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.map(p -> p.toAbsolutePath().normalize()).filter(this::isWatchedMidiFile).filter(Files::isRegularFile).forEach(midiFiles::add);
+        }
+        return midiFiles;
+    }
+
+    /**
+     * Returns true for MIDI files that should be remapped. Our own outputs are skipped so an output
+     * folder inside the watched tree does not trigger remapping loops.
+     */
+    private boolean isWatchedMidiFile(Path path) {
+        String name = path.getFileName().toString();
+        return RuleCoverageIndex.isMidiFileName(name) && !name.endsWith(OUTPUT_SUFFIX);
+    }
+
+    private static Thread newDaemonThread(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+}
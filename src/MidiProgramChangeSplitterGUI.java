@@ -4,14 +4,14 @@ import javax.swing.filechooser.FileNameExtensionFilter;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * A Java GUI application to parse MIDI sequences, remap program changes and notes
@@ -33,284 +33,71 @@ public class MidiProgramChangeSplitterGUI extends JFrame {
     private JTextField csvFileField;
     private JButton browseCsvButton;
     private JButton processButton;
+    private JToggleButton watchButton;
+    private JCheckBox spillToDiskCheckBox;
+    private JSpinner memoryBudgetSpinner;
+    private JCheckBox compactTracksCheckBox;
+    private JCheckBox thinEventsCheckBox;
+    private JCheckBox convertTimebaseCheckBox;
+    private JCheckBox stemFilesCheckBox;
+    private JSpinner targetResolutionSpinner;
+    private JCheckBox countRuleHitsCheckBox;
+    private JCheckBox logEveryEventCheckBox;
+    private JCheckBox cacheOutputsCheckBox;
     private static JTextArea statusArea;
     private JScrollPane statusScrollPane;
+    private RemapJobPanel jobPanel;
 
     private final List<File> selectedMidiFiles = new ArrayList<>();
     private File selectedOutputFolder;
     private File selectedCsvFile;
+    private MidiFolderWatcher folderWatcher;
+    private RemapOutputCache outputCache; // Opened when first used
 
-    private static final int DRUM_CHANNEL = 9; // MIDI channel 10 (0-indexed)
-    private static final int MAX_MIDI_CHANNEL = 15; // MIDI channels 0-15
+    private static final long WATCH_DEBOUNCE_MILLIS = 150; // Quiet period before a changed file is remapped
+    private static final int RULE_HIT_REPORT_SIZE = 20; // Most frequently hit rules listed after a run
+    private static final int STATUS_AREA_MAX_CHARS = 2_000_000; // Older log lines are dropped beyond this
+    private static final File OUTPUT_CACHE_FOLDER = new File(System.getProperty("user.home"), ".csv-midi-remapper" + File.separator + "output-cache");
+    private static final long OUTPUT_CACHE_BYTES = 1024L * 1024 * 1024; // Least recently used outputs are evicted beyond this
 
-    private int[] currentBankMSB = new int[16]; // Stores MSB for each of 16 channels
-    private int[] currentBankLSB = new int[16]; // Stores LSB for each of 16 channels
+    // Log lines waiting to be appended to the status area, flushed in one go on the event dispatch thread
+    private static final StringBuilder pendingStatus = new StringBuilder();
+    private static boolean statusFlushScheduled; // Guarded by pendingStatus
 
-    private static final String[] generalMidiDrumKits = new String[128];
-
-    static {
-
-        generalMidiDrumKits[0] = "Standard Drum Kit";
-
-        for (int i = 1; i <= 6; i++) {
-            generalMidiDrumKits[i] = "Drum Kit";
-        }
-
-        generalMidiDrumKits[7] = "Room Drum Kit";
-
-        for (int i = 8; i <= 14; i++) {
-            generalMidiDrumKits[i] = "Drum Kit";
-        }
-
-        generalMidiDrumKits[15] = "Power Drum Kit";
-
-        for (int i = 16; i <= 22; i++) {
-            generalMidiDrumKits[i] = "Drum Kit";
-        }
-
-        generalMidiDrumKits[23] = "Electronic Drum Kit";
-
-        generalMidiDrumKits[24] = "Analog Drum Kit (TR-808)"; // Often referred to as "Rap" or "TR-808"
-
-        for (int i = 25; i <= 30; i++) {
-            generalMidiDrumKits[i] = "Drum Kit";
-        }
-
-        generalMidiDrumKits[31] = "Jazz Drum Kit";
-
-        for (int i = 32; i <= 38; i++) {
-            generalMidiDrumKits[i] = "Drum Kit";
-        }
-
-        generalMidiDrumKits[39] = "Brush Kit";
-
-        for (int i = 40; i <= 46; i++) {
-            generalMidiDrumKits[i] = "Drum Kit";
-        }
-
-        generalMidiDrumKits[47] = "Orchestral Drum Kit";
-
-        for (int i = 48; i <= 54; i++) {
-            generalMidiDrumKits[i] = "Drum Kit";
-        }
-
-        generalMidiDrumKits[55] = "SFX Drum Kit";
-
-        for (int i = 56; i <= 127; i++) {
-            generalMidiDrumKits[i] = "Drum Kit";
-        }
-
-    }
-
-    String[] generalMidiInstrumentNames = {
-            // Piano (0-7)
-            "Acoustic Grand Piano", "Bright Acoustic Piano", "Electric Grand Piano", "Honky-tonk Piano",
-            "Electric Piano 1", "Electric Piano 2", "Harpsichord", "Clavinet",
-
-            // Chromatic Percussion (8-15)
-            "Celesta", "Glockenspiel", "Music Box", "Vibraphone",
-            "Marimba", "Xylophone", "Tubular Bells", "Dulcimer",
-
-            // Organ (16-23)
-            "Drawbar Organ", "Percussive Organ", "Rock Organ", "Church Organ",
-            "Reed Organ", "Accordion", "Harmonica", "Tango Accordion",
-
-            // Guitar (24-31)
-            "Acoustic Guitar (nylon)", "Acoustic Guitar (steel)", "Electric Guitar (jazz)", "Electric Guitar (clean)",
-            "Electric Guitar (muted)", "Overdriven Guitar", "Distortion Guitar", "Guitar Harmonics",
-
-            // Bass (32-39)
-            "Acoustic Bass", "Electric Bass (finger)", "Electric Bass (pick)", "Fretless Bass",
-            "Slap Bass 1", "Slap Bass 2", "Synth Bass 1", "Synth Bass 2",
-
-            // Strings (40-47)
-            "Violin", "Viola", "Cello", "Contrabass",
-            "Tremolo Strings", "Pizzicato Strings", "Orchestral Harp", "Timpani",
-
-            // Ensemble (48-55)
-            "String Ensemble 1", "String Ensemble 2", "SynthStrings 1", "SynthStrings 2",
-            "Choir Aahs", "Voice Oohs", "Synth Voice", "Orchestra Hit",
-
-            // Brass (56-63)
-            "Trumpet", "Trombone", "Tuba", "Muted Trumpet",
-            "French Horn", "Brass Section", "SynthBrass 1", "SynthBrass 2",
-
-            // Reed (64-71)
-            "Soprano Sax", "Alto Sax", "Tenor Sax", "Baritone Sax",
-            "Oboe", "English Horn", "Bassoon", "Clarinet",
-
-            // Pipe (72-79)
-            "Piccolo", "Flute", "Recorder", "Pan Flute",
-            "Blown Bottle", "Shakuhachi", "Whistle", "Ocarina",
-
-            // Synth Lead (80-87)
-            "Lead 1 (square)", "Lead 2 (sawtooth)", "Lead 3 (calliope)", "Lead 4 (chiff)",
-            "Lead 5 (charang)", "Lead 6 (voice)", "Lead 7 (fifths)", "Lead 8 (bass+lead)",
-
-            // Synth Pad (88-95)
-            "Pad 1 (new age)", "Pad 2 (warm)", "Pad 3 (polysynth)", "Pad 4 (choir)",
-            "Pad 5 (bowed)", "Pad 6 (metallic)", "Pad 7 (halo)", "Pad 8 (sweep)",
-
-            // Synth Effects (96-103)
-            "FX 1 (rain)", "FX 2 (soundtrack)", "FX 3 (crystal)", "FX 4 (atmosphere)",
-            "FX 5 (brightness)", "FX 6 (goblin)", "FX 7 (echoes)", "FX 8 (sci-fi)",
-
-            // Ethnic (104-111)
-            "Sitar", "Banjo", "Shamisen", "Koto",
-            "Kalimba", "Didgeridoo", "Bagpipe", "Fiddle",
-
-            // Percussive (112-119)
-            "Tinkle Bell", "Agogo", "Steel Drums",
-            "Woodblock", "Taiko Drum", "Melodic Tom", "Synth Drum",
-
-            // Sound Effects (120-127)
-            "Reverse Cymbal", "Guitar Fret Noise", "Breath Noise", "Seashore",
-            "Bird Tweet", "Telephone Ring", "Helicopter", "Applause", "Gunshot"
-    };
-
-    /**
-     * Represents a unique key for an output track. This key now differentiates tracks
-     * not only by remapped program and original channel/segment but also by
-     * the effective channel (the one the event is placed on) and its determined type (DRUM/MELODIC),
-     * allowing for fine-grained splitting.
-     */
-    private static class ProgramChannelKey {
-        int remappedProgramForSegment; // The remapped program that defines the segment context
-        int effectiveChannel;          // The actual channel the MIDI event will be placed on (finalOutputChannel for notes)
-        String type;                   // The determined type for this content (DRUM or MELODIC or GLOBAL)
-        int segmentIndex;              // Index to differentiate segments based on original program changes
-
-        public ProgramChannelKey(int remappedProgramForSegment, int effectiveChannel, String type, int segmentIndex) {
-            this.remappedProgramForSegment = remappedProgramForSegment;
-            this.effectiveChannel = effectiveChannel;
-            this.type = type;
-            this.segmentIndex = segmentIndex;
-        }
+    // Whether the engine logs every remapped event; off by default, since building those lines slows remapping
+    // down and keeps the engine from using its precompiled note plans
+    private static volatile boolean logEveryEvent;
 
+    // Forwards engine and rule loading messages to the status area
+    private static final RemapLog GUI_LOG = new RemapLog() {
         @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-            ProgramChannelKey that = (ProgramChannelKey) o;
-            return remappedProgramForSegment == that.remappedProgramForSegment &&
-                    effectiveChannel == that.effectiveChannel &&
-                    segmentIndex == that.segmentIndex &&
-                    Objects.equals(type, that.type);
+        public void status(String message) {
+            logStatus(message);
         }
 
         @Override
-        public int hashCode() {
-            return Objects.hash(remappedProgramForSegment, effectiveChannel, type, segmentIndex);
-        }
-    }
-
-    /**
-     * Stores information about a program change remapping, including the original program
-     * that set this context, the remapped program, the determined channel type (DRUM/MELODIC),
-     * and a track name.
-     */
-    private static class ProgramRemapInfo {
-        int originalProgramThatSetThisContext; // -1 if no PC has set the context yet
-        int remappedProgram;
-        String channelType; // "DRUM" or "MELODIC"
-        String trackName; // Can be null if no specific name from rule
-
-        public ProgramRemapInfo(int originalProgramThatSetThisContext, int remappedProgram, String channelType, String trackName) {
-            this.originalProgramThatSetThisContext = originalProgramThatSetThisContext;
-            this.remappedProgram = remappedProgram;
-            this.channelType = channelType;
-            this.trackName = trackName;
+        public void warning(String message) {
+            logWarning(message);
         }
 
         @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-            ProgramRemapInfo that = (ProgramRemapInfo) o;
-            return originalProgramThatSetThisContext == that.originalProgramThatSetThisContext &&
-                    remappedProgram == that.remappedProgram &&
-                    Objects.equals(channelType, that.channelType) &&
-                    Objects.equals(trackName, that.trackName);
+        public void error(String message, Throwable e) {
+            logError(message, e);
         }
 
         @Override
-        public int hashCode() {
-            return Objects.hash(originalProgramThatSetThisContext, remappedProgram, channelType, trackName);
-        }
-    }
-
-    /**
-     * Represents a single unified remapping rule from the CSV file, which can be
-     * either a program change remapping rule or a note manipulation rule.
-     */
-    private static class UnifiedRemapRule {
-        String trackName; // This field will now always be null as per user request
-        int originalProgram;
-        int remappedProgram;
-        int originalNote; // -999 for program change rule, -1 for all notes, 0-127 for specific note
-        int remappedNoteOrOffset; // -999 for program change rule, offset for all notes, specific note for specific note
-        boolean isLayered; // True if this rule creates a layered note
-        String channelType; // "DRUM" or "MELODIC"
-
-        public UnifiedRemapRule(String trackName, int originalProgram, int remappedProgram,
-                                int originalNote, int remappedNoteOrOffset, boolean isLayered,
-                                String channelType) {
-            this.trackName = trackName; // Will be passed as null from loadRemappingRules
-            this.originalProgram = originalProgram;
-            this.remappedProgram = remappedProgram;
-            this.originalNote = originalNote;
-            this.remappedNoteOrOffset = remappedNoteOrOffset;
-            this.isLayered = isLayered;
-            this.channelType = channelType;
-        }
-
-        /**
-         * Determines if this rule is a program change remapping rule.
-         * A program change rule is identified by specific values for originalNote and remappedNoteOrOffset.
-         */
-        public boolean isProgramChangeRule() {
-            return (originalNote == -999 && remappedNoteOrOffset == -999);
-        }
-
-        /**
-         * Determines if this rule is a note manipulation rule (remapping, shifting, or layering).
-         */
-        public boolean isNoteManipulationRule() {
-            return !isProgramChangeRule();
+        public boolean isVerbose() {
+            return logEveryEvent;
         }
+    };
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-            UnifiedRemapRule that = (UnifiedRemapRule) o;
-            return originalProgram == that.originalProgram &&
-                    remappedProgram == that.remappedProgram &&
-                    originalNote == that.originalNote &&
-                    remappedNoteOrOffset == that.remappedNoteOrOffset &&
-                    isLayered == that.isLayered &&
-                    Objects.equals(trackName, that.trackName) &&
-                    Objects.equals(channelType, that.channelType);
-        }
-
-        @Override
-        public int hashCode() {
-            return Objects.hash(trackName, originalProgram, remappedProgram, originalNote, remappedNoteOrOffset, isLayered, channelType);
-        }
-    }
-
-    // Static maps to store loaded remapping rules
-    private static List<UnifiedRemapRule> allRemapRules = new ArrayList<>();
-    private static Map<Integer, Map<Integer, ProgramRemapInfo>> programChangeRemap = new HashMap<>(); // Not explicitly used in current logic, but kept for potential future use or debugging
-    private static Map<Integer, List<UnifiedRemapRule>> drumNoteManipulationRulesByOriginalProgram = new HashMap<>();
-    private static Map<Integer, List<UnifiedRemapRule>> melodicNoteManipulationRulesByOriginalProgram = new HashMap<>();
-    private static Map<Integer, String> remappedProgramDefaultChannelType = new HashMap<>(); // Stores default channel type for a remapped program
-    private static Map<Integer, String> originalProgramDefaultChannelType = new HashMap<>(); // Stores default channel type for an original program
+    // The engine built from the last loaded rules; replaced as a whole whenever rules are (re)loaded
+    private static volatile RemapEngine remapEngine = new RemapEngine(RemapRuleSet.EMPTY, GUI_LOG);
 
     public MidiProgramChangeSplitterGUI() {
         super("MIDI Splitter & Remapper");
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-        setSize(800, 600);
+        setSize(800, 760);
         setLocationRelativeTo(null);
 
         initComponents();
@@ -335,11 +122,36 @@ public class MidiProgramChangeSplitterGUI extends JFrame {
         browseCsvButton = new JButton("Browse CSV File");
 
         processButton = new JButton("Process MIDI Files");
+        watchButton = new JToggleButton("Watch Input Folder");
+
+        spillToDiskCheckBox = new JCheckBox("Limit output memory per file (MB):");
+        spillToDiskCheckBox.setToolTipText("Spill output tracks to temporary files once this much event data is buffered");
+        memoryBudgetSpinner = new JSpinner(new SpinnerNumberModel(64, 1, 65536, 16));
+        memoryBudgetSpinner.setEnabled(false);
+        compactTracksCheckBox = new JCheckBox("Compact output tracks");
+        compactTracksCheckBox.setToolTipText("Merge non-overlapping segments of the same program and channel, and drop empty tracks");
+        thinEventsCheckBox = new JCheckBox("Drop redundant controllers");
+        thinEventsCheckBox.setToolTipText("Drop controller, program change and pitch bend events that repeat the value their track already set");
+        convertTimebaseCheckBox = new JCheckBox("Convert to PPQ:");
+        convertTimebaseCheckBox.setToolTipText("Write outputs with this many ticks per quarter note; SMPTE inputs are converted through their tempo map");
+        targetResolutionSpinner = new JSpinner(new SpinnerNumberModel(48, 1, 32767, 24));
+        targetResolutionSpinner.setEnabled(false);
+        stemFilesCheckBox = new JCheckBox("One file per stem");
+        stemFilesCheckBox.setToolTipText("Write every split track as its own MIDI file, together with the global tempo and meta track");
+        countRuleHitsCheckBox = new JCheckBox("Count rule hits");
+        countRuleHitsCheckBox.setToolTipText("Report how often each CSV rule fired, and which rules never fired");
+        logEveryEventCheckBox = new JCheckBox("Log every event");
+        logEveryEventCheckBox.setToolTipText("Log every remapped note, program change and created track when a single file is processed; remapping is slower with this on");
+        cacheOutputsCheckBox = new JCheckBox("Reuse outputs of identical files");
+        cacheOutputsCheckBox.setToolTipText("Keep remapped files in " + OUTPUT_CACHE_FOLDER + " and copy them for inputs already remapped with the same rules");
+
         statusArea = new JTextArea(15, 60);
         statusArea.setEditable(false);
         statusArea.setLineWrap(true);
         statusArea.setWrapStyleWord(true);
         statusScrollPane = new JScrollPane(statusArea);
+
+        jobPanel = new RemapJobPanel();
     }
 
     /**
@@ -398,6 +210,20 @@ public class MidiProgramChangeSplitterGUI extends JFrame {
                 processMidi();
             }
         });
+
+        spillToDiskCheckBox.addActionListener(e -> memoryBudgetSpinner.setEnabled(spillToDiskCheckBox.isSelected()));
+        convertTimebaseCheckBox.addActionListener(e -> targetResolutionSpinner.setEnabled(convertTimebaseCheckBox.isSelected()));
+
+        watchButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                if (watchButton.isSelected()) {
+                    startWatching();
+                } else {
+                    stopWatching();
+                }
+            }
+        });
     }
 
     /**
@@ -441,37 +267,90 @@ public class MidiProgramChangeSplitterGUI extends JFrame {
 
         gbc.gridx = 0;
         gbc.gridy = 3;
+        add(new JLabel("Options:"), gbc);
+        gbc.gridx = 1;
+        gbc.gridwidth = 2;
+        JPanel optionsPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 5, 0));
+        optionsPanel.add(spillToDiskCheckBox);
+        optionsPanel.add(memoryBudgetSpinner);
+        optionsPanel.add(compactTracksCheckBox);
+        optionsPanel.add(thinEventsCheckBox);
+        optionsPanel.add(convertTimebaseCheckBox);
+        optionsPanel.add(targetResolutionSpinner);
+        optionsPanel.add(stemFilesCheckBox);
+        optionsPanel.add(countRuleHitsCheckBox);
+        optionsPanel.add(logEveryEventCheckBox);
+        optionsPanel.add(cacheOutputsCheckBox);
+        add(optionsPanel, gbc);
+
+        gbc.gridx = 0;
+        gbc.gridy = 4;
         gbc.gridwidth = 3;
         gbc.fill = GridBagConstraints.NONE;
         gbc.anchor = GridBagConstraints.CENTER;
-        add(processButton, gbc);
+        JPanel actionPanel = new JPanel(new FlowLayout(FlowLayout.CENTER, 10, 0));
+        actionPanel.add(processButton);
+        actionPanel.add(watchButton);
+        add(actionPanel, gbc);
 
         gbc.gridx = 0;
-        gbc.gridy = 4;
+        gbc.gridy = 5;
         gbc.gridwidth = 3;
         gbc.weighty = 1.0;
         gbc.fill = GridBagConstraints.BOTH;
-        add(statusScrollPane, gbc);
+        JSplitPane progressAndLogPane = new JSplitPane(JSplitPane.VERTICAL_SPLIT, jobPanel, statusScrollPane);
+        progressAndLogPane.setResizeWeight(0.4);
+        add(progressAndLogPane, gbc);
     }
 
     /**
-     * Appends a message to the status area.
+     * Appends a message to the status area, or prints it to the console when running without the GUI.
+     * Messages logged while an append is already pending are appended together with it, so a busy batch
+     * does not flood the event dispatch thread with one task per line.
      * @param message The message to log.
      */
-    private static void logStatus(String message) {
-        SwingUtilities.invokeLater(() -> {
-            statusArea.append(message + "\n");
-            statusArea.setCaretPosition(statusArea.getDocument().getLength());
-        });
+    static void logStatus(String message) {
+        if (statusArea == null) {
+            System.out.println(message);
+            return;
+        }
+        synchronized (pendingStatus) {
+            pendingStatus.append(message).append('\n');
+            if (statusFlushScheduled) {
+                return;
+            }
+            statusFlushScheduled = true;
+        }
+        SwingUtilities.invokeLater(MidiProgramChangeSplitterGUI::flushStatus);
+    }
+
+    /**
+     * Appends the pending log lines to the status area, dropping the oldest lines once it grows too long.
+     */
+    private static void flushStatus() {
+        String text;
+        synchronized (pendingStatus) {
+            text = pendingStatus.toString();
+            pendingStatus.setLength(0);
+            statusFlushScheduled = false;
+        }
+        statusArea.append(text);
+        int excess = statusArea.getDocument().getLength() - STATUS_AREA_MAX_CHARS;
+        if (excess > 0) {
+            statusArea.replaceRange("", 0, excess);
+        }
+        statusArea.setCaretPosition(statusArea.getDocument().getLength());
     }
 
     /**
      * Logs a warning message to the console and status area.
      * @param message The warning message.
      */
-    private static void logWarning(String message) {
+    static void logWarning(String message) {
         System.err.println("WARNING: " + message);
-        logStatus("Warning: " + message);
+        if (statusArea != null) {
+            logStatus("Warning: " + message);
+        }
     }
 
     /**
@@ -479,16 +358,18 @@ public class MidiProgramChangeSplitterGUI extends JFrame {
      * @param message The error message.
      * @param e The exception, or null if no exception.
      */
-    private static void logError(String message, Throwable e) {
+    static void logError(String message, Throwable e) {
         System.err.println("ERROR: " + message);
         if (e != null) {
             e.printStackTrace(System.err);
         }
-        logStatus("Error: " + message);
+        if (statusArea != null) {
+            logStatus("Error: " + message);
+        }
     }
 
     /**
-     * Initiates the MIDI processing in a separate thread.
+     * Initiates the MIDI processing on a background worker, showing its progress in the job panel.
      * Handles file selection validation and error reporting.
      */
     private void processMidi() {
@@ -510,38 +391,125 @@ public class MidiProgramChangeSplitterGUI extends JFrame {
         }
 
         setGuiEnabled(false); // Disable GUI during processing
+        RemapOptions options = currentOptions();
+        int threads = Runtime.getRuntime().availableProcessors();
+        // Every event is only logged for a single file remapped on one thread: several workers would contend for
+        // the log and interleave their lines, so batches only report progress per file
+        logEveryEvent = logEveryEventCheckBox.isSelected() && selectedMidiFiles.size() == 1;
+        // Files are remapped in parallel; cores left over when there are fewer files go to the channels of type 0 files
+        options.setParallelChannels(selectedMidiFiles.size() < threads && !logEveryEvent);
+        RemapJobPanel.Job job = new RemapJobPanel.Job(new ArrayList<>(selectedMidiFiles));
+        options.setEventCounter(job.events);
+        jobPanel.start(job);
+        new RemapBatchWorker(job, selectedCsvFile, selectedOutputFolder, options, countRuleHitsCheckBox.isSelected(), threads).execute();
+    }
 
-        new Thread(() -> {
-            try {
-                loadRemappingRules(selectedCsvFile);
-                logStatus("Loaded " + allRemapRules.size() + " unified remapping rules.");
-                logStatus("Loaded " + drumNoteManipulationRulesByOriginalProgram.size() + " drum note manipulation rule sets by original program.");
-                logStatus("Loaded " + melodicNoteManipulationRulesByOriginalProgram.size() + " melodic note manipulation rule sets by original program.");
-                logStatus("Loaded " + remappedProgramDefaultChannelType.size() + " remapped program default channel types.");
-                logStatus("Loaded " + originalProgramDefaultChannelType.size() + " original program default channel types.");
+    /**
+     * Remaps a batch of files on a pool of worker threads, reporting each file's progress to a
+     * {@link RemapJobPanel.Job}. A file that fails is logged and the batch goes on. Cancelling the job skips
+     * the files that have not started yet; the worker finishes once the files in progress are done.
+     */
+    private final class RemapBatchWorker extends SwingWorker<Void, Void> {
+        private final RemapJobPanel.Job job;
+        private final File csvFile;
+        private final File outputFolder;
+        private final RemapOptions options;
+        private final boolean countRuleHits;
+        private final int threads;
+
+        RemapBatchWorker(RemapJobPanel.Job job, File csvFile, File outputFolder, RemapOptions options, boolean countRuleHits, int threads) {
+            this.job = job;
+            this.csvFile = csvFile;
+            this.outputFolder = outputFolder;
+            this.options = options;
+            this.countRuleHits = countRuleHits;
+            this.threads = threads;
+        }
 
-                if (!selectedOutputFolder.exists()) {
-                    if (!selectedOutputFolder.mkdirs()) {
-                        logError("Could not create output directory: " + selectedOutputFolder.getAbsolutePath(), null);
-                        return;
-                    }
-                }
+        @Override
+        protected Void doInBackground() throws Exception {
+            loadRemappingRules(csvFile);
+            RemapRuleSet rules = remapEngine.getRules();
+            if (countRuleHits) {
+                options.setRuleHitCounters(new RuleHitCounters(rules));
+            }
+            logStatus("Loaded " + rules.getRuleCount() + " unified remapping rules for " + rules.getPatchCount() + " program(s).");
+            logStatus("Loaded " + rules.getDrumRuleSetCount() + " drum note manipulation rule sets by original program.");
+            logStatus("Loaded " + rules.getMelodicRuleSetCount() + " melodic note manipulation rule sets by original program.");
+
+            if (!outputFolder.exists() && !outputFolder.mkdirs()) {
+                throw new IOException("Could not create output directory: " + outputFolder.getAbsolutePath());
+            }
 
-                for (File inputMidiFile : selectedMidiFiles) {
-                    processSingleMidiFile(inputMidiFile, selectedOutputFolder);
+            ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, job.files.size())));
+            try {
+                List<Future<?>> results = new ArrayList<>();
+                for (int i = 0; i < job.files.size(); i++) {
+                    int fileIndex = i;
+                    results.add(pool.submit(() -> processFile(fileIndex)));
                 }
+                for (Future<?> result : results) {
+                    result.get();
+                }
+            } finally {
+                pool.shutdown();
+            }
 
+            int failed = job.count(RemapJobPanel.FAILED);
+            int cancelled = job.count(RemapJobPanel.CANCELLED);
+            if (failed == 0 && cancelled == 0) {
                 logStatus("\nAll MIDI files processed successfully!");
+            } else {
+                logStatus("\nProcessed " + job.count(RemapJobPanel.DONE) + " of " + job.files.size() + " MIDI files ("
+                        + failed + " failed, " + cancelled + " cancelled).");
+            }
+            if (options.getRuleHitCounters() != null) {
+                logStatus(options.getRuleHitCounters().report(RULE_HIT_REPORT_SIZE));
+            } else if (options.getOutputCache() != null) {
+                RemapOutputCache cache = options.getOutputCache();
+                logStatus(String.format("Output cache: %d file(s) copied from the cache, %d remapped so far; %.1f MB stored.",
+                        cache.getHits(), cache.getMisses(), cache.getSizeBytes() / (1024.0 * 1024)));
+            }
+            return null;
+        }
 
-            } catch (IOException | NumberFormatException e) {
-                logError("Error loading remapping rules: " + e.getMessage(), e);
+        private void processFile(int fileIndex) {
+            if (job.isCancelRequested()) {
+                job.fileCancelled(fileIndex);
+                return;
             }
-            catch (Exception e) {
-                logError("An unexpected error occurred during processing: " + e.getMessage(), e);
+            File inputMidiFile = job.files.get(fileIndex);
+            job.fileStarted(fileIndex);
+            long start = System.nanoTime();
+            boolean succeeded = false;
+            try {
+                processSingleMidiFile(inputMidiFile, outputFolder, options);
+                succeeded = true;
+            } catch (InvalidMidiDataException | IOException | RuntimeException e) {
+                logError("Could not process " + inputMidiFile.getName() + ": " + e.getMessage(), e);
             } finally {
-                setGuiEnabled(true); // Re-enable GUI after processing
+                job.fileFinished(fileIndex, succeeded, (System.nanoTime() - start) / 1_000_000);
             }
-        }).start();
+        }
+
+        @Override
+        protected void done() {
+            job.finish();
+            jobPanel.stop();
+            try {
+                get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException || cause instanceof NumberFormatException) {
+                    logError("Error loading remapping rules: " + cause.getMessage(), cause);
+                } else {
+                    logError("An unexpected error occurred during processing: " + cause.getMessage(), cause);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            setGuiEnabled(true); // Re-enable GUI after processing
+        }
     }
 
     /**
@@ -554,726 +522,184 @@ public class MidiProgramChangeSplitterGUI extends JFrame {
             browseOutputButton.setEnabled(enabled);
             browseCsvButton.setEnabled(enabled);
             processButton.setEnabled(enabled);
+            watchButton.setEnabled(enabled);
+            spillToDiskCheckBox.setEnabled(enabled);
+            memoryBudgetSpinner.setEnabled(enabled && spillToDiskCheckBox.isSelected());
+            compactTracksCheckBox.setEnabled(enabled);
+            thinEventsCheckBox.setEnabled(enabled);
+            convertTimebaseCheckBox.setEnabled(enabled);
+            targetResolutionSpinner.setEnabled(enabled && convertTimebaseCheckBox.isSelected());
+            stemFilesCheckBox.setEnabled(enabled);
+            countRuleHitsCheckBox.setEnabled(enabled);
+            logEveryEventCheckBox.setEnabled(enabled);
+            cacheOutputsCheckBox.setEnabled(enabled);
         });
     }
 
     /**
-     * Processes a single MIDI file: reads its events, applies remapping rules,
-     * splits events into new tracks based on program change segments and channel types,
-     * and saves the resulting MIDI sequence to an output file.
-     * @param inputMidiFile The MIDI file to process.
-     * @param outputDirectory The directory to save the output file.
-     * @throws InvalidMidiDataException If the MIDI data is invalid.
-     * @throws IOException If an I/O error occurs.
+     * Builds the processing options from the current GUI settings. Must be called on the event dispatch thread.
+     * @return The options for the next run.
      */
-    private void processSingleMidiFile(File inputMidiFile, File outputDirectory) throws InvalidMidiDataException, IOException {
-        logStatus("\nProcessing MIDI file: " + inputMidiFile.getName() + "...");
-
-        Arrays.fill(currentBankMSB, 0);
-        Arrays.fill(currentBankLSB, 0);
-
-        currentBankLSB[9] = 128;
-
-        Sequence originalSequence = MidiSystem.getSequence(inputMidiFile);
-        logStatus("  Original sequence has " + originalSequence.getTracks().length + " tracks.");
-        logStatus("  Tick resolution: " + originalSequence.getResolution() + " ticks per " +
-                (originalSequence.getDivisionType() == Sequence.PPQ ? "quarter note" : "frame"));
-
-        // Create a new sequence to hold the combined and split tracks
-        Sequence combinedSequence = new Sequence(originalSequence.getDivisionType(), originalSequence.getResolution());
-
-        // Map to hold output tracks, keyed by a combination of remapped program, effective channel, determined type, and segment index.
-        Map<ProgramChannelKey, Track> programTracks = new HashMap<>();
-
-        // Map to keep track of the current program remapping info for each original MIDI channel.
-        Map<Integer, ProgramRemapInfo> currentProgramRemapInfoByOriginalChannel = new HashMap<>();
-
-        // Map to keep track of the current segment index for each original MIDI channel.
-        Map<Integer, Integer> currentSegmentIndexByOriginalChannel = new HashMap<>();
-
-        // Set to keep track of MIDI channels (0-15, excluding DRUM_CHANNEL) that are currently assigned
-        // to remapped melodic content.
-        Set<Integer> assignedMelodicChannels = new HashSet<>();
-
-        // Counter for errors encountered during event processing for logging purposes.
-        AtomicInteger eventProcessingErrors = new AtomicInteger();
-
-        // Pre-scan to find the first explicit program change for each channel
-        Map<Integer, Integer> firstExplicitProgramChangePerChannel = new HashMap<>();
-        for (int trackIndex = 0; trackIndex < originalSequence.getTracks().length; trackIndex++) {
-            Track originalTrack = originalSequence.getTracks()[trackIndex];
-            for (int i = 0; i < originalTrack.size(); i++) {
-                MidiEvent event = originalTrack.get(i);
-                MidiMessage message = event.getMessage();
-                if (message instanceof ShortMessage) {
-                    ShortMessage sm = (ShortMessage) message;
-                    if (sm.getCommand() == ShortMessage.PROGRAM_CHANGE) {
-                        int originalChannel = sm.getChannel();
-                        if (!firstExplicitProgramChangePerChannel.containsKey(originalChannel)) {
-                            firstExplicitProgramChangePerChannel.put(originalChannel, sm.getData1());
-                        }
-                    }
+    private RemapOptions currentOptions() {
+        RemapOptions options = new RemapOptions();
+        if (spillToDiskCheckBox.isSelected()) {
+            options.setMemoryBudgetBytes(((Number) memoryBudgetSpinner.getValue()).longValue() * 1024 * 1024);
+        }
+        options.setCompactTracks(compactTracksCheckBox.isSelected());
+        options.setThinEvents(thinEventsCheckBox.isSelected());
+        if (convertTimebaseCheckBox.isSelected()) {
+            options.setTargetResolution(((Number) targetResolutionSpinner.getValue()).intValue());
+        }
+        options.setStemFiles(stemFilesCheckBox.isSelected());
+        options.setSpecializedRules(true); // Used only while every event is not logged
+        if (cacheOutputsCheckBox.isSelected()) {
+            try {
+                if (outputCache == null) {
+                    outputCache = new RemapOutputCache(OUTPUT_CACHE_FOLDER, OUTPUT_CACHE_BYTES);
                 }
+                options.setOutputCache(outputCache);
+            } catch (IOException e) {
+                logWarning("Could not open the output cache in " + OUTPUT_CACHE_FOLDER + "; remapping every file: " + e.getMessage());
             }
         }
+        return options;
+    }
 
-        // Iterate through each track in the original MIDI sequence
-        for (int trackIndex = 0; trackIndex < originalSequence.getTracks().length; trackIndex++) {
-            Track originalTrack = originalSequence.getTracks()[trackIndex];
-            logStatus("  Processing original track " + (trackIndex + 1) + " of " + originalSequence.getTracks().length + "...");
+    /**
+     * Starts watch mode: asks for an input folder, loads the rules and remaps every MIDI file saved
+     * under that folder (or affected by a change to the CSV) until watch mode is switched off.
+     */
+    private void startWatching() {
+        if (selectedOutputFolder == null || selectedCsvFile == null) {
+            logError("Select an output folder and a remapping CSV file before starting watch mode.", null);
+            watchButton.setSelected(false);
+            return;
+        }
+        JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+        fileChooser.setDialogTitle("Select Input Folder to Watch");
+        if (fileChooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+            watchButton.setSelected(false);
+            return;
+        }
+        File inputFolder = fileChooser.getSelectedFile();
+        File outputFolder = selectedOutputFolder;
+        File csvFile = selectedCsvFile;
+        RemapOptions options = currentOptions();
+        logEveryEvent = false; // Saved files are remapped in parallel; only per-file lines are logged
 
-            // Iterate through each MIDI event in the current original track
-            for (int i = 0; i < originalTrack.size(); i++) {
-                MidiEvent event = originalTrack.get(i);
-                MidiMessage message = event.getMessage();
-                MidiEvent eventToProcess = event;
-                List<MidiEvent> eventsToAdd = new ArrayList<>(); // For layered notes
+        setGuiEnabled(false);
+        SwingUtilities.invokeLater(() -> watchButton.setEnabled(true));
+        watchButton.setText("Stop Watching");
 
-                // Log progress periodically
-                if (i % 1000 == 0 && i > 0) {
-                    logStatus("    Processed " + i + " events in current track...");
+        new Thread(() -> {
+            try {
+                loadRemappingRules(csvFile);
+                logStatus("Loaded " + remapEngine.getRules().getRuleCount() + " unified remapping rules.");
+                if (!outputFolder.exists() && !outputFolder.mkdirs()) {
+                    throw new IOException("Could not create output directory: " + outputFolder.getAbsolutePath());
                 }
-
-                // Process ShortMessages (Note On/Off, Program Change, etc.)
-                if (message instanceof ShortMessage) {
-                    ShortMessage sm = (ShortMessage) message;
-                    int command = sm.getCommand();
-                    int originalChannel = sm.getChannel();
-
-                    if (command == ShortMessage.CONTROL_CHANGE) {
-                        int controller = sm.getData1();
-                        int value = sm.getData2();
-                        if (controller == 0) {
-                            currentBankMSB[originalChannel] = value;
-                        }
-                        else if (controller == 32) {
-                            currentBankLSB[originalChannel] = value * 128;
-                        }
-                    }
-
-                    int segmentIndexForCurrentEvent;
-                    ProgramRemapInfo currentRemapInfoForOriginalChannel;
-                    int currentProgramForOriginalChannel; // This is the remapped program for the segment context
-
-                    // Initialize program remapping info for a channel if it's the first event for that channel
-                    if (!currentProgramRemapInfoByOriginalChannel.containsKey(originalChannel)) {
-                        segmentIndexForCurrentEvent = 0;
-                        currentSegmentIndexByOriginalChannel.put(originalChannel, 0);
-
-                        ProgramRemapInfo initialRemapInfo = null;
-                        int determinedInitialOriginalProgram = -1;
-
-                        if (firstExplicitProgramChangePerChannel.containsKey(originalChannel)) {
-                            determinedInitialOriginalProgram = firstExplicitProgramChangePerChannel.get(originalChannel);
-                            logStatus("    First explicit PC for Original Ch " + (originalChannel + 1) + " is P" + determinedInitialOriginalProgram + ".");
-                        } else {
-                            determinedInitialOriginalProgram = 0; // MIDI default
-                            logStatus("    No explicit PC found for Original Ch " + (originalChannel + 1) + ". Initializing to MIDI Default Program 0.");
-                        }
-
-                        // Find a matching program change remapping rule
-                        for (UnifiedRemapRule rule : allRemapRules) {
-                            if (rule.isProgramChangeRule() && rule.originalProgram == determinedInitialOriginalProgram) {
-                                initialRemapInfo = new ProgramRemapInfo(rule.originalProgram, rule.remappedProgram, rule.channelType, null);
-                                break;
-                            }
-                        }
-
-                        // If no specific rule found for the determined initial program, default to remapping to itself
-                        if (initialRemapInfo == null) {
-                            String defaultType = originalProgramDefaultChannelType.getOrDefault(determinedInitialOriginalProgram, "MELODIC");
-                            initialRemapInfo = new ProgramRemapInfo(determinedInitialOriginalProgram, determinedInitialOriginalProgram, defaultType, null);
-                        }
-
-                        currentRemapInfoForOriginalChannel = initialRemapInfo;
-                        currentProgramRemapInfoByOriginalChannel.put(originalChannel, currentRemapInfoForOriginalChannel);
-                        currentProgramForOriginalChannel = currentRemapInfoForOriginalChannel.remappedProgram;
-                        logStatus("    First event on Original Ch " + (originalChannel + 1) + ". Initial segment context: Orig P" + currentRemapInfoForOriginalChannel.originalProgramThatSetThisContext + ", Remap P" + currentProgramForOriginalChannel + ", Type: " + currentRemapInfoForOriginalChannel.channelType + ".");
-
-                    } else {
-                        segmentIndexForCurrentEvent = currentSegmentIndexByOriginalChannel.get(originalChannel);
-                        currentRemapInfoForOriginalChannel = currentProgramRemapInfoByOriginalChannel.get(originalChannel);
-                        currentProgramForOriginalChannel = currentRemapInfoForOriginalChannel.remappedProgram;
+                MidiFolderWatcher watcher = new MidiFolderWatcher(inputFolder, csvFile, new MidiFolderWatcher.Handler() {
+                    @Override
+                    public void remapFile(File midiFile) throws Exception {
+                        processSingleMidiFile(midiFile, outputFolder, options);
                     }
 
-                    // --- Apply Program Change Remapping ---
-                    if (command == ShortMessage.PROGRAM_CHANGE) {
-                        int originalProgramNumber = sm.getData1();
-                        ProgramRemapInfo newRemapInfoForChannel = null;
-
-                        int currentBank = currentBankLSB[originalChannel];
-
-                        int patchNumber = currentBank + originalProgramNumber;
-
-                        // Find a matching program change remapping rule
-                        for (UnifiedRemapRule rule : allRemapRules) {
-                            if (rule.isProgramChangeRule() && rule.originalProgram == patchNumber) {
-                                newRemapInfoForChannel = new ProgramRemapInfo(rule.originalProgram, rule.remappedProgram, rule.channelType, null);
-                                break;
-                            }
-                        }
-                        // If no specific rule found, default to remapping to itself with its original type
-                        if (newRemapInfoForChannel == null) {
-                            String defaultType = originalProgramDefaultChannelType.getOrDefault(originalProgramNumber, "MELODIC");
-                            newRemapInfoForChannel = new ProgramRemapInfo(originalProgramNumber, originalProgramNumber, defaultType, null);
-                        }
-
-                        // Check if this program change triggers a new segment
-                        boolean shouldTriggerNewSegment = !newRemapInfoForChannel.equals(currentRemapInfoForOriginalChannel);
-
-                        if (shouldTriggerNewSegment) {
-                            segmentIndexForCurrentEvent++;
-                            currentSegmentIndexByOriginalChannel.put(originalChannel, segmentIndexForCurrentEvent);
-                            logStatus("    PC Event at tick " + event.getTick() + " on Original Ch " + (originalChannel + 1) + " triggers new segment. New segment index: " + segmentIndexForCurrentEvent);
-                        }
-
-                        // Update the current remapping info for this channel
-                        currentProgramRemapInfoByOriginalChannel.put(originalChannel, newRemapInfoForChannel);
-                        currentProgramForOriginalChannel = newRemapInfoForChannel.remappedProgram;
-
-                        logStatus("    PC Event: Original Prog " + originalProgramNumber + ", Remapped Prog " + currentProgramForOriginalChannel + ", Determined Type: " +
-                                newRemapInfoForChannel.channelType + " at tick " + event.getTick() + " (Rule Applied)");
-
-                        // If program number actually changed, create a new Program Change event
-                        if (originalProgramNumber != currentProgramForOriginalChannel) {
-                            ShortMessage remappedSm = new ShortMessage();
-                            try {
-                                remappedSm.setMessage(ShortMessage.PROGRAM_CHANGE, originalChannel, currentProgramForOriginalChannel, 0);
-                                eventToProcess = new MidiEvent(remappedSm, event.getTick());
-                                logStatus("      Program Change Event Remapped: " + originalProgramNumber + " -> " + currentProgramForOriginalChannel);
-                            } catch (InvalidMidiDataException e) {
-                                logError("Error remapping program change for event at tick " + event.getTick() + ": " + e.getMessage() + ". Event will retain its original program.", e);
-                                eventProcessingErrors.getAndIncrement();
-                            }
-                        }
-
-                        // For a PC event, the effective channel is the original channel, and type is the segment type
-                        ProgramChannelKey logicalTrackKeyForPC = new ProgramChannelKey(
-                                currentProgramForOriginalChannel,
-                                originalChannel,
-                                newRemapInfoForChannel.channelType, // Use the type from the new PC rule
-                                segmentIndexForCurrentEvent
-                        );
-
-                        Track targetTrack = programTracks.computeIfAbsent(logicalTrackKeyForPC, k -> {
-                            Track newTrack = combinedSequence.createTrack();
-                            String fullTrackName;
-                            fullTrackName = k.effectiveChannel == 9 ? generalMidiDrumKits[k.remappedProgramForSegment] : generalMidiInstrumentNames[k.remappedProgramForSegment];
-                            logStatus("      Creating new track for " + fullTrackName);
-                            try {
-                                MetaMessage trackNameMessage = new MetaMessage();
-                                trackNameMessage.setMessage(0x03, fullTrackName.getBytes(), fullTrackName.length());
-                                newTrack.add(new MidiEvent(trackNameMessage, 0));
-                            } catch (InvalidMidiDataException e) {
-                                logError("Error setting track name for " + fullTrackName + ": " + e.getMessage(), e);
-                                eventProcessingErrors.getAndIncrement();
-                            }
-                            return newTrack;
-                        });
-                        eventsToAdd.add(0, eventToProcess); // Add the main event first
-                        for (MidiEvent finalEvent : eventsToAdd) {
-                            targetTrack.add(finalEvent);
-                        }
-
+                    @Override
+                    public Set<Integer> reloadRules() throws Exception {
+                        return reloadRemappingRules(csvFile);
                     }
-                    // --- Apply Note Remapping, Octave Shifting, Layering ---
-                    else if (command == ShortMessage.NOTE_ON || command == ShortMessage.NOTE_OFF) {
-                        ShortMessage currentSm = (ShortMessage) eventToProcess.getMessage();
-                        int currentNote = currentSm.getData1();
-                        int currentVelocity = currentSm.getData2();
-
-                        int finalNote = currentNote;
-                        boolean specificRemapApplied = false;
-                        // Default the note's channel type to the segment's type
-                        String determinedChannelTypeForNote = currentRemapInfoForOriginalChannel.channelType;
-                        int programKeyForNoteRules = currentRemapInfoForOriginalChannel.originalProgramThatSetThisContext;
-
-                        // --- Step 1: Find a specific note remapping rule for the current note ---
-                        UnifiedRemapRule specificNoteRule = null;
-
-                        // Search in DRUM note manipulation rules first
-                        List<UnifiedRemapRule> drumRules = drumNoteManipulationRulesByOriginalProgram.getOrDefault(programKeyForNoteRules, Collections.emptyList());
-                        for (UnifiedRemapRule rule : drumRules) {
-                            if (rule.isNoteManipulationRule() && rule.originalNote == currentNote) {
-                                specificNoteRule = rule;
-                                logStatus("          Found specific DRUM note rule for Original Note " + currentNote);
-                                break;
-                            }
-                        }
-
-                        // If not found in DRUM rules, search in MELODIC note manipulation rules
-                        if (specificNoteRule == null) {
-                            List<UnifiedRemapRule> melodicRules = melodicNoteManipulationRulesByOriginalProgram.getOrDefault(programKeyForNoteRules, Collections.emptyList());
-                            for (UnifiedRemapRule rule : melodicRules) {
-                                if (rule.isNoteManipulationRule() && rule.originalNote == currentNote) {
-                                    specificNoteRule = rule;
-                                    logStatus("          Found specific MELODIC note rule for Original Note " + currentNote);
-                                    break;
-                                }
-                            }
-                        }
-
-                        if (specificNoteRule != null) {
-                            // A specific rule was found, apply its properties
-                            determinedChannelTypeForNote = specificNoteRule.channelType; // This is the crucial override
-                            if (specificNoteRule.remappedNoteOrOffset >= 0 && specificNoteRule.remappedNoteOrOffset <= 127) {
-                                finalNote = specificNoteRule.remappedNoteOrOffset;
-                                specificRemapApplied = true;
-                                logStatus("          Specific Note Remap Applied: Original " + currentNote + " to " + finalNote + " (Type: " + determinedChannelTypeForNote + ")");
-                            } else {
-                                logWarning("Specific note remapping for note " + currentNote + " results in out-of-range target note: " + specificNoteRule.remappedNoteOrOffset + ". Rule skipped.");
-                            }
-                        } else {
-                            // No specific note rule found, fall back to "all notes" shift based on segment's determined type
-                            logStatus("          No specific note rule found for Original Note " + currentNote + ". Applying general rules based on segment type: " + currentRemapInfoForOriginalChannel.channelType);
-
-                            List<UnifiedRemapRule> rulesToConsiderForGeneralShift = new ArrayList<>();
-                            if ("DRUM".equals(currentRemapInfoForOriginalChannel.channelType)) {
-                                rulesToConsiderForGeneralShift.addAll(drumNoteManipulationRulesByOriginalProgram.getOrDefault(programKeyForNoteRules, Collections.emptyList()));
-                            } else {
-                                rulesToConsiderForGeneralShift.addAll(melodicNoteManipulationRulesByOriginalProgram.getOrDefault(programKeyForNoteRules, Collections.emptyList()));
-                            }
-
-                            // Apply "all notes" shift if no specific remap was applied
-                            if (!specificRemapApplied) {
-                                for (UnifiedRemapRule rule : rulesToConsiderForGeneralShift) {
-                                    if (rule.isNoteManipulationRule() && rule.originalNote == -1 && !rule.isLayered) {
-                                        int calculatedNote = finalNote + rule.remappedNoteOrOffset;
-                                        if (calculatedNote >= 0 && calculatedNote <= 127) {
-                                            finalNote = calculatedNote;
-                                            logStatus("          All Notes Shift Applied: Note shifted to " + finalNote + " (from original " + currentNote + ")");
-                                        } else {
-                                            logWarning("All notes shift for note " + finalNote + " results in out-of-range note: " + calculatedNote + ". Rule skipped.");
-                                        }
-                                    }
-                                }
-                            }
-                        }
-
-                        // Apply layering rules (these can create additional events and should consider their own channelType)
-                        List<UnifiedRemapRule> allLayeringRulesForProgram = new ArrayList<>();
-                        allLayeringRulesForProgram.addAll(drumNoteManipulationRulesByOriginalProgram.getOrDefault(programKeyForNoteRules, Collections.emptyList()));
-                        allLayeringRulesForProgram.addAll(melodicNoteManipulationRulesByOriginalProgram.getOrDefault(programKeyForNoteRules, Collections.emptyList()));
-
-                        for (UnifiedRemapRule rule : allLayeringRulesForProgram) {
-                            if (rule.isNoteManipulationRule() && rule.originalNote == -1 && rule.isLayered) {
-                                int layeredNote = currentNote + rule.remappedNoteOrOffset;
-                                if (layeredNote >= 0 && layeredNote <= 127) {
-                                    int channelForLayeredNote = originalChannel;
-
-                                    if ("DRUM".equals(rule.channelType)) {
-                                        channelForLayeredNote = DRUM_CHANNEL;
-                                    } else if ("MELODIC".equals(rule.channelType)) {
-                                        if (originalChannel == DRUM_CHANNEL) {
-                                            int assignedChannel = -1;
-                                            for (int ch = 0; ch < DRUM_CHANNEL; ch++) {
-                                                if (!assignedMelodicChannels.contains(ch)) {
-                                                    assignedChannel = ch;
-                                                    break;
-                                                }
-                                            }
-                                            if (assignedChannel == -1) {
-                                                for (int ch = DRUM_CHANNEL + 1; ch <= MAX_MIDI_CHANNEL; ch++) {
-                                                    if (!assignedMelodicChannels.contains(ch)) {
-                                                        assignedChannel = ch;
-                                                        break;
-                                                    }
-                                                }
-                                            }
-                                            if (assignedChannel != -1) {
-                                                channelForLayeredNote = assignedChannel;
-                                                assignedMelodicChannels.add(assignedChannel);
-                                            } else {
-                                                logWarning("      Layered note remapped to MELODIC, but no available melodic channel found. Keeping on original Ch " + (originalChannel + 1) + ".");
-                                            }
-                                        }
-                                    }
-
-                                    ShortMessage layeredSm = new ShortMessage();
-                                    try {
-                                        layeredSm.setMessage(command, channelForLayeredNote, layeredNote, currentVelocity);
-                                        eventsToAdd.add(new MidiEvent(layeredSm, event.getTick()));
-                                        logStatus("          Layering Note: Original " + currentNote + " layered to " + layeredNote + " on channel " + (channelForLayeredNote + 1) + " (type: " + rule.channelType + ")");
-                                    } catch (InvalidMidiDataException e) {
-                                        logError("Error creating layered note for event at tick " + event.getTick() + ": " + e.getMessage(), e);
-                                        eventProcessingErrors.getAndIncrement();
-                                    }
-                                } else {
-                                    logWarning("Layering for note " + currentNote + " results in out-of-range note: " + layeredNote + ". Layering rule skipped.");
-                                }
-                            }
-                        }
-
-                        // Update the event's note if it changed
-                        ShortMessage updatedSm = (ShortMessage) eventToProcess.getMessage();
-                        if (updatedSm.getData1() != finalNote) {
-                            ShortMessage newSm = new ShortMessage();
-                            try {
-                                newSm.setMessage(command, originalChannel, finalNote, currentVelocity);
-                                eventToProcess = new MidiEvent(newSm, event.getTick());
-                            } catch (InvalidMidiDataException e) {
-                                logError("Error updating note after rule application for event at tick " + event.getTick() + ": " + e.getMessage(), e);
-                                eventProcessingErrors.getAndIncrement();
-                            }
-                        }
-
-                        // --- Determine Final Output Channel based on determinedChannelTypeForNote ---
-                        int finalOutputChannel = originalChannel;
-
-                        if ("DRUM".equals(determinedChannelTypeForNote)) {
-                            finalOutputChannel = DRUM_CHANNEL;
-                        } else if ("MELODIC".equals(determinedChannelTypeForNote)) {
-                            if (originalChannel == DRUM_CHANNEL) {
-                                int assignedChannel = -1;
-                                for (int ch = 0; ch < DRUM_CHANNEL; ch++) {
-                                    if (!assignedMelodicChannels.contains(ch)) {
-                                        assignedChannel = ch;
-                                        break;
-                                    }
-                                }
-                                if (assignedChannel == -1) {
-                                    for (int ch = DRUM_CHANNEL + 1; ch <= MAX_MIDI_CHANNEL; ch++) {
-                                        if (!assignedMelodicChannels.contains(ch)) {
-                                            assignedChannel = ch;
-                                            break;
-                                        }
-                                    }
-                                }
-
-                                if (assignedChannel != -1) {
-                                    finalOutputChannel = assignedChannel;
-                                    assignedMelodicChannels.add(assignedChannel);
-                                    logStatus("      Note remapped to MELODIC. Rechanneling from Ch " + (originalChannel + 1) + " to available melodic Ch " + (finalOutputChannel + 1));
-                                } else {
-                                    finalOutputChannel = originalChannel;
-                                    assignedMelodicChannels.add(originalChannel);
-                                    logWarning("      Note remapped to MELODIC, but no available melodic channel found. Keeping on original Ch " + (originalChannel + 1) + ".");
-                                }
-                            } else {
-                                finalOutputChannel = originalChannel;
-                                assignedMelodicChannels.add(originalChannel);
-                            }
-                        }
-
-                        // Rechannel the event if the determined final output channel is different
-                        ShortMessage finalSm = (ShortMessage) eventToProcess.getMessage();
-                        if (finalSm.getChannel() != finalOutputChannel) {
-                            ShortMessage newSm = new ShortMessage();
-                            try {
-                                newSm.setMessage(finalSm.getCommand(), finalOutputChannel, finalSm.getData1(), finalSm.getData2());
-                                eventToProcess = new MidiEvent(newSm, eventToProcess.getTick());
-                                logStatus("      Event rechanneled from Ch " + (originalChannel + 1) + " to Ch " + (finalOutputChannel + 1) + " based on note type: " + determinedChannelTypeForNote);
-                            } catch (InvalidMidiDataException e) {
-                                logError("Error rechanneling event to " + (finalOutputChannel + 1) + " at tick " + event.getTick() + ": " + e.getMessage() + ". Event will retain its original channel.", e);
-                                eventProcessingErrors.getAndIncrement();
-                            }
-                        }
-
-                        // Determine the key for the target output track for a NOTE event
-                        // This key now includes the effective (final) channel and the determined channel type for the note
-                        ProgramChannelKey logicalTrackKeyForNote = new ProgramChannelKey(
-                                currentProgramForOriginalChannel, // The remapped program for the segment context
-                                finalOutputChannel,               // The actual channel the note event is placed on
-                                determinedChannelTypeForNote,     // The specific channel type for this note
-                                segmentIndexForCurrentEvent       // Still grouped by segment
-                        );
-
-                        Track targetTrack = programTracks.computeIfAbsent(logicalTrackKeyForNote, k -> {
-                            Track newTrack = combinedSequence.createTrack();
-                            String fullTrackName;
-                            // Track name for notes
-                            fullTrackName = "Notes P" + k.remappedProgramForSegment + " (Orig P" + currentRemapInfoForOriginalChannel.originalProgramThatSetThisContext + ", Final Ch " + (k.effectiveChannel + 1) + ") [" + k.type + "]";
-                            fullTrackName += " Segment " + k.segmentIndex;
-
-                            logStatus("      Creating new track for " + fullTrackName);
-                            try {
-                                fullTrackName = k.effectiveChannel == 9 ? generalMidiDrumKits[k.remappedProgramForSegment] : generalMidiInstrumentNames[k.remappedProgramForSegment];
-                                MetaMessage trackNameMessage = new MetaMessage();
-                                trackNameMessage.setMessage(0x03, fullTrackName.getBytes(), fullTrackName.length());
-                                newTrack.add(new MidiEvent(trackNameMessage, 0));
-                            } catch (InvalidMidiDataException e) {
-                                logError("Error setting track name for " + fullTrackName + ": " + e.getMessage(), e);
-                                eventProcessingErrors.getAndIncrement();
-                            }
-                            return newTrack;
-                        });
-
-                        // Add the processed event (and any layered events) to the target track
-                        eventsToAdd.add(0, eventToProcess); // Add the main event first
-                        for (MidiEvent finalEvent : eventsToAdd) {
-                            targetTrack.add(finalEvent);
-                        }
-
-                    } else { // Handle other ShortMessages (CC, Pitch Bend etc.) and non-ShortMessage events (MetaMessage, SysexMessage)
-                        // These will be grouped into tracks based on the original channel's program context and type,
-                        // or a general global track for Meta/Sysex messages not specific to a channel.
-
-                        ProgramChannelKey logicalTrackKey;
-                        String trackTypeForOtherMessages = currentRemapInfoForOriginalChannel.channelType; // Default to segment type
-
-                        if (message instanceof MetaMessage) {
-                            // Global events, not tied to a specific channel's program change
-                            logicalTrackKey = new ProgramChannelKey(0, -1, "GLOBAL", 0);
-                            MetaMessage metaMessage = (MetaMessage) message;
-                            if (metaMessage.getType() == 0x06) {
-                                byte[] data = metaMessage.getData();
-                                String originalMarkerText = new String(data, StandardCharsets.UTF_8);
-                                String newMarkerText = replaceMidiTrackLabels(originalMarkerText);
-
-                                if (!originalMarkerText.equals(newMarkerText)) {
-                                    logStatus("    Marker Text Modified: '" + originalMarkerText + "' -> '" + newMarkerText + "' at tick " + event.getTick());
-                                    try {
-                                        byte[] newMarkerTextBytes = newMarkerText.getBytes(StandardCharsets.UTF_8);
-                                        MetaMessage newMetaMessage = new MetaMessage();
-                                        // Set the message type back to 0x06 and provide the new bytes
-                                        newMetaMessage.setMessage(metaMessage.getType(), newMarkerTextBytes, newMarkerTextBytes.length);
-                                        eventToProcess = new MidiEvent(newMetaMessage, event.getTick()); // Update eventToProcess
-                                    } catch (InvalidMidiDataException e) {
-                                        logError("Error creating new MetaMessage for marker at tick " + event.getTick() + ": " + e.getMessage(), e);
-                                        eventProcessingErrors.getAndIncrement();
-                                        // Fallback: use original event if modification fails
-                                        eventToProcess = event;
-                                    }
-                                }
-                            }
-
-                        } else {
-                            logicalTrackKey = new ProgramChannelKey(
-                                    currentProgramForOriginalChannel,
-                                    originalChannel,
-                                    trackTypeForOtherMessages,
-                                    segmentIndexForCurrentEvent
-                            );
-                        }
-
-                        Track targetTrack = programTracks.computeIfAbsent(logicalTrackKey, k -> {
-                            Track newTrack = combinedSequence.createTrack();
-                            String fullTrackName;
-                            if ("GLOBAL".equals(k.type)) {
-                                fullTrackName = "Global Events";
-                            } else {
-                                if (currentRemapInfoForOriginalChannel.originalProgramThatSetThisContext == -1) {
-                                    fullTrackName = "Cntrls Ch " + (k.effectiveChannel + 1) + " (Default P" + k.remappedProgramForSegment + ") [" + k.type + "]";
-                                } else {
-                                    fullTrackName = "Cntrls P" + k.remappedProgramForSegment + " (Orig P" + currentRemapInfoForOriginalChannel.originalProgramThatSetThisContext + ", Ch " + (k.effectiveChannel + 1) + ") [" + k.type + "]";
-                                }
-                                fullTrackName += " Segment " + k.segmentIndex;
-                            }
-                            logStatus("      Creating new track for " + fullTrackName);
-                            try {
-                                fullTrackName = k.effectiveChannel == 9 ? generalMidiDrumKits[k.remappedProgramForSegment] : generalMidiInstrumentNames[k.remappedProgramForSegment];
-                                MetaMessage trackNameMessage = new MetaMessage();
-                                trackNameMessage.setMessage(0x03, fullTrackName.getBytes(), fullTrackName.length());
-                                newTrack.add(new MidiEvent(trackNameMessage, 0));
-                            } catch (InvalidMidiDataException e) {
-                                logError("Error setting track name for " + fullTrackName + ": " + e.getMessage(), e);
-                                eventProcessingErrors.getAndIncrement();
-                            }
-                            return newTrack;
-                        });
-                        targetTrack.add(eventToProcess);
+                }, Runtime.getRuntime().availableProcessors(), WATCH_DEBOUNCE_MILLIS);
+                watcher.start();
+                SwingUtilities.invokeLater(() -> {
+                    if (watchButton.isSelected()) {
+                        folderWatcher = watcher;
+                    } else {
+                        watcher.close();
                     }
-                } else { // Handle non-ShortMessage events (MetaMessage, SysexMessage) if not already caught above
-                    ProgramChannelKey globalKey = new ProgramChannelKey(0, -1, "GLOBAL", 0); // A unique key for global events
-                    Track targetTrack = programTracks.computeIfAbsent(globalKey, k -> {
-                        Track newTrack = combinedSequence.createTrack();
-                        String fullTrackName = "Global Events";
-                        logStatus("    Creating new track for " + fullTrackName);
-                        try {
-                            fullTrackName = k.effectiveChannel == 9 ? generalMidiDrumKits[k.remappedProgramForSegment] : generalMidiInstrumentNames[k.remappedProgramForSegment];
-                            MetaMessage trackNameMessage = new MetaMessage();
-                            trackNameMessage.setMessage(0x03, fullTrackName.getBytes(), fullTrackName.length());
-                            newTrack.add(new MidiEvent(trackNameMessage, 0));
-                        } catch (InvalidMidiDataException e) {
-                            logError("Error setting track name for global track: " + e.getMessage(), e);
-                            eventProcessingErrors.getAndIncrement();
-                        }
-                        return newTrack;
-                    });
-                    targetTrack.add(eventToProcess);
-                }
+                });
+            } catch (Exception e) {
+                logError("Could not start watch mode: " + e.getMessage(), e);
+                SwingUtilities.invokeLater(() -> {
+                    watchButton.setSelected(false);
+                    stopWatching();
+                });
             }
-        }
+        }).start();
+    }
 
-        if (eventProcessingErrors.get() > 0) {
-            logWarning("Encountered " + eventProcessingErrors + " errors during event processing for " + inputMidiFile.getName() + ".");
+    /**
+     * Stops watch mode and re-enables the GUI.
+     */
+    private void stopWatching() {
+        if (folderWatcher != null) {
+            folderWatcher.close();
+            folderWatcher = null;
+            logStatus("Stopped watching for changes.");
         }
+        watchButton.setText("Watch Input Folder");
+        setGuiEnabled(true);
+    }
 
-        // Ensure all output tracks have an End of Track MetaMessage
-        for (Track t : combinedSequence.getTracks()) {
-            boolean hasEnd = false;
-            for (int i = 0; i < t.size(); i++) {
-                MidiEvent e = t.get(i);
-                if (e.getMessage() instanceof MetaMessage) {
-                    MetaMessage mm = (MetaMessage) e.getMessage();
-                    if (mm.getType() == 0x2F) { // End of Track meta message
-                        hasEnd = true;
-                        break;
-                    }
-                }
-            }
-            if (!hasEnd) {
-                try {
-                    MetaMessage end = new MetaMessage();
-                    end.setMessage(0x2F, new byte[0], 0); // End of Track message
-                    // Add End of Track at the last tick of the track + 1, or tick 1 if empty
-                    long lastTick = t.size() > 0 ? t.get(t.size() - 1).getTick() + 1 : 1;
-                    t.add(new MidiEvent(end, lastTick));
-                } catch (InvalidMidiDataException e) {
-                    logError("Failed to add End of Track meta event: " + e.getMessage(), e);
-                }
-            }
-        }
+    /**
+     * Reloads the remapping rules and reports which original programs had their rules changed.
+     * @param csvFile The CSV file containing the remapping rules.
+     * @return The original program (patch) numbers whose set of rules was added, removed or changed.
+     * @throws IOException If the file cannot be read.
+     */
+    private static Set<Integer> reloadRemappingRules(File csvFile) throws IOException {
+        RemapRuleSet previousRules = remapEngine.getRules();
+        loadRemappingRules(csvFile);
+        return remapEngine.getRules().changedPatches(previousRules);
+    }
 
-        // Construct output file name and save the sequence
-        String outputFileName = inputMidiFile.getName().replace(".mid", "").replace(".midi", "") + "_split_remapped.mid";
-        File outputFile = new File(outputDirectory, outputFileName);
-        logStatus("  Saving the combined MIDI sequence to: " + outputFile.getAbsolutePath());
-        int[] supportedFileTypes = MidiSystem.getMidiFileTypes(combinedSequence);
-        if (supportedFileTypes.length > 0) {
-            MidiSystem.write(combinedSequence, supportedFileTypes[0], outputFile);
-            logStatus("  File generated with " + combinedSequence.getTracks().length + " tracks.");
-        } else {
-            logError("No supported MIDI file type found for the generated sequence. File not saved.", null);
+    /**
+     * Processes a single MIDI file: reads its events, applies remapping rules,
+     * splits events into new tracks based on program change segments and channel types,
+     * and saves the resulting MIDI sequence to an output file.
+     * @param inputMidiFile The MIDI file to process.
+     * @param outputDirectory The directory to save the output file.
+     * @param options The processing options.
+     * @throws InvalidMidiDataException If the MIDI data is invalid.
+     * @throws IOException If an I/O error occurs.
+     */
+    private void processSingleMidiFile(File inputMidiFile, File outputDirectory, RemapOptions options) throws InvalidMidiDataException, IOException {
+        if (options.isStemFiles()) {
+            remapEngine.remapFileToStems(inputMidiFile, outputDirectory, options);
+            return;
         }
+        File outputFile = new File(outputDirectory, RemapEngine.outputFileName(inputMidiFile.getName()));
+        remapEngine.remapFile(inputMidiFile, outputFile, options);
     }
     /**
      * Replaces specific characters in a MIDI track label.
      * @param trackLabel The original track label string.
      * @return The modified track label string.
+     * @see RemapEngine#replaceMidiTrackLabels(String)
      */
     public static String replaceMidiTrackLabels(String trackLabel) {
-        if (trackLabel == null || trackLabel.isEmpty()) {
-            return trackLabel;
-        }
-        String replacedLabel = trackLabel.replace("[", "loopStart");
-        replacedLabel = replacedLabel.replace("]", "loopEnd");
-        return replacedLabel;
+        return RemapEngine.replaceMidiTrackLabels(trackLabel);
     }
 
     /**
-     * Loads remapping rules from the specified CSV file.
-     * Clears previous rules before loading.
+     * Loads remapping rules from the specified CSV file and builds the engine that files are remapped with.
+     * Files already being remapped finish with the previous rules.
      * @param csvFile The CSV file containing the remapping rules.
      * @throws IOException If the file cannot be read.
      * @throws NumberFormatException If a number in the CSV is malformed.
      */
     private static void loadRemappingRules(File csvFile) throws IOException, NumberFormatException {
-        // Clear all existing rules before loading new ones
-        allRemapRules.clear();
-        programChangeRemap.clear();
-        drumNoteManipulationRulesByOriginalProgram.clear();
-        melodicNoteManipulationRulesByOriginalProgram.clear();
-        remappedProgramDefaultChannelType.clear();
-        originalProgramDefaultChannelType.clear();
-
-        if (!csvFile.exists()) {
-            throw new IOException("Remapping CSV file not found at " + csvFile.getAbsolutePath());
-        }
-
-        try (BufferedReader br = new BufferedReader(new FileReader(csvFile))) {
-            String line;
-            boolean firstLine = true; // Skip header row
-            while ((line = br.readLine()) != null) {
-                if (firstLine) {
-                    firstLine = false;
-                    continue;
-                }
-                String[] parts = line.split(",", -1); // -1 ensures trailing empty strings are included
-                if (parts.length < 7) {
-                    logWarning("Skipping malformed line in CSV (too few columns, expected 7): " + line);
-                    continue;
-                }
-                try {
-                    // Read trackName from CSV but ignore it for rule creation
-                    String csvTrackName = parts[0].trim(); // Read to consume the column, but not use it
-
-                    int originalProgram = Integer.parseInt(parts[1].trim());
-                    int remappedProgram = Integer.parseInt(parts[2].trim());
-                    int originalNote = Integer.parseInt(parts[3].trim());
-                    int remappedNoteOrOffset = Integer.parseInt(parts[4].trim());
-                    boolean isLayered = Boolean.parseBoolean(parts[5].toLowerCase().trim());
-                    String channelType = parts[6].trim().toUpperCase();
-
-                    // Validate MIDI program and note ranges
-                    if (originalProgram != -1 && (originalProgram < 0 || originalProgram > 127)) {
-                        logWarning("Skipping malformed line in CSV. Invalid OriginalProgramChange (0-127 expected): " + line);
-                        continue;
-                    }
-                    if (remappedProgram != -1 && (remappedProgram < 0 || remappedProgram > 127)) {
-                        logWarning("Skipping malformed line in CSV. Invalid RemappedProgramChange (0-127 expected): " + line);
-                        continue;
-                    }
-                    if (originalNote != -1 && originalNote != -999 && (originalNote < 0 || originalNote > 127)) {
-                        logWarning("Skipping malformed line in CSV. Invalid OriginalNote (0-127, -1, or -999 expected): " + line);
-                        continue;
-                    }
-                    // Note: remappedNoteOrOffset can be an offset, so range validation is more flexible here.
-                    if (originalNote != -999 && remappedNoteOrOffset != -999 && (remappedNoteOrOffset < -127 || remappedNoteOrOffset > 127)) {
-                        logWarning("RemappedNoteOrOffset is outside typical range (-127 to 127) for note manipulation: " + line);
-                    }
-
-                    // Populate remappedProgramDefaultChannelType map
-                    if (remappedProgram >= 0 && remappedProgram <= 127) {
-                        String existingDefaultType = remappedProgramDefaultChannelType.get(remappedProgram);
-                        if (existingDefaultType == null) {
-                            remappedProgramDefaultChannelType.put(remappedProgram, channelType);
-                        } else if (existingDefaultType.equals("DRUM") && channelType.equals("MELODIC")) {
-                            // If a program was previously marked DRUM, but a new rule marks it MELODIC, prefer MELODIC
-                            remappedProgramDefaultChannelType.put(remappedProgram, channelType);
-                        }
-                    }
-
-                    // Create the unified rule object, passing null for trackName as per user request
-                    UnifiedRemapRule rule = new UnifiedRemapRule(null, originalProgram, remappedProgram, originalNote, remappedNoteOrOffset, isLayered, channelType);
-
-                    // Populate originalProgramDefaultChannelType map
-                    if (originalProgram >= 0 && originalProgram <= 127) {
-                        String existingOriginalType = originalProgramDefaultChannelType.get(originalProgram);
-                        if ("DRUM".equals(channelType)) {
-                            originalProgramDefaultChannelType.put(originalProgram, "DRUM");
-                        } else if ("MELODIC".equals(channelType)) {
-                            // If not already marked DRUM, mark as MELODIC
-                            if (existingOriginalType == null || !existingOriginalType.equals("DRUM")) {
-                                originalProgramDefaultChannelType.put(originalProgram, "MELODIC");
-                            }
-                        }
-                    }
-
-                    // Add note manipulation rules to specific maps based on channel type
-                    if (rule.isNoteManipulationRule()) {
-                        List<UnifiedRemapRule> targetList = null;
-                        if ("DRUM".equals(channelType)) {
-                            targetList = drumNoteManipulationRulesByOriginalProgram.computeIfAbsent(originalProgram, k -> new ArrayList<>());
-                        } else if ("MELODIC".equals(channelType)) {
-                            targetList = melodicNoteManipulationRulesByOriginalProgram.computeIfAbsent(originalProgram, k -> new ArrayList<>());
-                        } else {
-                            logWarning("Note rule for original program " + originalProgram + " has unknown channel type: '" + channelType + "'. Rule will not be applied for note manipulation. Line: " + line);
-                        }
-                        if (targetList != null) {
-                            if (targetList.contains(rule)) {
-                                logWarning("Redundant note manipulation rule found for original program " + originalProgram + ", original note " + originalNote + ". Skipping. Line: " + line);
-                            } else {
-                                targetList.add(rule);
-                            }
-                        }
-                    }
-                    allRemapRules.add(rule); // Add to the comprehensive list of all rules
-
-                } catch (NumberFormatException e) {
-                    logWarning("Skipping malformed line in CSV (number format error): " + line + " - " + e.getMessage());
-                } catch (ArrayIndexOutOfBoundsException e) {
-                    logWarning("Skipping malformed line in CSV (missing expected column): " + line + " - " + e.getMessage());
-                }
-            }
-        }
+        remapEngine = new RemapEngine(RemapRuleSet.load(csvFile, GUI_LOG), GUI_LOG);
     }
 
     /**
-     * Main method to run the GUI application.
-     * @param args Command line arguments (not used).
+     * Main method to run the GUI application, or a command line task if arguments are given.
+     * @param args Command line arguments (see {@link RemapCommandLine}); none to start the GUI.
      */
     public static void main(String[] args) {
+        if (args.length > 0) {
+            System.exit(RemapCommandLine.run(args));
+        }
         SwingUtilities.invokeLater(() -> {
             new MidiProgramChangeSplitterGUI().setVisible(true);
         });
@@ -0,0 +1,14 @@
+import javax.sound.midi.MidiEvent;
+
+/**
+ * Destination for the events of one output track. The splitter writes into sinks rather than directly
+ * into {@link javax.sound.midi.Track}s so output tracks can be kept in memory or spilled to disk.
+ */
+interface MidiTrackSink {
+
+    /**
+     * Adds an event to the track. Events do not need to arrive in tick order.
+     * @param event The event to add.
+     */
+    void add(MidiEvent event);
+}
@@ -0,0 +1,211 @@
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Compaction pass for a split output sequence.
+ * <p>
+ * Splitting creates one track per program segment, so a file whose program flips back and forth
+ * ends up with many small tracks that each carry their own name and End of Track. This pass:
+ * <ul>
+ *     <li>merges tracks that share a merge key (remapped program, channel and type) when their
+ *     events do not overlap in time; the earliest track is kept and the later ones are appended to it,</li>
+ *     <li>drops tracks that contain nothing but their name and End of Track,</li>
+ *     <li>drops controller-only tracks (controllers, program changes, pitch bend, aftertouch) for channels
+ *     that carry no notes anywhere in the sequence, since nothing would ever hear them.</li>
+ * </ul>
+ * Meta and system exclusive events are never dropped.
+ */
+final class OutputTrackCompactor {
+
+    private static final int META_TRACK_NAME = 0x03;
+    private static final int META_END_OF_TRACK = 0x2F;
+
+    private int mergedTracks;
+    private int droppedTracks;
+    private long sizeBefore;
+    private long sizeAfter;
+
+    /**
+     * Compacts the tracks of a sequence in place.
+     * @param sequence The sequence to compact.
+     * @param mergeKeys One key per track of the sequence, in track order. Tracks with equal keys may be merged;
+     *                  a null key marks a track that is never merged into another.
+     * @param <K> The merge key type.
+     * @throws IOException If the sequence cannot be encoded to measure its size.
+     */
+    <K> void compact(Sequence sequence, List<K> mergeKeys) throws IOException {
+        Track[] tracks = sequence.getTracks();
+        if (tracks.length != mergeKeys.size()) {
+            throw new IllegalArgumentException("Expected " + tracks.length + " merge keys, got " + mergeKeys.size());
+        }
+        sizeBefore = encodedSize(sequence);
+
+        // Channels that carry notes anywhere in the output
+        int noteChannelMask = 0;
+        for (Track track : tracks) {
+            for (int i = 0; i < track.size(); i++) {
+                MidiMessage message = track.get(i).getMessage();
+                if (message instanceof ShortMessage && isNote((ShortMessage) message)) {
+                    noteChannelMask |= 1 << ((ShortMessage) message).getChannel();
+                }
+            }
+        }
+
+        List<Track> removed = new ArrayList<>();
+        Map<K, Track> mergeTargets = new HashMap<>();
+        Map<Track, Long> lastTicks = new HashMap<>();
+        for (int t = 0; t < tracks.length; t++) {
+            Track track = tracks[t];
+            TrackContent content = inspect(track, noteChannelMask);
+            if (!content.hasContent || content.silentControllersOnly) {
+                removed.add(track);
+                droppedTracks++;
+                continue;
+            }
+            K key = mergeKeys.get(t);
+            if (key == null) {
+                continue;
+            }
+            Track target = mergeTargets.get(key);
+            if (target != null && lastTicks.get(target) <= content.firstTick) {
+                appendContent(track, target);
+                lastTicks.put(target, content.lastTick);
+                removed.add(track);
+                mergedTracks++;
+            } else {
+                // Either the first track for this key or one that overlaps the current target: it becomes the new target
+                mergeTargets.put(key, track);
+                lastTicks.put(track, content.lastTick);
+            }
+        }
+        for (Track track : removed) {
+            sequence.deleteTrack(track);
+        }
+
+        sizeAfter = encodedSize(sequence);
+    }
+
+    /**
+     * Returns the number of tracks merged into an earlier track by the last {@link #compact} call.
+     */
+    int getMergedTracks() {
+        return mergedTracks;
+    }
+
+    /**
+     * Returns the number of empty or inaudible tracks dropped by the last {@link #compact} call.
+     */
+    int getDroppedTracks() {
+        return droppedTracks;
+    }
+
+    /**
+     * Returns the encoded size of the sequence before compaction, in bytes.
+     */
+    long getSizeBefore() {
+        return sizeBefore;
+    }
+
+    /**
+     * Returns the encoded size of the sequence after compaction, in bytes.
+     */
+    long getSizeAfter() {
+        return sizeAfter;
+    }
+
+    /**
+     * Summary of what a track carries, ignoring its name and End of Track.
+     */
+    private static final class TrackContent {
+        boolean hasContent;
+        boolean silentControllersOnly = true;
+        long firstTick = Long.MAX_VALUE;
+        long lastTick = Long.MIN_VALUE;
+    }
+
+    private static TrackContent inspect(Track track, int noteChannelMask) {
+        TrackContent content = new TrackContent();
+        for (int i = 0; i < track.size(); i++) {
+            MidiEvent event = track.get(i);
+            if (isNameOrEndOfTrack(event)) {
+                continue;
+            }
+            content.hasContent = true;
+            content.firstTick = Math.min(content.firstTick, event.getTick());
+            content.lastTick = Math.max(content.lastTick, event.getTick());
+            MidiMessage message = event.getMessage();
+            if (!(message instanceof ShortMessage)
+                    || ((ShortMessage) message).getCommand() >= 0xF0
+                    || (noteChannelMask & (1 << ((ShortMessage) message).getChannel())) != 0) {
+                content.silentControllersOnly = false;
+            }
+        }
+        content.silentControllersOnly &= content.hasContent;
+        return content;
+    }
+
+    /**
+     * Moves the events of a track, except its name and End of Track, to the end of another track.
+     */
+    private static void appendContent(Track source, Track target) {
+        for (int i = 0; i < source.size(); i++) {
+            MidiEvent event = source.get(i);
+            if (!isNameOrEndOfTrack(event)) {
+                target.add(event);
+            }
+        }
+    }
+
+    private static boolean isNameOrEndOfTrack(MidiEvent event) {
+        if (!(event.getMessage() instanceof MetaMessage)) {
+            return false;
+        }
+        int type = ((MetaMessage) event.getMessage()).getType();
+        return type == META_END_OF_TRACK || (type == META_TRACK_NAME && event.getTick() == 0);
+    }
+
+    private static boolean isNote(ShortMessage message) {
+        int command = message.getCommand();
+        return command == ShortMessage.NOTE_ON || command == ShortMessage.NOTE_OFF;
+    }
+
+    /**
+     * Measures the size the sequence would have when written, without keeping the bytes.
+     */
+    private static long encodedSize(Sequence sequence) throws IOException {
+        int[] fileTypes = MidiSystem.getMidiFileTypes(sequence);
+        if (fileTypes.length == 0) {
+            return 0;
+        }
+        CountingOutputStream counter = new CountingOutputStream();
+        MidiSystem.write(sequence, fileTypes[0], counter);
+        return counter.count;
+    }
+
+    private static final class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            Objects.checkFromIndexSize(off, len, b.length);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/**
+ * Helpers for packed patch numbers: a bank select MSB, a bank select LSB and a program, packed as
+ * {@code (bankMSB << 14) | (bankLSB << 7) | program}.
+ * <p>
+ * The packing is chosen so that the plain numbers used by older remapping CSVs keep their meaning:
+ * a program number 0-127 is bank 0, and a number over 127 is {@code bankLSB * 128 + program}.
+ * In the CSV a patch can also be written as {@code msb:lsb:program}.
+ */
+final class Patch {
+
+    /**
+     * The highest packed patch number (MSB, LSB and program all 127).
+     */
+    static final int MAX = (1 << 21) - 1;
+
+    private Patch() {
+    }
+
+    /**
+     * Packs a bank select MSB/LSB pair and a program number into a patch number.
+     */
+    static int pack(int bankMSB, int bankLSB, int program) {
+        return ((bankMSB & 0x7F) << 14) | ((bankLSB & 0x7F) << 7) | (program & 0x7F);
+    }
+
+    /**
+     * Returns the bank select MSB (controller 0) of a patch.
+     */
+    static int bankMSB(int patch) {
+        return (patch >> 14) & 0x7F;
+    }
+
+    /**
+     * Returns the bank select LSB (controller 32) of a patch.
+     */
+    static int bankLSB(int patch) {
+        return (patch >> 7) & 0x7F;
+    }
+
+    /**
+     * Returns the program number (0-127) of a patch.
+     */
+    static int program(int patch) {
+        return patch & 0x7F;
+    }
+
+    /**
+     * Returns the 14-bit bank number of a patch, {@code (bankMSB << 7) | bankLSB}.
+     */
+    static int bank(int patch) {
+        return (patch >> 7) & 0x3FFF;
+    }
+
+    /**
+     * Returns the same patch with a bank select MSB of 0, which is how patches from CSVs written before
+     * MSB support are matched.
+     */
+    static int withoutBankMSB(int patch) {
+        return patch & 0x3FFF;
+    }
+
+    /**
+     * Formats a patch the way it is written in the CSV: the plain program for bank 0, msb:lsb:program otherwise.
+     */
+    static String format(int patch) {
+        if (patch < 0 || bank(patch) == 0) {
+            return String.valueOf(patch);
+        }
+        return bankMSB(patch) + ":" + bankLSB(patch) + ":" + program(patch);
+    }
+
+    /**
+     * Parses a patch written as a plain number (-1, 0-127, or a packed number with a bank) or as msb:lsb:program.
+     * @param text The text to parse.
+     * @return The packed patch number, or -1.
+     * @throws NumberFormatException If the text is not a valid patch.
+     */
+    static int parse(String text) {
+        String trimmed = text.trim();
+        return parse(trimmed.toCharArray(), 0, trimmed.length());
+    }
+
+    /**
+     * Parses a patch from a range of chars, without surrounding whitespace. See {@link #parse(String)}.
+     * @param chars The chars holding the patch.
+     * @param start The index of the first char.
+     * @param end The index after the last char.
+     * @return The packed patch number, or -1.
+     * @throws NumberFormatException If the chars are not a valid patch.
+     */
+    static int parse(char[] chars, int start, int end) {
+        int[] parts = new int[3];
+        int partCount = 0;
+        int value = 0;
+        int digits = 0;
+        boolean negative = false;
+        for (int i = start; i <= end; i++) {
+            char c = i < end ? chars[i] : ':';
+            if (c == ':') {
+                if (digits == 0 || partCount == 3) {
+                    throw invalidPatch(chars, start, end);
+                }
+                parts[partCount++] = negative ? -value : value;
+                value = 0;
+                digits = 0;
+                negative = false;
+            } else if (c == '-' && digits == 0 && !negative && partCount == 0) {
+                negative = true;
+            } else if (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+                if (++digits > 7) {
+                    throw invalidPatch(chars, start, end);
+                }
+            } else {
+                throw invalidPatch(chars, start, end);
+            }
+        }
+        if (partCount == 1) {
+            int patch = parts[0];
+            if (patch != -1 && (patch < 0 || patch > MAX)) {
+                throw invalidPatch(chars, start, end);
+            }
+            return patch;
+        }
+        if (partCount != 3) {
+            throw invalidPatch(chars, start, end);
+        }
+        for (int i = 0; i < 3; i++) {
+            if (parts[i] < 0 || parts[i] > 127) {
+                throw invalidPatch(chars, start, end);
+            }
+        }
+        return pack(parts[0], parts[1], parts[2]);
+    }
+
+    private static NumberFormatException invalidPatch(char[] chars, int start, int end) {
+        return new NumberFormatException("not a valid patch (expected -1, 0-" + MAX + " or msb:lsb:program): \""
+                + new String(chars, start, end - start) + "\"");
+    }
+}
@@ -0,0 +1,104 @@
+import java.util.Arrays;
+
+/**
+ * Maps sparse packed patch numbers (see {@link Patch}) to dense indices 0..n-1, so per-patch data can be
+ * kept in plain arrays. Lookups use open addressing with linear probing over a power-of-two table kept at
+ * most half full, so they take constant time and allocate nothing no matter how many banked patches exist.
+ * <p>
+ * A table is filled once while rules are compiled and is only read afterwards; reads need no locking
+ * once the table has been safely published.
+ */
+final class PatchTable {
+
+    private static final int EMPTY = -1;
+
+    private int[] slotPatches = new int[16];
+    private int[] slotIndices = new int[16];
+    private int[] patchesByIndex = new int[8];
+    private int size;
+
+    PatchTable() {
+        Arrays.fill(slotPatches, EMPTY);
+    }
+
+    /**
+     * Returns the dense index of a patch, adding it if it is not in the table yet.
+     * @param patch The packed patch number (0 to {@link Patch#MAX}).
+     * @return The dense index.
+     */
+    int add(int patch) {
+        if (patch < 0 || patch > Patch.MAX) {
+            throw new IllegalArgumentException("Not a patch number: " + patch);
+        }
+        int slot = findSlot(slotPatches, patch);
+        if (slotPatches[slot] == patch) {
+            return slotIndices[slot];
+        }
+        if ((size + 1) * 2 > slotPatches.length) {
+            grow();
+            slot = findSlot(slotPatches, patch);
+        }
+        if (size == patchesByIndex.length) {
+            patchesByIndex = Arrays.copyOf(patchesByIndex, size * 2);
+        }
+        slotPatches[slot] = patch;
+        slotIndices[slot] = size;
+        patchesByIndex[size] = patch;
+        return size++;
+    }
+
+    /**
+     * Returns the dense index of a patch.
+     * @param patch The packed patch number.
+     * @return The dense index, or -1 if the patch is not in the table.
+     */
+    int indexOf(int patch) {
+        if (patch < 0) {
+            return -1;
+        }
+        int slot = findSlot(slotPatches, patch);
+        return slotPatches[slot] == patch ? slotIndices[slot] : -1;
+    }
+
+    /**
+     * Returns the patch stored at a dense index.
+     */
+    int patchAt(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Patch index " + index + " out of range (size " + size + ")");
+        }
+        return patchesByIndex[index];
+    }
+
+    /**
+     * Returns the number of patches in the table.
+     */
+    int size() {
+        return size;
+    }
+
+    private static int findSlot(int[] table, int patch) {
+        int mask = table.length - 1;
+        int hash = patch * 0x9E3779B9;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while (table[slot] != EMPTY && table[slot] != patch) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        int[] newPatches = new int[slotPatches.length * 2];
+        int[] newIndices = new int[slotPatches.length * 2];
+        Arrays.fill(newPatches, EMPTY);
+        for (int slot = 0; slot < slotPatches.length; slot++) {
+            if (slotPatches[slot] != EMPTY) {
+                int newSlot = findSlot(newPatches, slotPatches[slot]);
+                newPatches[newSlot] = slotPatches[slot];
+                newIndices[newSlot] = slotIndices[slot];
+            }
+        }
+        slotPatches = newPatches;
+        slotIndices = newIndices;
+    }
+}
@@ -0,0 +1,313 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Velocity curves and controller remap tables per remapped program, read from a dynamics CSV kept next to
+ * the remapping CSV (see {@link #sidecarFile(File)} and the README for the format).
+ * <p>
+ * Every curve is compiled into a 128-entry byte array when the file is loaded, so applying it to an event is
+ * a single array read. The tables of a remapped program start from the rows written for all programs (-1)
+ * and are then overridden by the program's own rows. A remapped program without tables of its own shares
+ * the tables of all programs, and a file without a dynamics CSV compiles to {@link #NONE}, which the engine
+ * skips with one check per event.
+ * <p>
+ * The tables are immutable once compiled and can be shared by any number of threads.
+ */
+final class ProgramDynamics {
+
+    static final int DROP_CONTROLLER = -1; // Controller number of a controller that is removed from the output
+    private static final String SIDECAR_SUFFIX = ".dynamics.csv";
+    private static final int ALL_PROGRAMS = -1;
+    private static final byte[] IDENTITY = new byte[128];
+
+    static {
+        for (int i = 0; i < 128; i++) {
+            IDENTITY[i] = (byte) i;
+        }
+    }
+
+    /**
+     * No dynamics: velocities and controllers pass through unchanged.
+     */
+    static final ProgramDynamics NONE = new ProgramDynamics(new PatchTable(), null);
+
+    private final PatchTable patches;
+    private final Tables allPrograms; // Tables of programs without rows of their own, or null
+    private final Tables[] tables;
+
+    /**
+     * The compiled tables of one remapped program.
+     */
+    private static final class Tables {
+        byte[] velocity = IDENTITY;
+        final byte[] controllerNumbers = IDENTITY.clone();   // Output controller per input controller, -1 to drop it
+        final byte[][] controllerValues = new byte[128][];  // Output value per input value, null if unchanged
+
+        Tables copy() {
+            Tables copy = new Tables();
+            copy.velocity = velocity;
+            System.arraycopy(controllerNumbers, 0, copy.controllerNumbers, 0, 128);
+            System.arraycopy(controllerValues, 0, copy.controllerValues, 0, 128);
+            return copy;
+        }
+
+        boolean sameAs(Tables other) {
+            if (!Arrays.equals(velocity, other.velocity) || !Arrays.equals(controllerNumbers, other.controllerNumbers)) {
+                return false;
+            }
+            for (int controller = 0; controller < 128; controller++) {
+                if (!Arrays.equals(values(controller), other.values(controller))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        byte[] values(int controller) {
+            return controllerValues[controller] != null ? controllerValues[controller] : IDENTITY;
+        }
+    }
+
+    private ProgramDynamics(PatchTable patches, Tables allPrograms) {
+        this.patches = patches;
+        this.allPrograms = allPrograms;
+        this.tables = new Tables[patches.size()];
+    }
+
+    /**
+     * Returns the dynamics CSV that belongs to a remapping CSV: the same name with {@code .dynamics.csv}
+     * in place of {@code .csv}, in the same folder.
+     * @param remappingCsv The remapping CSV.
+     */
+    static File sidecarFile(File remappingCsv) {
+        String name = remappingCsv.getName();
+        String baseName = name.toLowerCase().endsWith(".csv") ? name.substring(0, name.length() - 4) : name;
+        return new File(remappingCsv.getAbsoluteFile().getParentFile(), baseName + SIDECAR_SUFFIX);
+    }
+
+    /**
+     * Loads and compiles the dynamics CSV that belongs to a remapping CSV, if there is one.
+     * Malformed rows are skipped with a warning that names their line and column.
+     * @param remappingCsv The remapping CSV; its dynamics CSV is found with {@link #sidecarFile(File)}.
+     * @param log The log receiving warnings about skipped rows.
+     * @return The compiled dynamics, or {@link #NONE} if there is no dynamics CSV.
+     * @throws IOException If the dynamics CSV exists but cannot be read.
+     */
+    static ProgramDynamics load(File remappingCsv, RemapLog log) throws IOException {
+        File csvFile = sidecarFile(remappingCsv);
+        if (!csvFile.isFile()) {
+            return NONE;
+        }
+
+        // Rows by remapped patch (-1 for all programs), first row of a patch and target winning
+        Map<Integer, byte[]> velocityCurves = new HashMap<>();
+        Map<Integer, Map<Integer, byte[]>> controllerCurves = new HashMap<>();
+        Map<Integer, Map<Integer, Integer>> controllerNumbers = new HashMap<>();
+
+        try (CsvReader csv = new CsvReader(csvFile.toPath())) {
+            boolean firstLine = true; // Skip header row
+            while (csv.nextRecord()) {
+                if (firstLine) {
+                    firstLine = false;
+                    continue;
+                }
+                if (csv.getFieldCount() < 6) {
+                    if (csv.getFieldCount() > 1 || !csv.getString(0).isEmpty()) {
+                        log.warning("Skipping malformed line " + csv.getLine() + " in " + csvFile.getName() + " (too few columns, expected 6, found " + csv.getFieldCount() + "): " + csv.getRecordText());
+                    }
+                    continue;
+                }
+                try {
+                    int patch = csv.getPatch(0);
+                    String type = csv.getString(1).toUpperCase();
+                    int scalePercent = csv.getInt(4);
+                    int offset = csv.getInt(5);
+                    double curve = csv.getFieldCount() > 6 && !csv.getString(6).isEmpty() ? Double.parseDouble(csv.getString(6)) : 1.0;
+                    if (!(curve > 0) || Double.isInfinite(curve)) {
+                        throw new NumberFormatException("curve must be a positive number, found " + csv.getString(6));
+                    }
+
+                    if ("VELOCITY".equals(type)) {
+                        if (velocityCurves.putIfAbsent(patch, compileCurve(scalePercent, offset, curve, 1)) != null) {
+                            log.warning("Duplicate velocity curve for remapped program " + Patch.format(patch) + " on line " + csv.getLine() + " of " + csvFile.getName() + ". Skipping.");
+                        }
+                    } else if ("CC".equals(type)) {
+                        int controller = csv.getInt(2);
+                        int remappedController = csv.getInt(3);
+                        if (controller < 0 || controller > 127 || remappedController < DROP_CONTROLLER || remappedController > 127) {
+                            log.warning("Skipping malformed line " + csv.getLine() + " in " + csvFile.getName() + ". Invalid controller at column " + csv.getColumn(2) + " (0-127, remapped to 0-127 or -1, expected): " + csv.getRecordText());
+                            continue;
+                        }
+                        if (controller == 0 || controller == 32 || remappedController == 0 || remappedController == 32) {
+                            log.warning("Skipping line " + csv.getLine() + " in " + csvFile.getName() + ": bank select (CC 0 and 32) is managed by the program change rules and cannot be remapped.");
+                            continue;
+                        }
+                        Map<Integer, byte[]> curves = controllerCurves.computeIfAbsent(patch, k -> new HashMap<>());
+                        if (curves.containsKey(controller)) {
+                            log.warning("Duplicate remap of CC " + controller + " for remapped program " + Patch.format(patch) + " on line " + csv.getLine() + " of " + csvFile.getName() + ". Skipping.");
+                            continue;
+                        }
+                        curves.put(controller, compileCurve(scalePercent, offset, curve, 0));
+                        controllerNumbers.computeIfAbsent(patch, k -> new HashMap<>()).put(controller, remappedController);
+                    } else {
+                        log.warning("Skipping line " + csv.getLine() + " in " + csvFile.getName() + ": unknown type '" + csv.getString(1) + "' at column " + csv.getColumn(1) + " (VELOCITY or CC expected).");
+                    }
+                } catch (NumberFormatException e) {
+                    log.warning("Skipping malformed line " + csv.getLine() + " in " + csvFile.getName() + " (number format error): " + csv.getRecordText() + " - " + e.getMessage());
+                }
+            }
+        }
+
+        Tables allPrograms = new Tables();
+        apply(allPrograms, velocityCurves.get(ALL_PROGRAMS), controllerCurves.get(ALL_PROGRAMS), controllerNumbers.get(ALL_PROGRAMS));
+        PatchTable patches = new PatchTable();
+        Set<Integer> programs = new TreeSet<>(velocityCurves.keySet());
+        programs.addAll(controllerCurves.keySet());
+        programs.remove(ALL_PROGRAMS);
+        for (int patch : programs) {
+            patches.add(patch);
+        }
+        ProgramDynamics dynamics = new ProgramDynamics(patches, allPrograms.sameAs(new Tables()) ? null : allPrograms);
+        for (int index = 0; index < patches.size(); index++) {
+            int patch = patches.patchAt(index);
+            Tables programTables = allPrograms.copy();
+            apply(programTables, velocityCurves.get(patch), controllerCurves.get(patch), controllerNumbers.get(patch));
+            dynamics.tables[index] = programTables;
+        }
+        log.status("Loaded dynamics for " + patches.size() + " remapped program(s)" + (dynamics.allPrograms != null ? " and all programs" : "")
+                + " from " + csvFile.getName() + ".");
+        return dynamics;
+    }
+
+    private static void apply(Tables tables, byte[] velocityCurve, Map<Integer, byte[]> controllerCurves, Map<Integer, Integer> controllerNumbers) {
+        if (velocityCurve != null) {
+            tables.velocity = velocityCurve;
+        }
+        if (controllerCurves != null) {
+            for (Map.Entry<Integer, byte[]> entry : controllerCurves.entrySet()) {
+                int controller = entry.getKey();
+                tables.controllerValues[controller] = Arrays.equals(entry.getValue(), IDENTITY) ? null : entry.getValue();
+                tables.controllerNumbers[controller] = (byte) (int) controllerNumbers.get(controller);
+            }
+        }
+    }
+
+    /**
+     * Compiles a curve: {@code offset + scale% * 127 * (value / 127)^curve}, rounded and clamped to min-127.
+     * Velocity tables (min 1) map 0 to 0, so a note on with velocity 0 stays a note off; controller tables (min 0)
+     * map every value through the formula, 0 included.
+     */
+    private static byte[] compileCurve(int scalePercent, int offset, double curve, int min) {
+        byte[] table = new byte[128];
+        for (int value = min > 0 ? 1 : 0; value < 128; value++) {
+            long mapped = Math.round(offset + scalePercent / 100.0 * 127 * Math.pow(value / 127.0, curve));
+            table[value] = (byte) Math.max(min, Math.min(127, mapped));
+        }
+        return Arrays.equals(table, IDENTITY) ? IDENTITY : table;
+    }
+
+    /**
+     * Determines if there are no tables at all, so events can skip the lookup.
+     */
+    boolean isEmpty() {
+        return allPrograms == null && patches.size() == 0;
+    }
+
+    private Tables tablesFor(int remappedPatch) {
+        int index = patches.indexOf(remappedPatch);
+        return index >= 0 ? tables[index] : allPrograms;
+    }
+
+    /**
+     * Returns the velocity a note on gets on a remapped program.
+     * @param remappedPatch The remapped patch of the note's segment.
+     * @param velocity The note's velocity, 0-127.
+     * @return The mapped velocity; 0 only if the velocity is 0.
+     */
+    int velocity(int remappedPatch, int velocity) {
+        Tables programTables = tablesFor(remappedPatch);
+        return programTables == null ? velocity : programTables.velocity[velocity];
+    }
+
+    /**
+     * Returns the controller a control change is sent as on a remapped program.
+     * @param remappedPatch The remapped patch of the channel's segment.
+     * @param controller The input controller, 0-127.
+     * @return The output controller, or {@link #DROP_CONTROLLER} if the control change is removed.
+     */
+    int controller(int remappedPatch, int controller) {
+        Tables programTables = tablesFor(remappedPatch);
+        return programTables == null ? controller : programTables.controllerNumbers[controller];
+    }
+
+    /**
+     * Returns the value a control change is sent with on a remapped program.
+     * @param remappedPatch The remapped patch of the channel's segment.
+     * @param controller The input controller, 0-127.
+     * @param value The input value, 0-127.
+     * @return The mapped value.
+     */
+    int controllerValue(int remappedPatch, int controller, int value) {
+        Tables programTables = tablesFor(remappedPatch);
+        return programTables == null || programTables.controllerValues[controller] == null ? value : programTables.controllerValues[controller][value];
+    }
+
+    /**
+     * Adds the compiled tables to a hash, for {@link RemapRuleSet#fingerprint()}.
+     */
+    void digest(MessageDigest digest) {
+        if (allPrograms != null) {
+            digest(digest, ALL_PROGRAMS, allPrograms);
+        }
+        for (int index = 0; index < patches.size(); index++) {
+            digest(digest, patches.patchAt(index), tables[index]);
+        }
+    }
+
+    private static void digest(MessageDigest digest, int patch, Tables programTables) {
+        digest.update(ByteBuffer.allocate(4).putInt(0, patch));
+        digest.update(programTables.velocity);
+        digest.update(programTables.controllerNumbers);
+        for (int controller = 0; controller < 128; controller++) {
+            digest.update(programTables.values(controller));
+        }
+    }
+
+    /**
+     * Returns the remapped patches whose tables differ between two sets of dynamics, with -1 if the tables
+     * of programs without rows of their own changed.
+     * @param other The dynamics to compare with.
+     * @return The changed remapped patch numbers, in ascending order.
+     */
+    Set<Integer> changedPatches(ProgramDynamics other) {
+        Set<Integer> changedPatches = new TreeSet<>();
+        Tables empty = new Tables();
+        Tables thisDefault = allPrograms != null ? allPrograms : empty;
+        Tables otherDefault = other.allPrograms != null ? other.allPrograms : empty;
+        if (!thisDefault.sameAs(otherDefault)) {
+            changedPatches.add(ALL_PROGRAMS);
+        }
+        Set<Integer> allPatches = new TreeSet<>();
+        for (int index = 0; index < patches.size(); index++) {
+            allPatches.add(patches.patchAt(index));
+        }
+        for (int index = 0; index < other.patches.size(); index++) {
+            allPatches.add(other.patches.patchAt(index));
+        }
+        for (int patch : allPatches) {
+            Tables thisTables = tablesFor(patch);
+            Tables otherTables = other.tablesFor(patch);
+            if (!(thisTables != null ? thisTables : empty).sameAs(otherTables != null ? otherTables : empty)) {
+                changedPatches.add(patch);
+            }
+        }
+        return changedPatches;
+    }
+}
@@ -0,0 +1,419 @@
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiDevice;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Command line entry points for tasks that do not need the GUI.
+ * <p>
+ * Usage:
+ * <pre>
+ *   index &lt;midiFolder&gt; &lt;indexFile&gt;          Build or incrementally update a rule coverage index
+ *   query &lt;indexFile&gt; &lt;program&gt; [note]      List the files that use a program (and note)
+ *   live &lt;csvFile&gt; [inputDevice outputDevice] Remap a live MIDI input until Enter is pressed
+ *   loopback &lt;csvFile&gt; &lt;channel&gt; &lt;program&gt; &lt;note&gt; [expectedNote]  Show (and check) how the live remapper remaps a note
+ *   render &lt;midiFolder&gt; &lt;wavFolder&gt; [soundFont] Render every MIDI file in a folder to WAV
+ *   diff &lt;old&gt; &lt;new&gt; [reportFile]             Report the changes between two output files or folders
+ *   remap &lt;csvFile&gt; &lt;input&gt; &lt;output&gt; [cacheFolder] [--shard i/N] [--manifest file]
+ *                                            Remap a folder or ZIP of MIDI files (or one shard of them) into a folder or ZIP
+ *   merge &lt;reportFile&gt; &lt;manifest&gt;...           Combine the manifests of the shards of a batch into one report
+ * </pre>
+ * Devices are chosen by a part of their name; without devices, live lists the available ones.
+ * Programs are given the same way as in the remapping CSV: a plain number (values over 127 carry a bank LSB,
+ * bank LSB * 128 + program) or msb:lsb:program.
+ */
+public class RemapCommandLine {
+
+    private static final long OUTPUT_CACHE_BYTES = 1024L * 1024 * 1024; // Size bound of the remap command's output cache
+
+    /**
+     * Runs a command line task.
+     * @param args The command name followed by its arguments.
+     * @return The process exit code.
+     */
+    public static int run(String[] args) {
+        try {
+            switch (args[0]) {
+                case "index":
+                    return runIndex(args);
+                case "query":
+                    return runQuery(args);
+                case "live":
+                    return runLive(args);
+                case "loopback":
+                    return runLoopback(args);
+                case "render":
+                    return runRender(args);
+                case "diff":
+                    return runDiff(args);
+                case "remap":
+                    return runRemap(args);
+                case "merge":
+                    return runMerge(args);
+                default:
+                    printUsage();
+                    return 2;
+            }
+        } catch (IOException | NumberFormatException | MidiUnavailableException | InvalidMidiDataException e) {
+            MidiProgramChangeSplitterGUI.logError(e.getMessage(), e);
+            return 1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 1;
+        }
+    }
+
+    private static int runIndex(String[] args) throws IOException {
+        if (args.length != 3) {
+            printUsage();
+            return 2;
+        }
+        File midiFolder = new File(args[1]);
+        File indexFile = new File(args[2]);
+        if (!midiFolder.isDirectory()) {
+            throw new IOException("MIDI folder not found: " + midiFolder.getAbsolutePath());
+        }
+        RuleCoverageIndex index = RuleCoverageIndex.load(indexFile);
+        long start = System.nanoTime();
+        int scanned = index.update(midiFolder);
+        index.save(indexFile);
+        MidiProgramChangeSplitterGUI.logStatus("Indexed " + scanned + " new or changed file(s); " + index.size() + " file(s) in index. ("
+                + (System.nanoTime() - start) / 1_000_000 + " ms)");
+        return 0;
+    }
+
+    private static int runQuery(String[] args) throws IOException {
+        if (args.length != 3 && args.length != 4) {
+            printUsage();
+            return 2;
+        }
+        File indexFile = new File(args[1]);
+        if (!indexFile.isFile()) {
+            throw new IOException("Index file not found: " + indexFile.getAbsolutePath());
+        }
+        int program = Patch.parse(args[2]);
+        int note = args.length == 4 ? Integer.parseInt(args[3].trim()) : -1;
+        List<String> files = RuleCoverageIndex.load(indexFile).filesUsing(program, note);
+        for (String path : files) {
+            System.out.println(path);
+        }
+        return 0;
+    }
+
+    private static int runLive(String[] args) throws IOException, MidiUnavailableException {
+        if (args.length != 2 && args.length != 4) {
+            printUsage();
+            return 2;
+        }
+        if (args.length == 2) {
+            for (MidiDevice.Info info : MidiSystem.getMidiDeviceInfo()) {
+                MidiDevice device = MidiSystem.getMidiDevice(info);
+                System.out.println(info.getName() + " - " + info.getDescription()
+                        + (device.getMaxTransmitters() != 0 ? " [input]" : "") + (device.getMaxReceivers() != 0 ? " [output]" : ""));
+            }
+            return 0;
+        }
+        RemapRuleSet rules = RemapRuleSet.load(new File(args[1]), RemapLog.SILENT);
+        MidiDevice input = findDevice(args[2], true);
+        MidiDevice output = findDevice(args[3], false);
+        input.open();
+        output.open();
+        try {
+            LiveRemapReceiver remapper = new LiveRemapReceiver(rules, RemapLog.SILENT);
+            remapper.setReceiver(output.getReceiver());
+            input.getTransmitter().setReceiver(remapper);
+            MidiProgramChangeSplitterGUI.logStatus("Remapping " + input.getDeviceInfo().getName() + " -> " + output.getDeviceInfo().getName()
+                    + " with " + rules.getRuleCount() + " rules. Press Enter to stop.");
+            System.in.read();
+            remapper.close();
+        } finally {
+            input.close();
+            output.close();
+        }
+        return 0;
+    }
+
+    /**
+     * Sends bank select, program change and a note through a live remapper without devices, prints what comes
+     * out, and with an expected note checks that the note is played as that note.
+     */
+    private static int runLoopback(String[] args) throws IOException, InvalidMidiDataException {
+        if (args.length != 5 && args.length != 6) {
+            printUsage();
+            return 2;
+        }
+        RemapRuleSet rules = RemapRuleSet.load(new File(args[1]), RemapLog.SILENT);
+        int channel = Integer.parseInt(args[2].trim()) - 1;
+        int patch = Patch.parse(args[3]);
+        int note = Integer.parseInt(args[4].trim());
+        int expectedNote = args.length == 6 ? Integer.parseInt(args[5].trim()) : -1;
+        if (channel < 0 || channel > 15 || patch < 0 || note < 0 || note > 127) {
+            throw new IOException("Expected a channel 1-16, a program and a note 0-127");
+        }
+        List<String> played = new ArrayList<>();
+        boolean[] expectedPlayed = new boolean[1];
+        LiveRemapReceiver remapper = new LiveRemapReceiver(rules, RemapLog.SILENT);
+        remapper.setReceiver(new Receiver() {
+            @Override
+            public void send(MidiMessage message, long timeStamp) {
+                ShortMessage sm = (ShortMessage) message;
+                played.add("Ch " + (sm.getChannel() + 1) + " " + (sm.getCommand() == ShortMessage.NOTE_ON ? "note on " : sm.getCommand() == ShortMessage.NOTE_OFF
+                        ? "note off " : sm.getCommand() == ShortMessage.PROGRAM_CHANGE ? "program " : "CC " + sm.getData1() + " = ")
+                        + (sm.getCommand() == ShortMessage.CONTROL_CHANGE ? sm.getData2() : sm.getData1()));
+                if (sm.getCommand() == ShortMessage.NOTE_ON && sm.getData1() == expectedNote) {
+                    expectedPlayed[0] = true;
+                }
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+        remapper.send(new ShortMessage(ShortMessage.CONTROL_CHANGE, channel, 0, Patch.bankMSB(patch)), -1);
+        remapper.send(new ShortMessage(ShortMessage.CONTROL_CHANGE, channel, 32, Patch.bankLSB(patch)), -1);
+        remapper.send(new ShortMessage(ShortMessage.PROGRAM_CHANGE, channel, Patch.program(patch), 0), -1);
+        remapper.send(new ShortMessage(ShortMessage.NOTE_ON, channel, note, 100), -1);
+        remapper.send(new ShortMessage(ShortMessage.NOTE_OFF, channel, note, 0), -1);
+        remapper.close();
+        for (String message : played) {
+            System.out.println(message);
+        }
+        if (expectedNote >= 0 && !expectedPlayed[0]) {
+            MidiProgramChangeSplitterGUI.logError("Note " + note + " of P" + Patch.format(patch) + " on Ch " + (channel + 1)
+                    + " was not remapped to note " + expectedNote + ".", null);
+            return 1;
+        }
+        return 0;
+    }
+
+    private static MidiDevice findDevice(String name, boolean input) throws MidiUnavailableException {
+        for (MidiDevice.Info info : MidiSystem.getMidiDeviceInfo()) {
+            if (info.getName().toLowerCase().contains(name.toLowerCase())) {
+                MidiDevice device = MidiSystem.getMidiDevice(info);
+                if (input ? device.getMaxTransmitters() != 0 : device.getMaxReceivers() != 0) {
+                    return device;
+                }
+            }
+        }
+        throw new MidiUnavailableException("No MIDI " + (input ? "input" : "output") + " device matches \"" + name + "\"");
+    }
+
+    private static int runRender(String[] args) throws IOException, InterruptedException {
+        if (args.length != 3 && args.length != 4) {
+            printUsage();
+            return 2;
+        }
+        File midiFolder = new File(args[1]);
+        File wavFolder = new File(args[2]);
+        File soundFont = args.length == 4 ? new File(args[3]) : null;
+        File[] midiFiles = midiFolder.listFiles((dir, name) -> name.toLowerCase().endsWith(".mid") || name.toLowerCase().endsWith(".midi"));
+        if (midiFiles == null) {
+            throw new IOException("MIDI folder not found: " + midiFolder.getAbsolutePath());
+        }
+        if (soundFont != null && !soundFont.isFile()) {
+            throw new IOException("SoundFont not found: " + soundFont.getAbsolutePath());
+        }
+        if (!wavFolder.exists() && !wavFolder.mkdirs()) {
+            throw new IOException("Could not create output directory: " + wavFolder.getAbsolutePath());
+        }
+        Arrays.sort(midiFiles);
+        long start = System.nanoTime();
+        AuditionRenderer renderer = new AuditionRenderer(soundFont, new RemapLog() {
+            @Override
+            public void status(String message) {
+                MidiProgramChangeSplitterGUI.logStatus(message);
+            }
+
+            @Override
+            public void warning(String message) {
+                MidiProgramChangeSplitterGUI.logWarning(message);
+            }
+
+            @Override
+            public void error(String message, Throwable e) {
+                MidiProgramChangeSplitterGUI.logError(message, e);
+            }
+        });
+        int rendered = renderer.renderAll(Arrays.asList(midiFiles), wavFolder, Runtime.getRuntime().availableProcessors());
+        MidiProgramChangeSplitterGUI.logStatus("Rendered " + rendered + " of " + midiFiles.length + " file(s). ("
+                + (System.nanoTime() - start) / 1_000_000 + " ms)");
+        return rendered == midiFiles.length ? 0 : 1;
+    }
+
+    private static int runDiff(String[] args) throws IOException, InterruptedException {
+        if (args.length != 3 && args.length != 4) {
+            printUsage();
+            return 2;
+        }
+        File oldOutput = new File(args[1]);
+        File newOutput = new File(args[2]);
+        long start = System.nanoTime();
+        List<MidiDiff.FileDiff> diffs;
+        if (oldOutput.isDirectory() && newOutput.isDirectory()) {
+            diffs = MidiDiff.diffFolders(oldOutput, newOutput, Runtime.getRuntime().availableProcessors());
+        } else {
+            diffs = List.of(MidiDiff.diffFiles(newOutput.getName(), oldOutput, newOutput));
+        }
+        String report = MidiDiff.report(diffs);
+        if (args.length == 4) {
+            Files.write(Paths.get(args[3]), report.getBytes(StandardCharsets.UTF_8));
+        } else {
+            System.out.print(report);
+        }
+        MidiProgramChangeSplitterGUI.logStatus("Compared " + diffs.size() + " file(s). (" + (System.nanoTime() - start) / 1_000_000 + " ms)");
+        for (MidiDiff.FileDiff diff : diffs) {
+            if (!diff.isIdentical()) {
+                return 1;
+            }
+        }
+        return 0;
+    }
+
+    private static int runRemap(String[] commandArgs) throws IOException, InterruptedException {
+        // Options may come anywhere after the command; the remaining arguments are positional
+        List<String> positional = new ArrayList<>();
+        int shardIndex = 1;
+        int shardCount = 1;
+        File manifestFile = null;
+        for (int i = 0; i < commandArgs.length; i++) {
+            if (commandArgs[i].equals("--shard") && i + 1 < commandArgs.length) {
+                String[] shard = commandArgs[++i].split("/");
+                if (shard.length != 2) {
+                    printUsage();
+                    return 2;
+                }
+                shardIndex = Integer.parseInt(shard[0].trim());
+                shardCount = Integer.parseInt(shard[1].trim());
+                if (shardCount < 1 || shardIndex < 1 || shardIndex > shardCount) {
+                    throw new IOException("Invalid shard " + commandArgs[i] + ": expected i/N with 1 <= i <= N");
+                }
+            } else if (commandArgs[i].equals("--manifest") && i + 1 < commandArgs.length) {
+                manifestFile = new File(commandArgs[++i]);
+            } else {
+                positional.add(commandArgs[i]);
+            }
+        }
+        String[] args = positional.toArray(new String[0]);
+        if (args.length != 4 && args.length != 5) {
+            printUsage();
+            return 2;
+        }
+        // Per-event progress would swamp the console: only the batch's per-file lines, warnings and errors are shown
+        RemapLog engineLog = new RemapLog() {
+            @Override
+            public void status(String message) {
+            }
+
+            @Override
+            public void warning(String message) {
+                MidiProgramChangeSplitterGUI.logWarning(message);
+            }
+
+            @Override
+            public void error(String message, Throwable e) {
+                MidiProgramChangeSplitterGUI.logError(message, e);
+            }
+
+            @Override
+            public boolean isVerbose() {
+                return false;
+            }
+        };
+        RemapEngine engine = new RemapEngine(RemapRuleSet.load(new File(args[1]), engineLog), engineLog);
+        long start = System.nanoTime();
+        try (BatchRemapper.Source batchSource = BatchRemapper.openSource(new File(args[2]));
+             BatchRemapper.Target target = BatchRemapper.openTarget(new File(args[3]))) {
+            int batchSize = batchSource.names().size();
+            BatchRemapper.Source source = shardCount > 1 ? BatchRemapper.shard(batchSource, shardIndex, shardCount) : batchSource;
+            BatchRemapper batch = new BatchRemapper(engine, new RemapLog() {
+                @Override
+                public void status(String message) {
+                    MidiProgramChangeSplitterGUI.logStatus(message);
+                }
+
+                @Override
+                public void warning(String message) {
+                    MidiProgramChangeSplitterGUI.logWarning(message);
+                }
+
+                @Override
+                public void error(String message, Throwable e) {
+                    MidiProgramChangeSplitterGUI.logError(message, e);
+                }
+            });
+            RemapOptions options = new RemapOptions();
+            options.setSpecializedRules(true);
+            if (args.length == 5) {
+                options.setOutputCache(new RemapOutputCache(new File(args[4]), OUTPUT_CACHE_BYTES));
+            }
+            BatchManifest manifest = manifestFile != null
+                    ? new BatchManifest(shardIndex, shardCount, batchSize, engine.getRules().fingerprint()) : null;
+            int remapped = batch.remapAll(source, target, options, Runtime.getRuntime().availableProcessors(), manifest);
+            long elapsed = (System.nanoTime() - start) / 1_000_000;
+            MidiProgramChangeSplitterGUI.logStatus("Remapped " + remapped + " of " + source.names().size() + " file(s)"
+                    + (shardCount > 1 ? " in shard " + shardIndex + "/" + shardCount + " of a batch of " + batchSize : "")
+                    + ". (" + elapsed + " ms)");
+            if (manifest != null) {
+                manifest.setElapsedMillis(elapsed);
+                manifest.write(manifestFile);
+                MidiProgramChangeSplitterGUI.logStatus("Manifest written to " + manifestFile.getAbsolutePath());
+            }
+            if (options.getOutputCache() != null) {
+                MidiProgramChangeSplitterGUI.logStatus(options.getOutputCache().getHits() + " file(s) taken from the output cache.");
+            }
+            return remapped == source.names().size() ? 0 : 1;
+        }
+    }
+
+    private static int runMerge(String[] args) throws IOException {
+        if (args.length < 3) {
+            printUsage();
+            return 2;
+        }
+        List<BatchManifest> shards = new ArrayList<>();
+        for (int i = 2; i < args.length; i++) {
+            shards.add(BatchManifest.read(new File(args[i])));
+        }
+        List<String> problems = BatchManifest.problems(shards);
+        File reportFile = new File(args[1]);
+        File parent = reportFile.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            Files.createDirectories(parent.toPath());
+        }
+        Files.write(reportFile.toPath(), BatchManifest.report(shards, problems).getBytes(StandardCharsets.UTF_8));
+        for (String problem : problems) {
+            MidiProgramChangeSplitterGUI.logWarning(problem);
+        }
+        MidiProgramChangeSplitterGUI.logStatus("Merged " + shards.size() + " manifest(s) into " + reportFile.getAbsolutePath()
+                + (problems.isEmpty() ? "; the batch is complete." : "; " + problems.size() + " problem(s) found."));
+        return problems.isEmpty() ? 0 : 1;
+    }
+
+    private static void printUsage() {
+        System.err.println("Usage:");
+        System.err.println("  (no arguments)                        Start the GUI");
+        System.err.println("  index <midiFolder> <indexFile>        Build or incrementally update a rule coverage index");
+        System.err.println("  query <indexFile> <program> [note]    List the files that use a program (and note)");
+        System.err.println("  live <csvFile> [inputDevice outputDevice]  Remap a live MIDI input (no devices: list them)");
+        System.err.println("  loopback <csvFile> <channel> <program> <note> [expectedNote]  Show how the live remapper remaps a note");
+        System.err.println("                                        after bank select and program change; exit 1 if it is not expectedNote");
+        System.err.println("  render <midiFolder> <wavFolder> [soundFont]  Render every MIDI file in a folder to WAV");
+        System.err.println("  diff <old> <new> [reportFile]         Report the changes between two output files or folders");
+        System.err.println("  remap <csvFile> <input> <output> [cacheFolder]  Remap a folder or ZIP of MIDI files into a folder or ZIP (.zip),");
+        System.err.println("                                        reusing the outputs of inputs already remapped with the same rules");
+        System.err.println("      [--shard i/N]                     Remap only shard i of N (1 <= i <= N), split by a hash of the file names");
+        System.err.println("      [--manifest file]                 Write a manifest of the outputs, their SHA-256 hashes and timings");
+        System.err.println("  merge <reportFile> <manifest>...      Combine the manifests of all shards of a batch into one report");
+    }
+}
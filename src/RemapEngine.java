@@ -0,0 +1,1758 @@
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
+import javax.sound.midi.Track;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+
+/**
+ * Remaps program changes and notes of MIDI sequences with a compiled {@link RemapRuleSet}, and splits each
+ * sequence into one track per program change "stem" and channel.
+ * Melodic splits are kept on the original channel; DRUM segments are rechanneled to channel 9.
+ * The velocity curves and controller tables of the remapped programs ({@link ProgramDynamics}) are applied
+ * in the same pass.
+ * A note off is written to the track, channel and note its note on was written to, even when a program change
+ * started a new segment while the note was held; it fires no rules of its own.
+ * <p>
+ * An engine is immutable and thread-safe: any number of threads may call it at once. The per-file working
+ * state (channel tables, the melodic channel allocator, event buffers and the encode buffer) is kept per
+ * thread and reused from call to call, so repeated calls on the same thread allocate little beyond the
+ * output events themselves. To remap with other rules, create another engine.
+ * <p>
+ * Loading, remapping and writing a file and creating an output track are recorded as Java Flight Recorder
+ * events ({@link RemapFlightEvents}) when a recording enables them.
+ * <pre>
+ *   RemapEngine engine = new RemapEngine(RemapRuleSet.load(csvFile, RemapLog.SILENT), RemapLog.SILENT);
+ *   Sequence remapped = engine.remap(MidiSystem.getSequence(midiFile), new RemapOptions());
+ * </pre>
+ */
+public final class RemapEngine {
+
+    private static final int DRUM_CHANNEL = 9; // MIDI channel 10 (0-indexed)
+    private static final int CHANNEL_COUNT = 16;
+    private static final int GLOBAL_RUN = CHANNEL_COUNT; // Channel run of the meta and system exclusive events of a type 0 file
+    private static final int RUN_COUNT = CHANNEL_COUNT + 1;
+    private static final int NO_TRACK = -1;
+    private static final int SEVERAL_TRACKS = -2;
+    private static final int META_TEMPO = 0x51;
+    private static final String OUTPUT_FILE_SUFFIX = "_split_remapped.mid";
+    private static final int OUTPUT_VERSION = 3; // Part of the output cache key: increase it whenever a change alters the remapped output
+
+    private static final String[] GENERAL_MIDI_DRUM_KITS = new String[128];
+
+    static {
+
+        GENERAL_MIDI_DRUM_KITS[0] = "Standard Drum Kit";
+
+        for (int i = 1; i <= 6; i++) {
+            GENERAL_MIDI_DRUM_KITS[i] = "Drum Kit";
+        }
+
+        GENERAL_MIDI_DRUM_KITS[7] = "Room Drum Kit";
+
+        for (int i = 8; i <= 14; i++) {
+            GENERAL_MIDI_DRUM_KITS[i] = "Drum Kit";
+        }
+
+        GENERAL_MIDI_DRUM_KITS[15] = "Power Drum Kit";
+
+        for (int i = 16; i <= 22; i++) {
+            GENERAL_MIDI_DRUM_KITS[i] = "Drum Kit";
+        }
+
+        GENERAL_MIDI_DRUM_KITS[23] = "Electronic Drum Kit";
+
+        GENERAL_MIDI_DRUM_KITS[24] = "Analog Drum Kit (TR-808)"; // Often referred to as "Rap" or "TR-808"
+
+        for (int i = 25; i <= 30; i++) {
+            GENERAL_MIDI_DRUM_KITS[i] = "Drum Kit";
+        }
+
+        GENERAL_MIDI_DRUM_KITS[31] = "Jazz Drum Kit";
+
+        for (int i = 32; i <= 38; i++) {
+            GENERAL_MIDI_DRUM_KITS[i] = "Drum Kit";
+        }
+
+        GENERAL_MIDI_DRUM_KITS[39] = "Brush Kit";
+
+        for (int i = 40; i <= 46; i++) {
+            GENERAL_MIDI_DRUM_KITS[i] = "Drum Kit";
+        }
+
+        GENERAL_MIDI_DRUM_KITS[47] = "Orchestral Drum Kit";
+
+        for (int i = 48; i <= 54; i++) {
+            GENERAL_MIDI_DRUM_KITS[i] = "Drum Kit";
+        }
+
+        GENERAL_MIDI_DRUM_KITS[55] = "SFX Drum Kit";
+
+        for (int i = 56; i <= 127; i++) {
+            GENERAL_MIDI_DRUM_KITS[i] = "Drum Kit";
+        }
+
+    }
+
+    private static final String[] GENERAL_MIDI_INSTRUMENT_NAMES = {
+            // Piano (0-7)
+            "Acoustic Grand Piano", "Bright Acoustic Piano", "Electric Grand Piano", "Honky-tonk Piano",
+            "Electric Piano 1", "Electric Piano 2", "Harpsichord", "Clavinet",
+
+            // Chromatic Percussion (8-15)
+            "Celesta", "Glockenspiel", "Music Box", "Vibraphone",
+            "Marimba", "Xylophone", "Tubular Bells", "Dulcimer",
+
+            // Organ (16-23)
+            "Drawbar Organ", "Percussive Organ", "Rock Organ", "Church Organ",
+            "Reed Organ", "Accordion", "Harmonica", "Tango Accordion",
+
+            // Guitar (24-31)
+            "Acoustic Guitar (nylon)", "Acoustic Guitar (steel)", "Electric Guitar (jazz)", "Electric Guitar (clean)",
+            "Electric Guitar (muted)", "Overdriven Guitar", "Distortion Guitar", "Guitar Harmonics",
+
+            // Bass (32-39)
+            "Acoustic Bass", "Electric Bass (finger)", "Electric Bass (pick)", "Fretless Bass",
+            "Slap Bass 1", "Slap Bass 2", "Synth Bass 1", "Synth Bass 2",
+
+            // Strings (40-47)
+            "Violin", "Viola", "Cello", "Contrabass",
+            "Tremolo Strings", "Pizzicato Strings", "Orchestral Harp", "Timpani",
+
+            // Ensemble (48-55)
+            "String Ensemble 1", "String Ensemble 2", "SynthStrings 1", "SynthStrings 2",
+            "Choir Aahs", "Voice Oohs", "Synth Voice", "Orchestra Hit",
+
+            // Brass (56-63)
+            "Trumpet", "Trombone", "Tuba", "Muted Trumpet",
+            "French Horn", "Brass Section", "SynthBrass 1", "SynthBrass 2",
+
+            // Reed (64-71)
+            "Soprano Sax", "Alto Sax", "Tenor Sax", "Baritone Sax",
+            "Oboe", "English Horn", "Bassoon", "Clarinet",
+
+            // Pipe (72-79)
+            "Piccolo", "Flute", "Recorder", "Pan Flute",
+            "Blown Bottle", "Shakuhachi", "Whistle", "Ocarina",
+
+            // Synth Lead (80-87)
+            "Lead 1 (square)", "Lead 2 (sawtooth)", "Lead 3 (calliope)", "Lead 4 (chiff)",
+            "Lead 5 (charang)", "Lead 6 (voice)", "Lead 7 (fifths)", "Lead 8 (bass+lead)",
+
+            // Synth Pad (88-95)
+            "Pad 1 (new age)", "Pad 2 (warm)", "Pad 3 (polysynth)", "Pad 4 (choir)",
+            "Pad 5 (bowed)", "Pad 6 (metallic)", "Pad 7 (halo)", "Pad 8 (sweep)",
+
+            // Synth Effects (96-103)
+            "FX 1 (rain)", "FX 2 (soundtrack)", "FX 3 (crystal)", "FX 4 (atmosphere)",
+            "FX 5 (brightness)", "FX 6 (goblin)", "FX 7 (echoes)", "FX 8 (sci-fi)",
+
+            // Ethnic (104-111)
+            "Sitar", "Banjo", "Shamisen", "Koto",
+            "Kalimba", "Didgeridoo", "Bagpipe", "Fiddle",
+
+            // Percussive (112-119)
+            "Tinkle Bell", "Agogo", "Steel Drums",
+            "Woodblock", "Taiko Drum", "Melodic Tom", "Synth Drum",
+
+            // Sound Effects (120-127)
+            "Reverse Cymbal", "Guitar Fret Noise", "Breath Noise", "Seashore",
+            "Bird Tweet", "Telephone Ring", "Helicopter", "Applause", "Gunshot"
+    };
+
+    /**
+     * Represents a unique key for an output track. This key now differentiates tracks
+     * not only by remapped program and original channel/segment but also by
+     * the effective channel (the one the event is placed on) and its determined type (DRUM/MELODIC),
+     * allowing for fine-grained splitting.
+     */
+    private static final class ProgramChannelKey {
+        int remappedProgramForSegment; // The remapped program that defines the segment context
+        int effectiveChannel;          // The actual channel the MIDI event will be placed on (finalOutputChannel for notes)
+        String type;                   // The determined type for this content (DRUM or MELODIC or GLOBAL)
+        int segmentIndex;              // Index to differentiate segments based on original program changes
+
+        public ProgramChannelKey(int remappedProgramForSegment, int effectiveChannel, String type, int segmentIndex) {
+            this.remappedProgramForSegment = remappedProgramForSegment;
+            this.effectiveChannel = effectiveChannel;
+            this.type = type;
+            this.segmentIndex = segmentIndex;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            ProgramChannelKey that = (ProgramChannelKey) o;
+            return remappedProgramForSegment == that.remappedProgramForSegment &&
+                    effectiveChannel == that.effectiveChannel &&
+                    segmentIndex == that.segmentIndex &&
+                    Objects.equals(type, that.type);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(remappedProgramForSegment, effectiveChannel, type, segmentIndex);
+        }
+
+        /**
+         * Returns the key used to merge this track with other segments during compaction: the same key
+         * without the segment index, or null for the global track, which is never merged.
+         */
+        ProgramChannelKey mergeKey() {
+            return "GLOBAL".equals(type) ? null : new ProgramChannelKey(remappedProgramForSegment, effectiveChannel, type, 0);
+        }
+    }
+
+    /**
+     * Stores information about a program change remapping, including the original program
+     * that set this context, the remapped program, the determined channel type (DRUM/MELODIC),
+     * and a track name.
+     */
+    private static final class ProgramRemapInfo {
+        int originalProgramThatSetThisContext; // -1 if no PC has set the context yet
+        int remappedProgram;
+        String channelType; // "DRUM" or "MELODIC"
+        String trackName; // Can be null if no specific name from rule
+
+        public ProgramRemapInfo(int originalProgramThatSetThisContext, int remappedProgram, String channelType, String trackName) {
+            this.originalProgramThatSetThisContext = originalProgramThatSetThisContext;
+            this.remappedProgram = remappedProgram;
+            this.channelType = channelType;
+            this.trackName = trackName;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            ProgramRemapInfo that = (ProgramRemapInfo) o;
+            return originalProgramThatSetThisContext == that.originalProgramThatSetThisContext &&
+                    remappedProgram == that.remappedProgram &&
+                    Objects.equals(channelType, that.channelType) &&
+                    Objects.equals(trackName, that.trackName);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(originalProgramThatSetThisContext, remappedProgram, channelType, trackName);
+        }
+    }
+
+    /**
+     * Remaps a run of events into its own set of output tracks. Multi-track sequences are remapped as one run;
+     * single-track sequences as one run per channel, which may execute on different threads.
+     */
+    private static final class EventRun {
+        final Map<ProgramChannelKey, MidiTrackSink> programTracks;
+        final List<MidiEvent> eventsToAdd = new ArrayList<>(); // For bank selects and layered notes
+        Supplier<MidiTrackSink> trackFactory;
+        int sourceIndex; // Position in the source track of the event being remapped
+        int eventProcessingErrors;
+        boolean notePlans; // True to resolve notes with the rule set's note plans where it has one
+        String sourceName; // Name of the file being remapped, for flight recorder events; null if unknown
+
+        EventRun(Map<ProgramChannelKey, MidiTrackSink> programTracks) {
+            this.programTracks = programTracks;
+        }
+    }
+
+    /**
+     * Output track of a channel run. Events are buffered with the source position of the event that
+     * produced them, so the runs can be merged back into the order a single pass would have produced.
+     */
+    private static final class BufferedTrack implements MidiTrackSink {
+        private final EventRun run;
+        final int firstSource; // Source position of the event that created the track
+        MidiEvent[] events = new MidiEvent[16];
+        int[] sources = new int[16];
+        int size;
+
+        BufferedTrack(EventRun run) {
+            this.run = run;
+            this.firstSource = run.sourceIndex;
+        }
+
+        @Override
+        public void add(MidiEvent event) {
+            if (size == events.length) {
+                events = Arrays.copyOf(events, size * 2);
+                sources = Arrays.copyOf(sources, size * 2);
+            }
+            events[size] = event;
+            sources[size++] = run.sourceIndex;
+        }
+    }
+
+    /**
+     * Working state for remapping one sequence, reused by the calls made on one thread.
+     */
+    private static final class RemapState {
+        final int[] bankMSB = new int[CHANNEL_COUNT];        // Bank select MSB last seen on each input channel
+        final int[] bankLSB = new int[CHANNEL_COUNT];        // Bank select LSB last seen on each input channel
+        final int[] outputBank = new int[CHANNEL_COUNT];     // The 14-bit bank last sent on each channel in the output
+        final int[] firstProgram = new int[CHANNEL_COUNT];   // Patch of the first explicit program change per channel, -1 if none
+        final int[] scanBankMSB = new int[CHANNEL_COUNT];    // Bank select MSB last seen on each channel by the pre-scan
+        final int[] scanBankLSB = new int[CHANNEL_COUNT];    // Bank select LSB last seen on each channel by the pre-scan
+        final int[] segmentIndex = new int[CHANNEL_COUNT];   // Current segment index per original channel
+        final ProgramRemapInfo[] remapInfo = new ProgramRemapInfo[CHANNEL_COUNT]; // Current remapping per original channel, null before its first event
+        final int[] noteOnVelocity = new int[CHANNEL_COUNT * 128]; // Velocity of the last note on per channel and note, for rule conditions on note offs
+        // Output of each sounding note, indexed by (input channel << 7) | note, so its note off goes where its note on went
+        final MidiTrackSink[] activeNoteTrack = new MidiTrackSink[CHANNEL_COUNT * 128]; // null if the note is not sounding
+        final int[] activeNoteOutput = new int[CHANNEL_COUNT * 128];   // (output channel << 7) | output note
+        final int[] activeLayerCount = new int[CHANNEL_COUNT * 128];
+        final int[][] activeLayerOutputs = new int[CHANNEL_COUNT * 128][]; // (output channel << 7) | note of each layer, grown as needed
+        final int[] channelEventTrack = new int[CHANNEL_COUNT]; // Source track of each channel's non-note events, NO_TRACK or SEVERAL_TRACKS
+        boolean thinOutput; // True if output tracks drop redundant channel events, see ThinningTrackSink
+        final ThinningTrackSink.Savings thinningSavings = new ThinningTrackSink.Savings();
+        final TimebaseConverter timebase = new TimebaseConverter();
+        boolean retime; // True if output ticks are converted by timebase
+        final MelodicChannelAllocator melodicChannelAllocator = new MelodicChannelAllocator();
+        // Output tracks, kept in creation order, which is also the order of the tracks in the output
+        final Map<ProgramChannelKey, MidiTrackSink> programTracks = new LinkedHashMap<>();
+        final EventRun run = new EventRun(programTracks); // Remaps multi-track sequences straight into programTracks
+        MidiEvent[] sourceEvents = new MidiEvent[0]; // The events of a single-track sequence, by position
+        final int[][] runIndex = new int[RUN_COUNT][0]; // Positions of each channel run's events in sourceEvents
+        final int[] runSize = new int[RUN_COUNT];
+        int eventProcessingErrors;
+        boolean inUse;
+
+        void reset() {
+            Arrays.fill(bankMSB, 0);
+            Arrays.fill(bankLSB, 0);
+            bankLSB[DRUM_CHANNEL] = 1; // Drum patches are looked up as bank LSB 1
+            Arrays.fill(outputBank, 0);
+            Arrays.fill(firstProgram, -1);
+            Arrays.fill(scanBankMSB, 0);
+            Arrays.fill(scanBankLSB, 0);
+            scanBankLSB[DRUM_CHANNEL] = 1;
+            Arrays.fill(segmentIndex, 0);
+            Arrays.fill(remapInfo, null);
+            Arrays.fill(noteOnVelocity, 0);
+            Arrays.fill(activeNoteTrack, null);
+            Arrays.fill(channelEventTrack, NO_TRACK);
+            thinningSavings.reset();
+            melodicChannelAllocator.reset();
+            run.eventsToAdd.clear();
+            programTracks.clear();
+            eventProcessingErrors = 0;
+        }
+    }
+
+    private final RemapRuleSet rules;
+    private final RemapLog log;
+    private final ThreadLocal<RemapState> states = ThreadLocal.withInitial(RemapState::new);
+    private final ThreadLocal<ByteArrayOutputStream> encodeBuffers = ThreadLocal.withInitial(() -> new ByteArrayOutputStream(64 * 1024));
+
+    /**
+     * Creates an engine.
+     * @param rules The compiled remapping rules.
+     * @param log Receives progress, warning and error messages; {@link RemapLog#SILENT} to discard them.
+     */
+    public RemapEngine(RemapRuleSet rules, RemapLog log) {
+        this.rules = Objects.requireNonNull(rules, "rules");
+        this.log = Objects.requireNonNull(log, "log");
+    }
+
+    /**
+     * Returns the rules this engine remaps with.
+     */
+    public RemapRuleSet getRules() {
+        return rules;
+    }
+
+    /**
+     * Remaps a sequence into a new split sequence. The input sequence is not modified.
+     * @param originalSequence The sequence to remap.
+     * @param options The processing options. The memory budget is ignored: the result is always held in memory.
+     * @return The remapped sequence.
+     * @throws InvalidMidiDataException If the output sequence cannot be created.
+     * @throws IOException If compaction cannot measure the sequence.
+     */
+    public Sequence remap(Sequence originalSequence, RemapOptions options) throws InvalidMidiDataException, IOException {
+        return remap(originalSequence, options, null);
+    }
+
+    /**
+     * Remaps a sequence into a new split sequence.
+     * @param sourceName The name of the file the sequence was read from, or null if unknown.
+     */
+    private Sequence remap(Sequence originalSequence, RemapOptions options, String sourceName) throws InvalidMidiDataException, IOException {
+        List<ProgramChannelKey> trackKeys = new ArrayList<>();
+        Sequence combinedSequence = split(originalSequence, options, sourceName, trackKeys);
+
+        if (options.isCompactTracks()) {
+            List<ProgramChannelKey> mergeKeys = new ArrayList<>(trackKeys.size());
+            for (ProgramChannelKey key : trackKeys) {
+                mergeKeys.add(key.mergeKey());
+            }
+            OutputTrackCompactor compactor = new OutputTrackCompactor();
+            compactor.compact(combinedSequence, mergeKeys);
+            long saved = compactor.getSizeBefore() - compactor.getSizeAfter();
+            log.status("  Compaction: merged " + compactor.getMergedTracks() + " track(s), dropped " + compactor.getDroppedTracks()
+                    + " empty or silent track(s); " + compactor.getSizeBefore() + " -> " + compactor.getSizeAfter() + " bytes ("
+                    + (compactor.getSizeBefore() > 0 ? saved * 100 / compactor.getSizeBefore() : 0) + "% smaller).");
+        }
+        return combinedSequence;
+    }
+
+    /**
+     * Remaps a sequence into a new split sequence, without compaction.
+     * @param trackKeys Receives the key of every output track, in track order.
+     */
+    private Sequence split(Sequence originalSequence, RemapOptions options, String sourceName, List<ProgramChannelKey> trackKeys)
+            throws InvalidMidiDataException {
+        Sequence combinedSequence = new Sequence(outputDivisionType(originalSequence, options), outputResolution(originalSequence, options));
+        remapTracks(originalSequence, () -> combinedSequence.createTrack()::add, trackKeys, options, sourceName);
+        addEndOfTrack(combinedSequence);
+        return combinedSequence;
+    }
+
+    /**
+     * Reads a Standard MIDI File from a stream and remaps it. The stream is not closed.
+     * @param in The stream holding the MIDI file.
+     * @param options The processing options. The memory budget is ignored.
+     * @return The remapped sequence.
+     * @throws InvalidMidiDataException If the stream does not hold a valid MIDI file.
+     * @throws IOException If the stream cannot be read.
+     */
+    public Sequence remap(InputStream in, RemapOptions options) throws InvalidMidiDataException, IOException {
+        // The MIDI file readers need mark/reset to detect the file type
+        return remap(MidiSystem.getSequence(in.markSupported() ? in : new BufferedInputStream(in)), options);
+    }
+
+    /**
+     * Remaps a Standard MIDI File held in a buffer and returns the remapped file.
+     * The file is read from the buffer's remaining bytes; the buffer's position is left after the bytes read.
+     * The result is encoded in a buffer pooled per thread, so only the returned copy is allocated for it.
+     * @param midiFile The MIDI file.
+     * @param options The processing options. The memory budget is ignored.
+     * @return A new buffer holding the remapped MIDI file.
+     * @throws InvalidMidiDataException If the buffer does not hold a valid MIDI file.
+     * @throws IOException If the remapped sequence cannot be encoded.
+     */
+    public ByteBuffer remap(ByteBuffer midiFile, RemapOptions options) throws InvalidMidiDataException, IOException {
+        return remap(midiFile, options, null);
+    }
+
+    /**
+     * Remaps a Standard MIDI File held in a buffer and returns the remapped file, see {@link #remap(ByteBuffer, RemapOptions)}.
+     * @param midiFile The MIDI file.
+     * @param options The processing options. The memory budget is ignored.
+     * @param name The name of the file, reported in flight recorder events, or null if unknown.
+     * @return A new buffer holding the remapped MIDI file.
+     * @throws InvalidMidiDataException If the buffer does not hold a valid MIDI file.
+     * @throws IOException If the remapped sequence cannot be encoded.
+     */
+    public ByteBuffer remap(ByteBuffer midiFile, RemapOptions options, String name) throws InvalidMidiDataException, IOException {
+        RemapFlightEvents.FileRemap fileEvent = new RemapFlightEvents.FileRemap();
+        fileEvent.begin();
+        fileEvent.bytes = midiFile.remaining();
+        String cacheKey = cacheKey(midiFile, options, false);
+        if (cacheKey != null) {
+            ByteBuffer cached = options.getOutputCache().get(cacheKey);
+            if (cached != null) {
+                log.status("  Identical input remapped before; output taken from the cache.");
+                midiFile.position(midiFile.limit());
+                fileEvent.cached = true;
+                commit(fileEvent, name, cached.remaining());
+                return cached;
+            }
+        }
+        Sequence original = load(new ByteBufferInputStream(midiFile), name, fileEvent.bytes);
+        fileEvent.eventCount = RemapFlightEvents.countEvents(original);
+        Sequence remapped = remap(original, options, name);
+        int[] fileTypes = MidiSystem.getMidiFileTypes(remapped);
+        if (fileTypes.length == 0) {
+            throw new IOException("No supported MIDI file type found for the remapped sequence.");
+        }
+        RemapFlightEvents.OutputWrite writeEvent = new RemapFlightEvents.OutputWrite();
+        writeEvent.begin();
+        ByteArrayOutputStream encodeBuffer = encodeBuffers.get();
+        encodeBuffer.reset();
+        MidiSystem.write(remapped, fileTypes[0], encodeBuffer);
+        ByteBuffer output = ByteBuffer.wrap(encodeBuffer.toByteArray());
+        commit(writeEvent, name, remapped, output.remaining());
+        if (cacheKey != null) {
+            options.getOutputCache().put(cacheKey, output);
+        }
+        commit(fileEvent, name, output.remaining());
+        return output;
+    }
+
+    /**
+     * Remaps a MIDI file and writes the split, remapped sequence to another file.
+     * If the options set a memory budget, output tracks are spilled to disk once it is exceeded.
+     * If they set an output cache, an input remapped before is copied from the cache instead.
+     * @param inputMidiFile The MIDI file to process.
+     * @param outputFile The file to write.
+     * @param options The processing options.
+     * @throws InvalidMidiDataException If the MIDI data is invalid.
+     * @throws IOException If an I/O error occurs.
+     */
+    public void remapFile(File inputMidiFile, File outputFile, RemapOptions options) throws InvalidMidiDataException, IOException {
+        log.status("\nProcessing MIDI file: " + inputMidiFile.getName() + "...");
+        String name = inputMidiFile.getName();
+        RemapFlightEvents.FileRemap fileEvent = new RemapFlightEvents.FileRemap();
+        fileEvent.begin();
+        if (options.getOutputCache() == null || options.getRuleHitCounters() != null) {
+            fileEvent.bytes = inputMidiFile.length();
+            Sequence original = load(new BufferedInputStream(Files.newInputStream(inputMidiFile.toPath())), name, fileEvent.bytes);
+            fileEvent.eventCount = RemapFlightEvents.countEvents(original);
+            writeRemapped(original, outputFile, options, name);
+            commit(fileEvent, name, outputFile.length());
+            return;
+        }
+        byte[] input = Files.readAllBytes(inputMidiFile.toPath());
+        fileEvent.bytes = input.length;
+        String cacheKey = cacheKey(ByteBuffer.wrap(input), options, options.getMemoryBudgetBytes() > 0);
+        if (options.getOutputCache().copyTo(cacheKey, outputFile.toPath())) {
+            log.status("  Identical input remapped before; output copied from the cache to: " + outputFile.getAbsolutePath());
+            fileEvent.cached = true;
+            commit(fileEvent, name, outputFile.length());
+            return;
+        }
+        Sequence original = load(new ByteArrayInputStream(input), name, input.length);
+        fileEvent.eventCount = RemapFlightEvents.countEvents(original);
+        if (writeRemapped(original, outputFile, options, name)) {
+            options.getOutputCache().put(cacheKey, outputFile.toPath());
+        }
+        commit(fileEvent, name, outputFile.length());
+    }
+
+    /**
+     * Reads a MIDI file, recording a flight recorder event for it. The stream is closed.
+     * @param in The file's bytes. Must support mark/reset.
+     * @param name The name of the file, or null if unknown.
+     * @param bytes The size of the file.
+     */
+    private static Sequence load(InputStream in, String name, long bytes) throws InvalidMidiDataException, IOException {
+        RemapFlightEvents.FileLoad loadEvent = new RemapFlightEvents.FileLoad();
+        loadEvent.begin();
+        Sequence sequence;
+        try (InputStream file = in) {
+            sequence = MidiSystem.getSequence(file);
+        }
+        loadEvent.end();
+        if (loadEvent.shouldCommit()) {
+            loadEvent.fileName = name;
+            loadEvent.bytes = bytes;
+            loadEvent.trackCount = sequence.getTracks().length;
+            loadEvent.eventCount = RemapFlightEvents.countEvents(sequence);
+            loadEvent.commit();
+        }
+        return sequence;
+    }
+
+    private static void commit(RemapFlightEvents.FileRemap fileEvent, String name, long outputBytes) {
+        fileEvent.end();
+        if (fileEvent.shouldCommit()) {
+            fileEvent.fileName = name;
+            fileEvent.outputBytes = outputBytes;
+            fileEvent.commit();
+        }
+    }
+
+    /**
+     * Commits the event of a written output.
+     * @param output The sequence written, or null if it was streamed from spilled runs.
+     */
+    private static void commit(RemapFlightEvents.OutputWrite writeEvent, String name, Sequence output, long bytes) {
+        writeEvent.end();
+        if (writeEvent.shouldCommit()) {
+            writeEvent.fileName = name;
+            writeEvent.bytes = bytes;
+            if (output != null) {
+                writeEvent.trackCount = output.getTracks().length;
+                writeEvent.eventCount = RemapFlightEvents.countEvents(output);
+            } else {
+                writeEvent.eventCount = -1;
+            }
+            writeEvent.commit();
+        }
+    }
+
+    /**
+     * Returns the output cache key of an input, or null if the options do not use the cache.
+     * @param spilled True if the output is written by the spilling store rather than {@link MidiSystem}.
+     */
+    private String cacheKey(ByteBuffer input, RemapOptions options, boolean spilled) {
+        if (options.getOutputCache() == null || options.getRuleHitCounters() != null) {
+            return null;
+        }
+        return RemapOutputCache.key(input, rules.fingerprint() + "/v" + OUTPUT_VERSION + (options.isCompactTracks() ? "/compact" : "")
+                + (options.isThinEvents() ? "/thin" : "") + (options.getTargetResolution() > 0 ? "/ppq" + options.getTargetResolution() : "")
+                + (spilled ? "/spilled" : ""));
+    }
+
+    /**
+     * Remaps a sequence and writes it to a file, spilling output tracks to disk if the options set a memory budget.
+     * @return True if the file was written.
+     */
+    private boolean writeRemapped(Sequence originalSequence, File outputFile, RemapOptions options, String sourceName) throws InvalidMidiDataException, IOException {
+        if (options.getMemoryBudgetBytes() > 0) {
+            try (SpillingTrackStore spillingStore = new SpillingTrackStore(options.getMemoryBudgetBytes())) {
+                remapTracks(originalSequence, spillingStore::createTrack, null, options, sourceName);
+                if (options.isCompactTracks()) {
+                    log.warning("  Track compaction is not available when output is spilled to disk; writing tracks as split.");
+                }
+                // Stream the stored tracks (End of Track is added by the writer)
+                log.status("  Saving the combined MIDI sequence to: " + outputFile.getAbsolutePath());
+                RemapFlightEvents.OutputWrite writeEvent = new RemapFlightEvents.OutputWrite();
+                writeEvent.begin();
+                spillingStore.writeTo(outputFile, outputDivisionType(originalSequence, options), outputResolution(originalSequence, options));
+                writeEvent.trackCount = spillingStore.getTrackCount();
+                commit(writeEvent, sourceName, null, outputFile.length());
+                log.status("  File generated with " + spillingStore.getTrackCount() + " tracks (" + spillingStore.getSpilledRunCount() + " event runs spilled to disk).");
+            }
+            return true;
+        }
+
+        Sequence combinedSequence = remap(originalSequence, options, sourceName);
+        log.status("  Saving the combined MIDI sequence to: " + outputFile.getAbsolutePath());
+        int[] supportedFileTypes = MidiSystem.getMidiFileTypes(combinedSequence);
+        if (supportedFileTypes.length > 0) {
+            RemapFlightEvents.OutputWrite writeEvent = new RemapFlightEvents.OutputWrite();
+            writeEvent.begin();
+            MidiSystem.write(combinedSequence, supportedFileTypes[0], outputFile);
+            commit(writeEvent, sourceName, combinedSequence, outputFile.length());
+            log.status("  File generated with " + combinedSequence.getTracks().length + " tracks.");
+            return true;
+        }
+        log.error("No supported MIDI file type found for the generated sequence. File not saved.", null);
+        return false;
+    }
+
+    /**
+     * Remaps a MIDI file and writes each output track as its own Standard MIDI File (a "stem"), for tools that
+     * want one file per program, channel and segment. Every stem is a type 1 file holding the global track
+     * (tempo, time signature, markers and other meta and system exclusive events) followed by the stem's track.
+     * <p>
+     * The global track is encoded once and its bytes are shared by all stems; the stems are then encoded in
+     * parallel, each reading its own track of the remapped sequence. Compaction, the memory budget and the
+     * output cache do not apply to stems.
+     * @param inputMidiFile The MIDI file to process.
+     * @param outputFolder The folder the stems are written to, named by {@link #stemFileName}.
+     * @param options The processing options.
+     * @return The stem files written, in track order.
+     * @throws InvalidMidiDataException If the MIDI data is invalid.
+     * @throws IOException If a stem cannot be written.
+     */
+    public List<File> remapFileToStems(File inputMidiFile, File outputFolder, RemapOptions options) throws InvalidMidiDataException, IOException {
+        log.status("\nProcessing MIDI file into stems: " + inputMidiFile.getName() + "...");
+        String name = inputMidiFile.getName();
+        RemapFlightEvents.FileRemap fileEvent = new RemapFlightEvents.FileRemap();
+        fileEvent.begin();
+        fileEvent.bytes = inputMidiFile.length();
+        Sequence original = load(new BufferedInputStream(Files.newInputStream(inputMidiFile.toPath())), name, fileEvent.bytes);
+        fileEvent.eventCount = RemapFlightEvents.countEvents(original);
+        if (options.isCompactTracks() || options.getMemoryBudgetBytes() > 0) {
+            log.warning("  Track compaction and the output memory limit do not apply to stems; writing every track as split.");
+        }
+        List<ProgramChannelKey> trackKeys = new ArrayList<>();
+        Sequence combinedSequence = split(original, options, name, trackKeys);
+        Track[] tracks = combinedSequence.getTracks();
+
+        ByteBuffer globalChunk = null;
+        List<Integer> stemTracks = new ArrayList<>();
+        for (int i = 0; i < tracks.length; i++) {
+            if ("GLOBAL".equals(trackKeys.get(i).type)) {
+                globalChunk = SmfWriter.encodeTrack(tracks[i]);
+            } else {
+                stemTracks.add(i);
+            }
+        }
+        ByteBuffer sharedGlobalChunk = globalChunk;
+        File[] stemFiles = new File[stemTracks.size()];
+        try {
+            IntStream.range(0, stemFiles.length).parallel().forEach(stem -> {
+                int trackIndex = stemTracks.get(stem);
+                stemFiles[stem] = new File(outputFolder, stemFileName(name, stem + 1, trackKeys.get(trackIndex)));
+                try {
+                    writeStem(combinedSequence, tracks[trackIndex], sharedGlobalChunk, stemFiles[stem]);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        long outputBytes = 0;
+        for (File stemFile : stemFiles) {
+            outputBytes += stemFile.length();
+        }
+        log.status("  Wrote " + stemFiles.length + " stem file(s) to: " + outputFolder.getAbsolutePath());
+        commit(fileEvent, name, outputBytes);
+        return Arrays.asList(stemFiles);
+    }
+
+    /**
+     * Writes one stem: the shared global track chunk, if any, and the stem's track.
+     */
+    private static void writeStem(Sequence sequence, Track track, ByteBuffer globalChunk, File stemFile) throws IOException {
+        RemapFlightEvents.OutputWrite writeEvent = new RemapFlightEvents.OutputWrite();
+        writeEvent.begin();
+        try (FileChannel out = FileChannel.open(stemFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+             SmfWriter writer = new SmfWriter(out)) {
+            writer.writeHeader(1, globalChunk != null ? 2 : 1, sequence.getDivisionType(), sequence.getResolution());
+            if (globalChunk != null) {
+                writer.writeRaw(globalChunk.duplicate());
+            }
+            writer.beginTrack();
+            for (int i = 0; i < track.size(); i++) {
+                MidiEvent event = track.get(i);
+                MidiMessage message = event.getMessage();
+                writer.writeEvent(event.getTick(), message.getMessage(), 0, message.getLength());
+            }
+            writer.endTrack();
+        }
+        writeEvent.end();
+        if (writeEvent.shouldCommit()) {
+            writeEvent.fileName = stemFile.getName();
+            writeEvent.bytes = stemFile.length();
+            writeEvent.trackCount = globalChunk != null ? 2 : 1;
+            writeEvent.eventCount = track.size();
+            writeEvent.commit();
+        }
+    }
+
+    /**
+     * Returns the name of a stem file: the input name, the stem's number and what the stem holds.
+     * @param inputFileName The input file name.
+     * @param stem The stem's number, from 1.
+     * @param key The key of the stem's output track.
+     * @return The stem file name, for example {@code song_stem03_P25_Ch2_MELODIC_Seg1.mid}.
+     */
+    static String stemFileName(String inputFileName, int stem, ProgramChannelKey key) {
+        return baseName(inputFileName) + String.format("_stem%02d", stem)
+                + "_P" + Patch.format(key.remappedProgramForSegment).replace(':', '-') + "_Ch" + (key.effectiveChannel + 1)
+                + "_" + key.type + "_Seg" + key.segmentIndex + ".mid";
+    }
+
+    /**
+     * Returns a MIDI file name without its .mid or .midi extension, in any case. Other names are returned unchanged.
+     */
+    private static String baseName(String inputFileName) {
+        int dot = inputFileName.lastIndexOf('.');
+        if (dot > 0) {
+            String extension = inputFileName.substring(dot + 1).toLowerCase();
+            if (extension.equals("mid") || extension.equals("midi")) {
+                return inputFileName.substring(0, dot);
+            }
+        }
+        return inputFileName;
+    }
+
+    /**
+     * Returns the name of the output file for an input MIDI file name.
+     * @param inputFileName The input file name.
+     * @return The output file name.
+     */
+    public static String outputFileName(String inputFileName) {
+        return inputFileName.replace(".mid", "").replace(".midi", "") + OUTPUT_FILE_SUFFIX;
+    }
+
+    /**
+     * Replaces specific characters in a MIDI track label.
+     * @param trackLabel The original track label string.
+     * @return The modified track label string.
+     */
+    public static String replaceMidiTrackLabels(String trackLabel) {
+        if (trackLabel == null || trackLabel.isEmpty()) {
+            return trackLabel;
+        }
+        String replacedLabel = trackLabel.replace("[", "loopStart");
+        replacedLabel = replacedLabel.replace("]", "loopEnd");
+        return replacedLabel;
+    }
+
+    /**
+     * Takes this thread's working state, or a fresh one if it is already in use further up the call stack
+     * (a log callback that remaps another sequence, for example).
+     */
+    private RemapState acquireState() {
+        RemapState state = states.get();
+        if (state.inUse) {
+            state = new RemapState();
+        }
+        state.inUse = true;
+        state.reset();
+        return state;
+    }
+
+    /**
+     * Remaps the events of every track of a sequence into output tracks.
+     * @param originalSequence The sequence to remap.
+     * @param outputTrackFactory Creates an output track.
+     * @param trackKeys If not null, receives the key of every created output track, in creation order.
+     * @param options The rule hit counters and channel parallelism of the run.
+     * @param sourceName The name of the file the sequence was read from, or null if unknown.
+     */
+    private void remapTracks(Sequence originalSequence, Supplier<MidiTrackSink> outputTrackFactory, List<ProgramChannelKey> trackKeys,
+                             RemapOptions options, String sourceName) {
+        RuleHitCounters ruleHitCounters = options.getRuleHitCounters();
+        if (ruleHitCounters != null && ruleHitCounters.getRules() != rules) {
+            throw new IllegalArgumentException("Rule hit counters belong to another rule set");
+        }
+        log.status("  Original sequence has " + originalSequence.getTracks().length + " tracks.");
+        log.status("  Tick resolution: " + originalSequence.getResolution() + " ticks per " +
+                (originalSequence.getDivisionType() == Sequence.PPQ ? "quarter note" : "frame"));
+
+        RemapState state = acquireState();
+        state.run.sourceName = sourceName;
+        state.thinOutput = options.isThinEvents(); // Cleared by the pre-scan if the file cannot be thinned safely
+        state.retime = needsRetiming(originalSequence, options);
+        if (state.retime) {
+            state.timebase.reset(originalSequence.getDivisionType(), originalSequence.getResolution(), options.getTargetResolution());
+            log.status("  Converting the timebase to " + options.getTargetResolution() + " ticks per quarter note.");
+        }
+        try {
+            // Output tracks are created after the pre-scan, so the factories know by then whether to thin them,
+            // and the timebase converter has the tempo map
+            Supplier<MidiTrackSink> retimedFactory = !state.retime ? outputTrackFactory : () -> state.timebase.wrap(outputTrackFactory.get());
+            Supplier<MidiTrackSink> trackFactory = !options.isThinEvents() ? retimedFactory
+                    : () -> state.thinOutput ? new ThinningTrackSink(retimedFactory.get(), state.thinningSavings) : retimedFactory.get();
+            remapEvents(originalSequence, trackFactory, state, options);
+            if (state.eventProcessingErrors > 0) {
+                log.warning("Encountered " + state.eventProcessingErrors + " errors during event processing.");
+            }
+            if (state.thinOutput) {
+                log.status("  Thinning: dropped " + state.thinningSavings.events + " redundant controller, program change, pitch bend and pressure event(s) ("
+                        + state.thinningSavings.bytes + " bytes).");
+            } else if (options.isThinEvents()) {
+                log.status("  Thinning skipped: a channel's controllers are spread over several tracks, or system exclusive messages follow the start.");
+            }
+            if (trackKeys != null) {
+                trackKeys.addAll(state.programTracks.keySet());
+            }
+        } finally {
+            state.programTracks.clear();
+            state.run.eventsToAdd.clear();
+            Arrays.fill(state.activeNoteTrack, null); // Notes never ended must not keep the output reachable
+            state.inUse = false;
+        }
+    }
+
+    /**
+     * Remaps the events of a sequence. Multi-track sequences are remapped in a single pass over the tracks;
+     * single-track (type 0) sequences are split into channel runs first, see {@link #remapChannelRuns}.
+     */
+    private void remapEvents(Sequence originalSequence, Supplier<MidiTrackSink> outputTrackFactory, RemapState state, RemapOptions options) {
+        Track[] originalTracks = originalSequence.getTracks();
+        RuleHitCounters ruleHitCounters = options.getRuleHitCounters();
+        if (originalTracks.length == 1) {
+            log.status("  Processing original track 1 of 1 by channel...");
+            remapChannelRuns(originalTracks[0], outputTrackFactory, state, options);
+            return;
+        }
+
+        // Pre-scan to find the first explicit program change for each channel, and the channels carrying notes.
+        // Channels the file plays notes on itself are reserved, so drum content moved to a melodic channel avoids them
+        for (int trackIndex = 0; trackIndex < originalTracks.length; trackIndex++) {
+            Track originalTrack = originalTracks[trackIndex];
+            for (int i = 0; i < originalTrack.size(); i++) {
+                prescan(originalTrack.get(i), trackIndex, state);
+            }
+        }
+        if (state.retime) {
+            state.timebase.prepare();
+        }
+
+        boolean verbose = log.isVerbose();
+        long[] ruleHits = ruleHitCounters != null ? ruleHitCounters.localCounts() : null;
+        LongAdder eventCounter = options.getEventCounter();
+        EventRun run = state.run;
+        run.trackFactory = outputTrackFactory;
+        run.eventProcessingErrors = 0;
+        run.notePlans = options.isSpecializedRules() && ruleHits == null && !verbose;
+
+        // Iterate through each track in the original MIDI sequence
+        for (int trackIndex = 0; trackIndex < originalTracks.length; trackIndex++) {
+            Track originalTrack = originalTracks[trackIndex];
+            if (verbose) log.status("  Processing original track " + (trackIndex + 1) + " of " + originalTracks.length + "...");
+
+            // Iterate through each MIDI event in the current original track
+            int countedEvents = 0;
+            for (int i = 0; i < originalTrack.size(); i++) {
+                // Log progress periodically
+                if (i % 1000 == 0 && i > 0) {
+                    if (verbose) log.status("    Processed " + i + " events in current track...");
+                    if (eventCounter != null) {
+                        eventCounter.add(i - countedEvents);
+                        countedEvents = i;
+                    }
+                }
+                run.sourceIndex = i;
+                remapEvent(originalTrack.get(i), state, run, ruleHits, verbose);
+            }
+            if (eventCounter != null) {
+                eventCounter.add(originalTrack.size() - countedEvents);
+            }
+        }
+        state.eventProcessingErrors += run.eventProcessingErrors;
+    }
+
+    /**
+     * Records a pre-scan event: the first explicit program change of its channel, as a patch with the bank selected
+     * before it, or a channel carrying notes.
+     * Also clears {@link RemapState#thinOutput} if the event makes thinning unsafe: thinning compares the events
+     * of an output track in the order they are added, which is only tick order if all non-note events of a
+     * channel come from one source track, and a system exclusive message after the start may reset any channel.
+     * @param trackIndex The index of the event's source track.
+     */
+    private static void prescan(MidiEvent event, int trackIndex, RemapState state) {
+        MidiMessage message = event.getMessage();
+        if (message instanceof ShortMessage) {
+            ShortMessage sm = (ShortMessage) message;
+            if (sm.getCommand() == ShortMessage.NOTE_ON || sm.getCommand() == ShortMessage.NOTE_OFF) {
+                state.melodicChannelAllocator.reserve(sm.getChannel());
+                return;
+            }
+            if (sm.getCommand() == ShortMessage.CONTROL_CHANGE && sm.getData1() == 0) {
+                state.scanBankMSB[sm.getChannel()] = sm.getData2();
+            } else if (sm.getCommand() == ShortMessage.CONTROL_CHANGE && sm.getData1() == 32) {
+                state.scanBankLSB[sm.getChannel()] = sm.getData2();
+            } else if (sm.getCommand() == ShortMessage.PROGRAM_CHANGE && state.firstProgram[sm.getChannel()] < 0) {
+                state.firstProgram[sm.getChannel()] = Patch.pack(state.scanBankMSB[sm.getChannel()], state.scanBankLSB[sm.getChannel()], sm.getData1());
+            }
+            int sourceTrack = state.channelEventTrack[sm.getChannel()];
+            if (sourceTrack == NO_TRACK) {
+                state.channelEventTrack[sm.getChannel()] = trackIndex;
+            } else if (sourceTrack != trackIndex) {
+                state.channelEventTrack[sm.getChannel()] = SEVERAL_TRACKS;
+                state.thinOutput = false;
+            }
+        } else if (message instanceof SysexMessage && event.getTick() > 0) {
+            state.thinOutput = false;
+        } else if (message instanceof MetaMessage && ((MetaMessage) message).getType() == META_TEMPO && state.retime
+                && state.timebase.needsTempoMap()) {
+            byte[] data = ((MetaMessage) message).getData();
+            if (data.length == 3) {
+                state.timebase.addTempo(event.getTick(), ((data[0] & 0xFF) << 16) | ((data[1] & 0xFF) << 8) | (data[2] & 0xFF));
+            }
+        }
+    }
+
+    /**
+     * Returns true if the options convert the timebase of a sequence.
+     */
+    private static boolean needsRetiming(Sequence sequence, RemapOptions options) {
+        return options.getTargetResolution() > 0
+                && (sequence.getDivisionType() != Sequence.PPQ || sequence.getResolution() != options.getTargetResolution());
+    }
+
+    private static float outputDivisionType(Sequence sequence, RemapOptions options) {
+        return needsRetiming(sequence, options) ? Sequence.PPQ : sequence.getDivisionType();
+    }
+
+    private static int outputResolution(Sequence sequence, RemapOptions options) {
+        return needsRetiming(sequence, options) ? options.getTargetResolution() : sequence.getResolution();
+    }
+
+    /**
+     * Remaps a single-track (type 0) sequence one channel at a time. One linear pass over the track does the
+     * pre-scan and builds an index of the positions of each channel's events, with a last run for meta and
+     * system exclusive events. Each run is then remapped as a contiguous block into its own buffered tracks,
+     * and the runs are merged back in source order, so the output is the same as from a single pass.
+     * <p>
+     * Runs only share the melodic channel allocator, which only the drum channel's run uses and whose
+     * reservations are all made in the pre-scan, so they can be remapped in parallel.
+     * @param options The rule hit counters, event counter and channel parallelism of the run.
+     */
+    private void remapChannelRuns(Track track, Supplier<MidiTrackSink> outputTrackFactory, RemapState state, RemapOptions options) {
+        RuleHitCounters ruleHitCounters = options.getRuleHitCounters();
+        LongAdder eventCounter = options.getEventCounter();
+        int eventCount = track.size();
+        MidiEvent[] events = state.sourceEvents.length >= eventCount ? state.sourceEvents : (state.sourceEvents = new MidiEvent[eventCount]);
+        int[][] runIndex = state.runIndex;
+        int[] runSize = state.runSize;
+        for (int i = 0; i < eventCount; i++) {
+            MidiEvent event = track.get(i);
+            events[i] = event;
+            MidiMessage message = event.getMessage();
+            prescan(event, 0, state);
+            int runId = message instanceof ShortMessage ? ((ShortMessage) message).getChannel() : GLOBAL_RUN;
+            if (runSize[runId] == runIndex[runId].length) {
+                runIndex[runId] = Arrays.copyOf(runIndex[runId], Math.max(64, runSize[runId] * 2));
+            }
+            runIndex[runId][runSize[runId]++] = i;
+        }
+        if (state.retime) {
+            state.timebase.prepare();
+        }
+
+        try {
+            boolean verbose = log.isVerbose();
+            EventRun[] runs = new EventRun[RUN_COUNT];
+            for (int runId = 0; runId < RUN_COUNT; runId++) {
+                if (runSize[runId] > 0) {
+                    EventRun run = new EventRun(new LinkedHashMap<>());
+                    run.trackFactory = () -> new BufferedTrack(run);
+                    run.notePlans = options.isSpecializedRules() && ruleHitCounters == null && !verbose;
+                    run.sourceName = state.run.sourceName;
+                    runs[runId] = run;
+                }
+            }
+            IntStream runIds = IntStream.range(0, RUN_COUNT).filter(runId -> runs[runId] != null);
+            (options.isParallelChannels() ? runIds.parallel() : runIds).forEach(runId -> {
+                EventRun run = runs[runId];
+                long[] ruleHits = ruleHitCounters != null ? ruleHitCounters.localCounts() : null;
+                int[] positions = runIndex[runId];
+                for (int j = 0; j < runSize[runId]; j++) {
+                    run.sourceIndex = positions[j];
+                    remapEvent(events[positions[j]], state, run, ruleHits, verbose);
+                }
+                if (eventCounter != null) {
+                    eventCounter.add(runSize[runId]);
+                }
+            });
+            mergeRuns(runs, outputTrackFactory, state);
+        } finally {
+            Arrays.fill(events, 0, eventCount, null); // Do not keep the sequence reachable from the thread's state
+            Arrays.fill(runSize, 0);
+        }
+    }
+
+    /**
+     * Merges the buffered tracks of the channel runs into output tracks. Output tracks are created in the order
+     * of the source event that first created them, and runs that created the same track are interleaved by
+     * source position, keeping the track name of the first run only.
+     */
+    private static void mergeRuns(EventRun[] runs, Supplier<MidiTrackSink> outputTrackFactory, RemapState state) {
+        Map<ProgramChannelKey, List<BufferedTrack>> tracksByKey = new HashMap<>();
+        for (EventRun run : runs) {
+            if (run != null) {
+                state.eventProcessingErrors += run.eventProcessingErrors;
+                for (Map.Entry<ProgramChannelKey, MidiTrackSink> entry : run.programTracks.entrySet()) {
+                    tracksByKey.computeIfAbsent(entry.getKey(), k -> new ArrayList<>(1)).add((BufferedTrack) entry.getValue());
+                }
+            }
+        }
+        List<Map.Entry<ProgramChannelKey, List<BufferedTrack>>> outputTracks = new ArrayList<>(tracksByKey.entrySet());
+        for (Map.Entry<ProgramChannelKey, List<BufferedTrack>> outputTrack : outputTracks) {
+            outputTrack.getValue().sort(Comparator.comparingInt(t -> t.firstSource));
+        }
+        outputTracks.sort(Comparator.comparingInt(e -> e.getValue().get(0).firstSource));
+
+        for (Map.Entry<ProgramChannelKey, List<BufferedTrack>> outputTrack : outputTracks) {
+            MidiTrackSink target = outputTrackFactory.get();
+            state.programTracks.put(outputTrack.getKey(), target);
+            List<BufferedTrack> parts = outputTrack.getValue();
+            int[] next = new int[parts.size()];
+            for (int p = 1; p < parts.size(); p++) {
+                BufferedTrack part = parts.get(p);
+                if (part.size > 0 && part.events[0].getMessage() instanceof MetaMessage
+                        && ((MetaMessage) part.events[0].getMessage()).getType() == 0x03) {
+                    next[p] = 1; // Skip the track name the later run gave its copy of the track
+                }
+            }
+            while (true) {
+                int best = -1;
+                for (int p = 0; p < parts.size(); p++) {
+                    BufferedTrack part = parts.get(p);
+                    if (next[p] < part.size && (best < 0 || part.sources[next[p]] < parts.get(best).sources[next[best]])) {
+                        best = p;
+                    }
+                }
+                if (best < 0) {
+                    break;
+                }
+                target.add(parts.get(best).events[next[best]++]);
+            }
+        }
+    }
+
+    /**
+     * Remaps one source event into the output tracks of a run.
+     * @param run The run the event belongs to; receives the remapped events and counts errors.
+     * @param ruleHits This thread's rule hit counts, or null if rule hits are not counted.
+     */
+    private void remapEvent(MidiEvent event, RemapState state, EventRun run, long[] ruleHits, boolean verbose) {
+        MidiMessage message = event.getMessage();
+        MidiEvent eventToProcess = event;
+        List<MidiEvent> eventsToAdd = run.eventsToAdd; // For bank selects and layered notes
+        eventsToAdd.clear();
+
+        // Process ShortMessages (Note On/Off, Program Change, etc.)
+        if (message instanceof ShortMessage) {
+            ShortMessage sm = (ShortMessage) message;
+            int command = sm.getCommand();
+            int originalChannel = sm.getChannel();
+
+            if (command == ShortMessage.CONTROL_CHANGE) {
+                int controller = sm.getData1();
+                int value = sm.getData2();
+                if (controller == 0) {
+                    state.bankMSB[originalChannel] = value;
+                    state.outputBank[originalChannel] = (value << 7) | (state.outputBank[originalChannel] & 0x7F);
+                }
+                else if (controller == 32) {
+                    state.bankLSB[originalChannel] = value;
+                    state.outputBank[originalChannel] = (state.outputBank[originalChannel] & ~0x7F) | value;
+                }
+            }
+
+            int segmentIndexForCurrentEvent;
+            ProgramRemapInfo currentRemapInfoForOriginalChannel;
+            int currentProgramForOriginalChannel; // This is the remapped program for the segment context
+
+            // Initialize program remapping info for a channel if it's the first event for that channel
+            if (state.remapInfo[originalChannel] == null) {
+                segmentIndexForCurrentEvent = 0;
+                state.segmentIndex[originalChannel] = 0;
+
+                ProgramRemapInfo initialRemapInfo = null;
+                int determinedInitialOriginalProgram = -1;
+
+                if (state.firstProgram[originalChannel] >= 0) {
+                    determinedInitialOriginalProgram = state.firstProgram[originalChannel];
+                    if (verbose) log.status("    First explicit PC for Original Ch " + (originalChannel + 1) + " is P" + Patch.format(determinedInitialOriginalProgram) + ".");
+                } else {
+                    // MIDI default program 0, in the bank selected so far (drum kits are bank LSB 1)
+                    determinedInitialOriginalProgram = Patch.pack(state.bankMSB[originalChannel], state.bankLSB[originalChannel], 0);
+                    if (verbose) log.status("    No explicit PC found for Original Ch " + (originalChannel + 1) + ". Initializing to MIDI Default Program " + Patch.format(determinedInitialOriginalProgram) + ".");
+                }
+
+                // Find a matching program change remapping rule
+                UnifiedRemapRule initialRule = rules.programChangeRule(rules.indexOf(determinedInitialOriginalProgram), originalChannel);
+                if (initialRule != null) {
+                    initialRemapInfo = new ProgramRemapInfo(initialRule.originalProgram, initialRule.remappedProgram, initialRule.channelType, null);
+                }
+
+                // If no specific rule found for the determined initial program, default to remapping to itself
+                if (initialRemapInfo == null) {
+                    int contextPatch = rules.contextPatch(determinedInitialOriginalProgram);
+                    String defaultType = rules.originalDefaultChannelType(contextPatch, "MELODIC");
+                    initialRemapInfo = new ProgramRemapInfo(contextPatch, contextPatch, defaultType, null);
+                }
+
+                currentRemapInfoForOriginalChannel = initialRemapInfo;
+                state.remapInfo[originalChannel] = currentRemapInfoForOriginalChannel;
+                currentProgramForOriginalChannel = currentRemapInfoForOriginalChannel.remappedProgram;
+                if (verbose) log.status("    First event on Original Ch " + (originalChannel + 1) + ". Initial segment context: Orig P" + currentRemapInfoForOriginalChannel.originalProgramThatSetThisContext + ", Remap P" + currentProgramForOriginalChannel + ", Type: " + currentRemapInfoForOriginalChannel.channelType + ".");
+
+            } else {
+                segmentIndexForCurrentEvent = state.segmentIndex[originalChannel];
+                currentRemapInfoForOriginalChannel = state.remapInfo[originalChannel];
+                currentProgramForOriginalChannel = currentRemapInfoForOriginalChannel.remappedProgram;
+            }
+
+            // --- Apply Program Change Remapping ---
+            if (command == ShortMessage.PROGRAM_CHANGE) {
+                int originalProgramNumber = sm.getData1();
+                ProgramRemapInfo newRemapInfoForChannel = null;
+
+                int patchNumber = Patch.pack(state.bankMSB[originalChannel], state.bankLSB[originalChannel], originalProgramNumber);
+
+                // Find a matching program change remapping rule
+                UnifiedRemapRule programChangeRule = rules.programChangeRule(rules.indexOf(patchNumber), originalChannel);
+                if (programChangeRule != null) {
+                    if (ruleHits != null) {
+                        ruleHits[programChangeRule.index]++;
+                    }
+                    newRemapInfoForChannel = new ProgramRemapInfo(programChangeRule.originalProgram, programChangeRule.remappedProgram, programChangeRule.channelType, null);
+                }
+                // If no specific rule found, default to remapping to itself with its original type. The context keeps
+                // the bank when rules name the banked patch, so its note rules and default type apply
+                if (newRemapInfoForChannel == null) {
+                    int contextPatch = rules.contextPatch(patchNumber);
+                    String defaultType = rules.originalDefaultChannelType(contextPatch, "MELODIC");
+                    newRemapInfoForChannel = new ProgramRemapInfo(contextPatch, contextPatch, defaultType, null);
+                }
+
+                // Check if this program change triggers a new segment
+                boolean shouldTriggerNewSegment = !newRemapInfoForChannel.equals(currentRemapInfoForOriginalChannel);
+
+                if (shouldTriggerNewSegment) {
+                    // The melodic channel used by the segment that just ended can be handed out again.
+                    // Only drum channel segments own one, and only the drum channel's run may touch the allocator
+                    if (originalChannel == DRUM_CHANNEL) {
+                        int releasedChannel = state.melodicChannelAllocator.release(MelodicChannelAllocator.segmentKey(originalChannel, segmentIndexForCurrentEvent));
+                        if (releasedChannel >= 0) {
+                            if (verbose) log.status("    Segment " + segmentIndexForCurrentEvent + " on Original Ch " + (originalChannel + 1) + " ended. Released melodic Ch " + (releasedChannel + 1) + ".");
+                        }
+                    }
+                    segmentIndexForCurrentEvent++;
+                    state.segmentIndex[originalChannel] = segmentIndexForCurrentEvent;
+                    if (verbose) log.status("    PC Event at tick " + event.getTick() + " on Original Ch " + (originalChannel + 1) + " triggers new segment. New segment index: " + segmentIndexForCurrentEvent);
+                }
+
+                // Update the current remapping info for this channel
+                state.remapInfo[originalChannel] = newRemapInfoForChannel;
+                currentProgramForOriginalChannel = newRemapInfoForChannel.remappedProgram;
+
+                if (verbose) log.status("    PC Event: Original Prog " + Patch.format(patchNumber) + ", Remapped Prog " + Patch.format(currentProgramForOriginalChannel) + ", Determined Type: " +
+                        newRemapInfoForChannel.channelType + " at tick " + event.getTick() + " (Rule Applied)");
+
+                // A rule selects the bank of its remapped patch: send bank select first if the output is on another bank
+                int remappedBank = Patch.bank(currentProgramForOriginalChannel);
+                if (programChangeRule != null && remappedBank != state.outputBank[originalChannel]) {
+                    try {
+                        ShortMessage bankMsb = new ShortMessage(ShortMessage.CONTROL_CHANGE, originalChannel, 0, Patch.bankMSB(currentProgramForOriginalChannel));
+                        ShortMessage bankLsb = new ShortMessage(ShortMessage.CONTROL_CHANGE, originalChannel, 32, Patch.bankLSB(currentProgramForOriginalChannel));
+                        eventsToAdd.add(new MidiEvent(bankMsb, event.getTick()));
+                        eventsToAdd.add(new MidiEvent(bankLsb, event.getTick()));
+                        state.outputBank[originalChannel] = remappedBank;
+                        if (verbose) log.status("      Bank Select added: MSB " + Patch.bankMSB(currentProgramForOriginalChannel) + ", LSB " + Patch.bankLSB(currentProgramForOriginalChannel));
+                    } catch (InvalidMidiDataException e) {
+                        log.error("Error creating bank select for event at tick " + event.getTick() + ": " + e.getMessage(), e);
+                        run.eventProcessingErrors++;
+                    }
+                }
+
+                // If program number actually changed, create a new Program Change event
+                if (originalProgramNumber != Patch.program(currentProgramForOriginalChannel)) {
+                    ShortMessage remappedSm = new ShortMessage();
+                    try {
+                        remappedSm.setMessage(ShortMessage.PROGRAM_CHANGE, originalChannel, Patch.program(currentProgramForOriginalChannel), 0);
+                        eventToProcess = new MidiEvent(remappedSm, event.getTick());
+                        if (verbose) log.status("      Program Change Event Remapped: " + originalProgramNumber + " -> " + Patch.program(currentProgramForOriginalChannel));
+                    } catch (InvalidMidiDataException e) {
+                        log.error("Error remapping program change for event at tick " + event.getTick() + ": " + e.getMessage() + ". Event will retain its original program.", e);
+                        run.eventProcessingErrors++;
+                    }
+                }
+
+                // For a PC event, the effective channel is the original channel, and type is the segment type
+                ProgramChannelKey logicalTrackKeyForPC = new ProgramChannelKey(
+                        currentProgramForOriginalChannel,
+                        originalChannel,
+                        newRemapInfoForChannel.channelType, // Use the type from the new PC rule
+                        segmentIndexForCurrentEvent
+                );
+
+                MidiTrackSink targetTrack = run.programTracks.computeIfAbsent(logicalTrackKeyForPC, k -> {
+                    MidiTrackSink newTrack = run.trackFactory.get();
+                    segmentCreated(run, k);
+                    String fullTrackName;
+                    fullTrackName = k.effectiveChannel == 9 ? GENERAL_MIDI_DRUM_KITS[Patch.program(k.remappedProgramForSegment)] : GENERAL_MIDI_INSTRUMENT_NAMES[Patch.program(k.remappedProgramForSegment)];
+                    if (verbose) log.status("      Creating new track for " + fullTrackName);
+                    try {
+                        MetaMessage trackNameMessage = new MetaMessage();
+                        trackNameMessage.setMessage(0x03, fullTrackName.getBytes(), fullTrackName.length());
+                        newTrack.add(new MidiEvent(trackNameMessage, 0));
+                    } catch (InvalidMidiDataException e) {
+                        log.error("Error setting track name for " + fullTrackName + ": " + e.getMessage(), e);
+                        run.eventProcessingErrors++;
+                    }
+                    return newTrack;
+                });
+                eventsToAdd.add(eventToProcess); // After any bank select
+                for (MidiEvent finalEvent : eventsToAdd) {
+                    targetTrack.add(finalEvent);
+                }
+
+            }
+            // --- Apply Note Remapping, Octave Shifting, Layering ---
+            else if (command == ShortMessage.NOTE_ON || command == ShortMessage.NOTE_OFF) {
+                ShortMessage currentSm = (ShortMessage) eventToProcess.getMessage();
+                int currentNote = currentSm.getData1();
+                int currentVelocity = currentSm.getData2();
+
+                int finalNote = currentNote;
+                boolean specificRemapApplied = false;
+                // Default the note's channel type to the segment's type
+                String determinedChannelTypeForNote = currentRemapInfoForOriginalChannel.channelType;
+                int programKeyForNoteRules = currentRemapInfoForOriginalChannel.originalProgramThatSetThisContext;
+                int noteRuleIndex = rules.indexOf(programKeyForNoteRules);
+
+                // Rule conditions see a note off with the velocity of the note on it ends, so both take the same rules
+                int noteSlot = (originalChannel << 7) | currentNote;
+
+                // A note off goes to the track, channel and note its note on went to, even if a program change
+                // started another segment in between, so no note is left hanging
+                boolean noteOff = command == ShortMessage.NOTE_OFF || currentVelocity == 0;
+                if (noteOff && state.activeNoteTrack[noteSlot] != null) {
+                    endActiveNote(event, currentSm, state, run, noteSlot);
+                    return;
+                }
+
+                if (command == ShortMessage.NOTE_ON && currentVelocity > 0) {
+                    state.noteOnVelocity[noteSlot] = currentVelocity;
+                }
+                int conditionVelocity = state.noteOnVelocity[noteSlot];
+
+                // The velocity curve of the remapped program applies to the note and its layers
+                int outputVelocity = currentVelocity;
+                if (command == ShortMessage.NOTE_ON && currentVelocity > 0 && !rules.dynamics().isEmpty()) {
+                    outputVelocity = rules.dynamics().velocity(currentProgramForOriginalChannel, currentVelocity);
+                }
+
+                // Notes without conditional or layering rules have their outcome precompiled in the rule set
+                int notePlan = run.notePlans
+                        ? rules.notePlan(noteRuleIndex, "DRUM".equals(currentRemapInfoForOriginalChannel.channelType), currentNote)
+                        : RemapRuleSet.NO_PLAN;
+                if (notePlan != RemapRuleSet.NO_PLAN) {
+                    finalNote = notePlan & 0x7F;
+                    if (notePlan >> 7 == RemapRuleSet.PLAN_DRUM) {
+                        determinedChannelTypeForNote = "DRUM";
+                    } else if (notePlan >> 7 == RemapRuleSet.PLAN_MELODIC) {
+                        determinedChannelTypeForNote = "MELODIC";
+                    }
+                } else {
+                    // --- Step 1: Find a specific note remapping rule for the current note (DRUM rules take precedence) ---
+                    UnifiedRemapRule specificNoteRule = rules.noteRule(noteRuleIndex, currentNote, conditionVelocity, originalChannel);
+
+                    if (specificNoteRule != null) {
+                        if (verbose) log.status("          Found specific " + specificNoteRule.channelType + " note rule for Original Note " + currentNote);
+                        if (ruleHits != null) {
+                            ruleHits[specificNoteRule.index]++;
+                        }
+                        // A specific rule was found, apply its properties
+                        determinedChannelTypeForNote = specificNoteRule.channelType; // This is the crucial override
+                        int remappedNote = specificNoteRule.remapNote(currentNote);
+                        if (remappedNote >= 0 && remappedNote <= 127) {
+                            finalNote = remappedNote;
+                            specificRemapApplied = true;
+                            if (verbose) log.status("          Specific Note Remap Applied: Original " + currentNote + " to " + finalNote + " (Type: " + determinedChannelTypeForNote + ")");
+                        } else {
+                            log.warning("Specific note remapping for note " + currentNote + " results in out-of-range target note: " + remappedNote + ". Rule skipped.");
+                        }
+                    } else {
+                        // No specific note rule found, fall back to "all notes" shift based on segment's determined type
+                        if (verbose) log.status("          No specific note rule found for Original Note " + currentNote + ". Applying general rules based on segment type: " + currentRemapInfoForOriginalChannel.channelType);
+
+                        UnifiedRemapRule[] rulesToConsiderForGeneralShift = rules.shiftRules(noteRuleIndex, "DRUM".equals(currentRemapInfoForOriginalChannel.channelType));
+
+                        // Apply "all notes" shift if no specific remap was applied
+                        if (!specificRemapApplied) {
+                            for (UnifiedRemapRule rule : rulesToConsiderForGeneralShift) {
+                                if (rule.matches(conditionVelocity, originalChannel)) {
+                                    int calculatedNote = finalNote + rule.remappedNoteOrOffset;
+                                    if (calculatedNote >= 0 && calculatedNote <= 127) {
+                                        finalNote = calculatedNote;
+                                        if (ruleHits != null) {
+                                            ruleHits[rule.index]++;
+                                        }
+                                        if (verbose) log.status("          All Notes Shift Applied: Note shifted to " + finalNote + " (from original " + currentNote + ")");
+                                    } else {
+                                        log.warning("All notes shift for note " + finalNote + " results in out-of-range note: " + calculatedNote + ". Rule skipped.");
+                                    }
+                                }
+                            }
+                        }
+                    }
+
+                    // Apply layering rules (these can create additional events and should consider their own channelType)
+                    for (UnifiedRemapRule rule : rules.layerRules(noteRuleIndex)) {
+                        if (rule.matches(conditionVelocity, originalChannel)) {
+                            int layeredNote = currentNote + rule.remappedNoteOrOffset;
+                            if (layeredNote >= 0 && layeredNote <= 127) {
+                                int channelForLayeredNote = originalChannel;
+
+                                if ("DRUM".equals(rule.channelType)) {
+                                    channelForLayeredNote = DRUM_CHANNEL;
+                                } else if ("MELODIC".equals(rule.channelType)) {
+                                    if (originalChannel == DRUM_CHANNEL) {
+                                        int assignedChannel = state.melodicChannelAllocator.allocate(MelodicChannelAllocator.segmentKey(originalChannel, segmentIndexForCurrentEvent));
+                                        if (assignedChannel != -1) {
+                                            channelForLayeredNote = assignedChannel;
+                                        } else {
+                                            log.warning("      Layered note remapped to MELODIC, but no available melodic channel found. Keeping on original Ch " + (originalChannel + 1) + ".");
+                                        }
+                                    }
+                                }
+
+                                ShortMessage layeredSm = new ShortMessage();
+                                try {
+                                    layeredSm.setMessage(command, channelForLayeredNote, layeredNote, outputVelocity);
+                                    if (ruleHits != null) {
+                                        ruleHits[rule.index]++;
+                                    }
+                                    eventsToAdd.add(new MidiEvent(layeredSm, event.getTick()));
+                                    if (verbose) log.status("          Layering Note: Original " + currentNote + " layered to " + layeredNote + " on channel " + (channelForLayeredNote + 1) + " (type: " + rule.channelType + ")");
+                                } catch (InvalidMidiDataException e) {
+                                    log.error("Error creating layered note for event at tick " + event.getTick() + ": " + e.getMessage(), e);
+                                    run.eventProcessingErrors++;
+                                }
+                            } else {
+                                log.warning("Layering for note " + currentNote + " results in out-of-range note: " + layeredNote + ". Layering rule skipped.");
+                            }
+                        }
+                    }
+                }
+
+                // Update the event's note and velocity if they changed
+                ShortMessage updatedSm = (ShortMessage) eventToProcess.getMessage();
+                if (updatedSm.getData1() != finalNote || updatedSm.getData2() != outputVelocity) {
+                    ShortMessage newSm = new ShortMessage();
+                    try {
+                        newSm.setMessage(command, originalChannel, finalNote, outputVelocity);
+                        eventToProcess = new MidiEvent(newSm, event.getTick());
+                    } catch (InvalidMidiDataException e) {
+                        log.error("Error updating note after rule application for event at tick " + event.getTick() + ": " + e.getMessage(), e);
+                        run.eventProcessingErrors++;
+                    }
+                }
+
+                // --- Determine Final Output Channel based on determinedChannelTypeForNote ---
+                int finalOutputChannel = originalChannel;
+
+                if ("DRUM".equals(determinedChannelTypeForNote)) {
+                    finalOutputChannel = DRUM_CHANNEL;
+                } else if ("MELODIC".equals(determinedChannelTypeForNote)) {
+                    if (originalChannel == DRUM_CHANNEL) {
+                        int assignedChannel = state.melodicChannelAllocator.allocate(MelodicChannelAllocator.segmentKey(originalChannel, segmentIndexForCurrentEvent));
+
+                        if (assignedChannel != -1) {
+                            finalOutputChannel = assignedChannel;
+                            if (verbose) log.status("      Note remapped to MELODIC. Rechanneling from Ch " + (originalChannel + 1) + " to available melodic Ch " + (finalOutputChannel + 1));
+                        } else {
+                            finalOutputChannel = originalChannel;
+                            log.warning("      Note remapped to MELODIC, but no available melodic channel found. Keeping on original Ch " + (originalChannel + 1) + ".");
+                        }
+                    } else {
+                        finalOutputChannel = originalChannel;
+                    }
+                }
+
+                // Rechannel the event if the determined final output channel is different
+                ShortMessage finalSm = (ShortMessage) eventToProcess.getMessage();
+                if (finalSm.getChannel() != finalOutputChannel) {
+                    ShortMessage newSm = new ShortMessage();
+                    try {
+                        newSm.setMessage(finalSm.getCommand(), finalOutputChannel, finalSm.getData1(), finalSm.getData2());
+                        eventToProcess = new MidiEvent(newSm, eventToProcess.getTick());
+                        if (verbose) log.status("      Event rechanneled from Ch " + (originalChannel + 1) + " to Ch " + (finalOutputChannel + 1) + " based on note type: " + determinedChannelTypeForNote);
+                    } catch (InvalidMidiDataException e) {
+                        log.error("Error rechanneling event to " + (finalOutputChannel + 1) + " at tick " + event.getTick() + ": " + e.getMessage() + ". Event will retain its original channel.", e);
+                        run.eventProcessingErrors++;
+                    }
+                }
+
+                // Determine the key for the target output track for a NOTE event
+                // This key now includes the effective (final) channel and the determined channel type for the note
+                ProgramChannelKey logicalTrackKeyForNote = new ProgramChannelKey(
+                        currentProgramForOriginalChannel, // The remapped program for the segment context
+                        finalOutputChannel,               // The actual channel the note event is placed on
+                        determinedChannelTypeForNote,     // The specific channel type for this note
+                        segmentIndexForCurrentEvent       // Still grouped by segment
+                );
+
+                MidiTrackSink targetTrack = run.programTracks.computeIfAbsent(logicalTrackKeyForNote, k -> {
+                    MidiTrackSink newTrack = run.trackFactory.get();
+                    segmentCreated(run, k);
+                    String fullTrackName;
+                    // Track name for notes
+                    fullTrackName = "Notes P" + k.remappedProgramForSegment + " (Orig P" + currentRemapInfoForOriginalChannel.originalProgramThatSetThisContext + ", Final Ch " + (k.effectiveChannel + 1) + ") [" + k.type + "]";
+                    fullTrackName += " Segment " + k.segmentIndex;
+
+                    if (verbose) log.status("      Creating new track for " + fullTrackName);
+                    try {
+                        fullTrackName = k.effectiveChannel == 9 ? GENERAL_MIDI_DRUM_KITS[Patch.program(k.remappedProgramForSegment)] : GENERAL_MIDI_INSTRUMENT_NAMES[Patch.program(k.remappedProgramForSegment)];
+                        MetaMessage trackNameMessage = new MetaMessage();
+                        trackNameMessage.setMessage(0x03, fullTrackName.getBytes(), fullTrackName.length());
+                        newTrack.add(new MidiEvent(trackNameMessage, 0));
+                    } catch (InvalidMidiDataException e) {
+                        log.error("Error setting track name for " + fullTrackName + ": " + e.getMessage(), e);
+                        run.eventProcessingErrors++;
+                    }
+                    return newTrack;
+                });
+
+                // Add the processed event (and any layered events) to the target track
+                eventsToAdd.add(0, eventToProcess); // Add the main event first
+                for (MidiEvent finalEvent : eventsToAdd) {
+                    targetTrack.add(finalEvent);
+                }
+                if (!noteOff) {
+                    startActiveNote(state, noteSlot, targetTrack, eventsToAdd);
+                }
+
+            } else { // Handle other ShortMessages (CC, Pitch Bend etc.) and non-ShortMessage events (MetaMessage, SysexMessage)
+                // These will be grouped into tracks based on the original channel's program context and type,
+                // or a general global track for Meta/Sysex messages not specific to a channel.
+
+                ProgramChannelKey logicalTrackKey;
+                String trackTypeForOtherMessages = currentRemapInfoForOriginalChannel.channelType; // Default to segment type
+
+                if (message instanceof MetaMessage) {
+                    // Global events, not tied to a specific channel's program change
+                    logicalTrackKey = new ProgramChannelKey(0, -1, "GLOBAL", 0);
+                    MetaMessage metaMessage = (MetaMessage) message;
+                    if (metaMessage.getType() == 0x06) {
+                        byte[] data = metaMessage.getData();
+                        String originalMarkerText = new String(data, StandardCharsets.UTF_8);
+                        String newMarkerText = replaceMidiTrackLabels(originalMarkerText);
+
+                        if (!originalMarkerText.equals(newMarkerText)) {
+                            if (verbose) log.status("    Marker Text Modified: '" + originalMarkerText + "' -> '" + newMarkerText + "' at tick " + event.getTick());
+                            try {
+                                byte[] newMarkerTextBytes = newMarkerText.getBytes(StandardCharsets.UTF_8);
+                                MetaMessage newMetaMessage = new MetaMessage();
+                                // Set the message type back to 0x06 and provide the new bytes
+                                newMetaMessage.setMessage(metaMessage.getType(), newMarkerTextBytes, newMarkerTextBytes.length);
+                                eventToProcess = new MidiEvent(newMetaMessage, event.getTick()); // Update eventToProcess
+                            } catch (InvalidMidiDataException e) {
+                                log.error("Error creating new MetaMessage for marker at tick " + event.getTick() + ": " + e.getMessage(), e);
+                                run.eventProcessingErrors++;
+                                // Fallback: use original event if modification fails
+                                eventToProcess = event;
+                            }
+                        }
+                    }
+
+                } else {
+                    logicalTrackKey = new ProgramChannelKey(
+                            currentProgramForOriginalChannel,
+                            originalChannel,
+                            trackTypeForOtherMessages,
+                            segmentIndexForCurrentEvent
+                    );
+
+                    // Remap the controller with the tables of the remapped program (bank select is left to the program change rules)
+                    ProgramDynamics dynamics = rules.dynamics();
+                    if (command == ShortMessage.CONTROL_CHANGE && !dynamics.isEmpty() && sm.getData1() != 0 && sm.getData1() != 32) {
+                        int controller = dynamics.controller(currentProgramForOriginalChannel, sm.getData1());
+                        if (controller == ProgramDynamics.DROP_CONTROLLER) {
+                            if (verbose) log.status("      CC " + sm.getData1() + " dropped at tick " + event.getTick() + " (dynamics of P" + Patch.format(currentProgramForOriginalChannel) + ")");
+                            return;
+                        }
+                        int value = dynamics.controllerValue(currentProgramForOriginalChannel, sm.getData1(), sm.getData2());
+                        if (controller != sm.getData1() || value != sm.getData2()) {
+                            try {
+                                eventToProcess = new MidiEvent(new ShortMessage(ShortMessage.CONTROL_CHANGE, originalChannel, controller, value), event.getTick());
+                            } catch (InvalidMidiDataException e) {
+                                log.error("Error remapping controller " + sm.getData1() + " at tick " + event.getTick() + ": " + e.getMessage(), e);
+                                run.eventProcessingErrors++;
+                            }
+                        }
+                    }
+                }
+
+                MidiTrackSink targetTrack = run.programTracks.computeIfAbsent(logicalTrackKey, k -> {
+                    MidiTrackSink newTrack = run.trackFactory.get();
+                    segmentCreated(run, k);
+                    String fullTrackName;
+                    if ("GLOBAL".equals(k.type)) {
+                        fullTrackName = "Global Events";
+                    } else {
+                        if (currentRemapInfoForOriginalChannel.originalProgramThatSetThisContext == -1) {
+                            fullTrackName = "Cntrls Ch " + (k.effectiveChannel + 1) + " (Default P" + k.remappedProgramForSegment + ") [" + k.type + "]";
+                        } else {
+                            fullTrackName = "Cntrls P" + k.remappedProgramForSegment + " (Orig P" + currentRemapInfoForOriginalChannel.originalProgramThatSetThisContext + ", Ch " + (k.effectiveChannel + 1) + ") [" + k.type + "]";
+                        }
+                        fullTrackName += " Segment " + k.segmentIndex;
+                    }
+                    if (verbose) log.status("      Creating new track for " + fullTrackName);
+                    try {
+                        fullTrackName = k.effectiveChannel == 9 ? GENERAL_MIDI_DRUM_KITS[Patch.program(k.remappedProgramForSegment)] : GENERAL_MIDI_INSTRUMENT_NAMES[Patch.program(k.remappedProgramForSegment)];
+                        MetaMessage trackNameMessage = new MetaMessage();
+                        trackNameMessage.setMessage(0x03, fullTrackName.getBytes(), fullTrackName.length());
+                        newTrack.add(new MidiEvent(trackNameMessage, 0));
+                    } catch (InvalidMidiDataException e) {
+                        log.error("Error setting track name for " + fullTrackName + ": " + e.getMessage(), e);
+                        run.eventProcessingErrors++;
+                    }
+                    return newTrack;
+                });
+                targetTrack.add(eventToProcess);
+            }
+        } else { // Handle non-ShortMessage events (MetaMessage, SysexMessage) if not already caught above
+            ProgramChannelKey globalKey = new ProgramChannelKey(0, -1, "GLOBAL", 0); // A unique key for global events
+            MidiTrackSink targetTrack = run.programTracks.computeIfAbsent(globalKey, k -> {
+                MidiTrackSink newTrack = run.trackFactory.get();
+                segmentCreated(run, k);
+                String fullTrackName = "Global Events";
+                if (verbose) log.status("    Creating new track for " + fullTrackName);
+                try {
+                    fullTrackName = k.effectiveChannel == 9 ? GENERAL_MIDI_DRUM_KITS[Patch.program(k.remappedProgramForSegment)] : GENERAL_MIDI_INSTRUMENT_NAMES[Patch.program(k.remappedProgramForSegment)];
+                    MetaMessage trackNameMessage = new MetaMessage();
+                    trackNameMessage.setMessage(0x03, fullTrackName.getBytes(), fullTrackName.length());
+                    newTrack.add(new MidiEvent(trackNameMessage, 0));
+                } catch (InvalidMidiDataException e) {
+                    log.error("Error setting track name for global track: " + e.getMessage(), e);
+                    run.eventProcessingErrors++;
+                }
+                return newTrack;
+            });
+            targetTrack.add(eventToProcess);
+        }
+    }
+
+    /**
+     * Records where a note on went, so its note off can follow it.
+     * @param outputEvents The note on as written, followed by its layered notes.
+     */
+    private static void startActiveNote(RemapState state, int slot, MidiTrackSink track, List<MidiEvent> outputEvents) {
+        state.activeNoteTrack[slot] = track;
+        state.activeNoteOutput[slot] = noteOutput(outputEvents.get(0));
+        int layers = outputEvents.size() - 1;
+        int[] layerOutputs = state.activeLayerOutputs[slot];
+        if (layers > 0 && (layerOutputs == null || layerOutputs.length < layers)) {
+            layerOutputs = state.activeLayerOutputs[slot] = new int[Math.max(4, layers)];
+        }
+        for (int i = 0; i < layers; i++) {
+            layerOutputs[i] = noteOutput(outputEvents.get(i + 1));
+        }
+        state.activeLayerCount[slot] = layers;
+    }
+
+    private static int noteOutput(MidiEvent noteEvent) {
+        ShortMessage sm = (ShortMessage) noteEvent.getMessage();
+        return (sm.getChannel() << 7) | sm.getData1();
+    }
+
+    /**
+     * Writes a note off (or a note on with velocity 0) for a sounding note to the track, channel and note its
+     * note on was written to, and for each of its layered notes, keeping the note off's command and velocity.
+     */
+    private void endActiveNote(MidiEvent event, ShortMessage noteOff, RemapState state, EventRun run, int slot) {
+        MidiTrackSink track = state.activeNoteTrack[slot];
+        state.activeNoteTrack[slot] = null;
+        addNoteOff(track, event, noteOff, state.activeNoteOutput[slot], run);
+        int[] layerOutputs = state.activeLayerOutputs[slot];
+        for (int i = 0; i < state.activeLayerCount[slot]; i++) {
+            addNoteOff(track, event, noteOff, layerOutputs[i], run);
+        }
+    }
+
+    private void addNoteOff(MidiTrackSink track, MidiEvent event, ShortMessage noteOff, int output, EventRun run) {
+        int channel = output >> 7;
+        int note = output & 0x7F;
+        if (noteOff.getChannel() == channel && noteOff.getData1() == note) {
+            track.add(event);
+            return;
+        }
+        try {
+            track.add(new MidiEvent(new ShortMessage(noteOff.getCommand(), channel, note, noteOff.getData2()), event.getTick()));
+        } catch (InvalidMidiDataException e) {
+            log.error("Error creating note off for event at tick " + event.getTick() + ": " + e.getMessage(), e);
+            run.eventProcessingErrors++;
+        }
+    }
+
+    /**
+     * Records the creation of an output track as a flight recorder event.
+     */
+    private static void segmentCreated(EventRun run, ProgramChannelKey key) {
+        RemapFlightEvents.SegmentCreate segmentEvent = new RemapFlightEvents.SegmentCreate();
+        if (segmentEvent.shouldCommit()) {
+            segmentEvent.fileName = run.sourceName;
+            segmentEvent.eventCount = run.sourceIndex;
+            segmentEvent.patch = key.remappedProgramForSegment;
+            segmentEvent.channel = key.effectiveChannel + 1;
+            segmentEvent.type = key.type;
+            segmentEvent.segmentIndex = key.segmentIndex;
+            segmentEvent.commit();
+        }
+    }
+
+    /**
+     * Ensures all output tracks end with an End of Track meta message.
+     */
+    private void addEndOfTrack(Sequence sequence) {
+        for (Track t : sequence.getTracks()) {
+            boolean hasEnd = false;
+            for (int i = 0; i < t.size(); i++) {
+                MidiEvent e = t.get(i);
+                if (e.getMessage() instanceof MetaMessage) {
+                    MetaMessage mm = (MetaMessage) e.getMessage();
+                    if (mm.getType() == 0x2F) { // End of Track meta message
+                        hasEnd = true;
+                        break;
+                    }
+                }
+            }
+            if (!hasEnd) {
+                try {
+                    MetaMessage end = new MetaMessage();
+                    end.setMessage(0x2F, new byte[0], 0); // End of Track message
+                    // Add End of Track at the last tick of the track + 1, or tick 1 if empty
+                    long lastTick = t.size() > 0 ? t.get(t.size() - 1).getTick() + 1 : 1;
+                    t.add(new MidiEvent(end, lastTick));
+                } catch (InvalidMidiDataException e) {
+                    log.error("Failed to add End of Track meta event: " + e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * An input stream over the remaining bytes of a buffer, with mark/reset support.
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+        private int mark = -1;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            Objects.checkFromIndexSize(off, len, b.length);
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(len, buffer.remaining());
+            buffer.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public long skip(long n) {
+            int count = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readLimit) {
+            mark = buffer.position();
+        }
+
+        @Override
+        public synchronized void reset() throws IOException {
+            if (mark < 0) {
+                throw new IOException("Stream not marked");
+            }
+            buffer.position(mark);
+        }
+    }
+}
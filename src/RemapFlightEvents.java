@@ -0,0 +1,173 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import javax.sound.midi.Sequence;
+import javax.sound.midi.Track;
+
+/**
+ * Java Flight Recorder events for the stages of a remapping run, so a recording shows which inputs and
+ * stages take the time. Every event names the file it belongs to and carries its event count and, except
+ * for segment creation, its size in bytes, plus the details of its stage.
+ * <p>
+ * The events are enabled by the recording's settings, like the JDK's own events: with a recording started by
+ * {@code -XX:StartFlightRecording} or {@code jcmd <pid> JFR.start}, or by a custom {@code .jfc} file naming
+ * the {@code csvmidiremapper.*} events. Without a recording they are never committed; the engine only
+ * gathers the details of an event after checking that it will be, so a disabled event costs a timestamp
+ * or nothing. Stack traces are off, since the stages are always called from the same few places.
+ */
+final class RemapFlightEvents {
+
+    private static final String CATEGORY = "MIDI Remapper";
+
+    private RemapFlightEvents() {
+    }
+
+    /**
+     * Loading and compiling a remapping CSV into a rule set.
+     */
+    @Name("csvmidiremapper.RuleCompile")
+    @Label("Rule Compilation")
+    @Category(CATEGORY)
+    @Description("A remapping CSV loaded and compiled into a rule set")
+    @StackTrace(false)
+    static final class RuleCompile extends Event {
+        @Label("File Name")
+        String fileName;
+
+        @Label("Rule Count")
+        @Description("Rules compiled from the CSV")
+        int eventCount;
+
+        @Label("CSV Size")
+        @DataAmount
+        long bytes;
+
+        @Label("Patch Count")
+        @Description("Original patches with rules")
+        int patchCount;
+    }
+
+    /**
+     * Reading a MIDI file into a sequence.
+     */
+    @Name("csvmidiremapper.FileLoad")
+    @Label("MIDI File Load")
+    @Category(CATEGORY)
+    @Description("A MIDI file read into a sequence")
+    @StackTrace(false)
+    static final class FileLoad extends Event {
+        @Label("File Name")
+        String fileName;
+
+        @Label("Event Count")
+        int eventCount;
+
+        @Label("File Size")
+        @DataAmount
+        long bytes;
+
+        @Label("Track Count")
+        int trackCount;
+    }
+
+    /**
+     * Remapping one file, from reading the input to writing the output, or copying it from the output cache.
+     */
+    @Name("csvmidiremapper.FileRemap")
+    @Label("MIDI File Remap")
+    @Category(CATEGORY)
+    @Description("A MIDI file remapped, including loading and writing it")
+    @StackTrace(false)
+    static final class FileRemap extends Event {
+        @Label("File Name")
+        String fileName;
+
+        @Label("Event Count")
+        @Description("Source events remapped; 0 if the output came from the cache")
+        int eventCount;
+
+        @Label("Input Size")
+        @DataAmount
+        long bytes;
+
+        @Label("Output Size")
+        @DataAmount
+        long outputBytes;
+
+        @Label("From Cache")
+        boolean cached;
+    }
+
+    /**
+     * The first event of a new output track: a new program, channel, type and segment combination.
+     * The event is instant and committed from the thread remapping the channel run that created the track.
+     * It has no size of its own; the source position tells how far into the file the segment starts.
+     */
+    @Name("csvmidiremapper.SegmentCreate")
+    @Label("Output Segment Created")
+    @Category(CATEGORY)
+    @Description("A new output track for a program, channel, type and segment")
+    @StackTrace(false)
+    static final class SegmentCreate extends Event {
+        @Label("File Name")
+        String fileName;
+
+        @Label("Event Count")
+        @Description("Position of the source event that created the track in its source track")
+        int eventCount;
+
+        @Label("Remapped Patch")
+        @Description("Bank and program, packed as bank MSB * 16384 + bank LSB * 128 + program")
+        int patch;
+
+        @Label("Channel")
+        @Description("Output channel, 1-16; 0 for the global events track")
+        int channel;
+
+        @Label("Type")
+        String type;
+
+        @Label("Segment Index")
+        int segmentIndex;
+    }
+
+    /**
+     * Writing a remapped sequence as a MIDI file or buffer.
+     */
+    @Name("csvmidiremapper.OutputWrite")
+    @Label("MIDI Output Write")
+    @Category(CATEGORY)
+    @Description("A remapped sequence encoded as a MIDI file")
+    @StackTrace(false)
+    static final class OutputWrite extends Event {
+        @Label("File Name")
+        String fileName;
+
+        @Label("Event Count")
+        @Description("Events written; -1 if the output was streamed from spilled runs")
+        int eventCount;
+
+        @Label("Output Size")
+        @DataAmount
+        long bytes;
+
+        @Label("Track Count")
+        int trackCount;
+    }
+
+    /**
+     * Returns the number of events in all tracks of a sequence.
+     */
+    static int countEvents(Sequence sequence) {
+        int events = 0;
+        for (Track track : sequence.getTracks()) {
+            events += track.size();
+        }
+        return events;
+    }
+}
@@ -0,0 +1,282 @@
+import javax.swing.*;
+import javax.swing.table.AbstractTableModel;
+import java.awt.BorderLayout;
+import java.awt.Dimension;
+import java.awt.FlowLayout;
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Shows the progress of a batch of files being remapped: a status row per file, an overall progress bar
+ * driven by the input bytes processed, the event throughput, an estimate of the time left and a cancel button.
+ * <p>
+ * Worker threads only write to the counters and per-file status of a {@link Job}. The panel reads them on a
+ * Swing timer a few times a second and repaints only the rows that changed, so the work done on the event
+ * dispatch thread does not grow with the number of events, files or worker threads.
+ */
+final class RemapJobPanel extends JPanel {
+
+    static final int QUEUED = 0;
+    static final int RUNNING = 1;
+    static final int DONE = 2;
+    static final int FAILED = 3;
+    static final int CANCELLED = 4;
+    private static final String[] STATUS_NAMES = {"Queued", "Running", "Done", "Failed", "Cancelled"};
+    private static final int REFRESH_MILLIS = 250;
+    private static final int PROGRESS_STEPS = 1000;
+
+    /**
+     * The progress of one batch. Written by the worker threads, read by the panel.
+     */
+    static final class Job {
+        final List<File> files;
+        private final long[] fileBytes;
+        private final long totalBytes;
+        private final AtomicIntegerArray status;
+        private final long[] elapsedMillis; // Written before the file's final status, which publishes it
+        final LongAdder events = new LongAdder();
+        private final AtomicLong processedBytes = new AtomicLong();
+        private final long startNanos = System.nanoTime();
+        private volatile long endNanos; // 0 while the batch runs
+        private volatile boolean cancelRequested;
+
+        /**
+         * Creates the progress of a batch, with every file queued.
+         * @param files The files of the batch, in table order.
+         */
+        Job(List<File> files) {
+            this.files = files;
+            this.fileBytes = new long[files.size()];
+            long total = 0;
+            for (int i = 0; i < fileBytes.length; i++) {
+                fileBytes[i] = files.get(i).length();
+                total += fileBytes[i];
+            }
+            this.totalBytes = total;
+            this.status = new AtomicIntegerArray(files.size());
+            this.elapsedMillis = new long[files.size()];
+        }
+
+        /**
+         * Marks a file as being remapped.
+         */
+        void fileStarted(int index) {
+            status.set(index, RUNNING);
+        }
+
+        /**
+         * Marks a file as finished.
+         * @param index The file's position in the batch.
+         * @param succeeded True if the output was written, false if the file failed.
+         * @param elapsedMillis How long the file took.
+         */
+        void fileFinished(int index, boolean succeeded, long elapsedMillis) {
+            this.elapsedMillis[index] = elapsedMillis;
+            processedBytes.addAndGet(fileBytes[index]);
+            status.set(index, succeeded ? DONE : FAILED);
+        }
+
+        /**
+         * Marks a file as skipped because the batch was cancelled before it started.
+         */
+        void fileCancelled(int index) {
+            status.set(index, CANCELLED);
+        }
+
+        /**
+         * Asks the workers to skip the files that have not started yet. Files already being remapped are finished.
+         */
+        void cancel() {
+            cancelRequested = true;
+        }
+
+        boolean isCancelRequested() {
+            return cancelRequested;
+        }
+
+        /**
+         * Records that every file has finished or been skipped.
+         */
+        void finish() {
+            endNanos = System.nanoTime();
+        }
+
+        /**
+         * Returns the number of files with a status.
+         */
+        int count(int fileStatus) {
+            int count = 0;
+            for (int i = 0; i < status.length(); i++) {
+                if (status.get(i) == fileStatus) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        private long elapsedNanos() {
+            long end = endNanos;
+            return (end != 0 ? end : System.nanoTime()) - startNanos;
+        }
+    }
+
+    private final FileTableModel tableModel = new FileTableModel();
+    private final JProgressBar progressBar = new JProgressBar(0, PROGRESS_STEPS);
+    private final JLabel statsLabel = new JLabel(" ");
+    private final JButton cancelButton = new JButton("Cancel");
+    private final Timer refreshTimer = new Timer(REFRESH_MILLIS, e -> refresh());
+    private Job job;
+
+    RemapJobPanel() {
+        super(new BorderLayout(5, 5));
+        JTable table = new JTable(tableModel);
+        table.setFillsViewportHeight(true);
+        table.getColumnModel().getColumn(0).setPreferredWidth(400);
+        JScrollPane tableScrollPane = new JScrollPane(table);
+        tableScrollPane.setPreferredSize(new Dimension(600, 140));
+        progressBar.setStringPainted(true);
+        progressBar.setString("");
+        cancelButton.setEnabled(false);
+        cancelButton.addActionListener(e -> {
+            if (job != null) {
+                job.cancel();
+                cancelButton.setEnabled(false);
+                statsLabel.setText("Cancelling: finishing the files in progress...");
+            }
+        });
+
+        JPanel progressPanel = new JPanel(new BorderLayout(5, 0));
+        progressPanel.add(progressBar, BorderLayout.CENTER);
+        progressPanel.add(cancelButton, BorderLayout.EAST);
+        JPanel statsPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 0, 0));
+        statsPanel.add(statsLabel);
+        JPanel southPanel = new JPanel(new BorderLayout());
+        southPanel.add(progressPanel, BorderLayout.NORTH);
+        southPanel.add(statsPanel, BorderLayout.SOUTH);
+
+        add(tableScrollPane, BorderLayout.CENTER);
+        add(southPanel, BorderLayout.SOUTH);
+    }
+
+    /**
+     * Shows a new batch and starts refreshing. Must be called on the event dispatch thread.
+     * @param job The batch to show.
+     */
+    void start(Job job) {
+        this.job = job;
+        tableModel.reset(job.files.size());
+        cancelButton.setEnabled(true);
+        refresh();
+        refreshTimer.start();
+    }
+
+    /**
+     * Stops refreshing after the batch has finished, showing its final state. Must be called on the event dispatch thread.
+     */
+    void stop() {
+        refreshTimer.stop();
+        cancelButton.setEnabled(false);
+        refresh();
+    }
+
+    /**
+     * Updates the changed rows, the progress bar and the statistics from the job's counters.
+     */
+    private void refresh() {
+        if (job == null) {
+            return;
+        }
+        tableModel.refresh();
+
+        long processedBytes = job.processedBytes.get();
+        progressBar.setValue(job.totalBytes > 0 ? (int) (processedBytes * PROGRESS_STEPS / job.totalBytes) : 0);
+        int finishedFiles = job.count(DONE) + job.count(FAILED);
+        progressBar.setString(finishedFiles + " of " + job.files.size() + " files");
+
+        double seconds = job.elapsedNanos() / 1e9;
+        long eventsPerSecond = seconds > 0 ? (long) (job.events.sum() / seconds) : 0;
+        String stats = String.format("%s of %s, %,d events/s", formatBytes(processedBytes), formatBytes(job.totalBytes), eventsPerSecond);
+        if (job.endNanos != 0) {
+            stats += String.format(", finished in %.1f s (%d failed, %d cancelled)", seconds, job.count(FAILED), job.count(CANCELLED));
+        } else if (job.isCancelRequested()) {
+            stats += ", cancelling: finishing the files in progress...";
+        } else if (processedBytes > 0) {
+            long secondsLeft = (long) (seconds * (job.totalBytes - processedBytes) / processedBytes);
+            stats += String.format(", about %d:%02d left", secondsLeft / 60, secondsLeft % 60);
+        }
+        statsLabel.setText(stats);
+    }
+
+    private static String formatBytes(long bytes) {
+        return bytes < 1024 * 1024 ? String.format("%.1f KB", bytes / 1024.0) : String.format("%.1f MB", bytes / (1024.0 * 1024));
+    }
+
+    /**
+     * One row per file of the job. Rows show the status seen at the last refresh, so a row only changes when
+     * {@link #refresh()} fires an update for it.
+     */
+    private final class FileTableModel extends AbstractTableModel {
+        private final String[] columnNames = {"File", "Size (KB)", "Status", "Time (ms)"};
+        private int[] shownStatus = new int[0];
+
+        void reset(int rowCount) {
+            shownStatus = new int[rowCount];
+            fireTableDataChanged();
+        }
+
+        void refresh() {
+            int firstChanged = -1;
+            int lastChanged = -1;
+            for (int row = 0; row < shownStatus.length; row++) {
+                int status = job.status.get(row);
+                if (status != shownStatus[row]) {
+                    shownStatus[row] = status;
+                    if (firstChanged < 0) {
+                        firstChanged = row;
+                    }
+                    lastChanged = row;
+                }
+            }
+            if (firstChanged >= 0) {
+                fireTableRowsUpdated(firstChanged, lastChanged);
+            }
+        }
+
+        @Override
+        public int getRowCount() {
+            return shownStatus.length;
+        }
+
+        @Override
+        public int getColumnCount() {
+            return columnNames.length;
+        }
+
+        @Override
+        public String getColumnName(int column) {
+            return columnNames[column];
+        }
+
+        @Override
+        public Class<?> getColumnClass(int column) {
+            return column == 1 || column == 3 ? Long.class : String.class;
+        }
+
+        @Override
+        public Object getValueAt(int row, int column) {
+            switch (column) {
+                case 0:
+                    return job.files.get(row).getName();
+                case 1:
+                    return (job.fileBytes[row] + 1023) / 1024;
+                case 2:
+                    return STATUS_NAMES[shownStatus[row]];
+                default:
+                    return shownStatus[row] == DONE || shownStatus[row] == FAILED ? job.elapsedMillis[row] : null;
+            }
+        }
+    }
+}
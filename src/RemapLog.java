@@ -0,0 +1,56 @@
+/**
+ * Receives the messages written while rules are loaded and files are remapped.
+ * <p>
+ * Implementations must be thread-safe: a {@link RemapEngine} may be used from several threads at once.
+ */
+public interface RemapLog {
+
+    /**
+     * A log that discards every message.
+     */
+    RemapLog SILENT = new RemapLog() {
+        @Override
+        public void status(String message) {
+        }
+
+        @Override
+        public void warning(String message) {
+        }
+
+        @Override
+        public void error(String message, Throwable e) {
+        }
+
+        @Override
+        public boolean isVerbose() {
+            return false;
+        }
+    };
+
+    /**
+     * Logs a progress message.
+     * @param message The message.
+     */
+    void status(String message);
+
+    /**
+     * Logs a problem that did not stop processing.
+     * @param message The message.
+     */
+    void warning(String message);
+
+    /**
+     * Logs an error.
+     * @param message The message.
+     * @param e The cause, or null.
+     */
+    void error(String message, Throwable e);
+
+    /**
+     * Returns true if per-event details (every remapped note, program change and created track) should be
+     * logged. When false those messages are not even built, which keeps remapping from allocating log strings.
+     */
+    default boolean isVerbose() {
+        return true;
+    }
+}
@@ -0,0 +1,196 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Optional processing settings for a remapping run. The defaults reproduce the original behavior:
+ * everything is kept in memory and written with {@link javax.sound.midi.MidiSystem}.
+ */
+public class RemapOptions {
+
+    private long memoryBudgetBytes; // 0 = keep all output tracks in memory
+    private boolean compactTracks;
+    private RuleHitCounters ruleHitCounters; // null = rule hits are not counted
+    private boolean parallelChannels;
+    private LongAdder eventCounter; // null = remapped events are not counted
+    private RemapOutputCache outputCache; // null = every file is remapped
+    private boolean specializedRules;
+    private boolean thinEvents;
+    private int targetResolution; // 0 = keep the input's timebase
+    private boolean stemFiles;
+
+    /**
+     * Returns the memory budget for buffered output events, in bytes, or 0 if output tracks are kept in memory.
+     */
+    public long getMemoryBudgetBytes() {
+        return memoryBudgetBytes;
+    }
+
+    /**
+     * Sets the memory budget for buffered output events. Once the events buffered for a file exceed this
+     * budget, runs of events are spilled to a temporary file and merged back when the output is written.
+     * @param memoryBudgetBytes The budget in bytes, or 0 to keep all output tracks in memory.
+     */
+    public void setMemoryBudgetBytes(long memoryBudgetBytes) {
+        if (memoryBudgetBytes < 0) {
+            throw new IllegalArgumentException("Memory budget must not be negative: " + memoryBudgetBytes);
+        }
+        this.memoryBudgetBytes = memoryBudgetBytes;
+    }
+
+    /**
+     * Returns true if output tracks are compacted before the file is written.
+     */
+    public boolean isCompactTracks() {
+        return compactTracks;
+    }
+
+    /**
+     * Enables the compaction pass, which merges non-overlapping segments of the same program, channel and
+     * type into one track and drops tracks that are empty or only carry controllers for silent channels.
+     * Compaction needs the whole output in memory, so it is skipped when a memory budget is set.
+     * @param compactTracks True to compact output tracks.
+     */
+    public void setCompactTracks(boolean compactTracks) {
+        this.compactTracks = compactTracks;
+    }
+
+    /**
+     * Returns the counters rule hits are added to, or null if rule hits are not counted.
+     */
+    public RuleHitCounters getRuleHitCounters() {
+        return ruleHitCounters;
+    }
+
+    /**
+     * Sets the counters every fired rule is counted in. The counters must belong to the rule set of the
+     * engine that uses these options, and may be shared by runs on several threads.
+     * @param ruleHitCounters The counters, or null to not count rule hits.
+     */
+    public void setRuleHitCounters(RuleHitCounters ruleHitCounters) {
+        this.ruleHitCounters = ruleHitCounters;
+    }
+
+    /**
+     * Returns true if the channels of single-track (type 0) files are remapped in parallel.
+     */
+    public boolean isParallelChannels() {
+        return parallelChannels;
+    }
+
+    /**
+     * Remaps the channels of single-track (type 0) files on several threads. Type 0 files are always split
+     * into one run of events per channel before remapping; this only decides whether the runs execute in
+     * parallel. The output is the same either way. Worth enabling when files are remapped one at a time,
+     * not when several files are already remapped in parallel.
+     * @param parallelChannels True to remap the channel runs in parallel.
+     */
+    public void setParallelChannels(boolean parallelChannels) {
+        this.parallelChannels = parallelChannels;
+    }
+
+    /**
+     * Returns the counter remapped source events are added to, or null if they are not counted.
+     */
+    public LongAdder getEventCounter() {
+        return eventCounter;
+    }
+
+    /**
+     * Sets a counter the number of source events remapped is added to while files are processed, in steps of
+     * at most 1000 events per track, so a progress display can show throughput while a large file is still
+     * being remapped. The counter may be shared by runs on several threads.
+     * @param eventCounter The counter, or null to not count events.
+     */
+    public void setEventCounter(LongAdder eventCounter) {
+        this.eventCounter = eventCounter;
+    }
+
+    /**
+     * Returns the cache remapped files are looked up in and stored to, or null if files are always remapped.
+     */
+    public RemapOutputCache getOutputCache() {
+        return outputCache;
+    }
+
+    /**
+     * Sets a cache of remapped files. A file whose bytes were already remapped with the same rules and options
+     * is then copied from the cache instead of being remapped. Runs that count rule hits do not use the cache,
+     * since a file taken from it fires no rules. The cache may be shared by runs on several threads.
+     * @param outputCache The cache, or null to always remap.
+     */
+    public void setOutputCache(RemapOutputCache outputCache) {
+        this.outputCache = outputCache;
+    }
+
+    /**
+     * Returns true if notes are remapped with the note plans precompiled in the rule set.
+     */
+    public boolean isSpecializedRules() {
+        return specializedRules;
+    }
+
+    /**
+     * Remaps notes with the note plans the rule set precompiles for every patch: the outcome of each note
+     * without conditional or layering rules is looked up in one step instead of searching the rule tables
+     * for it. The output is the same either way. Plans are only used by runs that neither log every event
+     * nor count rule hits, since a planned note does not name the rules it applied.
+     * @param specializedRules True to use the precompiled note plans.
+     */
+    public void setSpecializedRules(boolean specializedRules) {
+        this.specializedRules = specializedRules;
+    }
+
+    /**
+     * Returns true if redundant channel events are dropped from the output tracks.
+     */
+    public boolean isThinEvents() {
+        return thinEvents;
+    }
+
+    /**
+     * Drops controller, program change, pitch bend and channel pressure events that set a value their output
+     * track already set, as they are emitted (see {@link ThinningTrackSink}). The events and bytes dropped are
+     * reported for each file. Files where another track or a system exclusive message could change a channel
+     * between two such events are written unthinned.
+     * @param thinEvents True to drop redundant channel events.
+     */
+    public void setThinEvents(boolean thinEvents) {
+        this.thinEvents = thinEvents;
+    }
+
+    /**
+     * Returns the PPQ resolution output files are converted to, or 0 if they keep the input's timebase.
+     */
+    public int getTargetResolution() {
+        return targetResolution;
+    }
+
+    /**
+     * Converts the output to a fixed number of ticks per quarter note while it is remapped (see
+     * {@link TimebaseConverter}). PPQ input is rescaled; SMPTE input is converted through its tempo map so
+     * every event keeps its time. Ticks are rounded to the nearest output tick.
+     * @param targetResolution Ticks per quarter note, or 0 to keep the input's timebase.
+     */
+    public void setTargetResolution(int targetResolution) {
+        if (targetResolution < 0 || targetResolution > 0x7FFF) {
+            throw new IllegalArgumentException("Target resolution must be between 1 and 32767 ticks per quarter note, or 0: " + targetResolution);
+        }
+        this.targetResolution = targetResolution;
+    }
+
+    /**
+     * Returns true if each file should be written as one file per stem.
+     */
+    public boolean isStemFiles() {
+        return stemFiles;
+    }
+
+    /**
+     * Asks the caller writing the output to write one file per output track, each with the global track,
+     * with {@link RemapEngine#remapFileToStems} instead of {@link RemapEngine#remapFile}. The engine's methods
+     * do not read this setting; it carries the choice to the code that picks one of them.
+     * @param stemFiles True to write one file per stem.
+     */
+    public void setStemFiles(boolean stemFiles) {
+        this.stemFiles = stemFiles;
+    }
+}
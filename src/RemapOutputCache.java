@@ -0,0 +1,275 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Content-addressed cache of remapped MIDI files on local disk.
+ * <p>
+ * Sound banks hold many byte-identical sequences. An entry is keyed by a SHA-256 hash of the input file's
+ * bytes, the fingerprint of the compiled rule set ({@link RemapRuleSet#fingerprint()}), the engine's output
+ * version and the options that change the output, so a repeated input is served by copying the stored
+ * output instead of parsing and remapping it again, and any change to the rules misses the old entries.
+ * <p>
+ * Entries are files named by their key. The cache keeps an index of them in least recently used order and
+ * deletes the oldest ones once the total size exceeds its bound; file modification times carry the order
+ * over to the next run. An entry is written to a temporary file and moved into place, so a reader never
+ * sees a partial entry, and one cache can be shared by any number of worker threads. An entry deleted by
+ * eviction while it is being read is treated as a miss.
+ */
+public final class RemapOutputCache {
+
+    private static final String ENTRY_SUFFIX = ".mid";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final Path directory;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Long> entrySizes = new LinkedHashMap<>(64, 0.75f, true); // Least recently used first
+    private long totalBytes;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Opens a cache folder, creating it if needed. Entries left by earlier runs are kept, oldest first in
+     * eviction order; temporary files left by an interrupted write are deleted.
+     * @param directory The folder holding the entries. It should not be used for anything else.
+     * @param maxBytes The size the entries may take in total, in bytes.
+     * @throws IOException If the folder cannot be created or listed.
+     */
+    public RemapOutputCache(File directory, long maxBytes) throws IOException {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Cache size must be positive: " + maxBytes);
+        }
+        this.directory = directory.toPath();
+        this.maxBytes = maxBytes;
+        Files.createDirectories(this.directory);
+
+        List<Path> entries = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(this.directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(TEMP_SUFFIX)) {
+                    Files.deleteIfExists(file);
+                } else if (name.endsWith(ENTRY_SUFFIX)) {
+                    entries.add(file);
+                }
+            }
+        }
+        entries.sort((a, b) -> Long.compare(a.toFile().lastModified(), b.toFile().lastModified()));
+        synchronized (this) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                long size = entry.toFile().length();
+                entrySizes.put(name.substring(0, name.length() - ENTRY_SUFFIX.length()), size);
+                totalBytes += size;
+            }
+            evict();
+        }
+    }
+
+    /**
+     * Computes the key of an input.
+     * @param input The input MIDI file, from the buffer's position to its limit. The buffer is not changed.
+     * @param variant Everything else the output depends on: the rule set fingerprint, engine version and options.
+     * @return The key, as lowercase hex.
+     */
+    static String key(ByteBuffer input, String variant) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        digest.update(variant.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(input.duplicate());
+        return toHex(digest.digest());
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Reads an entry.
+     * @param key The entry's key from {@link #key}.
+     * @return The stored output, or null on a miss.
+     * @throws IOException If the entry exists but cannot be read.
+     */
+    ByteBuffer get(String key) throws IOException {
+        Path entry = lookup(key);
+        if (entry != null) {
+            try {
+                ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(entry));
+                hits.increment();
+                return data;
+            } catch (NoSuchFileException e) {
+                forget(key);
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Copies an entry to a file, replacing the file if it exists.
+     * @param key The entry's key from {@link #key}.
+     * @param target The file to write.
+     * @return True if the entry was copied, false on a miss.
+     * @throws IOException If the entry exists but cannot be copied.
+     */
+    boolean copyTo(String key, Path target) throws IOException {
+        Path entry = lookup(key);
+        if (entry != null) {
+            try {
+                Files.copy(entry, target, StandardCopyOption.REPLACE_EXISTING);
+                hits.increment();
+                return true;
+            } catch (NoSuchFileException e) {
+                if (Files.exists(entry)) {
+                    throw e; // The target's folder is missing, not the entry
+                }
+                forget(key);
+            }
+        }
+        misses.increment();
+        return false;
+    }
+
+    /**
+     * Stores an output. Entries over the cache's whole size are not stored.
+     * @param key The entry's key from {@link #key}.
+     * @param data The output, from the buffer's position to its limit. The buffer is not changed.
+     * @throws IOException If the entry cannot be written.
+     */
+    void put(String key, ByteBuffer data) throws IOException {
+        if (data.remaining() > maxBytes) {
+            return;
+        }
+        Path temp = Files.createTempFile(directory, key, TEMP_SUFFIX);
+        try {
+            byte[] bytes = new byte[data.remaining()];
+            data.duplicate().get(bytes);
+            Files.write(temp, bytes);
+            store(key, temp, bytes.length);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Stores a copy of an output file. Files over the cache's whole size are not stored.
+     * @param key The entry's key from {@link #key}.
+     * @param file The output file.
+     * @throws IOException If the entry cannot be written.
+     */
+    void put(String key, Path file) throws IOException {
+        long size = Files.size(file);
+        if (size > maxBytes) {
+            return;
+        }
+        Path temp = Files.createTempFile(directory, key, TEMP_SUFFIX);
+        try {
+            Files.copy(file, temp, StandardCopyOption.REPLACE_EXISTING);
+            store(key, temp, size);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Returns the number of lookups served from the cache.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the number of lookups that missed.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns the total size of the entries, in bytes.
+     */
+    public synchronized long getSizeBytes() {
+        return totalBytes;
+    }
+
+    private void store(String key, Path temp, long size) throws IOException {
+        Path entry = entryPath(key);
+        // Outputs with the same key have the same bytes, so a concurrent writer of the same key is harmless
+        Files.move(temp, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        synchronized (this) {
+            Long previousSize = entrySizes.put(key, size);
+            totalBytes += size - (previousSize != null ? previousSize : 0);
+            evict();
+        }
+    }
+
+    /**
+     * Returns the file of an entry and marks it as recently used, or returns null if there is no such entry.
+     */
+    private Path lookup(String key) {
+        synchronized (this) {
+            if (entrySizes.get(key) == null) {
+                return null;
+            }
+        }
+        Path entry = entryPath(key);
+        try {
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // Only the eviction order of the next run depends on the time; a missing entry shows when it is read
+        }
+        return entry;
+    }
+
+    private synchronized void forget(String key) {
+        Long size = entrySizes.remove(key);
+        if (size != null) {
+            totalBytes -= size;
+        }
+    }
+
+    /**
+     * Deletes least recently used entries until the entries fit the bound. Must hold the lock.
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> oldest = entrySizes.entrySet().iterator();
+        while (totalBytes > maxBytes && oldest.hasNext()) {
+            Map.Entry<String, Long> entry = oldest.next();
+            try {
+                Files.deleteIfExists(entryPath(entry.getKey()));
+            } catch (IOException e) {
+                continue; // Still open elsewhere (on some platforms); try again on the next eviction
+            }
+            totalBytes -= entry.getValue();
+            oldest.remove();
+        }
+    }
+
+    private Path entryPath(String key) {
+        return directory.resolve(key + ENTRY_SUFFIX);
+    }
+}
@@ -0,0 +1,686 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Remapping rules compiled into lookup tables indexed by patch.
+ * <p>
+ * Every patch that appears in column 2 of the CSV gets a dense index from a {@link PatchTable}; the
+ * program change rule and the drum and melodic note rules of that patch are then plain array lookups,
+ * so finding the rules for an event costs the same with a handful of patches or with thousands of banked ones.
+ * <p>
+ * Patches are matched exactly. A patch with a bank select MSB that has no rules of its own falls back to
+ * the rules of the same bank LSB and program with MSB 0, so CSVs written before MSB support keep matching
+ * files that send an MSB.
+ * <p>
+ * Note rules are compiled into a decision table per patch: for every note 0-127, the specific and range
+ * rules that cover it, in the order they take precedence (drum rules, then melodic rules, each in CSV order),
+ * cut off after the first rule without conditions. Finding the rule for a note is then a table lookup
+ * followed by, at most, a check of a few conditional rules, however many rows the CSV has for the patch.
+ * <p>
+ * For the most common case, notes no conditional or layering rule applies to, the outcome of the note rules
+ * is also compiled ahead: a note plan per patch, segment type and note holds the final note and channel type,
+ * so the engine can resolve such a note with a single array read (see {@link #notePlan(int, boolean, int)}).
+ * <p>
+ * A rule set is immutable once compiled, so one set can be shared by any number of threads and engines.
+ */
+public final class RemapRuleSet {
+
+    private static final UnifiedRemapRule[] NO_RULES = new UnifiedRemapRule[0];
+    private static final int[] NO_NOTE_RULES = new int[129]; // Decision table rows of a patch without note rules
+
+    // Note plans: the final note in bits 0-6 and the channel type in bits 7-8, or NO_PLAN
+    static final int NO_PLAN = -1;          // The note has to go through the rules: conditions, layers or warnings apply
+    static final int PLAN_SEGMENT_TYPE = 0; // The note keeps the channel type of its segment
+    static final int PLAN_DRUM = 1;
+    static final int PLAN_MELODIC = 2;
+    private static final Pattern CONDITION = Pattern.compile("(vel|ch)(>=|<=|!=|=|>|<)(\\d+)(?:-(\\d+))?");
+
+    /**
+     * A rule set without any rules: every program maps to itself.
+     */
+    public static final RemapRuleSet EMPTY = new RemapRuleSet(Collections.emptyList(), new PatchTable());
+
+    private final List<UnifiedRemapRule> rules;
+    private final PatchTable patches;
+    private final UnifiedRemapRule[][] programChangeRules; // CSV order, up to the first rule without conditions
+    private final int[][] noteRuleStarts; // Per patch, 129 offsets into noteRuleCandidates: the rules of note n start at [n]
+    private final UnifiedRemapRule[][] noteRuleCandidates;
+    private final UnifiedRemapRule[][] drumShiftRules;    // All-notes shifts applied in DRUM segments
+    private final UnifiedRemapRule[][] melodicShiftRules; // All-notes shifts applied in MELODIC segments
+    private final UnifiedRemapRule[][] layerRules;        // All-notes layers, drum rules first
+    private final int[][] notePlans; // Per patch, 256 plans: MELODIC-segment notes 0-127, then DRUM-segment notes
+    private final String[] originalDefaultChannelTypes;
+    private ProgramDynamics dynamics = ProgramDynamics.NONE;
+    private volatile String fingerprint; // Computed on first use
+    private int drumRuleSetCount;
+    private int melodicRuleSetCount;
+
+    private RemapRuleSet(List<UnifiedRemapRule> rules, PatchTable patches) {
+        this.rules = rules;
+        this.patches = patches;
+        this.programChangeRules = new UnifiedRemapRule[patches.size()][];
+        this.noteRuleStarts = new int[patches.size()][];
+        this.noteRuleCandidates = new UnifiedRemapRule[patches.size()][];
+        this.drumShiftRules = new UnifiedRemapRule[patches.size()][];
+        this.melodicShiftRules = new UnifiedRemapRule[patches.size()][];
+        this.layerRules = new UnifiedRemapRule[patches.size()][];
+        this.notePlans = new int[patches.size()][];
+        this.originalDefaultChannelTypes = new String[patches.size()];
+    }
+
+    /**
+     * Loads and compiles the rules of a remapping CSV (see the README for the format), with the velocity curves
+     * and controller tables of its dynamics CSV if it has one (see {@link ProgramDynamics}).
+     * Malformed rows are skipped with a warning that names their line and column.
+     * @param csvFile The CSV file containing the remapping rules.
+     * @param log The log receiving warnings about skipped rows.
+     * @return The compiled rule set.
+     * @throws IOException If the file does not exist, or it or its dynamics CSV cannot be read.
+     */
+    public static RemapRuleSet load(File csvFile, RemapLog log) throws IOException {
+        if (!csvFile.exists()) {
+            throw new IOException("Remapping CSV file not found at " + csvFile.getAbsolutePath());
+        }
+        RemapFlightEvents.RuleCompile compileEvent = new RemapFlightEvents.RuleCompile();
+        compileEvent.begin();
+
+        List<UnifiedRemapRule> allRules = new ArrayList<>();
+        Map<Integer, List<UnifiedRemapRule>> drumRulesByPatch = new HashMap<>();
+        Map<Integer, List<UnifiedRemapRule>> melodicRulesByPatch = new HashMap<>();
+        Map<Integer, String> originalDefaultTypes = new HashMap<>(); // Default channel type for an original program
+
+        // Note rules already added, for duplicate detection in constant time per row
+        Set<UnifiedRemapRule> seenNoteRules = new HashSet<>();
+
+        try (CsvReader csv = new CsvReader(csvFile.toPath())) {
+            boolean firstLine = true; // Skip header row
+            while (csv.nextRecord()) {
+                if (firstLine) {
+                    firstLine = false;
+                    continue;
+                }
+                if (csv.getFieldCount() < 7) {
+                    log.warning("Skipping malformed line " + csv.getLine() + " in CSV (too few columns, expected 7, found " + csv.getFieldCount() + "): " + csv.getRecordText());
+                    continue;
+                }
+                try {
+                    // The track name column (0) is ignored for rule creation
+                    // Programs may carry a bank: a number over 127 (bank LSB * 128 + program) or msb:lsb:program
+                    int originalProgram = csv.getPatch(1);
+                    int remappedProgram = csv.getPatch(2);
+                    // Original notes may be a range (36-51)
+                    boolean noteRange = csv.isRange(3);
+                    int originalNote = csv.getRangeStart(3);
+                    int originalNoteEnd = csv.getRangeEnd(3);
+                    int remappedNoteOrOffset = csv.getInt(4);
+                    boolean isLayered = csv.getBoolean(5);
+                    String channelType = csv.getString(6).toUpperCase();
+
+                    // Validate MIDI note ranges (program and bank ranges are checked while parsing)
+                    if (noteRange && (originalNote < 0 || originalNoteEnd > 127 || originalNote > originalNoteEnd)) {
+                        log.warning("Skipping malformed line " + csv.getLine() + " in CSV. Invalid OriginalNote range at column " + csv.getColumn(3) + " (first-last, within 0-127, expected): " + csv.getRecordText());
+                        continue;
+                    }
+                    if (!noteRange && originalNote != -1 && originalNote != -999 && (originalNote < 0 || originalNote > 127)) {
+                        log.warning("Skipping malformed line " + csv.getLine() + " in CSV. Invalid OriginalNote at column " + csv.getColumn(3) + " (0-127, -1, or -999 expected): " + csv.getRecordText());
+                        continue;
+                    }
+                    // Note: remappedNoteOrOffset can be an offset, so range validation is more flexible here.
+                    if (originalNote != -999 && remappedNoteOrOffset != -999 && (remappedNoteOrOffset < -127 || remappedNoteOrOffset > 127)) {
+                        log.warning("RemappedNoteOrOffset at line " + csv.getLine() + ", column " + csv.getColumn(4) + " is outside typical range (-127 to 127) for note manipulation: " + csv.getRecordText());
+                    }
+
+                    // Create the unified rule object, passing null for trackName as per user request
+                    UnifiedRemapRule rule = new UnifiedRemapRule(null, originalProgram, remappedProgram, originalNote, remappedNoteOrOffset, isLayered, channelType);
+                    rule.csvLine = csv.getLine();
+                    rule.originalNoteEnd = originalNoteEnd;
+                    if (csv.getFieldCount() > 7 && !csv.getString(7).isEmpty()) {
+                        parseConditions(csv.getString(7), rule);
+                        if (rule.isProgramChangeRule() && (rule.velocityMin > 0 || rule.velocityMax < 127)) {
+                            log.warning("Velocity conditions only apply to note rules; ignored for the program change rule on line " + csv.getLine() + ".");
+                            rule.velocityMin = 0;
+                            rule.velocityMax = 127;
+                        }
+                    }
+
+                    // Populate originalDefaultTypes map
+                    if (originalProgram >= 0) {
+                        String existingOriginalType = originalDefaultTypes.get(originalProgram);
+                        if ("DRUM".equals(channelType)) {
+                            originalDefaultTypes.put(originalProgram, "DRUM");
+                        } else if ("MELODIC".equals(channelType)) {
+                            // If not already marked DRUM, mark as MELODIC
+                            if (existingOriginalType == null || !existingOriginalType.equals("DRUM")) {
+                                originalDefaultTypes.put(originalProgram, "MELODIC");
+                            }
+                        }
+                    }
+
+                    // Add note manipulation rules to specific maps based on channel type
+                    if (rule.isNoteManipulationRule()) {
+                        List<UnifiedRemapRule> targetList = null;
+                        if ("DRUM".equals(channelType)) {
+                            targetList = drumRulesByPatch.computeIfAbsent(originalProgram, k -> new ArrayList<>());
+                        } else if ("MELODIC".equals(channelType)) {
+                            targetList = melodicRulesByPatch.computeIfAbsent(originalProgram, k -> new ArrayList<>());
+                        } else {
+                            log.warning("Note rule for original program " + originalProgram + " has unknown channel type: '" + channelType + "' (line " + csv.getLine() + ", column " + csv.getColumn(6) + "). Rule will not be applied for note manipulation.");
+                        }
+                        if (targetList != null) {
+                            if (!seenNoteRules.add(rule)) {
+                                log.warning("Redundant note manipulation rule found for original program " + originalProgram + ", original note " + originalNote + " on line " + csv.getLine() + ". Skipping.");
+                            } else {
+                                targetList.add(rule);
+                            }
+                        }
+                    }
+                    allRules.add(rule); // Add to the comprehensive list of all rules
+
+                } catch (NumberFormatException e) {
+                    log.warning("Skipping malformed line " + csv.getLine() + " in CSV (number format error): " + csv.getRecordText() + " - " + e.getMessage());
+                } catch (ArrayIndexOutOfBoundsException e) {
+                    log.warning("Skipping malformed line " + csv.getLine() + " in CSV (missing expected column): " + csv.getRecordText() + " - " + e.getMessage());
+                }
+            }
+        }
+
+        RemapRuleSet ruleSet = compile(allRules, drumRulesByPatch, melodicRulesByPatch, originalDefaultTypes);
+        ruleSet.dynamics = ProgramDynamics.load(csvFile, log);
+        compileEvent.end();
+        if (compileEvent.shouldCommit()) {
+            compileEvent.fileName = csvFile.getName();
+            compileEvent.bytes = csvFile.length();
+            compileEvent.eventCount = ruleSet.getRuleCount();
+            compileEvent.patchCount = ruleSet.getPatchCount();
+            compileEvent.commit();
+        }
+        return ruleSet;
+    }
+
+    /**
+     * Compiles the rules loaded from a CSV.
+     * @param allRules Every rule, in CSV order. The first program change rule of a patch is the one applied.
+     * @param drumNoteRules The drum note rules by original patch, in CSV order.
+     * @param melodicNoteRules The melodic note rules by original patch, in CSV order.
+     * @param originalDefaultTypes The channel type of each original patch that has rules.
+     * @return The compiled rule set.
+     */
+    private static RemapRuleSet compile(List<UnifiedRemapRule> allRules,
+                                        Map<Integer, List<UnifiedRemapRule>> drumNoteRules,
+                                        Map<Integer, List<UnifiedRemapRule>> melodicNoteRules,
+                                        Map<Integer, String> originalDefaultTypes) {
+        PatchTable patches = new PatchTable();
+        for (UnifiedRemapRule rule : allRules) {
+            if (rule.originalProgram >= 0) {
+                patches.add(rule.originalProgram);
+            }
+        }
+        for (Integer patch : drumNoteRules.keySet()) {
+            if (patch >= 0) {
+                patches.add(patch);
+            }
+        }
+        for (Integer patch : melodicNoteRules.keySet()) {
+            if (patch >= 0) {
+                patches.add(patch);
+            }
+        }
+
+        RemapRuleSet ruleSet = new RemapRuleSet(Collections.unmodifiableList(new ArrayList<>(allRules)), patches);
+        for (int i = 0; i < allRules.size(); i++) {
+            allRules.get(i).index = i;
+        }
+        Map<Integer, List<UnifiedRemapRule>> programChangeRules = new HashMap<>();
+        for (UnifiedRemapRule rule : allRules) {
+            if (rule.isProgramChangeRule() && rule.originalProgram >= 0) {
+                addUntilUnconditional(programChangeRules.computeIfAbsent(rule.originalProgram, k -> new ArrayList<>()), rule);
+            }
+        }
+        for (int index = 0; index < patches.size(); index++) {
+            Integer patch = patches.patchAt(index);
+            List<UnifiedRemapRule> drumRules = drumNoteRules.getOrDefault(patch, Collections.emptyList());
+            List<UnifiedRemapRule> melodicRules = melodicNoteRules.getOrDefault(patch, Collections.emptyList());
+            ruleSet.programChangeRules[index] = toArray(programChangeRules.get(patch));
+            ruleSet.drumShiftRules[index] = allNotesRules(drumRules, false);
+            ruleSet.melodicShiftRules[index] = allNotesRules(melodicRules, false);
+            List<UnifiedRemapRule> layers = new ArrayList<>(Arrays.asList(allNotesRules(drumRules, true)));
+            layers.addAll(Arrays.asList(allNotesRules(melodicRules, true)));
+            ruleSet.layerRules[index] = toArray(layers);
+            compileNoteTable(ruleSet, index, drumRules, melodicRules);
+            compileNotePlans(ruleSet, index);
+            ruleSet.originalDefaultChannelTypes[index] = originalDefaultTypes.get(patch);
+        }
+        ruleSet.drumRuleSetCount = drumNoteRules.size();
+        ruleSet.melodicRuleSetCount = melodicNoteRules.size();
+        return ruleSet;
+    }
+
+    /**
+     * Returns the index of the rules that apply to a patch.
+     * @param patch The packed patch number (see {@link Patch}).
+     * @return The rule index, or -1 if no rules apply to the patch.
+     */
+    int indexOf(int patch) {
+        int index = patches.indexOf(patch);
+        if (index < 0 && Patch.bankMSB(patch) != 0) {
+            index = patches.indexOf(Patch.withoutBankMSB(patch));
+        }
+        return index;
+    }
+
+    /**
+     * Returns the patch whose note rules and channel type apply to a patch that has no program change rule, so
+     * the patch is remapped to itself: the patch itself if rules name it (see {@link #indexOf(int)}), else its
+     * program in bank 0. A banked patch thus reaches its own note rules, and CSVs that name drum kits and bank
+     * variations by their program alone keep applying to them.
+     * @param patch The packed patch number selected by the input.
+     * @return The packed patch number the context is looked up as.
+     */
+    int contextPatch(int patch) {
+        return indexOf(patch) >= 0 ? patch : Patch.program(patch);
+    }
+
+    /**
+     * Returns the program change rule at a rule index that applies on a channel: the first in CSV order whose
+     * conditions hold.
+     * @param index The rule index from {@link #indexOf(int)}, or -1.
+     * @param channel The input channel, 0-15.
+     * @return The rule, or null if the patch has no program change rule for the channel.
+     */
+    UnifiedRemapRule programChangeRule(int index, int channel) {
+        if (index >= 0) {
+            for (UnifiedRemapRule rule : programChangeRules[index]) {
+                if ((rule.channelMask & (1 << channel)) != 0) {
+                    return rule;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Looks up the specific note rule (single note or range) for a note in the decision table of a rule index.
+     * Drum rules take precedence over melodic rules, and earlier rows over later ones.
+     * @param index The rule index from {@link #indexOf(int)}, or -1.
+     * @param note The original note.
+     * @param velocity The note's velocity, or the velocity of the note on a note off ends.
+     * @param channel The input channel, 0-15.
+     * @return The rule, or null if no specific rule applies.
+     */
+    UnifiedRemapRule noteRule(int index, int note, int velocity, int channel) {
+        if (index < 0) {
+            return null;
+        }
+        int[] starts = noteRuleStarts[index];
+        UnifiedRemapRule[] candidates = noteRuleCandidates[index];
+        for (int i = starts[note]; i < starts[note + 1]; i++) {
+            if (candidates[i].matches(velocity, channel)) {
+                return candidates[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the all-notes shift rules at a rule index that apply to the notes of a segment, in CSV order.
+     * Their conditions still have to be checked.
+     * @param index The rule index from {@link #indexOf(int)}, or -1.
+     * @param drumSegment True for a DRUM segment, false for a MELODIC one.
+     * @return The rules; empty if there are none. The array must not be modified.
+     */
+    UnifiedRemapRule[] shiftRules(int index, boolean drumSegment) {
+        return index < 0 ? NO_RULES : drumSegment ? drumShiftRules[index] : melodicShiftRules[index];
+    }
+
+    /**
+     * Returns the all-notes layering rules at a rule index, drum rules first. Their conditions still have to be checked.
+     * @param index The rule index from {@link #indexOf(int)}, or -1.
+     * @return The rules; empty if there are none. The array must not be modified.
+     */
+    UnifiedRemapRule[] layerRules(int index) {
+        return index < 0 ? NO_RULES : layerRules[index];
+    }
+
+    /**
+     * Returns a hash of everything the rule set remaps with: every rule in CSV order and the compiled dynamics.
+     * Two rule sets with the same fingerprint remap any file the same way.
+     * @return The SHA-256 hash, as lowercase hex.
+     */
+    public String fingerprint() {
+        String result = fingerprint;
+        if (result == null) {
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 is not available", e);
+            }
+            for (UnifiedRemapRule rule : rules) {
+                digest.update((rule + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            dynamics.digest(digest);
+            result = RemapOutputCache.toHex(digest.digest());
+            fingerprint = result;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the velocity curves and controller tables of the remapped programs.
+     */
+    ProgramDynamics dynamics() {
+        return dynamics;
+    }
+
+    /**
+     * Returns the precompiled outcome of the note rules for a note: the final note ({@code plan & 0x7F}) and
+     * channel type ({@code plan >> 7}, one of {@link #PLAN_SEGMENT_TYPE}, {@link #PLAN_DRUM} or {@link #PLAN_MELODIC}).
+     * The plan is the same as applying the rules, with no rule hits to count and nothing to log.
+     * @param index The rule index from {@link #indexOf(int)}, or -1.
+     * @param drumSegment True for a note in a DRUM segment, false otherwise.
+     * @param note The original note.
+     * @return The plan, or {@link #NO_PLAN} if the note has to be remapped through the rules.
+     */
+    int notePlan(int index, boolean drumSegment, int note) {
+        return index < 0 ? note : notePlans[index][drumSegment ? 128 + note : note];
+    }
+
+    /**
+     * Returns the channel type the rules give an original patch, looked up like {@link #indexOf(int)}: the
+     * patch itself, or the patch without its bank MSB if it has no rules.
+     * @param patch The packed patch number.
+     * @param defaultType The type to return if no rule names the patch.
+     * @return "DRUM", "MELODIC", or the default type.
+     */
+    String originalDefaultChannelType(int patch, String defaultType) {
+        int index = indexOf(patch);
+        String type = index < 0 ? null : originalDefaultChannelTypes[index];
+        return type != null ? type : defaultType;
+    }
+
+    /**
+     * Returns the rule at a position, in CSV order.
+     * @param index The position, 0 to {@link #getRuleCount()} - 1.
+     */
+    UnifiedRemapRule rule(int index) {
+        return rules.get(index);
+    }
+
+    /**
+     * Returns the number of rules, including duplicates that are ignored for note manipulation.
+     */
+    public int getRuleCount() {
+        return rules.size();
+    }
+
+    /**
+     * Returns the number of patches that have rules.
+     */
+    public int getPatchCount() {
+        return patches.size();
+    }
+
+    /**
+     * Returns the number of original patches with drum note rules.
+     */
+    public int getDrumRuleSetCount() {
+        return drumRuleSetCount;
+    }
+
+    /**
+     * Returns the number of original patches with melodic note rules.
+     */
+    public int getMelodicRuleSetCount() {
+        return melodicRuleSetCount;
+    }
+
+    /**
+     * Returns the original patches whose rules differ between two rule sets: rules were added,
+     * removed, changed or reordered, or the dynamics of the program they remap to changed.
+     * @param other The rule set to compare with.
+     * @return The changed patch numbers, in ascending order.
+     */
+    public Set<Integer> changedPatches(RemapRuleSet other) {
+        Map<Integer, List<UnifiedRemapRule>> previousRules = other.rulesByOriginalPatch();
+        Map<Integer, List<UnifiedRemapRule>> currentRules = rulesByOriginalPatch();
+        Set<Integer> changedPatches = new TreeSet<>();
+        Set<Integer> allPatches = new HashSet<>(previousRules.keySet());
+        allPatches.addAll(currentRules.keySet());
+        for (Integer patch : allPatches) {
+            if (!Objects.equals(previousRules.get(patch), currentRules.get(patch))) {
+                changedPatches.add(patch);
+            }
+        }
+
+        // Changed dynamics affect every original patch played through the remapped program
+        Set<Integer> changedDynamics = dynamics.changedPatches(other.dynamics);
+        if (changedDynamics.contains(-1)) {
+            // Programs without tables of their own: any program of the default and drum banks may be affected
+            for (int patch = 0; patch < 256; patch++) {
+                changedPatches.add(patch);
+            }
+            changedPatches.addAll(allPatches);
+            changedPatches.remove(-1);
+        } else if (!changedDynamics.isEmpty()) {
+            for (RemapRuleSet ruleSet : new RemapRuleSet[] {this, other}) {
+                for (UnifiedRemapRule rule : ruleSet.rules) {
+                    if (rule.isProgramChangeRule() && rule.originalProgram >= 0 && changedDynamics.contains(rule.remappedProgram)) {
+                        changedPatches.add(rule.originalProgram);
+                    }
+                }
+            }
+            changedPatches.addAll(changedDynamics); // Programs without a rule remap to themselves
+        }
+        return changedPatches;
+    }
+
+    /**
+     * Groups the rules by original patch, keeping CSV order within each group.
+     */
+    private Map<Integer, List<UnifiedRemapRule>> rulesByOriginalPatch() {
+        Map<Integer, List<UnifiedRemapRule>> rulesByPatch = new HashMap<>();
+        for (UnifiedRemapRule rule : rules) {
+            rulesByPatch.computeIfAbsent(rule.originalProgram, k -> new ArrayList<>()).add(rule);
+        }
+        return rulesByPatch;
+    }
+
+    /**
+     * Builds the decision table of a patch: for each note, the specific rules covering it in order of precedence,
+     * up to and including the first one without conditions, since no rule after it can ever be chosen.
+     */
+    private static void compileNoteTable(RemapRuleSet ruleSet, int index, List<UnifiedRemapRule> drumRules, List<UnifiedRemapRule> melodicRules) {
+        List<UnifiedRemapRule> specificRules = new ArrayList<>();
+        for (UnifiedRemapRule rule : drumRules) {
+            if (rule.originalNote >= 0) {
+                specificRules.add(rule);
+            }
+        }
+        for (UnifiedRemapRule rule : melodicRules) {
+            if (rule.originalNote >= 0) {
+                specificRules.add(rule);
+            }
+        }
+        if (specificRules.isEmpty()) {
+            ruleSet.noteRuleStarts[index] = NO_NOTE_RULES;
+            ruleSet.noteRuleCandidates[index] = NO_RULES;
+            return;
+        }
+        int[] starts = new int[129];
+        List<UnifiedRemapRule> candidates = new ArrayList<>();
+        for (int note = 0; note < 128; note++) {
+            starts[note] = candidates.size();
+            List<UnifiedRemapRule> noteCandidates = new ArrayList<>();
+            for (UnifiedRemapRule rule : specificRules) {
+                if (rule.coversNote(note)) {
+                    addUntilUnconditional(noteCandidates, rule);
+                }
+            }
+            candidates.addAll(noteCandidates);
+        }
+        starts[128] = candidates.size();
+        ruleSet.noteRuleStarts[index] = starts;
+        ruleSet.noteRuleCandidates[index] = toArray(candidates);
+    }
+
+    /**
+     * Compiles the note plans of a patch, replaying the rules the engine applies to a note without conditions.
+     * Notes that a conditional rule may apply to, patches with layering rules and results the engine would log
+     * a warning for get {@link #NO_PLAN}.
+     */
+    private static void compileNotePlans(RemapRuleSet ruleSet, int index) {
+        int[] plans = new int[256];
+        UnifiedRemapRule[] layers = ruleSet.layerRules[index];
+        for (int segment = 0; segment < 2; segment++) {
+            UnifiedRemapRule[] shifts = segment == 1 ? ruleSet.drumShiftRules[index] : ruleSet.melodicShiftRules[index];
+            for (int note = 0; note < 128; note++) {
+                plans[segment * 128 + note] = layers.length > 0 ? NO_PLAN : notePlan(ruleSet, index, shifts, note);
+            }
+        }
+        ruleSet.notePlans[index] = plans;
+    }
+
+    private static int notePlan(RemapRuleSet ruleSet, int index, UnifiedRemapRule[] shifts, int note) {
+        int[] starts = ruleSet.noteRuleStarts[index];
+        if (starts[note] < starts[note + 1]) {
+            UnifiedRemapRule rule = ruleSet.noteRuleCandidates[index][starts[note]];
+            int remappedNote = rule.remapNote(note);
+            if (rule.hasConditions() || remappedNote < 0 || remappedNote > 127) {
+                return NO_PLAN;
+            }
+            return remappedNote | ("DRUM".equals(rule.channelType) ? PLAN_DRUM : PLAN_MELODIC) << 7;
+        }
+        int finalNote = note;
+        for (UnifiedRemapRule rule : shifts) {
+            finalNote += rule.remappedNoteOrOffset;
+            if (rule.hasConditions() || finalNote < 0 || finalNote > 127) {
+                return NO_PLAN;
+            }
+        }
+        return finalNote | PLAN_SEGMENT_TYPE << 7;
+    }
+
+    /**
+     * Adds a rule to a list of candidates in precedence order, unless the list already ends with a rule
+     * without conditions, which always wins over the rules after it.
+     */
+    private static void addUntilUnconditional(List<UnifiedRemapRule> candidates, UnifiedRemapRule rule) {
+        if (candidates.isEmpty() || candidates.get(candidates.size() - 1).hasConditions()) {
+            candidates.add(rule);
+        }
+    }
+
+    /**
+     * Returns the all-notes rules (original note -1) of a list that are, or are not, layering rules.
+     */
+    private static UnifiedRemapRule[] allNotesRules(List<UnifiedRemapRule> rules, boolean layered) {
+        List<UnifiedRemapRule> allNotesRules = new ArrayList<>();
+        for (UnifiedRemapRule rule : rules) {
+            if (rule.originalNote == -1 && rule.isLayered == layered) {
+                allNotesRules.add(rule);
+            }
+        }
+        return toArray(allNotesRules);
+    }
+
+    /**
+     * Parses the conditions column of a rule: space separated terms such as {@code vel>100}, {@code vel=1-63},
+     * {@code ch=10} or {@code ch!=10}. All velocity terms have to hold. Channel terms with = (or a comparison)
+     * list the channels, 1-16, the rule applies to, and != removes channels; without a listing term the rule
+     * applies to every channel not removed.
+     * @throws NumberFormatException If a term cannot be parsed, or the conditions can never hold.
+     */
+    private static void parseConditions(String text, UnifiedRemapRule rule) {
+        int listedChannels = 0;
+        int excludedChannels = 0;
+        for (String term : text.trim().toLowerCase().split("\\s+")) {
+            Matcher matcher = CONDITION.matcher(term);
+            if (!matcher.matches()) {
+                throw new NumberFormatException("not a condition: \"" + term + "\" (expected terms such as vel>100, vel=1-63 or ch=10)");
+            }
+            String operator = matcher.group(2);
+            int low = Integer.parseInt(matcher.group(3));
+            int high = matcher.group(4) != null ? Integer.parseInt(matcher.group(4)) : low;
+            if (matcher.group(4) != null && !operator.equals("=") && !operator.equals("!=")) {
+                throw new NumberFormatException("a range needs = or != in condition \"" + term + "\"");
+            }
+            if (matcher.group(1).equals("vel")) {
+                if (high > 127 || low > high) {
+                    throw new NumberFormatException("velocity out of range (0-127) in condition \"" + term + "\"");
+                }
+                switch (operator) {
+                    case "=":
+                        rule.velocityMin = Math.max(rule.velocityMin, low);
+                        rule.velocityMax = Math.min(rule.velocityMax, high);
+                        break;
+                    case ">":
+                        rule.velocityMin = Math.max(rule.velocityMin, low + 1);
+                        break;
+                    case ">=":
+                        rule.velocityMin = Math.max(rule.velocityMin, low);
+                        break;
+                    case "<":
+                        rule.velocityMax = Math.min(rule.velocityMax, low - 1);
+                        break;
+                    case "<=":
+                        rule.velocityMax = Math.min(rule.velocityMax, low);
+                        break;
+                    default:
+                        throw new NumberFormatException("velocity conditions do not support != in \"" + term + "\"");
+                }
+            } else {
+                if (low < 1 || high > 16 || low > high) {
+                    throw new NumberFormatException("channel out of range (1-16) in condition \"" + term + "\"");
+                }
+                switch (operator) {
+                    case ">":
+                        low = low + 1;
+                        high = 16;
+                        break;
+                    case ">=":
+                        high = 16;
+                        break;
+                    case "<":
+                        high = low - 1;
+                        low = 1;
+                        break;
+                    case "<=":
+                        high = low;
+                        low = 1;
+                        break;
+                    default:
+                        break;
+                }
+                int channels = low > high ? 0 : (0xFFFF >>> (16 - (high - low + 1))) << (low - 1);
+                if (operator.equals("!=")) {
+                    excludedChannels |= channels;
+                } else {
+                    listedChannels |= channels;
+                }
+            }
+        }
+        rule.channelMask = (listedChannels != 0 ? listedChannels : UnifiedRemapRule.ALL_CHANNELS) & ~excludedChannels;
+        if (rule.velocityMin > rule.velocityMax || rule.channelMask == 0) {
+            throw new NumberFormatException("conditions \"" + text.trim() + "\" can never hold");
+        }
+    }
+
+    private static UnifiedRemapRule[] toArray(List<UnifiedRemapRule> rules) {
+        return rules == null || rules.isEmpty() ? NO_RULES : rules.toArray(NO_RULES);
+    }
+}
@@ -0,0 +1,338 @@
+import javax.sound.midi.*;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * A persistent corpus index recording, for every scanned MIDI file, which (bank, program) patches
+ * it uses and which notes are played under each of those patches.
+ * <p>
+ * The index answers questions such as "which files use program 39 note 31" without re-reading any
+ * MIDI data, so an edited CSV row can be traced back to the sequences it affects and only those
+ * files need to be re-processed.
+ * <p>
+ * Patches are stored as packed keys (see {@link Patch}). Queries use the patch as written in column 2 of
+ * the remapping CSV and match the same way the splitter looks up rules: exactly, and a patch with bank
+ * MSB 0 also matches the same LSB and program under any MSB.
+ * Notes are kept as a 128-bit set (two longs) per patch.
+ */
+public class RuleCoverageIndex {
+
+    private static final int MAGIC = 0x52434958; // "RCIX"
+    private static final int VERSION = 1;
+
+    /**
+     * Per-file index entry. The patch keys are sorted; the note bitsets are stored
+     * in parallel, two longs per patch (notes 0-63, then notes 64-127).
+     */
+    static class FileEntry {
+        final String path;
+        final long lastModified;
+        final long length;
+        final int[] patchKeys;
+        final long[] noteBits;
+
+        FileEntry(String path, long lastModified, long length, int[] patchKeys, long[] noteBits) {
+            this.path = path;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.patchKeys = patchKeys;
+            this.noteBits = noteBits;
+        }
+
+        /**
+         * Returns true if this file uses the given CSV patch number and, unless note is -1, plays that note under it.
+         */
+        boolean uses(int csvPatch, int note) {
+            for (int i = 0; i < patchKeys.length; i++) {
+                if (!matches(csvPatch, patchKeys[i])) {
+                    continue;
+                }
+                if (note < 0) {
+                    return true;
+                }
+                long word = noteBits[i * 2 + (note >> 6)];
+                if ((word & (1L << (note & 63))) != 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private final Map<String, FileEntry> entries = new TreeMap<>();
+
+    // Reverse map from patch to the files using it, rebuilt lazily after modifications. Files using a patch
+    // with a bank MSB are also listed under the same patch with MSB 0.
+    private Map<Integer, List<FileEntry>> filesByPatch;
+
+    /**
+     * Returns true if a rule written for a CSV patch applies to a patch used by a file.
+     */
+    static boolean matches(int csvPatch, int patchKey) {
+        return patchKey == csvPatch || (Patch.bankMSB(csvPatch) == 0 && Patch.withoutBankMSB(patchKey) == csvPatch);
+    }
+
+    /**
+     * Loads an index from disk, or returns an empty index if the file does not exist yet.
+     * @param indexFile The index file.
+     * @return The loaded index.
+     * @throws IOException If the file exists but cannot be read or is not a valid index.
+     */
+    public static RuleCoverageIndex load(File indexFile) throws IOException {
+        RuleCoverageIndex index = new RuleCoverageIndex();
+        if (!indexFile.exists()) {
+            return index;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a rule coverage index: " + indexFile.getAbsolutePath());
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported rule coverage index version " + version + " in " + indexFile.getAbsolutePath());
+            }
+            int fileCount = in.readInt();
+            for (int f = 0; f < fileCount; f++) {
+                String path = in.readUTF();
+                long lastModified = in.readLong();
+                long length = in.readLong();
+                int patchCount = in.readInt();
+                int[] patchKeys = new int[patchCount];
+                long[] noteBits = new long[patchCount * 2];
+                for (int p = 0; p < patchCount; p++) {
+                    patchKeys[p] = in.readInt();
+                    noteBits[p * 2] = in.readLong();
+                    noteBits[p * 2 + 1] = in.readLong();
+                }
+                index.entries.put(path, new FileEntry(path, lastModified, length, patchKeys, noteBits));
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Writes the index to disk. The file is written to a temporary sibling first and then moved into place,
+     * so a crash never leaves a truncated index behind.
+     * @param indexFile The destination index file.
+     * @throws IOException If the index cannot be written.
+     */
+    public synchronized void save(File indexFile) throws IOException {
+        File parent = indexFile.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Could not create index directory: " + parent.getAbsolutePath());
+        }
+        File tempFile = new File(parent, indexFile.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (FileEntry entry : entries.values()) {
+                out.writeUTF(entry.path);
+                out.writeLong(entry.lastModified);
+                out.writeLong(entry.length);
+                out.writeInt(entry.patchKeys.length);
+                for (int p = 0; p < entry.patchKeys.length; p++) {
+                    out.writeInt(entry.patchKeys[p]);
+                    out.writeLong(entry.noteBits[p * 2]);
+                    out.writeLong(entry.noteBits[p * 2 + 1]);
+                }
+            }
+        }
+        Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Brings the index up to date with all MIDI files under a folder. Files whose size and modification
+     * time are unchanged keep their existing entry; new or modified files are re-scanned, and entries for
+     * files under the folder that no longer exist are dropped.
+     * @param rootFolder The folder to scan recursively.
+     * @return The number of files that were (re-)scanned.
+     * @throws IOException If the folder cannot be walked.
+     */
+    public synchronized int update(File rootFolder) throws IOException {
+        List<File> midiFiles = new ArrayList<>();
+        try (Stream<Path> paths = Files.walk(rootFolder.toPath())) {
+            paths.filter(Files::isRegularFile)
+                    .filter(p -> isMidiFileName(p.getFileName().toString()))
+                    .forEach(p -> midiFiles.add(p.toFile()));
+        }
+
+        String rootPrefix = rootFolder.getAbsoluteFile().toPath().normalize() + File.separator;
+        Set<String> present = new HashSet<>();
+        for (File file : midiFiles) {
+            present.add(keyFor(file));
+        }
+        boolean removedAny = entries.keySet().removeIf(path -> path.startsWith(rootPrefix) && !present.contains(path));
+        if (removedAny) {
+            filesByPatch = null;
+        }
+
+        int scanned = 0;
+        for (File file : midiFiles) {
+            if (refresh(file)) {
+                scanned++;
+            }
+        }
+        return scanned;
+    }
+
+    /**
+     * Refreshes the entry for a single file: re-scans it if it changed, or removes it if it no longer exists.
+     * @param midiFile The MIDI file.
+     * @return True if the file was (re-)scanned.
+     */
+    public synchronized boolean refresh(File midiFile) {
+        String key = keyFor(midiFile);
+        if (!midiFile.isFile()) {
+            if (entries.remove(key) != null) {
+                filesByPatch = null;
+            }
+            return false;
+        }
+        FileEntry existing = entries.get(key);
+        if (existing != null && existing.lastModified == midiFile.lastModified() && existing.length == midiFile.length()) {
+            return false;
+        }
+        try {
+            entries.put(key, scan(midiFile, key));
+        } catch (InvalidMidiDataException | IOException e) {
+            MidiProgramChangeSplitterGUI.logWarning("Could not index " + midiFile.getAbsolutePath() + ": " + e.getMessage());
+            // Keep an empty entry so an unreadable file is not re-scanned until it changes
+            entries.put(key, new FileEntry(key, midiFile.lastModified(), midiFile.length(), new int[0], new long[0]));
+        }
+        filesByPatch = null;
+        return true;
+    }
+
+    /**
+     * Returns the files that use a patch, optionally restricted to those playing a given note under it.
+     * @param csvPatch The patch as written in the remapping CSV (see {@link Patch}).
+     * @param note The note number, or -1 for any note.
+     * @return The matching file paths, in sorted order.
+     */
+    public synchronized List<String> filesUsing(int csvPatch, int note) {
+        if (filesByPatch == null) {
+            filesByPatch = new HashMap<>();
+            for (FileEntry entry : entries.values()) {
+                for (int patchKey : entry.patchKeys) {
+                    addToReverseMap(patchKey, entry);
+                    if (Patch.bankMSB(patchKey) != 0) {
+                        addToReverseMap(Patch.withoutBankMSB(patchKey), entry);
+                    }
+                }
+            }
+        }
+        List<String> result = new ArrayList<>();
+        for (FileEntry entry : filesByPatch.getOrDefault(csvPatch, Collections.emptyList())) {
+            if (note < 0 || entry.uses(csvPatch, note)) {
+                result.add(entry.path);
+            }
+        }
+        return result;
+    }
+
+    private void addToReverseMap(int patch, FileEntry entry) {
+        List<FileEntry> files = filesByPatch.computeIfAbsent(patch, k -> new ArrayList<>());
+        if (files.isEmpty() || files.get(files.size() - 1) != entry) {
+            files.add(entry);
+        }
+    }
+
+    /**
+     * Returns the number of files in the index.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    static boolean isMidiFileName(String name) {
+        String lower = name.toLowerCase(Locale.ROOT);
+        return lower.endsWith(".mid") || lower.endsWith(".midi");
+    }
+
+    private static String keyFor(File file) {
+        return file.getAbsoluteFile().toPath().normalize().toString();
+    }
+
+    /**
+     * Scans one MIDI file. Channel state is tracked the same way the splitter tracks it: tracks are walked
+     * in order, bank selects and program changes carry over between tracks, and notes played on a channel
+     * before its first program change are attributed to that first program.
+     */
+    private static FileEntry scan(File midiFile, String key) throws InvalidMidiDataException, IOException {
+        long lastModified = midiFile.lastModified();
+        long length = midiFile.length();
+        Sequence sequence = MidiSystem.getSequence(midiFile);
+        Track[] tracks = sequence.getTracks();
+
+        int[] firstProgram = new int[16];
+        Arrays.fill(firstProgram, -1);
+        for (Track track : tracks) {
+            for (int i = 0; i < track.size(); i++) {
+                MidiMessage message = track.get(i).getMessage();
+                if (message instanceof ShortMessage) {
+                    ShortMessage sm = (ShortMessage) message;
+                    if (sm.getCommand() == ShortMessage.PROGRAM_CHANGE && firstProgram[sm.getChannel()] == -1) {
+                        firstProgram[sm.getChannel()] = sm.getData1();
+                    }
+                }
+            }
+        }
+
+        int[] bankMSB = new int[16];
+        int[] bankLSB = new int[16];
+        bankLSB[9] = 1;
+        int[] currentPatch = new int[16];
+        for (int ch = 0; ch < 16; ch++) {
+            currentPatch[ch] = Patch.pack(0, 0, Math.max(firstProgram[ch], 0));
+        }
+
+        // Patch key -> {notes 0-63, notes 64-127}
+        Map<Integer, long[]> notesByPatch = new TreeMap<>();
+        boolean[] channelSeen = new boolean[16];
+
+        for (Track track : tracks) {
+            for (int i = 0; i < track.size(); i++) {
+                MidiMessage message = track.get(i).getMessage();
+                if (!(message instanceof ShortMessage)) {
+                    continue;
+                }
+                ShortMessage sm = (ShortMessage) message;
+                int channel = sm.getChannel();
+                int command = sm.getCommand();
+                if (command == ShortMessage.CONTROL_CHANGE) {
+                    if (sm.getData1() == 0) {
+                        bankMSB[channel] = sm.getData2();
+                    } else if (sm.getData1() == 32) {
+                        bankLSB[channel] = sm.getData2();
+                    }
+                } else if (command == ShortMessage.PROGRAM_CHANGE) {
+                    currentPatch[channel] = Patch.pack(bankMSB[channel], bankLSB[channel], sm.getData1());
+                    notesByPatch.computeIfAbsent(currentPatch[channel], k -> new long[2]);
+                } else if (command == ShortMessage.NOTE_ON || command == ShortMessage.NOTE_OFF) {
+                    int note = sm.getData1();
+                    long[] bits = notesByPatch.computeIfAbsent(currentPatch[channel], k -> new long[2]);
+                    bits[note >> 6] |= 1L << (note & 63);
+                }
+                if (command != ShortMessage.PROGRAM_CHANGE && !channelSeen[channel]) {
+                    // The channel's initial context is used even if no notes follow
+                    notesByPatch.computeIfAbsent(currentPatch[channel], k -> new long[2]);
+                }
+                channelSeen[channel] = true;
+            }
+        }
+
+        int[] patchKeys = new int[notesByPatch.size()];
+        long[] noteBits = new long[notesByPatch.size() * 2];
+        int p = 0;
+        for (Map.Entry<Integer, long[]> e : notesByPatch.entrySet()) {
+            patchKeys[p] = e.getKey();
+            noteBits[p * 2] = e.getValue()[0];
+            noteBits[p * 2 + 1] = e.getValue()[1];
+            p++;
+        }
+        return new FileEntry(key, lastModified, length, patchKeys, noteBits);
+    }
+}
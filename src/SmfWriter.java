@@ -0,0 +1,241 @@
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.Track;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Streaming Standard MIDI File writer. Events are written one at a time, in tick order, straight to a
+ * file channel; each track's chunk length is patched in once the track is finished, so no track ever
+ * has to be held in memory as a whole.
+ * <p>
+ * Messages are passed as the raw bytes returned by {@link javax.sound.midi.MidiMessage#getMessage()}.
+ * End of Track meta events are dropped from the input and written by {@link #endTrack()} at the tick of the
+ * track's last event, or of the latest End of Track passed in if that is later (as {@link javax.sound.midi.Track} does).
+ * <p>
+ * {@link #encodeTrack} uses the same encoding to build a track chunk in memory, which {@link #writeRaw} can then
+ * write into any number of files.
+ */
+final class SmfWriter implements Closeable {
+
+    private final FileChannel channel; // null when encoding into memory
+    private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    private final ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+
+    private long trackLengthPosition = -1;
+    private long lastTick;
+    private long endOfTrackTick;
+
+    /**
+     * Creates a writer that writes from the channel's current position.
+     * @param channel The channel to write to. It is not closed by {@link #close()}.
+     */
+    SmfWriter(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Encodes a track as a complete MTrk chunk in memory. The track is only read.
+     * @param track The track to encode. Its events must be in tick order, as in any {@link Track}.
+     * @return A read-only buffer holding the chunk, including its header and End of Track.
+     */
+    static ByteBuffer encodeTrack(Track track) {
+        SmfWriter writer = new SmfWriter(null);
+        try {
+            writer.beginTrack();
+            for (int i = 0; i < track.size(); i++) {
+                MidiEvent event = track.get(i);
+                MidiMessage message = event.getMessage();
+                writer.writeEvent(event.getTick(), message.getMessage(), 0, message.getLength());
+            }
+            writer.endTrack();
+        } catch (IOException e) {
+            throw new IllegalStateException("Encoding into memory cannot fail", e);
+        }
+        writer.buffer.flip();
+        return writer.buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * Writes the MThd header chunk.
+     * @param format The SMF format (0 or 1).
+     * @param trackCount The number of track chunks that will follow.
+     * @param divisionType The division type of the sequence ({@link Sequence#PPQ} or one of the SMPTE types).
+     * @param resolution The ticks per quarter note (PPQ) or ticks per frame (SMPTE).
+     * @throws IOException If the header cannot be written.
+     */
+    void writeHeader(int format, int trackCount, float divisionType, int resolution) throws IOException {
+        int division;
+        if (divisionType == Sequence.PPQ) {
+            division = resolution & 0x7FFF;
+        } else {
+            int framesPerSecond = divisionType == Sequence.SMPTE_30DROP ? 29 : Math.round(divisionType);
+            division = ((-framesPerSecond & 0xFF) << 8) | (resolution & 0xFF);
+        }
+        ensureSpace(14);
+        buffer.put((byte) 'M').put((byte) 'T').put((byte) 'h').put((byte) 'd');
+        buffer.putInt(6);
+        buffer.putShort((short) format);
+        buffer.putShort((short) trackCount);
+        buffer.putShort((short) division);
+    }
+
+    /**
+     * Starts a new MTrk chunk.
+     * @throws IOException If the chunk header cannot be written.
+     */
+    void beginTrack() throws IOException {
+        if (trackLengthPosition >= 0) {
+            throw new IllegalStateException("Previous track has not been ended");
+        }
+        ensureSpace(8);
+        buffer.put((byte) 'M').put((byte) 'T').put((byte) 'r').put((byte) 'k');
+        trackLengthPosition = position();
+        buffer.putInt(0); // Patched by endTrack()
+        lastTick = 0;
+        endOfTrackTick = 0;
+    }
+
+    /**
+     * Writes one event of the current track.
+     * @param tick The absolute tick of the event; must not be lower than the previous event's tick.
+     * @param message The raw message bytes, as returned by {@link javax.sound.midi.MidiMessage#getMessage()}.
+     * @param offset The offset of the message in the array.
+     * @param length The length of the message.
+     * @throws IOException If the event cannot be written.
+     */
+    void writeEvent(long tick, byte[] message, int offset, int length) throws IOException {
+        if (length == 0) {
+            return;
+        }
+        int status = message[offset] & 0xFF;
+        if (status == 0xFF && length >= 2 && (message[offset + 1] & 0xFF) == 0x2F) {
+            endOfTrackTick = Math.max(endOfTrackTick, tick); // End of Track is written by endTrack()
+            return;
+        }
+        if (tick < lastTick) {
+            throw new IllegalArgumentException("Events must be written in tick order: " + tick + " < " + lastTick);
+        }
+        ensureSpace(16);
+        writeVariableLength(tick - lastTick);
+        lastTick = tick;
+        if (status == 0xF0 || status == 0xF7) {
+            // System exclusive: status byte, then the length of the remaining data
+            buffer.put((byte) status);
+            writeVariableLength(length - 1);
+            put(message, offset + 1, length - 1);
+        } else {
+            put(message, offset, length);
+        }
+    }
+
+    /**
+     * Writes End of Track and fills in the chunk length.
+     * @throws IOException If the track cannot be finished.
+     */
+    void endTrack() throws IOException {
+        ensureSpace(8);
+        writeVariableLength(Math.max(lastTick, endOfTrackTick) - lastTick);
+        buffer.put((byte) 0xFF).put((byte) 0x2F).put((byte) 0);
+        if (channel == null) {
+            buffer.putInt((int) trackLengthPosition, (int) (buffer.position() - trackLengthPosition - 4));
+            trackLengthPosition = -1;
+            return;
+        }
+        flush();
+        long trackLength = channel.position() - trackLengthPosition - 4;
+        lengthBuffer.clear();
+        lengthBuffer.putInt((int) trackLength).flip();
+        long position = trackLengthPosition;
+        while (lengthBuffer.hasRemaining()) {
+            position += channel.write(lengthBuffer, position);
+        }
+        trackLengthPosition = -1;
+    }
+
+    /**
+     * Writes bytes that are already a complete chunk (for example a pre-encoded track shared between files).
+     * @param chunk The chunk bytes, including the chunk header.
+     * @throws IOException If the bytes cannot be written.
+     */
+    void writeRaw(ByteBuffer chunk) throws IOException {
+        if (channel == null) {
+            ensureSpace(chunk.remaining());
+            buffer.put(chunk);
+            return;
+        }
+        flush();
+        while (chunk.hasRemaining()) {
+            channel.write(chunk);
+        }
+    }
+
+    /**
+     * Returns the current logical write position, including buffered bytes.
+     */
+    long position() throws IOException {
+        return (channel != null ? channel.position() : 0) + buffer.position();
+    }
+
+    /**
+     * Flushes buffered bytes to the channel.
+     * @throws IOException If the bytes cannot be written.
+     */
+    void flush() throws IOException {
+        if (channel == null) {
+            return; // Everything stays in the buffer
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+
+    private void ensureSpace(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            if (channel == null) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+                buffer.flip();
+                buffer = larger.put(buffer);
+            } else {
+                flush();
+            }
+        }
+    }
+
+    private void put(byte[] bytes, int offset, int length) throws IOException {
+        if (length <= buffer.remaining() || channel == null) {
+            ensureSpace(length);
+            buffer.put(bytes, offset, length);
+        } else {
+            // Too large for the buffer (e.g. a big SysEx dump): write it straight through
+            writeRaw(ByteBuffer.wrap(bytes, offset, length));
+        }
+    }
+
+    private void writeVariableLength(long value) {
+        if (value > 0x0FFFFFFFL) {
+            throw new IllegalArgumentException("Value too large for a MIDI variable-length quantity: " + value);
+        }
+        int v = (int) value;
+        if (v >= 1 << 21) {
+            buffer.put((byte) (((v >> 21) & 0x7F) | 0x80));
+        }
+        if (v >= 1 << 14) {
+            buffer.put((byte) (((v >> 14) & 0x7F) | 0x80));
+        }
+        if (v >= 1 << 7) {
+            buffer.put((byte) (((v >> 7) & 0x7F) | 0x80));
+        }
+        buffer.put((byte) (v & 0x7F));
+    }
+}
@@ -0,0 +1,362 @@
+import javax.sound.midi.MidiEvent;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Output track storage with a fixed memory budget.
+ * <p>
+ * Events added to a track are encoded into a compact in-memory buffer (tick plus raw message bytes).
+ * When the total size of all buffers exceeds the budget, the largest buffer is sorted by tick and
+ * appended to a temporary spill file as a "run". When the output is written, each track's runs and
+ * its remaining in-memory events are merged by tick and streamed straight into the SMF, so a single
+ * huge file can be split with a bounded amount of heap.
+ * <p>
+ * Events with equal ticks keep the order in which they were added, matching {@link javax.sound.midi.Track#add}.
+ */
+public class SpillingTrackStore implements Closeable {
+
+    private static final int EVENT_OVERHEAD_BYTES = 16; // tick + offset per buffered event
+    private static final int READ_BUFFER_BYTES = 8 * 1024;
+
+    private final long memoryBudgetBytes;
+    private final List<TrackBuffer> tracks = new ArrayList<>();
+    private long bufferedBytes;
+
+    private Path spillPath;
+    private FileChannel spillChannel;
+    private final ByteBuffer spillBuffer = ByteBuffer.allocate(64 * 1024);
+    private int spilledRuns;
+
+    /**
+     * One output track: an in-memory buffer of not-yet-spilled events plus the runs already on disk.
+     */
+    public final class TrackBuffer implements MidiTrackSink {
+        private long[] ticks = new long[64];
+        private int[] offsets = new int[65];
+        private byte[] data = new byte[256];
+        private int count;
+        private final List<long[]> runs = new ArrayList<>(); // {file position, byte length, event count}
+
+        @Override
+        public void add(MidiEvent event) {
+            byte[] message = event.getMessage().getMessage();
+            int length = event.getMessage().getLength();
+            if (count == ticks.length) {
+                ticks = Arrays.copyOf(ticks, count * 2);
+                offsets = Arrays.copyOf(offsets, count * 2 + 1);
+            }
+            int start = offsets[count];
+            if (start + length > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, start + length));
+            }
+            System.arraycopy(message, 0, data, start, length);
+            ticks[count] = event.getTick();
+            offsets[count + 1] = start + length;
+            count++;
+            bufferedBytes += length + EVENT_OVERHEAD_BYTES;
+            if (bufferedBytes > memoryBudgetBytes) {
+                try {
+                    // Spill down to half the budget so a full store does not spill on every event
+                    while (bufferedBytes > memoryBudgetBytes / 2 && spillLargestTrack()) {
+                        // keep spilling
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Could not spill output events to disk", e);
+                }
+            }
+        }
+
+        private long bufferedSize() {
+            return offsets[count] + (long) count * EVENT_OVERHEAD_BYTES;
+        }
+
+        /**
+         * Returns the indices of the buffered events in stable tick order.
+         */
+        private int[] sortedOrder() {
+            int[] order = new int[count];
+            boolean sorted = true;
+            for (int i = 0; i < count; i++) {
+                order[i] = i;
+                if (i > 0 && ticks[i] < ticks[i - 1]) {
+                    sorted = false;
+                }
+            }
+            if (!sorted) {
+                mergeSort(order, new int[count], 0, count);
+            }
+            return order;
+        }
+
+        private void mergeSort(int[] order, int[] scratch, int from, int to) {
+            if (to - from < 2) {
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            mergeSort(order, scratch, from, mid);
+            mergeSort(order, scratch, mid, to);
+            if (ticks[order[mid - 1]] <= ticks[order[mid]]) {
+                return;
+            }
+            System.arraycopy(order, from, scratch, from, to - from);
+            int left = from;
+            int right = mid;
+            for (int i = from; i < to; i++) {
+                if (right >= to || (left < mid && ticks[scratch[left]] <= ticks[scratch[right]])) {
+                    order[i] = scratch[left++];
+                } else {
+                    order[i] = scratch[right++];
+                }
+            }
+        }
+
+        private void clearBuffer() {
+            bufferedBytes -= bufferedSize();
+            count = 0;
+            // Release oversized arrays so spilled tracks give their memory back
+            if (ticks.length > 1024) {
+                ticks = new long[64];
+                offsets = new int[65];
+            }
+            if (data.length > 16 * 1024) {
+                data = new byte[256];
+            }
+        }
+    }
+
+    /**
+     * Creates a store.
+     * @param memoryBudgetBytes The number of bytes of buffered events to keep in memory before spilling.
+     */
+    public SpillingTrackStore(long memoryBudgetBytes) {
+        this.memoryBudgetBytes = memoryBudgetBytes;
+    }
+
+    /**
+     * Creates a new, empty output track. Tracks are written in creation order.
+     * @return The sink for the new track's events.
+     */
+    public TrackBuffer createTrack() {
+        TrackBuffer track = new TrackBuffer();
+        tracks.add(track);
+        return track;
+    }
+
+    /**
+     * Returns the number of tracks created so far.
+     */
+    public int getTrackCount() {
+        return tracks.size();
+    }
+
+    /**
+     * Returns the number of event runs that have been spilled to disk.
+     */
+    public int getSpilledRunCount() {
+        return spilledRuns;
+    }
+
+    /**
+     * Writes all tracks as a type 1 Standard MIDI File, merging spilled runs back in tick order.
+     * @param outputFile The file to write.
+     * @param divisionType The division type of the output sequence.
+     * @param resolution The resolution of the output sequence.
+     * @throws IOException If the spill file cannot be read or the output cannot be written.
+     */
+    public void writeTo(File outputFile, float divisionType, int resolution) throws IOException {
+        flushSpillBuffer();
+        try (FileChannel out = FileChannel.open(outputFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+             SmfWriter writer = new SmfWriter(out)) {
+            writer.writeHeader(1, tracks.size(), divisionType, resolution);
+            for (TrackBuffer track : tracks) {
+                writer.beginTrack();
+                writeMerged(track, writer);
+                writer.endTrack();
+            }
+        }
+    }
+
+    /**
+     * Deletes the spill file.
+     */
+    @Override
+    public void close() throws IOException {
+        if (spillChannel != null) {
+            spillChannel.close();
+            spillChannel = null;
+        }
+        if (spillPath != null) {
+            Files.deleteIfExists(spillPath);
+            spillPath = null;
+        }
+    }
+
+    /**
+     * Spills the track with the most buffered bytes to disk as a new run.
+     * @return False if there was nothing left to spill.
+     */
+    private boolean spillLargestTrack() throws IOException {
+        TrackBuffer largest = null;
+        for (TrackBuffer track : tracks) {
+            if (largest == null || track.bufferedSize() > largest.bufferedSize()) {
+                largest = track;
+            }
+        }
+        if (largest == null || largest.count == 0) {
+            return false;
+        }
+        if (spillChannel == null) {
+            spillPath = Files.createTempFile("midi-split-spill", ".tmp");
+            spillPath.toFile().deleteOnExit();
+            spillChannel = FileChannel.open(spillPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        long runStart = spillChannel.position() + spillBuffer.position();
+        for (int index : largest.sortedOrder()) {
+            int start = largest.offsets[index];
+            int length = largest.offsets[index + 1] - start;
+            if (spillBuffer.remaining() < length + 12) {
+                flushSpillBuffer();
+                if (spillBuffer.remaining() < length + 12) {
+                    // Oversized event: write it straight through
+                    ByteBuffer header = ByteBuffer.allocate(12).putLong(largest.ticks[index]).putInt(length);
+                    header.flip();
+                    writeFully(header);
+                    writeFully(ByteBuffer.wrap(largest.data, start, length));
+                    continue;
+                }
+            }
+            spillBuffer.putLong(largest.ticks[index]);
+            spillBuffer.putInt(length);
+            spillBuffer.put(largest.data, start, length);
+        }
+        long runEnd = spillChannel.position() + spillBuffer.position();
+        largest.runs.add(new long[]{runStart, runEnd - runStart, largest.count});
+        largest.clearBuffer();
+        spilledRuns++;
+        return true;
+    }
+
+    private void flushSpillBuffer() throws IOException {
+        if (spillChannel == null) {
+            return;
+        }
+        spillBuffer.flip();
+        writeFully(spillBuffer);
+        spillBuffer.clear();
+    }
+
+    private void writeFully(ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            spillChannel.write(bytes);
+        }
+    }
+
+    /**
+     * Merges a track's spilled runs and in-memory buffer by tick. Runs are ordered by spill time,
+     * so on equal ticks the earlier run (and finally the in-memory buffer) wins, preserving insertion order.
+     */
+    private void writeMerged(TrackBuffer track, SmfWriter writer) throws IOException {
+        List<RunReader> readers = new ArrayList<>();
+        for (long[] run : track.runs) {
+            readers.add(new RunReader(run[0], run[1]));
+        }
+        int[] memoryOrder = track.sortedOrder();
+        int memoryPosition = 0;
+
+        while (true) {
+            RunReader next = null;
+            for (RunReader reader : readers) {
+                if (reader.hasEvent && (next == null || reader.tick < next.tick)) {
+                    next = reader;
+                }
+            }
+            boolean memoryHasEvent = memoryPosition < memoryOrder.length;
+            if (next == null && !memoryHasEvent) {
+                break;
+            }
+            if (memoryHasEvent && (next == null || track.ticks[memoryOrder[memoryPosition]] < next.tick)) {
+                int index = memoryOrder[memoryPosition++];
+                int start = track.offsets[index];
+                writer.writeEvent(track.ticks[index], track.data, start, track.offsets[index + 1] - start);
+            } else {
+                writer.writeEvent(next.tick, next.message, 0, next.length);
+                next.advance();
+            }
+        }
+    }
+
+    /**
+     * Sequential reader over one spilled run.
+     */
+    private final class RunReader {
+        private final ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_BYTES);
+        private long filePosition;
+        private final long fileEnd;
+
+        boolean hasEvent;
+        long tick;
+        byte[] message = new byte[64];
+        int length;
+
+        RunReader(long start, long byteLength) throws IOException {
+            this.filePosition = start;
+            this.fileEnd = start + byteLength;
+            buffer.limit(0);
+            advance();
+        }
+
+        void advance() throws IOException {
+            if (!ensureAvailable(12)) {
+                hasEvent = false;
+                return;
+            }
+            tick = buffer.getLong();
+            length = buffer.getInt();
+            if (message.length < length) {
+                message = new byte[Math.max(length, message.length * 2)];
+            }
+            int copied = 0;
+            while (copied < length) {
+                if (!ensureAvailable(1)) {
+                    throw new IOException("Spill file is truncated");
+                }
+                int chunk = Math.min(length - copied, buffer.remaining());
+                buffer.get(message, copied, chunk);
+                copied += chunk;
+            }
+            hasEvent = true;
+        }
+
+        private boolean ensureAvailable(int bytes) throws IOException {
+            if (buffer.remaining() >= bytes) {
+                return true;
+            }
+            buffer.compact();
+            while (buffer.position() < bytes && filePosition < fileEnd) {
+                int limit = (int) Math.min(buffer.remaining(), fileEnd - filePosition);
+                ByteBuffer slice = buffer.duplicate();
+                slice.limit(slice.position() + limit);
+                int read = spillChannel.read(slice, filePosition);
+                if (read < 0) {
+                    break;
+                }
+                filePosition += read;
+                buffer.position(buffer.position() + read);
+            }
+            buffer.flip();
+            return buffer.remaining() >= bytes;
+        }
+    }
+}
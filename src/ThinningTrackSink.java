@@ -0,0 +1,138 @@
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.ShortMessage;
+import java.util.Arrays;
+
+/**
+ * Output track filter that drops channel events which change nothing as they are emitted.
+ * <p>
+ * Every output segment carries the controllers of its channel, and many files repeat the same controller
+ * values over and over (volume and pan re-sent every bar, sequencers refreshing pitch bend). For each
+ * channel the sink remembers the last value written to its track of every controller, the program, the pitch
+ * bend and the channel pressure, and drops an event that sets one of them to the value it already has:
+ * <ul>
+ *     <li>a controller set to its current value, including bank select and RPN/NRPN parameter selects; since
+ *     data entry goes to whichever of the RPN and the NRPN was selected last, selecting one forgets the other;</li>
+ *     <li>a program change to the current program, unless a bank select changed the bank since;</li>
+ *     <li>a pitch bend or channel pressure event repeating the current value.</li>
+ * </ul>
+ * Data entry and data increment/decrement (CC 6, 38, 96, 97) act on the selected parameter and channel mode
+ * messages (CC 120-127) are commands, so they are always kept; Reset All Controllers (CC 121) forgets the
+ * channel's controller, pitch bend and pressure values. Notes, poly pressure, meta and system exclusive
+ * events pass through unchanged. The first value of each kind in a track is always kept, so a track still
+ * sets up its channel when it starts.
+ * <p>
+ * Values are compared in the order events are added, which must be tick order, and only events of the same
+ * track are compared. The engine only thins files where that order holds and no other track or system
+ * exclusive message changes a channel's state while a track is playing.
+ */
+final class ThinningTrackSink implements MidiTrackSink {
+
+    private static final int CHANNEL_COUNT = 16;
+    private static final int UNKNOWN = -1;
+
+    /**
+     * Events and bytes dropped by the sinks of one file.
+     */
+    static final class Savings {
+        int events;
+        long bytes;
+
+        void reset() {
+            events = 0;
+            bytes = 0;
+        }
+    }
+
+    private final MidiTrackSink target;
+    private final Savings savings;
+    private final byte[] controllerValues = new byte[CHANNEL_COUNT * 128]; // (channel << 7) | controller, UNKNOWN if not set yet
+    private final byte[] programs = new byte[CHANNEL_COUNT];
+    private final byte[] pressures = new byte[CHANNEL_COUNT];
+    private final short[] pitchBends = new short[CHANNEL_COUNT];
+
+    /**
+     * Creates a sink that thins the events added to another sink.
+     * @param target Receives the events that are kept.
+     * @param savings Counts the events dropped, together with the other sinks of the same file.
+     */
+    ThinningTrackSink(MidiTrackSink target, Savings savings) {
+        this.target = target;
+        this.savings = savings;
+        Arrays.fill(controllerValues, (byte) UNKNOWN);
+        Arrays.fill(programs, (byte) UNKNOWN);
+        Arrays.fill(pressures, (byte) UNKNOWN);
+        Arrays.fill(pitchBends, (short) UNKNOWN);
+    }
+
+    @Override
+    public void add(MidiEvent event) {
+        MidiMessage message = event.getMessage();
+        if (message instanceof ShortMessage && isRedundant((ShortMessage) message)) {
+            savings.events++;
+            savings.bytes += message.getLength();
+            return;
+        }
+        target.add(event);
+    }
+
+    /**
+     * Returns true if a message sets a value of its channel to the value it already has, and records the
+     * value otherwise.
+     */
+    private boolean isRedundant(ShortMessage sm) {
+        int channel = sm.getChannel();
+        switch (sm.getCommand()) {
+            case ShortMessage.CONTROL_CHANGE: {
+                int controller = sm.getData1();
+                int value = sm.getData2();
+                if (controller == 6 || controller == 38 || controller == 96 || controller == 97 || controller >= 120) {
+                    if (controller == 121) { // Reset All Controllers
+                        Arrays.fill(controllerValues, channel << 7, (channel + 1) << 7, (byte) UNKNOWN);
+                        pitchBends[channel] = UNKNOWN;
+                        pressures[channel] = UNKNOWN;
+                    }
+                    return false;
+                }
+                int slot = (channel << 7) | controller;
+                if (controllerValues[slot] == value) {
+                    return true;
+                }
+                controllerValues[slot] = (byte) value;
+                if (controller == 0 || controller == 32) {
+                    programs[channel] = UNKNOWN; // The next program change selects from another bank
+                } else if (controller == 98 || controller == 99) {
+                    // Data entry now goes to an NRPN, so the next RPN select is needed even if it repeats the last one
+                    controllerValues[(channel << 7) | 100] = UNKNOWN;
+                    controllerValues[(channel << 7) | 101] = UNKNOWN;
+                } else if (controller == 100 || controller == 101) {
+                    controllerValues[(channel << 7) | 98] = UNKNOWN;
+                    controllerValues[(channel << 7) | 99] = UNKNOWN;
+                }
+                return false;
+            }
+            case ShortMessage.PROGRAM_CHANGE:
+                if (programs[channel] == sm.getData1()) {
+                    return true;
+                }
+                programs[channel] = (byte) sm.getData1();
+                return false;
+            case ShortMessage.PITCH_BEND: {
+                int value = (sm.getData2() << 7) | sm.getData1();
+                if (pitchBends[channel] == value) {
+                    return true;
+                }
+                pitchBends[channel] = (short) value;
+                return false;
+            }
+            case ShortMessage.CHANNEL_PRESSURE:
+                if (pressures[channel] == sm.getData1()) {
+                    return true;
+                }
+                pressures[channel] = (byte) sm.getData1();
+                return false;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.Sequence;
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * Converts event ticks from the timebase of an input sequence to a fixed PPQ resolution while the events
+ * are emitted, so the remapped output is written in the target timebase without another pass or copy.
+ * <p>
+ * PPQ input is rescaled by the ratio of the resolutions; tempo events keep their values, since a tempo
+ * is a time per quarter note whatever the resolution. SMPTE input counts real time (frames per second
+ * times ticks per frame), so each tick is converted to microseconds and then to quarter notes through the
+ * tempo map of the input: tempo events have no effect on SMPTE timing, but they are written to the PPQ
+ * output at the position they were meant for, and the conversion makes every event play at the same time
+ * as before. Before the first tempo event the MIDI default of 120 BPM applies, as it does in the output.
+ * Drop-frame 29.97 input is taken as 30000/1001 frames per second.
+ * <p>
+ * All arithmetic is on integers. Each tempo segment converts with one reduced fraction, and ticks are
+ * rounded to the nearest output tick from the start of their segment, so rounding errors only add up at
+ * tempo changes, and the mapping never moves an event before an earlier one.
+ * <p>
+ * Tempo events are collected with {@link #addTempo} while the input is scanned, then {@link #prepare} builds
+ * the conversion. A converter is reused for one file after another; it is not thread-safe, but once prepared
+ * it only reads its tables.
+ */
+final class TimebaseConverter {
+
+    private static final long DEFAULT_TEMPO = 500_000; // Microseconds per quarter note at 120 BPM
+    private static final long MICROSECONDS_PER_SECOND = 1_000_000;
+
+    private boolean smpte;
+    private long microsecondsNumerator;   // Microseconds per input tick, as a fraction (SMPTE input only)
+    private long microsecondsDenominator;
+    private int targetResolution;
+
+    // Tempo events of an SMPTE input, by input tick, in the order added; sorted and merged by prepare()
+    private long[] tempoTicks = new long[8];
+    private long[] tempos = new long[8];
+    private int tempoCount;
+
+    // One segment per tempo: the input tick it starts at, its output tick and its conversion fraction
+    private long[] segmentStarts = new long[8];
+    private long[] segmentOutputStarts = new long[8];
+    private long[] segmentNumerators = new long[8];
+    private long[] segmentDenominators = new long[8];
+    private int segmentCount;
+
+    /**
+     * Starts the conversion of an input sequence's timebase.
+     * @param divisionType The division type of the input, {@link Sequence#PPQ} or one of the SMPTE types.
+     * @param resolution The resolution of the input: ticks per quarter note or per frame.
+     * @param targetResolution The PPQ resolution of the output.
+     */
+    void reset(float divisionType, int resolution, int targetResolution) {
+        if (resolution <= 0 || targetResolution <= 0) {
+            throw new IllegalArgumentException("Resolutions must be positive: " + resolution + ", " + targetResolution);
+        }
+        this.targetResolution = targetResolution;
+        this.smpte = divisionType != Sequence.PPQ;
+        tempoCount = 0;
+        segmentCount = 0;
+        if (!smpte) {
+            // One segment, independent of tempo: target / source ticks per quarter note
+            addSegment(0, 0, targetResolution, resolution);
+            return;
+        }
+        if (divisionType == Sequence.SMPTE_30DROP) {
+            microsecondsNumerator = MICROSECONDS_PER_SECOND * 1001;
+            microsecondsDenominator = 30000L * resolution;
+        } else {
+            microsecondsNumerator = MICROSECONDS_PER_SECOND;
+            microsecondsDenominator = (long) Math.round(divisionType) * resolution;
+        }
+    }
+
+    /**
+     * Returns true if the input is counted in SMPTE time and needs its tempo map.
+     */
+    boolean needsTempoMap() {
+        return smpte;
+    }
+
+    /**
+     * Records a tempo event of the input. Only SMPTE input uses the tempo map.
+     * @param tick The tick of the tempo event.
+     * @param microsecondsPerQuarter The tempo.
+     */
+    void addTempo(long tick, long microsecondsPerQuarter) {
+        if (!smpte || microsecondsPerQuarter <= 0) {
+            return;
+        }
+        if (tempoCount == tempoTicks.length) {
+            tempoTicks = Arrays.copyOf(tempoTicks, tempoCount * 2);
+            tempos = Arrays.copyOf(tempos, tempoCount * 2);
+        }
+        tempoTicks[tempoCount] = tick;
+        tempos[tempoCount++] = microsecondsPerQuarter;
+    }
+
+    /**
+     * Builds the conversion from the tempo events recorded. Must be called after the last {@link #addTempo}
+     * and before the first {@link #convert}.
+     */
+    void prepare() {
+        if (!smpte) {
+            return;
+        }
+        // Stable sort by tick, so of several tempo events at one tick the last one added wins
+        Integer[] order = new Integer[tempoCount];
+        for (int i = 0; i < tempoCount; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(tempoTicks[a], tempoTicks[b]));
+
+        segmentCount = 0;
+        addSegment(0, 0, microsecondsNumerator * targetResolution, microsecondsDenominator * DEFAULT_TEMPO);
+        for (int i : order) {
+            long tick = tempoTicks[i];
+            long outputStart = convert(tick);
+            if (segmentStarts[segmentCount - 1] == tick) {
+                segmentCount--; // A later tempo at the same tick replaces the segment
+            }
+            addSegment(tick, outputStart, microsecondsNumerator * targetResolution, microsecondsDenominator * tempos[i]);
+        }
+    }
+
+    /**
+     * Converts an input tick to an output tick.
+     * @param tick The input tick.
+     * @return The output tick.
+     */
+    long convert(long tick) {
+        int segment = segmentCount - 1;
+        if (segment > 0) {
+            segment = Arrays.binarySearch(segmentStarts, 0, segmentCount, tick);
+            if (segment < 0) {
+                segment = -segment - 2; // The last segment starting before the tick
+            }
+        }
+        long delta = tick - segmentStarts[segment];
+        long numerator = segmentNumerators[segment];
+        long denominator = segmentDenominators[segment];
+        long rounded;
+        if (delta <= (Long.MAX_VALUE - denominator / 2) / numerator) {
+            rounded = (delta * numerator + denominator / 2) / denominator;
+        } else {
+            rounded = BigInteger.valueOf(delta).multiply(BigInteger.valueOf(numerator)).add(BigInteger.valueOf(denominator / 2))
+                    .divide(BigInteger.valueOf(denominator)).longValueExact();
+        }
+        return segmentOutputStarts[segment] + rounded;
+    }
+
+    /**
+     * Returns a sink that adds events to another sink with converted ticks. Events are copied, since the
+     * input's events must not be changed; the messages are shared.
+     * @param target The sink receiving the converted events.
+     * @return The converting sink.
+     */
+    MidiTrackSink wrap(MidiTrackSink target) {
+        return event -> target.add(new MidiEvent(event.getMessage(), convert(event.getTick())));
+    }
+
+    private void addSegment(long start, long outputStart, long numerator, long denominator) {
+        if (segmentCount == segmentStarts.length) {
+            segmentStarts = Arrays.copyOf(segmentStarts, segmentCount * 2);
+            segmentOutputStarts = Arrays.copyOf(segmentOutputStarts, segmentCount * 2);
+            segmentNumerators = Arrays.copyOf(segmentNumerators, segmentCount * 2);
+            segmentDenominators = Arrays.copyOf(segmentDenominators, segmentCount * 2);
+        }
+        BigInteger gcd = BigInteger.valueOf(numerator).gcd(BigInteger.valueOf(denominator));
+        segmentStarts[segmentCount] = start;
+        segmentOutputStarts[segmentCount] = outputStart;
+        segmentNumerators[segmentCount] = numerator / gcd.longValue();
+        segmentDenominators[segmentCount++] = denominator / gcd.longValue();
+    }
+}
@@ -0,0 +1,150 @@
+import java.util.Objects;
+
+/**
+ * Represents a single unified remapping rule from the CSV file, which can be
+ * either a program change remapping rule or a note manipulation rule.
+ * <p>
+ * A note rule may cover a range of notes, and any rule may carry conditions from the optional eighth
+ * CSV column: a velocity range the note must fall in and a set of input channels the event must come from.
+ */
+class UnifiedRemapRule {
+
+    static final int ALL_CHANNELS = 0xFFFF;
+
+    String trackName; // This field will now always be null as per user request
+    int originalProgram;
+    int remappedProgram;
+    int originalNote; // -999 for program change rule, -1 for all notes, 0-127 for specific note (first note of a range)
+    int originalNoteEnd; // Last note of a note range; equal to originalNote for everything else
+    int remappedNoteOrOffset; // -999 for program change rule, offset for all notes, specific note for specific note
+    boolean isLayered; // True if this rule creates a layered note
+    String channelType; // "DRUM" or "MELODIC"
+    int velocityMin = 0;              // Condition: lowest note velocity the rule applies to
+    int velocityMax = 127;            // Condition: highest note velocity the rule applies to
+    int channelMask = ALL_CHANNELS;   // Condition: input channels the rule applies to, bit 0 = channel 1
+    int csvLine;    // Line of the CSV the rule was read from, 0 if not read from a CSV
+    int index = -1; // Position of the rule in its rule set, used to count hits
+
+    public UnifiedRemapRule(String trackName, int originalProgram, int remappedProgram,
+                            int originalNote, int remappedNoteOrOffset, boolean isLayered,
+                            String channelType) {
+        this.trackName = trackName; // Will be passed as null from loadRemappingRules
+        this.originalProgram = originalProgram;
+        this.remappedProgram = remappedProgram;
+        this.originalNote = originalNote;
+        this.originalNoteEnd = originalNote;
+        this.remappedNoteOrOffset = remappedNoteOrOffset;
+        this.isLayered = isLayered;
+        this.channelType = channelType;
+    }
+
+    /**
+     * Determines if this rule is a program change remapping rule.
+     * A program change rule is identified by specific values for originalNote and remappedNoteOrOffset.
+     */
+    public boolean isProgramChangeRule() {
+        return (originalNote == -999 && remappedNoteOrOffset == -999);
+    }
+
+    /**
+     * Determines if this rule is a note manipulation rule (remapping, shifting, or layering).
+     */
+    public boolean isNoteManipulationRule() {
+        return !isProgramChangeRule();
+    }
+
+    /**
+     * Determines if this is a specific note rule (one note or a range) that covers a note.
+     */
+    public boolean coversNote(int note) {
+        return originalNote >= 0 && note >= originalNote && note <= originalNoteEnd;
+    }
+
+    /**
+     * Returns the note a specific note rule maps a note to. The notes of a range keep their distance from
+     * the start of the range, so 36-51 remapped to 60 moves 36 to 60, 37 to 61 and so on.
+     * A negative remapped value (-999: keep the note, only change its channel type) is returned as is.
+     * @param note A note the rule covers.
+     */
+    public int remapNote(int note) {
+        return remappedNoteOrOffset < 0 ? remappedNoteOrOffset : remappedNoteOrOffset + (note - originalNote);
+    }
+
+    /**
+     * Determines if the rule has conditions, so it only applies to some velocities or channels.
+     */
+    public boolean hasConditions() {
+        return velocityMin > 0 || velocityMax < 127 || channelMask != ALL_CHANNELS;
+    }
+
+    /**
+     * Determines if the rule's conditions hold for an event.
+     * @param velocity The velocity of the note, or of the note on a note off ends.
+     * @param channel The input channel, 0-15.
+     */
+    public boolean matches(int velocity, int channel) {
+        return velocity >= velocityMin && velocity <= velocityMax && (channelMask & (1 << channel)) != 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        UnifiedRemapRule that = (UnifiedRemapRule) o;
+        return originalProgram == that.originalProgram &&
+                remappedProgram == that.remappedProgram &&
+                originalNote == that.originalNote &&
+                originalNoteEnd == that.originalNoteEnd &&
+                remappedNoteOrOffset == that.remappedNoteOrOffset &&
+                velocityMin == that.velocityMin &&
+                velocityMax == that.velocityMax &&
+                channelMask == that.channelMask &&
+                isLayered == that.isLayered &&
+                Objects.equals(trackName, that.trackName) &&
+                Objects.equals(channelType, that.channelType);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(trackName, originalProgram, remappedProgram, originalNote, originalNoteEnd, remappedNoteOrOffset, isLayered, channelType,
+                velocityMin, velocityMax, channelMask);
+    }
+
+    /**
+     * Returns the rule written the way it appears in the CSV, without the track name.
+     */
+    @Override
+    public String toString() {
+        String rule = Patch.format(originalProgram) + "," + Patch.format(remappedProgram) + ","
+                + (originalNoteEnd != originalNote ? originalNote + "-" + originalNoteEnd : String.valueOf(originalNote)) + ","
+                + remappedNoteOrOffset + "," + (isLayered ? "TRUE" : "FALSE") + "," + channelType;
+        return hasConditions() ? rule + "," + conditionsText() : rule;
+    }
+
+    /**
+     * Returns the rule's conditions the way they are written in the CSV's eighth column.
+     */
+    String conditionsText() {
+        StringBuilder text = new StringBuilder();
+        if (velocityMin > 0 || velocityMax < 127) {
+            text.append("vel=").append(velocityMin);
+            if (velocityMax != velocityMin) {
+                text.append('-').append(velocityMax);
+            }
+        }
+        for (int channel = 0; channel < 16; channel++) {
+            if (channelMask != ALL_CHANNELS && (channelMask & (1 << channel)) != 0) {
+                int last = channel;
+                while (last < 15 && (channelMask & (1 << (last + 1))) != 0) {
+                    last++;
+                }
+                text.append(text.length() > 0 ? " " : "").append("ch=").append(channel + 1);
+                if (last != channel) {
+                    text.append('-').append(last + 1);
+                }
+                channel = last;
+            }
+        }
+        return text.toString();
+    }
+}